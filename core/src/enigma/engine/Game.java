@@ -14,11 +14,19 @@ import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 import com.badlogic.gdx.math.Vector3;
 
 import enigma.engine.data.compression.ActorData;
-import enigma.engine.data.compression.DataCompressor;
+import enigma.engine.data.compression.ActorDelta;
+import enigma.engine.data.compression.ActorSnapshot;
+import enigma.engine.data.compression.InterestManager;
+import enigma.engine.data.compression.SnapshotReceiver;
+import enigma.engine.data.compression.SnapshotSender;
 import enigma.engine.gui.NetworkGameMenuPrototype;
+import enigma.engine.network.BinaryPacketCodec;
 import enigma.engine.network.FailedToConnect;
 import enigma.engine.network.Network;
 import enigma.engine.network.NetworkPlayer;
+import enigma.engine.network.PacketDispatcher;
+import enigma.engine.network.PacketListener;
+import enigma.engine.network.PacketPool;
 
 public class Game extends ApplicationAdapter implements InputProcessor {
 	/** Main camera of the game */
@@ -33,6 +41,13 @@ public class Game extends ApplicationAdapter implements InputProcessor {
 	private boolean drawNetworkMenu = false;
 	private Network network = new Network();
 	private NetworkPlayer idObject = null;
+	private SnapshotSender snapshotSender = new SnapshotSender();
+	/** the server sends each client only the actors within VIEW_RADIUS of its own */
+	private static final float VIEW_RADIUS = 1024;
+	private InterestManager interest = new InterestManager(VIEW_RADIUS);
+	private SnapshotReceiver snapshotReceiver = new SnapshotReceiver();
+	/** routes each packet drained from the network during receiveData() by its class */
+	private PacketDispatcher dispatcher = new PacketDispatcher();
 
 	// touch events
 	private Vector3 convertedCoords;
@@ -48,6 +63,23 @@ public class Game extends ApplicationAdapter implements InputProcessor {
 		controlTarget = new Actor();
 
 		network.verbose = true;
+		BinaryPacketCodec codec = BinaryPacketCodec.createDefault();
+		// decoded in place into pooled packets, so receiving them each tick allocates nothing
+		codec.register(GameDataPacket.TYPE_ID, GameDataPacket.class, GameDataPacket.SERIALIZER, GameDataPacket.POOL);
+		codec.register(SnapshotAckPacket.TYPE_ID, SnapshotAckPacket.class, SnapshotAckPacket.SERIALIZER,
+				SnapshotAckPacket.POOL);
+		network.setCodec(codec);
+		dispatcher.register(GameDataPacket.class, new PacketListener<GameDataPacket>() {
+			public void received(GameDataPacket packet) {
+				receiveGameData(packet);
+			}
+		});
+		dispatcher.register(SnapshotAckPacket.class, new PacketListener<SnapshotAckPacket>() {
+			public void received(SnapshotAckPacket ack) {
+				interest.acknowledge(ack.getPlayerID(), ack.getSequence());
+				PacketPool.recycle(ack);
+			}
+		});
 		networkMenu = new NetworkGameMenuPrototype();
 		networkMenu.setPosition(0 - networkMenu.getTableWidth() / 2, 0 - networkMenu.getTableHeight() / 2);
 		setNetworkMenuToLocalHost();
@@ -142,44 +174,76 @@ public class Game extends ApplicationAdapter implements InputProcessor {
 	}
 
 	private void receiveData() {
-		boolean shouldStop = false;
+		// every packet received since the last frame
+		network.drainReceived(dispatcher);
+	}
 
-		// open at maximum 20 packets this iteration
-		for (int i = 0; i < 20 && !shouldStop; ++i) {
-			GameDataPacket packet = (GameDataPacket) network.getNextReceivedPacket();
-			if (packet == null) {
-				shouldStop = true;
-			} else {
-				for (DataCompressor actor : packet.actorsAdded) {
-					// ugly decompression - this is just for a proof of concept.
-					ActorData actorData = (ActorData) actor;
-					if (idObject != null) {
-						if (actorData.networkId == idObject.getID()) {
-							controlTarget.updateToData(actorData);
-						} else if (otherActor != null) {
-							otherActor.updateToData(actorData);
-						}
-					} else {
-						controlTarget.updateToData(actorData);
-					}
+	private void receiveGameData(GameDataPacket packet) {
+		ActorSnapshot snapshot = receiveSnapshot(packet.getDelta());
+		PacketPool.recycle(packet);
+		if (snapshot == null) {
+			return;
+		}
+		for (ActorData actorData : snapshot.getActors()) {
+			if (network.inServerMode()) {
+				// a client's view follows its own actor
+				interest.setRegion(actorData.networkId, actorData.x, actorData.y, VIEW_RADIUS);
+			}
+			if (idObject != null) {
+				if (actorData.networkId == idObject.getID()) {
+					controlTarget.updateToData(actorData);
+				} else if (otherActor != null) {
+					otherActor.updateToData(actorData);
 				}
+			} else {
+				controlTarget.updateToData(actorData);
 			}
 		}
+	}
 
+	/**
+	 * Rebuild a received snapshot. The server receives full snapshots of each client's own actor;
+	 * clients receive deltas from the server.
+	 * 
+	 * @return the snapshot, or null if it could not be rebuilt.
+	 */
+	private ActorSnapshot receiveSnapshot(ActorDelta delta) {
+		if (network.inServerMode()) {
+			return delta.isFull() ? delta.applyTo(null) : null;
+		}
+		return snapshotReceiver.apply(delta);
 	}
 
 	private void sendData() {
 		if (network.sendDelayTimerExpired() && network.isRunning()) {
-			GameDataPacket packetToSend = makePacket();
-			network.queueToSend(packetToSend);
+			if (network.inServerMode()) {
+				// each client is sent the actors near it, as a delta against what it acknowledged
+				interest.update(makeSnapshot());
+				for (NetworkPlayer player : network.getConnectedPlayers()) {
+					ActorDelta delta = interest.encodeFor(player.getID());
+					if (!delta.isEmpty()) {
+						network.queueToSend(player, GameDataPacket.obtain(delta));
+					}
+				}
+			} else {
+				// only the server receives acknowledgements, so a client always sends full snapshots
+				ActorDelta delta = snapshotSender.encode(makeSnapshot());
+				if (!delta.isEmpty()) {
+					network.queueToSend(GameDataPacket.obtain(delta));
+				}
+			}
+			// acknowledge every tick, so a lost ack is repaired and a new client asks for a full snapshot
+			if (!network.inServerMode() && idObject != null) {
+				network.queueToSend(SnapshotAckPacket.obtain(idObject.getID(), snapshotReceiver.getAcknowledgement()));
+			}
 		}
 	}
 
-	private GameDataPacket makePacket() {
-		GameDataPacket packet = new GameDataPacket();
-		// this is where all game information that needs to be sent should be loaded into a packet.
-		packet.addActor(controlTarget);
-		return packet;
+	private ActorSnapshot makeSnapshot() {
+		ActorSnapshot snapshot = new ActorSnapshot();
+		// this is where all game information that needs to be sent should be loaded into a snapshot.
+		snapshot.add(controlTarget.getCompresedData());
+		return snapshot;
 	}
 
 	private void pollNetworkMenu() {
@@ -1,27 +1,113 @@
 package enigma.engine;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 
-import enigma.engine.data.compression.ActorData;
-import enigma.engine.data.compression.DataCompressor;
+import enigma.engine.data.compression.ActorDelta;
+import enigma.engine.network.BinaryPacketCodec;
+import enigma.engine.network.InPlaceSerializer;
 import enigma.engine.network.Packet;
+import enigma.engine.network.PacketPool;
+import enigma.engine.network.PoolablePacket;
+import enigma.engine.network.StatePacket;
 
-public class GameDataPacket implements Packet {
+/**
+ * Carries one snapshot of the game's actors, usually as a delta against a snapshot the receiver
+ * acknowledged with a SnapshotAckPacket. See SnapshotSender and SnapshotReceiver.
+ *
+ * One is sent every tick, so packets are taken from POOL with obtain() and recycled: the network
+ * releases a sent packet, and the game releases a received one once it has applied it. A received
+ * packet is decoded into a delta the packet keeps, so receiving one allocates nothing once POOL is
+ * warm; that delta is overwritten when the packet is next received into.
+ *
+ * Every delta is against a snapshot the client has acknowledged, so a newer one makes any unsent
+ * older one redundant. The packet is a StatePacket with a single key, so a server keeps at most one
+ * waiting for each client.
+ */
+public class GameDataPacket implements PoolablePacket, StatePacket {
 	private static final long serialVersionUID = 4186186175428897466L;
-	ArrayList<DataCompressor> actorsAdded = new ArrayList<DataCompressor>();
+	private ActorDelta delta;
+	private transient ActorDelta received;
+	private transient PacketPool<GameDataPacket> pool;
 
-	public void addActor(Actor actor) {
-		actorsAdded.add(actor.getCompresedData());
+	/** the id this packet is registered under in the game's BinaryPacketCodec */
+	public static final short TYPE_ID = BinaryPacketCodec.FIRST_APPLICATION_TYPE_ID;
+
+	public static final PacketPool<GameDataPacket> POOL = new PacketPool<GameDataPacket>(
+			new PacketPool.Factory<GameDataPacket>() {
+				@Override
+				public GameDataPacket create(PacketPool<GameDataPacket> pool) {
+					GameDataPacket packet = new GameDataPacket(null);
+					packet.pool = pool;
+					return packet;
+				}
+			});
+
+	/** Sends the delta's changed fields only. Register it with POOL to decode in place. */
+	public static final InPlaceSerializer<GameDataPacket> SERIALIZER = new InPlaceSerializer<GameDataPacket>() {
+		@Override
+		public void write(GameDataPacket packet, ByteBuffer out) {
+			packet.delta.write(out);
+		}
+
+		@Override
+		public GameDataPacket read(ByteBuffer in) {
+			GameDataPacket packet = POOL.acquire();
+			readInto(packet, in);
+			return packet;
+		}
+
+		@Override
+		public void readInto(GameDataPacket packet, ByteBuffer in) {
+			if (packet.received == null) {
+				packet.received = new ActorDelta();
+			}
+			packet.received.readFrom(in);
+			packet.delta = packet.received;
+		}
+	};
+
+	public GameDataPacket(ActorDelta delta) {
+		this.delta = delta;
+	}
+
+	/**
+	 * @return a packet from POOL carrying the delta.
+	 */
+	public static GameDataPacket obtain(ActorDelta delta) {
+		GameDataPacket packet = POOL.acquire();
+		packet.delta = delta;
+		return packet;
+	}
+
+	/**
+	 * @return the delta; for a received packet it is only valid until the packet is released.
+	 */
+	public ActorDelta getDelta() {
+		return delta;
+	}
+
+	@Override
+	public long getStateKey() {
+		return TYPE_ID;
 	}
 
 	@Override
 	public Packet makeCopy() {
-		// copy actors
-		GameDataPacket copy = new GameDataPacket();
-		for (DataCompressor data : actorsAdded) {
-			copy.actorsAdded.add((ActorData) data.clone());
+		// a computed delta is never modified, so it can be shared; a received one is read again
+		// once this packet is released, so the copy must not outlive it
+		return new GameDataPacket(delta);
+	}
+
+	@Override
+	public void reset() {
+		delta = null;
+	}
+
+	@Override
+	public void release() {
+		if (pool != null) {
+			pool.release(this);
 		}
-		return copy;
 	}
 
 //	private void writeObject(ObjectOutputStream oos) throws IOException {
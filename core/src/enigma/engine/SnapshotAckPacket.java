@@ -0,0 +1,106 @@
+package enigma.engine;
+
+import java.nio.ByteBuffer;
+
+import enigma.engine.data.compression.ActorDelta;
+import enigma.engine.network.InPlaceSerializer;
+import enigma.engine.network.Packet;
+import enigma.engine.network.PacketPool;
+import enigma.engine.network.PoolablePacket;
+
+/**
+ * Sent by a client to tell the server the newest snapshot it has rebuilt, so later
+ * GameDataPackets can be encoded against it. A sequence of ActorDelta.NO_BASELINE asks for a full
+ * snapshot.
+ *
+ * Every client sends one every tick, so like GameDataPacket they are taken from POOL with obtain()
+ * and recycled, and the server decodes them in place.
+ */
+public class SnapshotAckPacket implements PoolablePacket {
+	private static final long serialVersionUID = -3154810470516626373L;
+	private char playerID;
+	private int sequence;
+	private transient PacketPool<SnapshotAckPacket> pool;
+
+	/** the id this packet is registered under in the game's BinaryPacketCodec */
+	public static final short TYPE_ID = GameDataPacket.TYPE_ID + 1;
+
+	public static final PacketPool<SnapshotAckPacket> POOL = new PacketPool<SnapshotAckPacket>(
+			new PacketPool.Factory<SnapshotAckPacket>() {
+				@Override
+				public SnapshotAckPacket create(PacketPool<SnapshotAckPacket> pool) {
+					SnapshotAckPacket packet = new SnapshotAckPacket((char) 0, ActorDelta.NO_BASELINE);
+					packet.pool = pool;
+					return packet;
+				}
+			});
+
+	public static final InPlaceSerializer<SnapshotAckPacket> SERIALIZER = new InPlaceSerializer<SnapshotAckPacket>() {
+		@Override
+		public void write(SnapshotAckPacket packet, ByteBuffer out) {
+			out.putChar(packet.playerID);
+			out.putInt(packet.sequence);
+		}
+
+		@Override
+		public SnapshotAckPacket read(ByteBuffer in) {
+			SnapshotAckPacket packet = POOL.acquire();
+			readInto(packet, in);
+			return packet;
+		}
+
+		@Override
+		public void readInto(SnapshotAckPacket packet, ByteBuffer in) {
+			packet.playerID = in.getChar();
+			packet.sequence = in.getInt();
+		}
+	};
+
+	public SnapshotAckPacket(char playerID, int sequence) {
+		this.playerID = playerID;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * @return a packet from POOL carrying the acknowledgement.
+	 */
+	public static SnapshotAckPacket obtain(char playerID, int sequence) {
+		SnapshotAckPacket packet = POOL.acquire();
+		packet.playerID = playerID;
+		packet.sequence = sequence;
+		return packet;
+	}
+
+	public char getPlayerID() {
+		return playerID;
+	}
+
+	/**
+	 * @return the acknowledged snapshot, or ActorDelta.NO_BASELINE.
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	public boolean needsFullSnapshot() {
+		return sequence == ActorDelta.NO_BASELINE;
+	}
+
+	@Override
+	public Packet makeCopy() {
+		return new SnapshotAckPacket(playerID, sequence);
+	}
+
+	@Override
+	public void reset() {
+		playerID = 0;
+		sequence = ActorDelta.NO_BASELINE;
+	}
+
+	@Override
+	public void release() {
+		if (pool != null) {
+			pool.release(this);
+		}
+	}
+}
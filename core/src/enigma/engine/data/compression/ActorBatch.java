@@ -0,0 +1,152 @@
+package enigma.engine.data.compression;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import enigma.engine.network.BitReader;
+import enigma.engine.network.BitWriter;
+
+/**
+ * A list of actors stored as one primitive array per field rather than one ActorData object per
+ * actor, so a packet holding thousands of actors is a handful of arrays instead of an object graph.
+ * Each actor also carries field flags (see ActorData.FIELD_ROTATION etc.) naming the fields that
+ * are set; fields that are not flagged are not written.
+ *
+ * @author Matt Stone
+ *
+ */
+public class ActorBatch implements Serializable {
+	private static final long serialVersionUID = -2419093514625460818L;
+
+	private int size = 0;
+	private int[] ids;
+	private byte[] fields;
+	private float[] rotations;
+	private float[] xs;
+	private float[] ys;
+	private char[] networkIds;
+
+	public ActorBatch(int capacity) {
+		capacity = Math.max(capacity, 1);
+		ids = new int[capacity];
+		fields = new byte[capacity];
+		rotations = new float[capacity];
+		xs = new float[capacity];
+		ys = new float[capacity];
+		networkIds = new char[capacity];
+	}
+
+	/**
+	 * Append the flagged fields of an actor.
+	 */
+	public void add(ActorData actor, int actorFields) {
+		if (size == ids.length) {
+			grow();
+		}
+		ids[size] = actor.id;
+		fields[size] = (byte) actorFields;
+		rotations[size] = actor.rotation;
+		xs[size] = actor.x;
+		ys[size] = actor.y;
+		networkIds[size] = actor.networkId;
+		++size;
+	}
+
+	/**
+	 * Copy the flagged fields of the actor at index into target; other fields are left unchanged.
+	 */
+	public void copyTo(int index, ActorData target) {
+		int actorFields = fields[index];
+		if ((actorFields & ActorData.FIELD_ROTATION) != 0) target.rotation = rotations[index];
+		if ((actorFields & ActorData.FIELD_X) != 0) target.x = xs[index];
+		if ((actorFields & ActorData.FIELD_Y) != 0) target.y = ys[index];
+		if ((actorFields & ActorData.FIELD_NETWORK_ID) != 0) target.networkId = networkIds[index];
+	}
+
+	/**
+	 * Write every actor's id, field flags and flagged fields, quantized as in ActorData.
+	 */
+	public void write(BitWriter out) {
+		for (int i = 0; i < size; ++i) {
+			if (ids[i] >>> ActorData.ID_BITS != 0) {
+				throw new IllegalStateException("ActorBatch: id " + ids[i] + " does not fit in " + ActorData.ID_BITS + " bits");
+			}
+			out.writeBits(ids[i], ActorData.ID_BITS);
+			int actorFields = fields[i];
+			out.writeBits(actorFields, ActorData.FIELD_BITS);
+			if ((actorFields & ActorData.FIELD_ROTATION) != 0) ActorData.ROTATION.write(out, rotations[i]);
+			if ((actorFields & ActorData.FIELD_X) != 0) ActorData.POSITION.write(out, xs[i]);
+			if ((actorFields & ActorData.FIELD_Y) != 0) ActorData.POSITION.write(out, ys[i]);
+			if ((actorFields & ActorData.FIELD_NETWORK_ID) != 0) out.writeBits(networkIds[i], 16);
+		}
+	}
+
+	/**
+	 * Read count actors written by write().
+	 */
+	public static ActorBatch read(BitReader in, int count) {
+		ActorBatch batch = new ActorBatch(count);
+		batch.readInto(in, count);
+		return batch;
+	}
+
+	/**
+	 * Replace the contents of this batch with count actors written by write(). The arrays are only
+	 * reallocated if they are too small, so a batch reused for every received delta stops
+	 * allocating once it has held the largest one.
+	 */
+	public void readInto(BitReader in, int count) {
+		size = 0;
+		while (ids.length < count) {
+			grow();
+		}
+		for (int i = 0; i < count; ++i) {
+			ids[i] = in.readBits(ActorData.ID_BITS);
+			int actorFields = in.readBits(ActorData.FIELD_BITS);
+			fields[i] = (byte) actorFields;
+			if ((actorFields & ActorData.FIELD_ROTATION) != 0) rotations[i] = ActorData.ROTATION.read(in);
+			if ((actorFields & ActorData.FIELD_X) != 0) xs[i] = ActorData.POSITION.read(in);
+			if ((actorFields & ActorData.FIELD_Y) != 0) ys[i] = ActorData.POSITION.read(in);
+			if ((actorFields & ActorData.FIELD_NETWORK_ID) != 0) networkIds[i] = (char) in.readBits(16);
+		}
+		size = count;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getId(int index) {
+		return ids[index];
+	}
+
+	public int getFields(int index) {
+		return fields[index];
+	}
+
+	public float getRotation(int index) {
+		return rotations[index];
+	}
+
+	public float getX(int index) {
+		return xs[index];
+	}
+
+	public float getY(int index) {
+		return ys[index];
+	}
+
+	public char getNetworkId(int index) {
+		return networkIds[index];
+	}
+
+	private void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		fields = Arrays.copyOf(fields, capacity);
+		rotations = Arrays.copyOf(rotations, capacity);
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+		networkIds = Arrays.copyOf(networkIds, capacity);
+	}
+}
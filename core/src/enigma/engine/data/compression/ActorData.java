@@ -1,5 +1,11 @@
 package enigma.engine.data.compression;
 
+import java.nio.ByteBuffer;
+
+import enigma.engine.network.BitReader;
+import enigma.engine.network.BitWriter;
+import enigma.engine.network.Quantizer;
+
 /**
  * @author Matt Stone
  *
@@ -7,11 +13,30 @@ package enigma.engine.data.compression;
 public class ActorData implements DataCompressor {
 	private static final long serialVersionUID = 452971468926105198L;
 	public int id;
-	public float rotation; // This could be done in a "short" with loss of precision but gain in
+	public float rotation;
 	public float x;
 	public float y;
 	public char networkId = (char) -1;
 
+	/** actor ids are sent in this many bits, so must be below 2^ID_BITS */
+	public static final int ID_BITS = 16;
+	/** rotation is sent in steps of about a third of a degree */
+	public static final Quantizer ROTATION = Quantizer.angle(10);
+	/** x and y are sent in steps of 1/16 of a pixel, and clamped to +/- 4096 */
+	public static final Quantizer POSITION = new Quantizer(-4096, 4096, 17);
+
+	/** the number of bytes written by write() */
+	public static final int ENCODED_BYTES = (ID_BITS + ROTATION.getBits() + 2 * POSITION.getBits() + 16 + 7) / 8;
+
+	/** field flags for writeFields(); the id identifies the actor and is always sent */
+	public static final int FIELD_ROTATION = 1;
+	public static final int FIELD_X = 2;
+	public static final int FIELD_Y = 4;
+	public static final int FIELD_NETWORK_ID = 8;
+	public static final int ALL_FIELDS = FIELD_ROTATION | FIELD_X | FIELD_Y | FIELD_NETWORK_ID;
+	/** the number of bits needed to send a set of field flags */
+	public static final int FIELD_BITS = 4;
+
 	public ActorData(int id, float rotation, float x, float y, Character networkIDObj) {
 		this.id = id;
 		this.rotation = rotation;
@@ -28,4 +53,100 @@ public class ActorData implements DataCompressor {
 		return new ActorData(id, rotation, x, y, networkId);
 	}
 
+	/**
+	 * Write the fields quantized and bit-packed for a hand-written packet serializer.
+	 * 
+	 * @param out buffer with at least ENCODED_BYTES remaining.
+	 */
+	public void write(ByteBuffer out) {
+		BitWriter bits = new BitWriter(out);
+		writeId(bits);
+		writeFields(bits, ALL_FIELDS);
+		bits.flush();
+	}
+
+	/**
+	 * Read the fields written by write(). Rotation and position are only as precise as ROTATION
+	 * and POSITION allow.
+	 * 
+	 * @param in buffer positioned at the data.
+	 * @return a new ActorData.
+	 */
+	public static ActorData read(ByteBuffer in) {
+		BitReader bits = new BitReader(in);
+		ActorData actor = readId(bits);
+		actor.readFields(bits, ALL_FIELDS);
+		bits.align();
+		return actor;
+	}
+
+	/**
+	 * Compare against the same actor in an earlier snapshot. Rotation and position are compared
+	 * after quantization, so movement too small to be sent is not reported.
+	 * 
+	 * @param baseline the actor as the receiver last saw it.
+	 * @return the field flags of every field that differs.
+	 */
+	public int changedFields(ActorData baseline) {
+		int fields = 0;
+		if (!ROTATION.sameStep(rotation, baseline.rotation)) fields |= FIELD_ROTATION;
+		if (!POSITION.sameStep(x, baseline.x)) fields |= FIELD_X;
+		if (!POSITION.sameStep(y, baseline.y)) fields |= FIELD_Y;
+		if (networkId != baseline.networkId) fields |= FIELD_NETWORK_ID;
+		return fields;
+	}
+
+	/**
+	 * Write the id in ID_BITS bits.
+	 * 
+	 * @throws IllegalStateException if the id does not fit.
+	 */
+	public void writeId(BitWriter out) {
+		if (id >>> ID_BITS != 0) {
+			throw new IllegalStateException("ActorData: id " + id + " does not fit in " + ID_BITS + " bits");
+		}
+		out.writeBits(id, ID_BITS);
+	}
+
+	/**
+	 * Read an id written by writeId().
+	 * 
+	 * @return a new ActorData with only the id set.
+	 */
+	public static ActorData readId(BitReader in) {
+		return new ActorData(in.readBits(ID_BITS), 0, 0, 0, null);
+	}
+
+	/**
+	 * Write only the given fields, quantized, in a fixed order. The id is not written.
+	 * 
+	 * @param fields field flags, such as the result of changedFields().
+	 */
+	public void writeFields(BitWriter out, int fields) {
+		if ((fields & FIELD_ROTATION) != 0) ROTATION.write(out, rotation);
+		if ((fields & FIELD_X) != 0) POSITION.write(out, x);
+		if ((fields & FIELD_Y) != 0) POSITION.write(out, y);
+		if ((fields & FIELD_NETWORK_ID) != 0) out.writeBits(networkId, 16);
+	}
+
+	/**
+	 * Read the fields written by writeFields() into this object; other fields are left unchanged.
+	 */
+	public void readFields(BitReader in, int fields) {
+		if ((fields & FIELD_ROTATION) != 0) rotation = ROTATION.read(in);
+		if ((fields & FIELD_X) != 0) x = POSITION.read(in);
+		if ((fields & FIELD_Y) != 0) y = POSITION.read(in);
+		if ((fields & FIELD_NETWORK_ID) != 0) networkId = (char) in.readBits(16);
+	}
+
+	/**
+	 * Copy the given fields from another actor into this object.
+	 */
+	public void copyFields(ActorData from, int fields) {
+		if ((fields & FIELD_ROTATION) != 0) rotation = from.rotation;
+		if ((fields & FIELD_X) != 0) x = from.x;
+		if ((fields & FIELD_Y) != 0) y = from.y;
+		if ((fields & FIELD_NETWORK_ID) != 0) networkId = from.networkId;
+	}
+
 }
@@ -0,0 +1,197 @@
+package enigma.engine.data.compression;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import enigma.engine.network.BitReader;
+import enigma.engine.network.BitWriter;
+
+/**
+ * The difference between two ActorSnapshots: the actors that were added or changed, with only the
+ * fields that changed, and the ids of actors that were removed. A delta without a baseline holds
+ * every actor and every field, and can be applied on its own.
+ *
+ * The changed actors are held in an ActorBatch, one primitive array per field. Actors that did not
+ * change cost nothing, so the size of a delta and the time to encode it grow with the number of
+ * changes rather than the number of actors.
+ *
+ * Wire format, bit-packed: snapshot sequence, distance back to the baseline (0 for none), changed
+ * count and removed count as varints, then per changed actor its id, field flags and the flagged
+ * fields quantized as in ActorData, then the removed ids.
+ *
+ * A delta is not modified once it has been computed or read, except by readFrom(), which lets a
+ * receiver decode every delta into the same instance.
+ *
+ * @author Matt Stone
+ *
+ */
+public class ActorDelta implements Serializable {
+	private static final long serialVersionUID = 6624207411723718210L;
+
+	/** the baseline sequence of a delta that holds the complete snapshot */
+	public static final int NO_BASELINE = -1;
+
+	private int sequence;
+	private int baselineSequence;
+	private ActorBatch changed;
+	private int[] removed;
+	private int removedCount;
+	// kept by a delta that is read into repeatedly, see readFrom()
+	private transient BitReader reader;
+
+	/**
+	 * Create an empty delta to be filled by readFrom().
+	 */
+	public ActorDelta() {
+		this(0, NO_BASELINE, new ActorBatch(16), new int[0]);
+	}
+
+	private ActorDelta(int sequence, int baselineSequence, ActorBatch changed, int[] removed) {
+		this.sequence = sequence;
+		this.baselineSequence = baselineSequence;
+		this.changed = changed;
+		this.removed = removed;
+		this.removedCount = removed.length;
+	}
+
+	/**
+	 * Compute the delta that turns baseline into current.
+	 *
+	 * @param baseline a snapshot the receiver has, or null to send every actor.
+	 * @param current the snapshot to send; must have been given a sequence.
+	 */
+	public static ActorDelta between(ActorSnapshot baseline, ActorSnapshot current) {
+		ActorBatch changed = new ActorBatch(baseline == null ? current.size() : 16);
+		for (ActorData actor : current.getActors()) {
+			ActorData before = baseline == null ? null : baseline.get(actor.id);
+			int actorFields = before == null ? ActorData.ALL_FIELDS : actor.changedFields(before);
+			if (actorFields != 0) {
+				changed.add(actor, actorFields);
+			}
+		}
+
+		int[] removed = new int[0];
+		if (baseline != null && baseline.size() > 0) {
+			int[] ids = new int[baseline.size()];
+			int count = 0;
+			for (ActorData actor : baseline.getActors()) {
+				if (current.get(actor.id) == null) {
+					ids[count++] = actor.id;
+				}
+			}
+			removed = new int[count];
+			System.arraycopy(ids, 0, removed, 0, count);
+		}
+
+		int baselineSequence = baseline == null ? NO_BASELINE : baseline.getSequence();
+		return new ActorDelta(current.getSequence(), baselineSequence, changed, removed);
+	}
+
+	/**
+	 * Rebuild the snapshot this delta was computed from.
+	 *
+	 * @param baseline the snapshot numbered getBaselineSequence(), or null if isFull().
+	 * @return a new snapshot; the baseline is not modified.
+	 */
+	public ActorSnapshot applyTo(ActorSnapshot baseline) {
+		if (!isFull() && (baseline == null || baseline.getSequence() != baselineSequence)) {
+			throw new IllegalArgumentException("delta " + sequence + " needs baseline " + baselineSequence);
+		}
+		ActorSnapshot snapshot = new ActorSnapshot();
+		snapshot.setSequence(sequence);
+		if (baseline != null) {
+			// unchanged actors are shared with the baseline, since snapshots are never modified
+			for (ActorData actor : baseline.getActors()) {
+				snapshot.add(actor);
+			}
+			for (int i = 0; i < removedCount; ++i) {
+				snapshot.remove(removed[i]);
+			}
+		}
+		for (int i = 0; i < changed.size(); ++i) {
+			int id = changed.getId(i);
+			ActorData before = baseline == null ? null : baseline.get(id);
+			ActorData actor = before == null ? new ActorData(id, 0, 0, 0, null) : before.clone();
+			changed.copyTo(i, actor);
+			snapshot.add(actor);
+		}
+		return snapshot;
+	}
+
+	public void write(ByteBuffer out) {
+		BitWriter bits = new BitWriter(out);
+		bits.writeVarInt(sequence);
+		// a baseline is always a recent snapshot, so its distance is small; 0 means none
+		bits.writeVarInt(isFull() ? 0 : sequence - baselineSequence);
+		bits.writeVarInt(changed.size());
+		bits.writeVarInt(removedCount);
+		changed.write(bits);
+		for (int i = 0; i < removedCount; ++i) {
+			bits.writeBits(removed[i], ActorData.ID_BITS);
+		}
+		bits.flush();
+	}
+
+	public static ActorDelta read(ByteBuffer in) {
+		ActorDelta delta = new ActorDelta();
+		delta.readFrom(in);
+		return delta;
+	}
+
+	/**
+	 * Replace the contents of this delta with one written by write(), reusing its arrays where they
+	 * are large enough.
+	 */
+	public void readFrom(ByteBuffer in) {
+		if (reader == null) {
+			reader = new BitReader(in);
+		} else {
+			reader.reset(in);
+		}
+		BitReader bits = reader;
+		sequence = bits.readVarInt();
+		int distance = bits.readVarInt();
+		baselineSequence = distance == 0 ? NO_BASELINE : sequence - distance;
+		int changedCount = bits.readVarInt();
+		int count = bits.readVarInt();
+		changed.readInto(bits, changedCount);
+		if (removed.length < count) {
+			removed = new int[count];
+		}
+		for (int i = 0; i < count; ++i) {
+			removed[i] = bits.readBits(ActorData.ID_BITS);
+		}
+		removedCount = count;
+		bits.align();
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	public int getBaselineSequence() {
+		return baselineSequence;
+	}
+
+	/**
+	 * @return true if the delta holds the complete snapshot and needs no baseline.
+	 */
+	public boolean isFull() {
+		return baselineSequence == NO_BASELINE;
+	}
+
+	/**
+	 * @return true if nothing changed since the baseline.
+	 */
+	public boolean isEmpty() {
+		return !isFull() && changed.size() == 0 && removedCount == 0;
+	}
+
+	public int getChangedCount() {
+		return changed.size();
+	}
+
+	public int getRemovedCount() {
+		return removedCount;
+	}
+}
@@ -0,0 +1,55 @@
+package enigma.engine.data.compression;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+/**
+ * The state of every networked actor at one point in time, keyed by ActorData.id. Snapshots are
+ * numbered by the SnapshotSender that encodes them and are kept as baselines for later deltas,
+ * so the actors in a snapshot must not be modified once it has been encoded.
+ *
+ * @author Matt Stone
+ *
+ */
+public class ActorSnapshot {
+	private int sequence = ActorDelta.NO_BASELINE;
+	private final LinkedHashMap<Integer, ActorData> actors = new LinkedHashMap<Integer, ActorData>();
+
+	/**
+	 * Add an actor, replacing any actor with the same id.
+	 */
+	public void add(ActorData actor) {
+		actors.put(actor.id, actor);
+	}
+
+	void remove(int id) {
+		actors.remove(id);
+	}
+
+	/**
+	 * @return the actor with the given id, or null if the snapshot does not contain it.
+	 */
+	public ActorData get(int id) {
+		return actors.get(id);
+	}
+
+	public Collection<ActorData> getActors() {
+		return actors.values();
+	}
+
+	public int size() {
+		return actors.size();
+	}
+
+	/**
+	 * @return the number the sender gave this snapshot, or ActorDelta.NO_BASELINE if it has not
+	 *         been encoded.
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	void setSequence(int sequence) {
+		this.sequence = sequence;
+	}
+}
@@ -0,0 +1,135 @@
+package enigma.engine.data.compression;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A uniform grid of square cells over the game world, used to find the actors near a point
+ * without testing every actor. The grid is rebuilt from a snapshot every tick: actors are counted
+ * per cell and then sorted into one array by cell, so a rebuild is linear in the number of actors
+ * and allocates nothing once the arrays have grown to fit.
+ *
+ * Positions outside the grid are clamped into its edge cells, as ActorData.POSITION clamps them on
+ * the wire.
+ *
+ * Not thread safe; use it from the game loop.
+ *
+ * @author Matt Stone
+ *
+ */
+public class InterestGrid {
+	private final float minX;
+	private final float minY;
+	private final float cellSize;
+	private final int columns;
+	private final int rows;
+	// cellStart[c] is the index in actors of the first actor in cell c; cellStart[c + 1] ends it
+	private final int[] cellStart;
+	private int[] cellOf = new int[64];
+	private ActorData[] actors = new ActorData[64];
+	private int size = 0;
+
+	/**
+	 * A grid covering the range of ActorData.POSITION.
+	 *
+	 * @param cellSize the width of a cell; about the radius of a typical query.
+	 */
+	public InterestGrid(float cellSize) {
+		this(ActorData.POSITION.getMin(), ActorData.POSITION.getMin(), ActorData.POSITION.getMax(), ActorData.POSITION.getMax(), cellSize);
+	}
+
+	public InterestGrid(float minX, float minY, float maxX, float maxY, float cellSize) {
+		if (cellSize <= 0 || maxX <= minX || maxY <= minY) {
+			throw new IllegalArgumentException("InterestGrid: bad bounds or cell size " + cellSize);
+		}
+		this.minX = minX;
+		this.minY = minY;
+		this.cellSize = cellSize;
+		this.columns = (int) Math.ceil((maxX - minX) / cellSize);
+		this.rows = (int) Math.ceil((maxY - minY) / cellSize);
+		this.cellStart = new int[columns * rows + 1];
+	}
+
+	/**
+	 * Replace the contents of the grid with the given actors. The actors are referenced, not
+	 * copied.
+	 */
+	public void build(Collection<ActorData> source) {
+		size = source.size();
+		if (actors.length < size) {
+			int capacity = Math.max(size, actors.length * 2);
+			actors = new ActorData[capacity];
+			cellOf = new int[capacity];
+		} else {
+			Arrays.fill(actors, size, actors.length, null);
+		}
+
+		// count the actors in each cell, shifted by one so the prefix sum gives each cell's start
+		Arrays.fill(cellStart, 0);
+		int i = 0;
+		for (ActorData actor : source) {
+			int cell = row(actor.y) * columns + column(actor.x);
+			cellOf[i++] = cell;
+			cellStart[cell + 1]++;
+		}
+		for (int cell = 1; cell < cellStart.length; ++cell) {
+			cellStart[cell] += cellStart[cell - 1];
+		}
+
+		// place each actor at the next free index of its cell; cellStart is shifted back as it fills
+		i = 0;
+		for (ActorData actor : source) {
+			actors[cellStart[cellOf[i++]]++] = actor;
+		}
+		System.arraycopy(cellStart, 0, cellStart, 1, cellStart.length - 1);
+		cellStart[0] = 0;
+	}
+
+	/**
+	 * Add every actor within radius of (x, y) to out.
+	 *
+	 * @return the number of actors added.
+	 */
+	public int query(float x, float y, float radius, ActorSnapshot out) {
+		int firstColumn = column(x - radius);
+		int lastColumn = column(x + radius);
+		int firstRow = row(y - radius);
+		int lastRow = row(y + radius);
+		float radiusSquared = radius * radius;
+		int found = 0;
+		for (int row = firstRow; row <= lastRow; ++row) {
+			for (int column = firstColumn; column <= lastColumn; ++column) {
+				int cell = row * columns + column;
+				for (int i = cellStart[cell]; i < cellStart[cell + 1]; ++i) {
+					ActorData actor = actors[i];
+					float dx = actor.x - x;
+					float dy = actor.y - y;
+					if (dx * dx + dy * dy <= radiusSquared) {
+						out.add(actor);
+						++found;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the number of actors in the grid.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int column(float x) {
+		return clamp((int) Math.floor((x - minX) / cellSize), columns);
+	}
+
+	private int row(float y) {
+		return clamp((int) Math.floor((y - minY) / cellSize), rows);
+	}
+
+	private static int clamp(int index, int count) {
+		return index < 0 ? 0 : index >= count ? count - 1 : index;
+	}
+}
@@ -0,0 +1,115 @@
+package enigma.engine.data.compression;
+
+import java.util.HashMap;
+
+/**
+ * Decides which actors each client is sent. Every client subscribes to a circular region of the
+ * world, usually centred on its own actor, and is sent a snapshot of only the actors inside it, so
+ * the bandwidth a client uses grows with the number of actors near it rather than the size of the
+ * world. A client without a region is sent every actor.
+ *
+ * Each client's snapshots are encoded by a SnapshotSender of its own, against the snapshots that
+ * client acknowledged. An actor that leaves a client's region is sent to it as removed, and one
+ * that enters it is sent in full.
+ *
+ * Each tick, call update() with the whole world and then encodeFor() for every client.
+ *
+ * Not thread safe; use it from the game loop.
+ *
+ * @author Matt Stone
+ *
+ */
+public class InterestManager {
+	private final InterestGrid grid;
+	private final HashMap<Character, Region> regions = new HashMap<Character, Region>();
+	private final HashMap<Character, SnapshotSender> senders = new HashMap<Character, SnapshotSender>();
+	private ActorSnapshot world = new ActorSnapshot();
+
+	private static class Region {
+		float x;
+		float y;
+		float radius;
+	}
+
+	/**
+	 * @param cellSize the width of a grid cell; about the radius of a typical region.
+	 */
+	public InterestManager(float cellSize) {
+		this(new InterestGrid(cellSize));
+	}
+
+	public InterestManager(InterestGrid grid) {
+		this.grid = grid;
+	}
+
+	/**
+	 * Set the region a client is sent actors from.
+	 */
+	public void setRegion(char playerID, float x, float y, float radius) {
+		Region region = regions.get(playerID);
+		if (region == null) {
+			region = new Region();
+			regions.put(playerID, region);
+		}
+		region.x = x;
+		region.y = y;
+		region.radius = radius;
+	}
+
+	/**
+	 * Send a client every actor again.
+	 */
+	public void clearRegion(char playerID) {
+		regions.remove(playerID);
+	}
+
+	/**
+	 * Forget a client that disconnected.
+	 */
+	public void removePlayer(char playerID) {
+		regions.remove(playerID);
+		senders.remove(playerID);
+	}
+
+	/**
+	 * Index the state of the whole world for this tick's encodeFor() calls.
+	 */
+	public void update(ActorSnapshot world) {
+		this.world = world;
+		grid.build(world.getActors());
+	}
+
+	/**
+	 * Compute the delta to send a client for the world given to update().
+	 *
+	 * @return the delta; isEmpty() is true if the client already has this state.
+	 */
+	public ActorDelta encodeFor(char playerID) {
+		ActorSnapshot visible = new ActorSnapshot();
+		Region region = regions.get(playerID);
+		if (region == null) {
+			for (ActorData actor : world.getActors()) {
+				visible.add(actor);
+			}
+		} else {
+			grid.query(region.x, region.y, region.radius, visible);
+		}
+		return senderFor(playerID).encode(visible);
+	}
+
+	/**
+	 * Record a client's acknowledgement, as SnapshotSender.acknowledge().
+	 */
+	public void acknowledge(char playerID, int sequence) {
+		senderFor(playerID).acknowledge(playerID, sequence);
+	}
+
+	private SnapshotSender senderFor(char playerID) {
+		SnapshotSender sender = senders.get(playerID);
+		if (sender == null) {
+			sender = new SnapshotSender();
+			senders.put(playerID, sender);
+		}
+		return sender;
+	}
+}
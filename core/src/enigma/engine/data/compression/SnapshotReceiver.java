@@ -0,0 +1,65 @@
+package enigma.engine.data.compression;
+
+/**
+ * Rebuilds the snapshots sent by a SnapshotSender and tracks what to acknowledge.
+ *
+ * The receiver keeps the last SnapshotSender.HISTORY snapshots it rebuilt, since the sender may
+ * encode a delta against any snapshot this receiver has acknowledged. Deltas older than the newest
+ * snapshot already rebuilt are ignored, so snapshots may arrive over an unreliable channel.
+ *
+ * Not thread safe; use it from the game loop.
+ *
+ * @author Matt Stone
+ *
+ */
+public class SnapshotReceiver {
+	private final ActorSnapshot[] history = new ActorSnapshot[SnapshotSender.HISTORY];
+	private ActorSnapshot newest = null;
+	private boolean missingBaseline = false;
+
+	/**
+	 * Apply a received delta.
+	 *
+	 * @return the rebuilt snapshot, or null if the delta is older than the newest snapshot or its
+	 *         baseline is not available. In the second case getAcknowledgement() asks the sender
+	 *         for a full snapshot.
+	 */
+	public ActorSnapshot apply(ActorDelta delta) {
+		if (newest != null && delta.getSequence() - newest.getSequence() <= 0) {
+			return null;
+		}
+		ActorSnapshot baseline = null;
+		if (!delta.isFull()) {
+			baseline = inHistory(delta.getBaselineSequence());
+			if (baseline == null) {
+				missingBaseline = true;
+				return null;
+			}
+		}
+		ActorSnapshot snapshot = delta.applyTo(baseline);
+		history[snapshot.getSequence() & (SnapshotSender.HISTORY - 1)] = snapshot;
+		newest = snapshot;
+		missingBaseline = false;
+		return snapshot;
+	}
+
+	/**
+	 * @return the sequence to send back to the SnapshotSender: the newest rebuilt snapshot, or
+	 *         ActorDelta.NO_BASELINE if a full snapshot is needed.
+	 */
+	public int getAcknowledgement() {
+		return missingBaseline || newest == null ? ActorDelta.NO_BASELINE : newest.getSequence();
+	}
+
+	/**
+	 * @return the newest rebuilt snapshot, or null if none has been received.
+	 */
+	public ActorSnapshot getNewest() {
+		return newest;
+	}
+
+	private ActorSnapshot inHistory(int sequence) {
+		ActorSnapshot snapshot = history[sequence & (SnapshotSender.HISTORY - 1)];
+		return snapshot != null && snapshot.getSequence() == sequence ? snapshot : null;
+	}
+}
@@ -0,0 +1,109 @@
+package enigma.engine.data.compression;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Numbers the snapshots a server sends and encodes each one as a delta against a snapshot its
+ * clients have acknowledged.
+ *
+ * The sender keeps the last HISTORY snapshots and, for every client, the newest snapshot that
+ * client acknowledged. Since one packet is broadcast to every client, each delta is computed
+ * against the oldest of those baselines; a client that has acknowledged something newer still has
+ * the older snapshot in its SnapshotReceiver. A full snapshot is sent while any client has nothing
+ * to apply a delta to.
+ *
+ * A client whose acknowledgement falls out of the history is forgotten, so clients that
+ * disconnected stop holding the baseline back. If such a client is still connected it will fail to
+ * apply the next delta, acknowledge NO_BASELINE, and be sent a full snapshot.
+ *
+ * Not thread safe; use it from the game loop.
+ *
+ * @author Matt Stone
+ *
+ */
+public class SnapshotSender {
+	/** the number of snapshots kept as possible baselines; a power of two */
+	public static final int HISTORY = 32;
+
+	private final ActorSnapshot[] history = new ActorSnapshot[HISTORY];
+	private final HashMap<Character, Integer> acknowledged = new HashMap<Character, Integer>();
+	private int nextSequence = 0;
+
+	/**
+	 * Number the snapshot and compute the delta to send for it. The snapshot is kept as a possible
+	 * baseline, so it must not be modified afterwards.
+	 *
+	 * @param current the state of every networked actor.
+	 * @return the delta; isEmpty() is true if every client already has this state.
+	 */
+	public ActorDelta encode(ActorSnapshot current) {
+		ActorSnapshot baseline = commonBaseline();
+		current.setSequence(nextSequence++);
+		history[slot(current.getSequence())] = current;
+		return ActorDelta.between(baseline, current);
+	}
+
+	/**
+	 * Record a client's acknowledgement.
+	 *
+	 * @param playerID the client that sent it.
+	 * @param sequence the newest snapshot the client has, or ActorDelta.NO_BASELINE if it could
+	 *            not apply a delta and needs a full snapshot.
+	 */
+	public void acknowledge(char playerID, int sequence) {
+		Integer previous = acknowledged.get(playerID);
+		if (sequence == ActorDelta.NO_BASELINE || previous == null || previous == ActorDelta.NO_BASELINE
+				|| sequence - previous > 0) {
+			acknowledged.put(playerID, sequence);
+		}
+	}
+
+	/**
+	 * Stop tracking a client that disconnected.
+	 */
+	public void removePlayer(char playerID) {
+		acknowledged.remove(playerID);
+	}
+
+	/**
+	 * @return the newest snapshot the client acknowledged, or ActorDelta.NO_BASELINE.
+	 */
+	public int getAcknowledged(char playerID) {
+		Integer sequence = acknowledged.get(playerID);
+		return sequence == null ? ActorDelta.NO_BASELINE : sequence;
+	}
+
+	/**
+	 * @return the oldest acknowledged snapshot, or null if a full snapshot must be sent.
+	 */
+	private ActorSnapshot commonBaseline() {
+		ActorSnapshot oldest = null;
+		boolean needsFull = acknowledged.isEmpty();
+		Iterator<Map.Entry<Character, Integer>> iterator = acknowledged.entrySet().iterator();
+		while (iterator.hasNext()) {
+			int sequence = iterator.next().getValue();
+			if (sequence == ActorDelta.NO_BASELINE) {
+				needsFull = true;
+				continue;
+			}
+			ActorSnapshot snapshot = inHistory(sequence);
+			if (snapshot == null) {
+				iterator.remove();
+			} else if (oldest == null || sequence - oldest.getSequence() < 0) {
+				oldest = snapshot;
+			}
+		}
+		return needsFull ? null : oldest;
+	}
+
+	private ActorSnapshot inHistory(int sequence) {
+		ActorSnapshot snapshot = history[slot(sequence)];
+		return snapshot != null && snapshot.getSequence() == sequence ? snapshot : null;
+	}
+
+	private static int slot(int sequence) {
+		return sequence & (HISTORY - 1);
+	}
+}
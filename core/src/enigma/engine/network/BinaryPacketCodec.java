@@ -0,0 +1,200 @@
+package enigma.engine.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A codec that sends packets as a 2 byte type id followed by the bytes written by the
+ * PacketSerializer registered for that type. Packets whose class has no registered serializer are
+ * sent with java serialization under type id 0, so any Packet can still be sent.
+ *
+ * All types should be registered before the codec is handed to a Network, Server, or Client;
+ * registration is not synchronized with encoding and decoding. Both ends of a connection must
+ * register the same types under the same ids.
+ *
+ * Type ids below FIRST_APPLICATION_TYPE_ID are reserved for packets provided by the network
+ * library.
+ *
+ * A type registered with an InPlaceSerializer and a PacketPool is decoded into a packet taken from
+ * the pool rather than a new one. The application hands a received packet back with
+ * PacketPool.recycle() once it has handled it.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public class BinaryPacketCodec implements PacketCodec {
+	public static final short DEMO_CONCRETE_PACKET_TYPE = 1;
+	public static final short SYSTEM_MESSAGE_PACKET_TYPE = 2;
+	public static final short FLOAT_ARRAY_PACKET_TYPE = 3;
+	public static final short FIRST_APPLICATION_TYPE_ID = 64;
+
+	private HashMap<Class<?>, Registration<?>> byClass = new HashMap<Class<?>, Registration<?>>();
+	private Registration<?>[] byType = new Registration<?>[FIRST_APPLICATION_TYPE_ID];
+
+	/**
+	 * Create a codec with no registered types; every packet is sent with java serialization until
+	 * types are registered.
+	 */
+	public BinaryPacketCodec() {
+	}
+
+	/**
+	 * @return a codec with the serializers for the packets provided by the network library
+	 *         registered.
+	 */
+	public static BinaryPacketCodec createDefault() {
+		BinaryPacketCodec codec = new BinaryPacketCodec();
+		codec.register(DEMO_CONCRETE_PACKET_TYPE, DemoConcretePacket.class, DemoConcretePacket.SERIALIZER);
+		codec.register(SYSTEM_MESSAGE_PACKET_TYPE, SystemMessagePacket.class, SystemMessagePacket.SERIALIZER);
+		codec.register(FLOAT_ARRAY_PACKET_TYPE, FloatArrayPacket.class, FloatArrayPacket.SERIALIZER);
+		return codec;
+	}
+
+	/**
+	 * Register a hand-written serializer for a packet class. Only packets of exactly this class
+	 * (not subclasses) will use the serializer.
+	 *
+	 * @param typeId the id sent on the wire, must be greater than 0.
+	 * @param packetClass the class of packet the serializer handles.
+	 * @param serializer the serializer.
+	 * @throws IllegalArgumentException if the type id or class is already registered.
+	 */
+	public <T extends Packet> void register(short typeId, Class<T> packetClass, PacketSerializer<T> serializer) {
+		add(packetClass, new Registration<T>(typeId, serializer));
+	}
+
+	/**
+	 * Register a serializer whose received packets are decoded in place into packets taken from a
+	 * pool. Only packets of exactly this class (not subclasses) will use the serializer.
+	 *
+	 * @param typeId the id sent on the wire, must be greater than 0.
+	 * @param packetClass the class of packet the serializer handles.
+	 * @param serializer the serializer; its readInto() is used to decode.
+	 * @param pool the pool received packets are taken from.
+	 * @throws IllegalArgumentException if the type id or class is already registered.
+	 */
+	public <T extends PoolablePacket> void register(short typeId, Class<T> packetClass, InPlaceSerializer<T> serializer,
+			PacketPool<T> pool) {
+		add(packetClass, new PooledRegistration<T>(typeId, serializer, pool));
+	}
+
+	private void add(Class<?> packetClass, Registration<?> registration) {
+		short typeId = registration.typeId;
+		if (typeId <= SerializationPacketCodec.JAVA_SERIALIZED_TYPE) {
+			throw new IllegalArgumentException("BinaryPacketCodec: type id must be positive, was " + typeId);
+		}
+		if (byClass.containsKey(packetClass)) {
+			throw new IllegalArgumentException("BinaryPacketCodec: " + packetClass.getName() + " already registered");
+		}
+		if (typeId < byType.length && byType[typeId] != null) {
+			throw new IllegalArgumentException("BinaryPacketCodec: type id " + typeId + " already registered");
+		}
+		if (typeId >= byType.length) {
+			Registration<?>[] larger = new Registration<?>[Math.max(typeId + 1, byType.length * 2)];
+			System.arraycopy(byType, 0, larger, 0, byType.length);
+			byType = larger;
+		}
+		byType[typeId] = registration;
+		byClass.put(packetClass, registration);
+	}
+
+	/**
+	 * @param packetClass a packet class.
+	 * @return the registered type id, or the java serialization type id if the class is not
+	 *         registered.
+	 */
+	public short typeIdOf(Class<? extends Packet> packetClass) {
+		Registration<?> registration = byClass.get(packetClass);
+		return registration == null ? SerializationPacketCodec.JAVA_SERIALIZED_TYPE : registration.typeId;
+	}
+
+	/**
+	 * @param typeId a type id.
+	 * @return the class registered under the type id, or null if none is.
+	 */
+	@SuppressWarnings("unchecked")
+	public Class<? extends Packet> packetClassOf(short typeId) {
+		// only looked up when registering, so a search is fine
+		for (Map.Entry<Class<?>, Registration<?>> entry : byClass.entrySet()) {
+			if (entry.getValue().typeId == typeId) {
+				return (Class<? extends Packet>) entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void encode(Packet packet, ByteBuffer out) throws IOException {
+		Registration<?> registration = byClass.get(packet.getClass());
+		if (registration == null) {
+			out.putShort(SerializationPacketCodec.JAVA_SERIALIZED_TYPE);
+			SerializationPacketCodec.writeSerialized(packet, out);
+		} else {
+			out.putShort(registration.typeId);
+			registration.write(packet, out);
+		}
+	}
+
+	@Override
+	public Packet decode(ByteBuffer body) throws IOException {
+		short type = body.getShort();
+		if (type == SerializationPacketCodec.JAVA_SERIALIZED_TYPE) {
+			return SerializationPacketCodec.readSerialized(body);
+		}
+		if (type < 0 || type >= byType.length || byType[type] == null) {
+			throw new IOException("BinaryPacketCodec: unregistered packet type " + type);
+		}
+		try {
+			return byType[type].read(body);
+		} catch (RuntimeException e) {
+			// a short or malformed body surfaces as BufferUnderflowException and friends
+			throw new IOException("BinaryPacketCodec: malformed packet of type " + type, e);
+		}
+	}
+
+	private static class Registration<T extends Packet> {
+		final short typeId;
+		final PacketSerializer<T> serializer;
+
+		Registration(short typeId, PacketSerializer<T> serializer) {
+			this.typeId = typeId;
+			this.serializer = serializer;
+		}
+
+		@SuppressWarnings("unchecked")
+		void write(Packet packet, ByteBuffer out) {
+			// registrations are looked up by the packet's exact class, so the cast is safe
+			serializer.write((T) packet, out);
+		}
+
+		T read(ByteBuffer in) {
+			return serializer.read(in);
+		}
+	}
+
+	private static class PooledRegistration<T extends PoolablePacket> extends Registration<T> {
+		final InPlaceSerializer<T> inPlace;
+		final PacketPool<T> pool;
+
+		PooledRegistration(short typeId, InPlaceSerializer<T> serializer, PacketPool<T> pool) {
+			super(typeId, serializer);
+			this.inPlace = serializer;
+			this.pool = pool;
+		}
+
+		@Override
+		T read(ByteBuffer in) {
+			T packet = pool.acquire();
+			try {
+				inPlace.readInto(packet, in);
+			} catch (RuntimeException e) {
+				pool.release(packet);
+				throw e;
+			}
+			return packet;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package enigma.engine.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads values written by a BitWriter. Bytes are taken from the buffer only when the next value
+ * needs them, so after align() the buffer is positioned just after the writer's flushed bytes.
+ *
+ * A reader can be reset() and reused for the next packet. Not thread safe.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public class BitReader {
+	private ByteBuffer in;
+	private long pending = 0;
+	private int pendingBits = 0;
+
+	public BitReader(ByteBuffer in) {
+		this.in = in;
+	}
+
+	/**
+	 * Read from an array, from its first byte.
+	 */
+	public BitReader(byte[] in) {
+		this(ByteBuffer.wrap(in));
+	}
+
+	/**
+	 * Start reading from another buffer. Unread bits are discarded.
+	 */
+	public void reset(ByteBuffer in) {
+		this.in = in;
+		pending = 0;
+		pendingBits = 0;
+	}
+
+	/**
+	 * Read a value written by BitWriter.writeBits() with the same width.
+	 *
+	 * @param bits the number of bits to read, 1 to 32.
+	 * @return the value, with higher bits zero.
+	 * @throws java.nio.BufferUnderflowException if the buffer runs out.
+	 */
+	public int readBits(int bits) {
+		while (pendingBits < bits) {
+			pending = (pending << 8) | (in.get() & 0xFF);
+			pendingBits += 8;
+		}
+		pendingBits -= bits;
+		return (int) ((pending >>> pendingBits) & (0xFFFFFFFFL >>> (32 - bits)));
+	}
+
+	public boolean readBoolean() {
+		return readBits(1) != 0;
+	}
+
+	/**
+	 * Read a value written by BitWriter.writeVarInt().
+	 *
+	 * @throws IllegalStateException if the value is longer than any int.
+	 */
+	public int readVarInt() {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int group = readBits(8);
+			value |= (group & 0x7F) << shift;
+			if ((group & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalStateException("BitReader: varint is longer than 5 groups");
+	}
+
+	/**
+	 * Read a value written by BitWriter.writeZigZag().
+	 */
+	public int readZigZag() {
+		int value = readVarInt();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Read a float written by BitWriter.writeFloat(float).
+	 */
+	public float readFloat() {
+		return Float.intBitsToFloat(readBits(32));
+	}
+
+	/**
+	 * Read a float written by BitWriter.writeFloat(float, Quantizer) with the same quantizer.
+	 */
+	public float readFloat(Quantizer quantizer) {
+		return quantizer.read(this);
+	}
+
+	/**
+	 * Skip the padding written by BitWriter.flush(), so reading may continue from the next byte
+	 * boundary.
+	 */
+	public void align() {
+		pending = 0;
+		pendingBits = 0;
+	}
+}
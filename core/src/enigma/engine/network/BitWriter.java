@@ -0,0 +1,113 @@
+package enigma.engine.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes values of any width from 1 to 32 bits into a ByteBuffer with no padding between them,
+ * most significant bit first. Booleans take a single bit, small ints can be written as varints,
+ * and floats with a known range can be quantized. Bytes are put into the buffer as soon as they
+ * are complete; call flush() after the last value to write the final partial byte.
+ *
+ * A writer holds no more than the bits of one unfinished byte, so it can be reset() and reused for
+ * the next packet instead of being allocated again. Not thread safe.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public class BitWriter {
+	private ByteBuffer out;
+	private long pending = 0;
+	private int pendingBits = 0;
+
+	public BitWriter(ByteBuffer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Write into an array, from its first byte.
+	 */
+	public BitWriter(byte[] out) {
+		this(ByteBuffer.wrap(out));
+	}
+
+	/**
+	 * Start writing to another buffer. Bits that were not flushed are discarded.
+	 */
+	public void reset(ByteBuffer out) {
+		this.out = out;
+		pending = 0;
+		pendingBits = 0;
+	}
+
+	/**
+	 * Write the low bits of value. Higher bits are ignored.
+	 *
+	 * @param bits the number of bits to write, 1 to 32.
+	 */
+	public void writeBits(int value, int bits) {
+		pending = (pending << bits) | (value & (0xFFFFFFFFL >>> (32 - bits)));
+		pendingBits += bits;
+		while (pendingBits >= 8) {
+			pendingBits -= 8;
+			out.put((byte) (pending >>> pendingBits));
+		}
+	}
+
+	public void writeBoolean(boolean value) {
+		writeBits(value ? 1 : 0, 1);
+	}
+
+	/**
+	 * Write a value known to be small in as few 8 bit groups as it needs: 7 bits of the value and a
+	 * continuation bit each, so 0 to 127 take 8 bits and a negative value takes 40. Use
+	 * writeZigZag() for values that may be negative.
+	 */
+	public void writeVarInt(int value) {
+		while ((value & ~0x7F) != 0) {
+			writeBits((value & 0x7F) | 0x80, 8);
+			value >>>= 7;
+		}
+		writeBits(value, 8);
+	}
+
+	/**
+	 * Write a value that is small in magnitude but may be negative, so -64 to 63 take 8 bits.
+	 */
+	public void writeZigZag(int value) {
+		writeVarInt((value << 1) ^ (value >> 31));
+	}
+
+	/**
+	 * Write all 32 bits of a float.
+	 */
+	public void writeFloat(float value) {
+		writeBits(Float.floatToIntBits(value), 32);
+	}
+
+	/**
+	 * Write a float in quantizer.getBits() bits.
+	 */
+	public void writeFloat(float value, Quantizer quantizer) {
+		quantizer.write(this, value);
+	}
+
+	/**
+	 * Write the final partial byte, padded with zero bits, so the buffer's position is just after
+	 * the last bit written. Writing may continue afterwards from the next byte boundary.
+	 */
+	public void flush() {
+		if (pendingBits > 0) {
+			out.put((byte) (pending << (8 - pendingBits)));
+			pendingBits = 0;
+		}
+		pending = 0;
+	}
+
+	/**
+	 * @return the number of bits needed to write every value from 0 to maxValue.
+	 */
+	public static int bitsFor(int maxValue) {
+		return maxValue == 0 ? 1 : 32 - Integer.numberOfLeadingZeros(maxValue);
+	}
+}
@@ -0,0 +1,176 @@
+package enigma.engine.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers used to hold encoded frames on their way to a socket. Writing a
+ * direct buffer to a SocketChannel avoids the copy into a temporary native buffer that the JDK
+ * makes for heap buffers, and pooling avoids the cost of allocating direct memory per packet.
+ *
+ * Buffers are grouped in power of two size classes from 256 bytes to 64 KB. A request larger than
+ * the largest class is given its own unpooled buffer. Each class keeps at most a fixed number of
+ * free buffers; buffers released beyond that are left to the garbage collector.
+ *
+ * In debug mode the pool remembers where every outstanding buffer was acquired. Releasing a buffer
+ * twice (or releasing a buffer the pool did not hand out) throws an exception, and reportLeaks()
+ * prints the acquisition site of every buffer that was never released.
+ *
+ * This class is thread safe.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public class BufferPool {
+	public static final int SMALLEST_BUFFER_BYTES = 256;
+	public static final int LARGEST_BUFFER_BYTES = 64 * 1024;
+	private static final int DEFAULT_BUFFERS_PER_CLASS = 64;
+
+	private final ArrayList<ConcurrentLinkedQueue<ByteBuffer>> freeBuffers = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+	private final AtomicInteger[] freeCounts;
+	private final int maxBuffersPerClass;
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	private final boolean debug;
+	private final Map<ByteBuffer, Throwable> outstanding;
+
+	public BufferPool() {
+		this(DEFAULT_BUFFERS_PER_CLASS, false);
+	}
+
+	/**
+	 * @param maxBuffersPerClass the most free buffers kept for each size class.
+	 * @param debug true to track every outstanding buffer for leak detection. This records a stack
+	 *            trace per acquire and should not be used in release builds.
+	 */
+	public BufferPool(int maxBuffersPerClass, boolean debug) {
+		this.maxBuffersPerClass = maxBuffersPerClass;
+		this.debug = debug;
+		// ByteBuffer.equals() compares contents, so buffers must be tracked by identity
+		this.outstanding = debug ? Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>()) : null;
+
+		int classes = classIndexOf(LARGEST_BUFFER_BYTES) + 1;
+		freeCounts = new AtomicInteger[classes];
+		for (int i = 0; i < classes; ++i) {
+			freeBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			freeCounts[i] = new AtomicInteger(0);
+		}
+	}
+
+	/**
+	 * Take a cleared direct buffer from the pool, allocating one if the pool has none free.
+	 *
+	 * @param minCapacity the fewest bytes the buffer must hold.
+	 * @return a buffer with a capacity of at least minCapacity; the capacity may be larger. The
+	 *         buffer must be handed back with release() once it is no longer used.
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		ByteBuffer buffer = null;
+		if (minCapacity <= LARGEST_BUFFER_BYTES) {
+			int index = classIndexOf(minCapacity);
+			buffer = freeBuffers.get(index).poll();
+			if (buffer != null) {
+				freeCounts[index].decrementAndGet();
+				hits.incrementAndGet();
+				buffer.clear();
+			} else {
+				misses.incrementAndGet();
+				buffer = ByteBuffer.allocateDirect(SMALLEST_BUFFER_BYTES << index);
+			}
+		} else {
+			misses.incrementAndGet();
+			buffer = ByteBuffer.allocateDirect(minCapacity);
+		}
+
+		if (debug) {
+			outstanding.put(buffer, new Throwable("BufferPool: buffer acquired here was never released"));
+		}
+		return buffer;
+	}
+
+	/**
+	 * Hand a buffer back to the pool. The caller must not use the buffer afterwards.
+	 *
+	 * @param buffer a buffer returned by acquire().
+	 * @throws IllegalStateException in debug mode, if the buffer is not outstanding.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (debug && outstanding.remove(buffer) == null) {
+			throw new IllegalStateException("BufferPool: released a buffer that was not acquired or was already released");
+		}
+
+		int capacity = buffer.capacity();
+		if (capacity > LARGEST_BUFFER_BYTES || !buffer.isDirect()) {
+			return;
+		}
+		int index = classIndexOf(capacity);
+		if ((SMALLEST_BUFFER_BYTES << index) != capacity) {
+			// not one of ours; do not let an odd size into a class
+			return;
+		}
+		if (freeCounts[index].incrementAndGet() <= maxBuffersPerClass) {
+			freeBuffers.get(index).add(buffer);
+		} else {
+			freeCounts[index].decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the number of acquires served by a free buffer.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of acquires that had to allocate a new buffer.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+
+	/**
+	 * @return the number of buffers acquired but not yet released, or -1 if the pool is not in
+	 *         debug mode.
+	 */
+	public int getOutstandingCount() {
+		return debug ? outstanding.size() : -1;
+	}
+
+	/**
+	 * Print where every buffer that has not been released was acquired. Only meaningful in debug
+	 * mode and once all traffic has stopped, since buffers in flight are also outstanding.
+	 *
+	 * @return the number of outstanding buffers, or -1 if the pool is not in debug mode.
+	 */
+	public int reportLeaks() {
+		if (!debug) {
+			return -1;
+		}
+		synchronized (outstanding) {
+			for (Throwable acquiredAt : outstanding.values()) {
+				acquiredAt.printStackTrace();
+			}
+			return outstanding.size();
+		}
+	}
+
+	private static int classIndexOf(int capacity) {
+		int index = 0;
+		while ((SMALLEST_BUFFER_BYTES << index) < capacity) {
+			index++;
+		}
+		return index;
+	}
+}
@@ -1,12 +1,17 @@
 package enigma.engine.network;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class handles the client aspect of the application.
@@ -16,19 +21,46 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  *
  */
 public class Client {
+	private static final int RECEIVE_CHUNK_BYTES = 8192;
 	private String address;
 	private int port;
 	private Socket TCPSocket;
-	private ObjectInputStream inStream;
-	private ObjectOutputStream outStream;
+	private InputStream inStream;
+	private SocketChannel outChannel;
+	private PacketCodec codec = BinaryPacketCodec.createDefault();
+	private BufferPool bufferPool = new BufferPool();
+	private FlushPolicy flushPolicy = FlushPolicy.immediate();
+	private SocketOptions socketOptions = new SocketOptions();
+	// incremented by flush(); every packet queued before it is already in sendBuffer
+	private volatile long flushGeneration = 0;
+	private FrameEncoder sendEncoder;
+	private boolean datagramsEnabled = true;
+	private volatile DatagramEndpoint datagrams;
+	private LinkSimulator linkSimulator;
 	private Thread sendingThread;
 	private Thread receivingThread;
-	private Thread sendIntermediateStageThread;
-	private boolean sendBufferLock = false;
-
-	private ConcurrentLinkedQueue<Packet> sendBuffer = new ConcurrentLinkedQueue<Packet>();
-	private ConcurrentLinkedQueue<Packet> receiveBuffer = new ConcurrentLinkedQueue<Packet>();
-	private ConcurrentLinkedQueue<Packet> stageForSendBuffer = new ConcurrentLinkedQueue<Packet>();
+	private volatile boolean sendBufferLock = false;
+	// the disconnect message being sent, and the latch the sending thread opens once it is written
+	private volatile SystemMessagePacket disconnectMessage;
+	private volatile CountDownLatch disconnectWritten;
+
+	private QueueLimits queueLimits = new QueueLimits();
+	private PacketQueue sendBuffer = new PacketQueue(QueueLimits.UNBOUNDED);
+	private PacketQueue receiveBuffer = new PacketQueue(QueueLimits.UNBOUNDED);
+	private PacketQueue datagramReceiveBuffer = new PacketQueue(QueueLimits.UNBOUNDED);
+	// called by the datagram endpoint's receive thread with each packet it receives
+	private PacketHandler datagramReceiver = new PacketHandler() {
+		public void handle(Packet packet) {
+			PacketHandler handler = receiveHandler;
+			if (handler != null) {
+				handler.handle(packet);
+				return;
+			}
+			datagramReceiveBuffer.add(packet);
+		}
+	};
+	// when set, received packets are handed to it by the receiving threads instead of being queued
+	private volatile PacketHandler receiveHandler;
 
 	private volatile boolean threadsShouldLive = true;
 	private int blockingTimeoutMS = 1000;
@@ -63,6 +95,11 @@ public class Client {
 			throw new FailedToConnect("Could not set up streams");
 		}
 
+		// the server's UDP port has the same number as its TCP port; without it every packet is sent reliably
+		if (datagramsEnabled) {
+			openDatagrams();
+		}
+
 		System.out.println("Client: Connected to server.");
 
 		// start up sending thread @formatter:off
@@ -80,26 +117,39 @@ public class Client {
 			}
 		});
 		receivingThread.start();
-		
-		//staging thread to prevent user from experiencing blocking when queuing send
-		sendIntermediateStageThread = new Thread(new Runnable() {
-			 public void run() {
-				 loadStagedPacketToOutGoing();
-		 	}
-		 });
-		sendIntermediateStageThread.start();
 
 		// connection successful, update these fields @formatter:on
 		this.address = address;
 		this.port = dstPort;
 	}
 
+	private void openDatagrams() {
+		try {
+			datagrams = DatagramEndpoint.openClient(TCPSocket.getRemoteSocketAddress(), codec, bufferPool, datagramReceiver);
+			datagrams.setLinkSimulator(linkSimulator);
+			datagrams.start();
+		} catch (IOException e) {
+			System.out.println("Client: could not open a UDP port, unreliable packets will be sent reliably");
+			datagrams = null;
+		}
+	}
+
+	private void closeDatagrams() {
+		DatagramEndpoint datagrams = this.datagrams;
+		this.datagrams = null;
+		if (datagrams != null) {
+			datagrams.close();
+		}
+	}
+
 	private boolean setupStreams() {
 		// set up streams
 		try {
-			outStream = new ObjectOutputStream(TCPSocket.getOutputStream());
-			inStream = new ObjectInputStream(TCPSocket.getInputStream());
-			outStream.flush();
+			// the socket was opened by a channel; writes go to the channel, reads use the stream so
+			// the read timeout applies
+			outChannel = TCPSocket.getChannel();
+			inStream = TCPSocket.getInputStream();
+			sendEncoder = new FrameEncoder(codec, bufferPool);
 		} catch (IOException e) {
 			return false;
 		}
@@ -110,7 +160,20 @@ public class Client {
 	private boolean connectDataSocket(String address, int port) throws FailedToConnect {
 		boolean ret = true;
 		try {
-			TCPSocket = new Socket(address, port);
+			InetSocketAddress serverAddress = new InetSocketAddress(address, port);
+			if (serverAddress.isUnresolved()) {
+				throw new UnknownHostException(address);
+			}
+			SocketChannel channel = SocketChannel.open();
+			try {
+				// options such as the receive buffer size must be set before connecting
+				socketOptions.applyTo(channel.socket());
+				channel.connect(serverAddress);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			TCPSocket = channel.socket();
 			TCPSocket.setSoTimeout(blockingTimeoutMS);
 		} catch (UnknownHostException e2) {
 			ret = false;
@@ -135,22 +198,42 @@ public class Client {
 	}
 
 	protected void receivingThreadMethod() {
+		FrameDecoder decoder = new FrameDecoder();
+		byte[] chunk = new byte[RECEIVE_CHUNK_BYTES];
 		while (threadsShouldLive) {
 			try {
-				// Packet inbound = (Packet) inStream.readObject(); //saves reference to packet
-				Packet inbound = (Packet) inStream.readUnshared(); // doesn't save ref to packet
-
-				if (!checkForSystemMessage(inbound) && inbound != null) {
-					// not a system message, add the packet to buffer
-					receiveBuffer.add(inbound);
-				} else {
-					// avoid busy waiting
-					// sleepThread(1); //TODO (note)this cause wait if system msg!
+				int bytesRead = inStream.read(chunk);
+				if (bytesRead < 0) {
+					throw new EOFException("Client: socket closed by server");
+				}
+				decoder.append(chunk, 0, bytesRead);
+
+				try {
+					ByteBuffer body;
+					while ((body = decoder.nextFrame()) != null) {
+						Packet inbound = codec.decode(body);
+						if (!checkForSystemMessage(inbound) && inbound != null) {
+							PacketHandler handler = receiveHandler;
+							if (handler != null) {
+								// handled on this thread instead of being queued for the game
+								handler.handle(inbound);
+								continue;
+							}
+							// not a system message, add the packet to buffer; BLOCK stops reading until
+							// the game catches up
+							if (!receiveBuffer.put(inbound, queueLimits.getReceiveOverflow())) {
+								disconnect();
+								return;
+							}
+						}
+					}
+				} catch (IOException e) {
+					// the stream can not be decoded past a corrupt frame
+					e.printStackTrace();
+					disconnect(false);
+					return;
 				}
 
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-				return;
 			} catch (SocketTimeoutException e) {
 				// Do nothing, but prevent this from being caught in IOException
 			} catch (IOException e) {
@@ -165,25 +248,49 @@ public class Client {
 
 	private void sendingThreadMethod() {
 		// Only this method should ever do peeks and polls from the sendBuffer;
+		WriteBatch batch = new WriteBatch();
+		long flushedGeneration = flushGeneration;
+		// opened once the disconnect message taken into the batch has been written
+		CountDownLatch disconnectInBatch = null;
 		while (threadsShouldLive) {
-			Packet toSend = sendBuffer.peek();
-			if (toSend != null) {
+			// read the generation before draining so every packet queued before flush() is included
+			long generation = flushGeneration;
+			Packet toSend;
+			while (!batch.isFull() && (toSend = sendBuffer.poll()) != null) {
+				if (toSend == disconnectMessage) {
+					disconnectInBatch = disconnectWritten;
+				}
+				encodeInto(batch, toSend);
+			}
+
+			boolean flushRequested = generation != flushedGeneration;
+			if (batch.shouldWrite(flushPolicy, flushRequested)) {
 				try {
-					send(toSend);
-					sendBuffer.poll();
+					send(batch);
+					flushedGeneration = generation;
+					if (disconnectInBatch != null) {
+						disconnectInBatch.countDown();
+						disconnectInBatch = null;
+					}
 				} catch (IOException e) {
-					// failed to send - do not remove packet from queue
+					// failed to send - the unwritten frames stay in the batch
 					sendFailures++;
 					if (sendFailures > sendFailureThreshold) {
 						reestablishConnection();
 						sendFailures = 0;
 					}
 				}
+			} else if (!batch.isEmpty()) {
+				// wait for more packets, or for the policy's delay to pass
+				LockSupport.parkNanos(this, Math.min(batch.nanosUntilDue(flushPolicy),
+						TimeUnit.MILLISECONDS.toNanos(blockingTimeoutMS)));
 			} else {
-				// avoid busy waiting
-				sleepThread(1);
+				// park until a packet is queued (or the timeout expires to check threadsShouldLive)
+				flushedGeneration = generation;
+				parkUntilSignalled();
 			}
 		}
+		batch.releaseAll();
 	}
 
 	private boolean checkForSystemMessage(Packet inbound) {
@@ -208,6 +315,10 @@ public class Client {
 		} else {
 			if (systemMessage.containsPlayerID()) {
 				localPlayerInstance = new NetworkPlayer(systemMessage.getPlayerID());
+				DatagramEndpoint datagrams = this.datagrams;
+				if (datagrams != null) {
+					datagrams.setLocalID(systemMessage.getPlayerID());
+				}
 			}
 		}
 	}
@@ -216,6 +327,7 @@ public class Client {
 		if (TCPSocket == null || !TCPSocket.isConnected() || TCPSocket.isClosed()) {
 			// stop receiving and sending threads
 			stopThreads();
+			closeDatagrams();
 			threadsShouldLive = true;
 
 			TCPSocket = null;
@@ -233,6 +345,7 @@ public class Client {
 
 	private void stopThreads() {
 		threadsShouldLive = false;
+		wakeSendThreads();
 		// TODO kill receive stream to interrupt with thread with IO exception,
 		// which will check threadsShouldLive
 		while (receivingThread != null && receivingThread.isAlive()) {
@@ -241,20 +354,24 @@ public class Client {
 		while (sendingThread != null && sendingThread.isAlive()) {
 			sleepThread(100);
 		}
-		while (sendIntermediateStageThread != null && sendIntermediateStageThread.isAlive()) {
-			sleepThread(100);
+	}
+
+	private void encodeInto(WriteBatch batch, Packet packet) {
+		try {
+			batch.add(SharedFrame.encode(sendEncoder, packet));
+		} catch (IOException e) {
+			// retrying will not succeed, so the packet is skipped rather than counted as a failure
+			System.out.println("Client: failed to encode " + packet.getClass().getName());
+			e.printStackTrace();
 		}
+		PacketPool.recycle(packet);
 	}
 
-	private void send(Packet packet) throws IOException {
+	private void send(WriteBatch batch) throws IOException {
 		if (TCPSocket == null || TCPSocket.isClosed()) {
 			throw new IllegalStateException("send() called when socket was not set up");
 		}
-		// outStream.writeObject(packet); //saves a reference to every packet written (not good)
-		outStream.writeUnshared(packet); // doesn't save references
-
-		outStream.reset(); // clear references
-
+		batch.writeTo(outChannel);
 	}
 
 	private boolean disconnect(boolean sendDisconnectMessage) {
@@ -264,7 +381,11 @@ public class Client {
 		}
 		// kill threads after the message to system has been sent
 		threadsShouldLive = false;
+		sendBuffer.cancelBlockedPuts();
+		receiveBuffer.cancelBlockedPuts();
+		wakeSendThreads();
 		localPlayerInstance = null;
+		closeDatagrams();
 
 		try {
 			if (TCPSocket != null) {
@@ -303,8 +424,9 @@ public class Client {
 	 * @SideEffect the method blocks for at maximum 5 seconds
 	 */
 	private void sendDisconnectSystemMessage() {
-		// lock the send buffer
+		// lock the send buffer, and stop any thread waiting for room in it
 		sendBufferLock = true;
+		sendBuffer.cancelBlockedPuts();
 
 		// clear the buffer so that the system message can be placed at the start
 		sendBuffer.clear();
@@ -312,13 +434,19 @@ public class Client {
 		// create a disconnect system message to send
 		SystemMessagePacket closeMessage = new SystemMessagePacket();
 		closeMessage.setConnectionShouldClose(true);
+		// recorded first, so the sending thread knows the message when it takes it
+		CountDownLatch written = new CountDownLatch(1);
+		disconnectWritten = written;
+		disconnectMessage = closeMessage;
 		sendBuffer.add(closeMessage);
+		signal(sendingThread);
 
-		// loop until message sent (send buffer == 0; ie null head) or 5 seconds is up
-		long start = System.currentTimeMillis();
+		// wait until the sending thread has written the message or 5 seconds is up; an empty send
+		// buffer is not enough, since the message may still be in the thread's batch
 		long delayMS = 5000; // if changed update java doc TODO - this will block user!
-		while (sendBuffer.peek() != null && System.currentTimeMillis() - start < delayMS) {
-			sleepThread(1);
+		try {
+			written.await(delayMS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
 		}
 
 		// unlock the send buffer
@@ -335,31 +463,109 @@ public class Client {
 	// }
 
 	/**
-	 * Prepare a packet to be sent next. Once a packet is queued, it cannot be removed.
+	 * Prepare a packet to be sent next. Once a packet is queued, it cannot be removed. The packet is
+	 * copied, unless it is a PoolablePacket, which is released once it has been encoded.
 	 * 
 	 * @param packet
 	 */
 	public void queueToSend(Packet packet) {
-		final Packet copy = packet.makeCopy();
-
-		// addition staging buffer to reduce chance of server blocking user
-		stageForSendBuffer.add(copy);
+		final Packet copy = PacketPool.takeForSend(packet);
+		if (sendBufferLock) {
+			// the disconnect message is being sent, nothing may follow it
+			PacketPool.recycle(copy);
+			return;
+		}
+		if (!sendBuffer.put(copy, queueLimits.getSendOverflow())) {
+			// the server is too far behind
+			disconnect();
+			return;
+		}
+		signal(sendingThread);
+	}
 
+	/**
+	 * Queue a packet unless the packets waiting to be sent have reached the send capacity. Never
+	 * blocks, whatever the overflow policy.
+	 * 
+	 * @param packet the packet to send; ownership is as for queueToSend() if it is queued.
+	 * @return false if the packet was not queued; it still belongs to the caller.
+	 */
+	public boolean tryQueueToSend(Packet packet) {
+		if (sendBuffer.isFull() || sendBufferLock || !sendBuffer.offer(PacketPool.takeForSend(packet))) {
+			return false;
+		}
+		signal(sendingThread);
+		return true;
 	}
 
-	protected void loadStagedPacketToOutGoing() {
-		while (threadsShouldLive) {
-			// use "if" instead of "while" so that threadsShouldLive checked every loading iter
-			if (stageForSendBuffer.peek() != null && !sendBufferLock) {
-				Packet toSend = stageForSendBuffer.poll();
-				sendBuffer.add(toSend);
+	/**
+	 * Prepare a packet to be sent with the given delivery mode. UNRELIABLE_SEQUENCED and
+	 * RELIABLE_DATAGRAM packets are sent as a UDP datagram immediately, or over TCP if the server
+	 * has not acknowledged this client's UDP port yet.
+	 * 
+	 * @param packet the packet to send.
+	 * @param mode how the packet travels.
+	 */
+	public void queueToSend(Packet packet, DeliveryMode mode) {
+		DatagramEndpoint datagrams = this.datagrams;
+		if (mode == DeliveryMode.RELIABLE || datagrams == null || !datagrams.isReady()) {
+			queueToSend(packet);
+			return;
+		}
+		ByteBuffer datagram = null;
+		byte[] reliableBody = null;
+		try {
+			if (mode == DeliveryMode.RELIABLE_DATAGRAM) {
+				reliableBody = datagrams.encodeReliable(packet);
 			} else {
-				// stop busy waiting
-				 sleepThread(1);
+				datagram = datagrams.encode(packet);
 			}
+		} catch (IOException e) {
+			System.out.println("Client: failed to encode " + packet.getClass().getName());
+			e.printStackTrace();
+			PacketPool.recycle(packet);
+			return;
+		}
+		if (datagram == null && reliableBody == null) {
+			// too large for one datagram
+			queueToSend(packet);
+			return;
+		}
+		boolean sent = datagram != null ? datagrams.sendToServer(datagram) : datagrams.queueReliableToServer(reliableBody);
+		if (datagram != null) {
+			bufferPool.release(datagram);
+		}
+		if (sent) {
+			PacketPool.recycle(packet);
+		} else {
+			queueToSend(packet);
+		}
+	}
+
+	/**
+	 * Parks the calling thread until another thread calls signal() on it. A signal that arrives
+	 * before the park is remembered, so a packet queued between checking the buffer and parking is
+	 * never missed. The park is bounded by blockingTimeoutMS so the thread can notice shutdown.
+	 */
+	private void parkUntilSignalled() {
+		LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(blockingTimeoutMS));
+	}
+
+	/**
+	 * Wake a thread parked in parkUntilSignalled().
+	 * 
+	 * @param thread the thread to wake, may be null if it has not been started.
+	 */
+	private void signal(Thread thread) {
+		if (thread != null) {
+			LockSupport.unpark(thread);
 		}
 	}
 
+	private void wakeSendThreads() {
+		signal(sendingThread);
+	}
+
 	private void sleepThread(long ms) {
 		try {
 			Thread.sleep(ms);
@@ -386,11 +592,165 @@ public class Client {
 	}
 
 	public boolean hasReceivedPacket() {
-		return receiveBuffer.peek() != null;
+		return receiveBuffer.peek() != null || datagramReceiveBuffer.peek() != null;
 	}
 
 	public Packet getNextReceivedPacket() {
-		return receiveBuffer.poll();
+		Packet packet = receiveBuffer.poll();
+		return packet != null ? packet : datagramReceiveBuffer.poll();
+	}
+
+	/**
+	 * Hand received packets to a handler until none are left or max have been handled. Packets
+	 * received over TCP come before datagrams, as with getNextReceivedPacket(). Only the packets
+	 * already received when the call starts are handed over, so it returns even while packets
+	 * keep arriving.
+	 * 
+	 * @return the number of packets handled.
+	 */
+	public int drainReceived(PacketHandler handler, int max) {
+		int count = receiveBuffer.drainTo(handler, max);
+		return count + datagramReceiveBuffer.drainTo(handler, max - count);
+	}
+
+	/**
+	 * Set the codec used to encode and decode packets. Must be called before connect(); the server
+	 * must use a compatible codec.
+	 * 
+	 * @param codec the codec to use.
+	 */
+	public void setCodec(PacketCodec codec) {
+		this.codec = codec;
+	}
+
+	public PacketCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Set the pool that outgoing frames are encoded into. Must be called before connect().
+	 * 
+	 * @param bufferPool the pool to use.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set when queued packets are written to the socket. Must be called before connect().
+	 * 
+	 * @param flushPolicy the policy to use.
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Set the TCP options applied to the connection to the server. Takes effect for connections made after the call.
+	 * 
+	 * @param socketOptions the options to use.
+	 */
+	public void setSocketOptions(SocketOptions socketOptions) {
+		this.socketOptions = socketOptions;
+	}
+
+	public SocketOptions getSocketOptions() {
+		return socketOptions;
+	}
+
+	/**
+	 * Set how many packets may wait to be sent and to be taken by the game, and what happens when
+	 * either is full. Must be called before connect(); packets already queued are discarded.
+	 * 
+	 * @param queueLimits the limits to use.
+	 */
+	public void setQueueLimits(QueueLimits queueLimits) {
+		this.queueLimits = queueLimits;
+		sendBuffer = new PacketQueue(queueLimits.getSendCapacity());
+		receiveBuffer = new PacketQueue(queueLimits.getReceiveCapacity());
+	}
+
+	public QueueLimits getQueueLimits() {
+		return queueLimits;
+	}
+
+	/**
+	 * Hand every received packet to a handler on the thread that received it, instead of queueing
+	 * it for getNextReceivedPacket(). Datagrams are received on a thread of their own, so the
+	 * handler must be thread safe.
+	 * 
+	 * @param receiveHandler the handler, or null to queue packets again.
+	 */
+	public void setReceiveHandler(PacketHandler receiveHandler) {
+		this.receiveHandler = receiveHandler;
+	}
+
+	public PacketHandler getReceiveHandler() {
+		return receiveHandler;
+	}
+
+	/**
+	 * Write every packet queued so far to the server without waiting for the flush policy's
+	 * limits. Packets queued after this call are not affected.
+	 */
+	public void flush() {
+		flushGeneration++;
+		signal(sendingThread);
+	}
+
+	/**
+	 * Choose whether the client opens a UDP port for UNRELIABLE_SEQUENCED and RELIABLE_DATAGRAM
+	 * packets. When disabled, those packets are sent over TCP. Takes effect for connections made
+	 * after the call.
+	 * 
+	 * @param datagramsEnabled true to open a UDP port.
+	 */
+	public void setDatagramsEnabled(boolean datagramsEnabled) {
+		this.datagramsEnabled = datagramsEnabled;
+	}
+
+	public boolean getDatagramsEnabled() {
+		return datagramsEnabled;
+	}
+
+	/**
+	 * Simulate a poor connection for the datagrams the client sends, for testing. Takes effect for
+	 * connections made after the call.
+	 * 
+	 * @param linkSimulator the simulated link, or null to send datagrams directly.
+	 */
+	public void setLinkSimulator(LinkSimulator linkSimulator) {
+		this.linkSimulator = linkSimulator;
+	}
+
+	public LinkSimulator getLinkSimulator() {
+		return linkSimulator;
+	}
+
+	/**
+	 * @return true once the server has acknowledged this client's UDP port; until then packets
+	 *         meant for datagrams are sent over TCP.
+	 */
+	public boolean isDatagramChannelReady() {
+		DatagramEndpoint datagrams = this.datagrams;
+		return datagrams != null && datagrams.isReady();
+	}
+
+	/**
+	 * @return the round trip time to the server measured by the RELIABLE_DATAGRAM channel, in
+	 *         milliseconds, or -1 if no reliable datagram has been acknowledged yet.
+	 */
+	public long getRoundTripMS() {
+		DatagramEndpoint datagrams = this.datagrams;
+		return datagrams == null ? -1 : datagrams.getRoundTripMS((char) 0);
 	}
 
 	public NetworkPlayer getPlayerObject() {
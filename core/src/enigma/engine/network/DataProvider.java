@@ -10,6 +10,10 @@ public class DataProvider implements Serializable {
 	public float x;
 	public float y;
 
+	/** the range randomizeData() fills x and y from, in steps of about 1/650 */
+	private static final Quantizer POSITION = new Quantizer(0, 100, 16);
+	private static final Quantizer ROTATION = Quantizer.angle(12);
+
 	public void randomizeData() {
 		Random rng = new Random();
 		localID = rng.nextInt();
@@ -28,6 +32,27 @@ public class DataProvider implements Serializable {
 		x.randomizeData();
 	}
 
+	/**
+	 * Write the fields in 76 bits for a hand-written packet serializer, rather than the 16 raw
+	 * bytes (or boxed objects) the fields would otherwise take.
+	 */
+	public void write(BitWriter out) {
+		out.writeBits(localID, 32);
+		out.writeFloat(rotation, ROTATION);
+		out.writeFloat(x, POSITION);
+		out.writeFloat(y, POSITION);
+	}
+
+	/**
+	 * Read the fields written by write().
+	 */
+	public void read(BitReader in) {
+		localID = in.readBits(32);
+		rotation = in.readFloat(ROTATION);
+		x = in.readFloat(POSITION);
+		y = in.readFloat(POSITION);
+	}
+
 //	private void writeObject(ObjectOutputStream oos) throws IOException {
 //		// default serialization
 //		//oos.defaultWriteObject();
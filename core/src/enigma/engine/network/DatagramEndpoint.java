@@ -0,0 +1,641 @@
+package enigma.engine.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The UDP side of the network, used for packets sent with DeliveryMode.UNRELIABLE_SEQUENCED or
+ * DeliveryMode.RELIABLE_DATAGRAM. A server has one endpoint bound to the same port number as its
+ * TCP listener; each client has one endpoint bound to any free port.
+ *
+ * Every datagram starts with a 7 byte header: a kind, the player ID the server assigned over TCP,
+ * and a sequence number. Reliable datagrams and acknowledgements follow the header with the
+ * acknowledgement fields of a ReliableChannel. The body is the packet as encoded by the
+ * PacketCodec.
+ *
+ * A client can not receive datagrams until the server knows its UDP address. Once the client has
+ * its player ID it sends HELLO datagrams carrying that ID until the server answers with a
+ * HELLO_ACK; the server records the address a HELLO came from as the player's address. The server
+ * only accepts data from that address, and only for player IDs that are connected over TCP.
+ *
+ * Unreliable packets: each receiver remembers the newest sequence number it has seen from each
+ * sender and drops anything older, so a late datagram never overwrites newer state.
+ *
+ * Reliable packets are retransmitted by a service thread, which also sends the datagrams a
+ * LinkSimulator has delayed.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+final class DatagramEndpoint {
+	/** datagrams are kept below common path MTUs so they are never fragmented */
+	static final int MAX_DATAGRAM_BYTES = 1200;
+	static final int HEADER_BYTES = 7;
+	private static final byte KIND_DATA = 1;
+	private static final byte KIND_HELLO = 2;
+	private static final byte KIND_HELLO_ACK = 3;
+	private static final byte KIND_RELIABLE = 4;
+	private static final byte KIND_ACK = 5;
+	/** sent in place of a player ID in datagrams from the server */
+	private static final char SERVER_ID = (char) -1;
+	private static final int HELLO_INTERVAL_MS = 250;
+
+	private final boolean serverSide;
+	private final DatagramChannel channel;
+	private final PacketCodec codec;
+	private final BufferPool bufferPool;
+	private final PacketHandler receiver;
+	// the reliable packets a datagram put in order; receive thread only
+	private final ArrayList<Packet> inOrder = new ArrayList<Packet>();
+	private final AtomicInteger nextSequence = new AtomicInteger(0);
+	private final int receiveTimeoutMS;
+	private Thread receiveThread;
+	private Thread serviceThread;
+	private volatile boolean running = false;
+
+	// datagrams held back by the link simulator, ordered by when they are due
+	private volatile LinkSimulator linkSimulator;
+	private final PriorityQueue<Delayed> delayed = new PriorityQueue<Delayed>();
+
+	// server side: every player connected over TCP
+	private final ConcurrentHashMap<Character, Remote> players = new ConcurrentHashMap<Character, Remote>();
+
+	// client side
+	private final Remote server;
+	private volatile char localID;
+	private volatile boolean hasLocalID = false;
+	private volatile boolean ready = false;
+	private long lastHelloMS = 0;
+
+	private DatagramEndpoint(boolean serverSide, DatagramChannel channel, PacketCodec codec, BufferPool bufferPool,
+			PacketHandler receiver, SocketAddress serverAddress, int receiveTimeoutMS) {
+		this.serverSide = serverSide;
+		this.channel = channel;
+		this.codec = codec;
+		this.bufferPool = bufferPool;
+		this.receiver = receiver;
+		this.server = serverAddress == null ? null : new Remote(serverAddress);
+		this.receiveTimeoutMS = receiveTimeoutMS;
+	}
+
+	/**
+	 * Open a server endpoint. Received packets are handed to receiver on the endpoint's receive
+	 * thread.
+	 *
+	 * @param port the port to bind, normally the server's TCP port.
+	 * @throws IOException if the port can not be bound.
+	 */
+	static DatagramEndpoint openServer(int port, PacketCodec codec, BufferPool bufferPool, PacketHandler receiver,
+			int receiveTimeoutMS) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new DatagramEndpoint(true, channel, codec, bufferPool, receiver, null, receiveTimeoutMS);
+	}
+
+	/**
+	 * Open a client endpoint on any free port. Received packets are handed to receiver on the
+	 * endpoint's receive thread.
+	 *
+	 * @param serverAddress the server's UDP address, normally the address of its TCP listener.
+	 * @throws IOException if a port can not be bound.
+	 */
+	static DatagramEndpoint openClient(SocketAddress serverAddress, PacketCodec codec, BufferPool bufferPool,
+			PacketHandler receiver) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(0));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new DatagramEndpoint(false, channel, codec, bufferPool, receiver, serverAddress, HELLO_INTERVAL_MS);
+	}
+
+	/**
+	 * Apply a simulated poor connection to every datagram sent from now on, or null to send them
+	 * directly.
+	 */
+	void setLinkSimulator(LinkSimulator linkSimulator) {
+		this.linkSimulator = linkSimulator;
+	}
+
+	void start() {
+		running = true;
+		receiveThread = new Thread(new Runnable() {
+			public void run() {
+				receiveThreadMethod();
+			}
+		});
+		receiveThread.start();
+
+		serviceThread = new Thread(new Runnable() {
+			public void run() {
+				serviceThreadMethod();
+			}
+		});
+		serviceThread.start();
+	}
+
+	/**
+	 * Stop receiving and release the port. May be called from any thread but the endpoint's own.
+	 * Blocks until the endpoint's threads have stopped, since the port is not released while a
+	 * receive is in progress.
+	 */
+	void close() {
+		running = false;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		LockSupport.unpark(serviceThread);
+		join(receiveThread);
+		join(serviceThread);
+	}
+
+	private void join(Thread thread) {
+		if (thread == null) {
+			return;
+		}
+		try {
+			thread.join(receiveTimeoutMS * 2L);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Server side: accept datagrams from a player that connected over TCP.
+	 */
+	void addPlayer(char playerID) {
+		players.put(playerID, new Remote(null));
+	}
+
+	/**
+	 * Server side: stop accepting datagrams from a player that disconnected. Reliable packets
+	 * still queued for the player are dropped.
+	 */
+	void removePlayer(char playerID) {
+		Remote player = players.remove(playerID);
+		if (player != null) {
+			player.reliable.clear();
+		}
+	}
+
+	/**
+	 * Server side.
+	 *
+	 * @return true if the player's UDP address is known.
+	 */
+	boolean canReach(char playerID) {
+		Remote player = players.get(playerID);
+		return player != null && player.address != null;
+	}
+
+	/**
+	 * Client side: the server assigned this client its ID; start introducing the endpoint to the
+	 * server.
+	 */
+	void setLocalID(char playerID) {
+		localID = playerID;
+		hasLocalID = true;
+		ready = false;
+		sendHello();
+	}
+
+	/**
+	 * Client side.
+	 *
+	 * @return true once the server has acknowledged this endpoint's address.
+	 */
+	boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Encode a packet as a datagram. The datagram can be sent to any number of peers before it is
+	 * released.
+	 *
+	 * @return a pooled buffer in read mode that the caller must release to the BufferPool, or null
+	 *         if the packet does not fit in a single datagram.
+	 * @throws IOException if the codec cannot encode the packet.
+	 */
+	ByteBuffer encode(Packet packet) throws IOException {
+		ByteBuffer datagram = bufferPool.acquire(MAX_DATAGRAM_BYTES);
+		datagram.limit(MAX_DATAGRAM_BYTES);
+		try {
+			datagram.put(KIND_DATA);
+			datagram.putChar(serverSide ? SERVER_ID : localID);
+			datagram.putInt(nextSequence.incrementAndGet());
+			codec.encode(packet, datagram);
+		} catch (BufferOverflowException e) {
+			bufferPool.release(datagram);
+			return null;
+		} catch (IOException | RuntimeException e) {
+			bufferPool.release(datagram);
+			throw e;
+		}
+		datagram.flip();
+		return datagram;
+	}
+
+	/**
+	 * Server side: send an encoded datagram to one player.
+	 *
+	 * @return false if the player's address is not known yet, or the send failed.
+	 */
+	boolean sendTo(ByteBuffer datagram, char playerID) {
+		Remote player = players.get(playerID);
+		if (player == null || player.address == null) {
+			return false;
+		}
+		return send(datagram.duplicate(), player.address);
+	}
+
+	/**
+	 * Client side: send an encoded datagram to the server.
+	 *
+	 * @return false if the server has not acknowledged this endpoint yet, or the send failed.
+	 */
+	boolean sendToServer(ByteBuffer datagram) {
+		if (!ready) {
+			return false;
+		}
+		return send(datagram.duplicate(), server.address);
+	}
+
+	/**
+	 * Encode a packet for the reliable channel. The result can be queued for any number of peers.
+	 *
+	 * @return the encoded packet, or null if it does not fit in a single datagram.
+	 * @throws IOException if the codec cannot encode the packet.
+	 */
+	byte[] encodeReliable(Packet packet) throws IOException {
+		int capacity = MAX_DATAGRAM_BYTES - HEADER_BYTES - ReliableChannel.ACK_BYTES;
+		ByteBuffer body = bufferPool.acquire(capacity);
+		try {
+			body.limit(capacity);
+			codec.encode(packet, body);
+			body.flip();
+			byte[] bytes = new byte[body.remaining()];
+			body.get(bytes);
+			return bytes;
+		} catch (BufferOverflowException e) {
+			return null;
+		} finally {
+			bufferPool.release(body);
+		}
+	}
+
+	/**
+	 * Server side: queue an encoded packet on a player's reliable channel and send it.
+	 *
+	 * @return false if the player's address is not known yet; nothing was queued.
+	 */
+	boolean queueReliable(byte[] body, char playerID) {
+		Remote player = players.get(playerID);
+		if (player == null || player.address == null) {
+			return false;
+		}
+		player.reliable.queue(body);
+		transmitDue(player, System.nanoTime());
+		return true;
+	}
+
+	/**
+	 * Client side: queue an encoded packet on the reliable channel to the server and send it.
+	 *
+	 * @return false if the server has not acknowledged this endpoint yet; nothing was queued.
+	 */
+	boolean queueReliableToServer(byte[] body) {
+		if (!ready) {
+			return false;
+		}
+		server.reliable.queue(body);
+		transmitDue(server, System.nanoTime());
+		return true;
+	}
+
+	/**
+	 * @param playerID the player to measure, ignored on the client side.
+	 * @return the smoothed round trip time to the server (client side) or to a player (server
+	 *         side) measured by the reliable channel, in milliseconds, or -1 if not measured yet.
+	 */
+	long getRoundTripMS(char playerID) {
+		Remote remote = serverSide ? players.get(playerID) : server;
+		if (remote == null) {
+			return -1;
+		}
+		long rttNanos = remote.reliable.getSmoothedRttNanos();
+		return rttNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(rttNanos);
+	}
+
+	/**
+	 * Send every reliable packet that is due to a remote endpoint, if its address is known.
+	 */
+	private void transmitDue(Remote remote, long nowNanos) {
+		SocketAddress address = remote.address;
+		if (address == null || (!serverSide && !ready)) {
+			return;
+		}
+		ArrayList<ReliableChannel.Outgoing> due = new ArrayList<ReliableChannel.Outgoing>();
+		remote.reliable.collectDue(nowNanos, due);
+		if (due.isEmpty()) {
+			return;
+		}
+		ByteBuffer datagram = bufferPool.acquire(MAX_DATAGRAM_BYTES);
+		try {
+			for (ReliableChannel.Outgoing outgoing : due) {
+				datagram.clear();
+				datagram.put(KIND_RELIABLE);
+				datagram.putChar(serverSide ? SERVER_ID : localID);
+				datagram.putInt(outgoing.sequence);
+				remote.reliable.writeAcks(datagram);
+				datagram.put(outgoing.body);
+				datagram.flip();
+				send(datagram, address);
+			}
+		} finally {
+			bufferPool.release(datagram);
+		}
+		// the service thread may need to wake earlier for the new retransmit deadlines
+		LockSupport.unpark(serviceThread);
+	}
+
+	private void sendAck(Remote remote, SocketAddress address) {
+		ByteBuffer ack = ByteBuffer.allocate(HEADER_BYTES + ReliableChannel.ACK_BYTES);
+		ack.put(KIND_ACK);
+		ack.putChar(serverSide ? SERVER_ID : localID);
+		ack.putInt(0);
+		remote.reliable.writeAcks(ack);
+		ack.flip();
+		send(ack, address);
+	}
+
+	private boolean send(ByteBuffer datagram, SocketAddress address) {
+		LinkSimulator simulator = linkSimulator;
+		if (simulator != null) {
+			if (simulator.shouldDrop()) {
+				return true;
+			}
+			long delayNanos = simulator.nextDelayNanos();
+			if (delayNanos > 0) {
+				// the caller may reuse its buffer, so the bytes are copied
+				ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+				copy.put(datagram);
+				copy.flip();
+				synchronized (delayed) {
+					delayed.add(new Delayed(System.nanoTime() + delayNanos, copy, address));
+				}
+				LockSupport.unpark(serviceThread);
+				return true;
+			}
+		}
+		try {
+			channel.send(datagram, address);
+			return true;
+		} catch (IOException e) {
+			// an unreachable peer or a full socket buffer is a lost datagram, which is allowed
+			return false;
+		}
+	}
+
+	private void sendHello() {
+		lastHelloMS = System.currentTimeMillis();
+		send(header(KIND_HELLO, localID), server.address);
+	}
+
+	private ByteBuffer header(byte kind, char playerID) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.put(kind);
+		header.putChar(playerID);
+		header.putInt(0);
+		header.flip();
+		return header;
+	}
+
+	private void receiveThreadMethod() {
+		byte[] bytes = new byte[MAX_DATAGRAM_BYTES];
+		DatagramPacket received = new DatagramPacket(bytes, bytes.length);
+		DatagramSocket socket = channel.socket();
+		try {
+			// the channel's socket honours the timeout, which lets the thread notice shutdown
+			socket.setSoTimeout(receiveTimeoutMS);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		while (running) {
+			try {
+				received.setLength(bytes.length);
+				socket.receive(received);
+				handle(ByteBuffer.wrap(bytes, 0, received.getLength()), received.getSocketAddress());
+			} catch (SocketTimeoutException e) {
+				// timeout event is normal
+			} catch (IOException e) {
+				if (!running) {
+					return;
+				}
+			}
+			if (!serverSide && hasLocalID && !ready && System.currentTimeMillis() - lastHelloMS >= HELLO_INTERVAL_MS) {
+				sendHello();
+			}
+		}
+	}
+
+	/**
+	 * Retransmits reliable packets and sends the datagrams held back by the link simulator. Parks
+	 * until the next one is due, or until it is unparked because something new was queued.
+	 */
+	private void serviceThreadMethod() {
+		while (running) {
+			long now = System.nanoTime();
+			long untilNext = TimeUnit.MILLISECONDS.toNanos(receiveTimeoutMS);
+
+			untilNext = Math.min(untilNext, sendDelayed(now));
+			if (serverSide) {
+				for (Remote player : players.values()) {
+					transmitDue(player, now);
+					if (player.address != null) {
+						untilNext = Math.min(untilNext, player.reliable.nanosUntilDue(now));
+					}
+				}
+			} else if (ready) {
+				transmitDue(server, now);
+				untilNext = Math.min(untilNext, server.reliable.nanosUntilDue(now));
+			}
+
+			if (untilNext > 0) {
+				LockSupport.parkNanos(this, untilNext);
+			}
+		}
+	}
+
+	/**
+	 * Send the delayed datagrams that are due.
+	 *
+	 * @return nanoseconds until the next delayed datagram is due, or Long.MAX_VALUE if there is none.
+	 */
+	private long sendDelayed(long nowNanos) {
+		while (true) {
+			Delayed next;
+			synchronized (delayed) {
+				next = delayed.peek();
+				if (next == null) {
+					return Long.MAX_VALUE;
+				}
+				if (next.dueNanos - nowNanos > 0) {
+					return next.dueNanos - nowNanos;
+				}
+				delayed.poll();
+			}
+			try {
+				channel.send(next.datagram, next.address);
+			} catch (IOException e) {
+				// a lost datagram
+			}
+		}
+	}
+
+	private void handle(ByteBuffer datagram, SocketAddress from) {
+		if (datagram.remaining() < HEADER_BYTES) {
+			return;
+		}
+		byte kind = datagram.get();
+		char playerID = datagram.getChar();
+		int sequence = datagram.getInt();
+
+		Remote sender;
+		if (serverSide) {
+			sender = players.get(playerID);
+			if (sender == null) {
+				// not connected over TCP
+				return;
+			}
+			if (kind == KIND_HELLO) {
+				sender.address = from;
+				send(header(KIND_HELLO_ACK, playerID), from);
+				return;
+			}
+		} else {
+			sender = server;
+			if (kind == KIND_HELLO_ACK) {
+				ready = from.equals(server.address);
+				return;
+			}
+		}
+		if (!from.equals(sender.address)) {
+			return;
+		}
+
+		if (kind == KIND_DATA) {
+			receiveUnreliable(sender, sequence, datagram);
+		} else if (kind == KIND_RELIABLE || kind == KIND_ACK) {
+			if (datagram.remaining() < ReliableChannel.ACK_BYTES) {
+				return;
+			}
+			long now = System.nanoTime();
+			if (sender.reliable.readAcks(datagram, now)) {
+				transmitDue(sender, now);
+			}
+			if (kind == KIND_RELIABLE) {
+				receiveReliable(sender, sequence, datagram, from);
+			}
+		}
+	}
+
+	private void receiveUnreliable(Remote sender, int sequence, ByteBuffer datagram) {
+		// sequence numbers are compared with wrap around
+		if (sender.receivedAny && sequence - sender.newestSequence <= 0) {
+			return;
+		}
+		sender.newestSequence = sequence;
+		sender.receivedAny = true;
+
+		Packet packet = decode(datagram);
+		// connections are only controlled over TCP
+		if (packet != null && !(packet instanceof SystemMessagePacket)) {
+			receiver.handle(packet);
+		}
+	}
+
+	private void receiveReliable(Remote sender, int sequence, ByteBuffer datagram, SocketAddress from) {
+		if (sender.reliable.accept(sequence) == ReliableChannel.ACCEPTED) {
+			Packet packet = decode(datagram);
+			if (packet instanceof SystemMessagePacket) {
+				packet = null;
+			}
+			sender.reliable.receive(sequence, packet, inOrder);
+			// handed over outside the channel's lock, which the service thread also takes
+			for (int i = 0; i < inOrder.size(); ++i) {
+				receiver.handle(inOrder.get(i));
+			}
+			inOrder.clear();
+		}
+		// duplicates are acknowledged again, since the first acknowledgement may have been lost
+		sendAck(sender, from);
+	}
+
+	/**
+	 * @return the packet, or null if the datagram can not be decoded; it is treated as lost.
+	 */
+	private Packet decode(ByteBuffer datagram) {
+		try {
+			return codec.decode(datagram);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The other end of the endpoint: the server for a client, or a player for the server.
+	 */
+	private static class Remote {
+		volatile SocketAddress address;
+		final ReliableChannel reliable = new ReliableChannel();
+		// receive thread only
+		int newestSequence;
+		boolean receivedAny = false;
+
+		Remote(SocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	/**
+	 * A datagram held back by the link simulator.
+	 */
+	private static class Delayed implements Comparable<Delayed> {
+		final long dueNanos;
+		final ByteBuffer datagram;
+		final SocketAddress address;
+
+		Delayed(long dueNanos, ByteBuffer datagram, SocketAddress address) {
+			this.dueNanos = dueNanos;
+			this.datagram = datagram;
+			this.address = address;
+		}
+
+		public int compareTo(Delayed other) {
+			return Long.signum(dueNanos - other.dueNanos);
+		}
+	}
+}
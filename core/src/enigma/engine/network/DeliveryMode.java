@@ -0,0 +1,37 @@
+package enigma.engine.network;
+
+/**
+ * How a packet travels to the other end of a connection.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public enum DeliveryMode {
+	/**
+	 * Sent over the TCP connection. Every packet arrives, in the order it was queued.
+	 */
+	RELIABLE,
+
+	/**
+	 * Sent as a single UDP datagram. A packet may be lost, and a packet that arrives after a newer
+	 * one from the same sender is dropped, so only the newest state is ever delivered. Intended for
+	 * state that is replaced every frame, such as positions and rotations. A retransmit never
+	 * delays these packets.
+	 *
+	 * Packets too large for one datagram, and packets for a peer whose UDP address is not yet
+	 * known, are sent RELIABLE instead.
+	 */
+	UNRELIABLE_SEQUENCED,
+
+	/**
+	 * Sent as a UDP datagram over a reliable channel: every packet arrives, in the order it was
+	 * queued relative to other RELIABLE_DATAGRAM packets from the same sender. Lost datagrams are
+	 * detected from acknowledgements and only those are sent again, so on a lossy link one loss
+	 * delays less than it would on TCP. Packets are not ordered relative to packets sent with
+	 * another mode.
+	 *
+	 * Packets too large for one datagram, and packets for a peer whose UDP address is not yet
+	 * known, are sent RELIABLE instead.
+	 */
+	RELIABLE_DATAGRAM
+}
@@ -1,5 +1,7 @@
 package enigma.engine.network;
 
+import java.nio.ByteBuffer;
+
 public class DemoConcretePacket implements Packet {
 	private static final long serialVersionUID = 1L;
 	private int id;
@@ -7,6 +9,59 @@ public class DemoConcretePacket implements Packet {
 	private float x;
 	private float y;
 
+	/** Sends the four fields as 16 raw bytes. */
+	public static final PacketSerializer<DemoConcretePacket> SERIALIZER = new PacketSerializer<DemoConcretePacket>() {
+		@Override
+		public void write(DemoConcretePacket packet, ByteBuffer out) {
+			out.putInt(packet.id);
+			out.putFloat(packet.x);
+			out.putFloat(packet.y);
+			out.putFloat(packet.rotation);
+		}
+
+		@Override
+		public DemoConcretePacket read(ByteBuffer in) {
+			int id = in.getInt();
+			float x = in.getFloat();
+			float y = in.getFloat();
+			float rotation = in.getFloat();
+			return new DemoConcretePacket(id, x, y, rotation);
+		}
+	};
+
+	/** position bounds and precision used by QUANTIZED_SERIALIZER */
+	public static final Quantizer POSITION = new Quantizer(-4096, 4096, 17);
+	/** rotation precision used by QUANTIZED_SERIALIZER */
+	public static final Quantizer ROTATION = Quantizer.angle(10);
+
+	/**
+	 * Sends the id as a zig-zag varint and the other fields quantized by POSITION and ROTATION, 7
+	 * bytes in all for ids from -64 to 63. Register this in place of SERIALIZER when positions
+	 * within 1/16 of a unit and rotations within a third of a degree are close enough.
+	 */
+	public static final PacketSerializer<DemoConcretePacket> QUANTIZED_SERIALIZER = new PacketSerializer<DemoConcretePacket>() {
+		@Override
+		public void write(DemoConcretePacket packet, ByteBuffer out) {
+			BitWriter bits = new BitWriter(out);
+			bits.writeZigZag(packet.id);
+			POSITION.write(bits, packet.x);
+			POSITION.write(bits, packet.y);
+			ROTATION.write(bits, packet.rotation);
+			bits.flush();
+		}
+
+		@Override
+		public DemoConcretePacket read(ByteBuffer in) {
+			BitReader bits = new BitReader(in);
+			int id = bits.readZigZag();
+			float x = POSITION.read(bits);
+			float y = POSITION.read(bits);
+			float rotation = ROTATION.read(bits);
+			bits.align();
+			return new DemoConcretePacket(id, x, y, rotation);
+		}
+	};
+
 	public DemoConcretePacket(int id, float x, float y, float rotation) {
 		this.id = id;
 		this.x = x;
@@ -0,0 +1,80 @@
+package enigma.engine.network;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A packet carrying a float[]. The values are sent as a count followed by one bulk copy of the
+ * array, rather than as the boxed Floats of an ArrayList<Float> through java serialization.
+ *
+ * writeFloats() and readFloats() can be used by serializers of other packets that carry floats.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public class FloatArrayPacket implements Packet {
+	private static final long serialVersionUID = -5839013567713946380L;
+	private float[] values;
+
+	/** Sends the length followed by 4 bytes per value. */
+	public static final PacketSerializer<FloatArrayPacket> SERIALIZER = new PacketSerializer<FloatArrayPacket>() {
+		@Override
+		public void write(FloatArrayPacket packet, ByteBuffer out) {
+			writeFloats(out, packet.values, packet.values.length);
+		}
+
+		@Override
+		public FloatArrayPacket read(ByteBuffer in) {
+			return new FloatArrayPacket(readFloats(in));
+		}
+	};
+
+	/**
+	 * @param values the values to send; the array is not copied.
+	 */
+	public FloatArrayPacket(float[] values) {
+		this.values = values;
+	}
+
+	/**
+	 * @return the backing array.
+	 */
+	public float[] getValues() {
+		return values;
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	@Override
+	public Packet makeCopy() {
+		return new FloatArrayPacket(Arrays.copyOf(values, values.length));
+	}
+
+	/**
+	 * Write length as an int, then the first length values as one bulk copy.
+	 */
+	public static void writeFloats(ByteBuffer out, float[] values, int length) {
+		out.putInt(length);
+		out.asFloatBuffer().put(values, 0, length);
+		out.position(out.position() + 4 * length);
+	}
+
+	/**
+	 * Read values written by writeFloats().
+	 *
+	 * @return a new array of the written length.
+	 */
+	public static float[] readFloats(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining() / 4) {
+			throw new IllegalStateException("FloatArrayPacket: bad length " + length);
+		}
+		float[] values = new float[length];
+		in.asFloatBuffer().get(values);
+		in.position(in.position() + 4 * length);
+		return values;
+	}
+}
@@ -0,0 +1,113 @@
+package enigma.engine.network;
+
+/**
+ * Decides when the packets queued for a connection are written to its socket. Queued packets are
+ * always written together, as one batch in a single gathering write; the policy only controls how
+ * long a batch may keep growing before it is written.
+ *
+ * A batch is written as soon as any of the enabled limits is reached:
+ * <ul>
+ * <li>maxBytes - the batch holds at least this many bytes.</li>
+ * <li>maxDelayMicros - the oldest packet in the batch has waited this long.</li>
+ * <li>flushOnTick - flush() was called on the Client, Server, or Network; use this to write
+ * everything a game tick produced at the end of the tick.</li>
+ * </ul>
+ * A batch is also written if it reaches the most frames one write can carry, and flush() always
+ * writes whatever is queued. With no limit enabled (the default, immediate()) a batch is written as
+ * soon as the sending thread finds packets queued, so it only holds the packets that queued up
+ * while the previous write was in progress.
+ *
+ * System messages, such as the player id sent to a new client and disconnect messages, are never
+ * held: a batch is written as soon as it holds one.
+ *
+ * Servers that wait with a selector (NioServer) measure delays with millisecond precision.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public class FlushPolicy {
+	private static final FlushPolicy IMMEDIATE = new FlushPolicy(0, 0, false);
+
+	private final int maxBytes;
+	private final long maxDelayMicros;
+	private final boolean flushOnTick;
+
+	/**
+	 * @param maxBytes write once the batch holds this many bytes, 0 to disable.
+	 * @param maxDelayMicros write once the oldest packet has waited this long, 0 to disable.
+	 * @param flushOnTick hold packets until flush() is called (or another limit is reached).
+	 */
+	public FlushPolicy(int maxBytes, long maxDelayMicros, boolean flushOnTick) {
+		if (maxBytes < 0 || maxDelayMicros < 0) {
+			throw new IllegalArgumentException("FlushPolicy: limits can not be negative");
+		}
+		this.maxBytes = maxBytes;
+		this.maxDelayMicros = maxDelayMicros;
+		this.flushOnTick = flushOnTick;
+	}
+
+	/**
+	 * @return the default policy; packets are written as soon as they are queued.
+	 */
+	public static FlushPolicy immediate() {
+		return IMMEDIATE;
+	}
+
+	/**
+	 * @return a policy that holds packets until flush() is called at the end of a tick.
+	 */
+	public static FlushPolicy onTick() {
+		return new FlushPolicy(0, 0, true);
+	}
+
+	/**
+	 * @return a policy that writes a batch once it is large enough, or once its oldest packet has
+	 *         waited maxDelayMicros.
+	 */
+	public static FlushPolicy coalesce(int maxBytes, long maxDelayMicros) {
+		return new FlushPolicy(maxBytes, maxDelayMicros, false);
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxDelayMicros() {
+		return maxDelayMicros;
+	}
+
+	public boolean isFlushOnTick() {
+		return flushOnTick;
+	}
+
+	public boolean isImmediate() {
+		return maxBytes == 0 && maxDelayMicros == 0 && !flushOnTick;
+	}
+
+	/**
+	 * @param batchBytes the bytes in the batch.
+	 * @param ageNanos how long the oldest packet in the batch has waited.
+	 * @return true if the batch should be written now.
+	 */
+	boolean isDue(long batchBytes, long ageNanos) {
+		if (isImmediate()) {
+			return true;
+		}
+		if (maxBytes > 0 && batchBytes >= maxBytes) {
+			return true;
+		}
+		return maxDelayMicros > 0 && ageNanos >= maxDelayMicros * 1000;
+	}
+
+	/**
+	 * @param ageNanos how long the oldest packet in the batch has waited.
+	 * @return how long until the delay limit is reached, or Long.MAX_VALUE if there is no delay
+	 *         limit.
+	 */
+	long nanosUntilDue(long ageNanos) {
+		if (maxDelayMicros == 0) {
+			return isImmediate() ? 0 : Long.MAX_VALUE;
+		}
+		return Math.max(0, maxDelayMicros * 1000 - ageNanos);
+	}
+}
@@ -0,0 +1,93 @@
+package enigma.engine.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits bytes that arrive in arbitrary chunks back into the frames produced by FrameEncoder.
+ * Incomplete frames are kept until the rest of their bytes arrive.
+ * 
+ * This class is not thread safe; each receiving thread or connection owns its own decoder.
+ * 
+ * @author Matt Stone
+ * @version 1.0
+ */
+class FrameDecoder {
+	/** frames larger than this are treated as a corrupt stream rather than allocated */
+	static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+	private byte[] buffer = new byte[4096];
+	// handed out by nextFrame() for every frame, so decoding a frame allocates nothing
+	private ByteBuffer view = ByteBuffer.wrap(buffer);
+	private int start = 0;
+	private int end = 0;
+
+	/**
+	 * Copy bytes into the decoder.
+	 */
+	void append(byte[] source, int offset, int count) {
+		makeRoom(count);
+		System.arraycopy(source, offset, buffer, end, count);
+		end += count;
+	}
+
+	/**
+	 * Copy all remaining bytes of the source into the decoder.
+	 * 
+	 * @param source buffer in read mode (ie flipped).
+	 */
+	void append(ByteBuffer source) {
+		int count = source.remaining();
+		makeRoom(count);
+		source.get(buffer, end, count);
+		end += count;
+	}
+
+	/**
+	 * @return the body of the next complete frame, between the buffer's position and limit, or null
+	 *         if a complete frame has not been buffered. The same buffer is returned for every
+	 *         frame, so it is only valid until the next call to nextFrame() or append().
+	 * @throws IOException if the frame length is invalid.
+	 */
+	ByteBuffer nextFrame() throws IOException {
+		int buffered = end - start;
+		if (buffered < FrameEncoder.LENGTH_BYTES) {
+			return null;
+		}
+		int length = ((buffer[start] & 0xFF) << 24) | ((buffer[start + 1] & 0xFF) << 16)
+				| ((buffer[start + 2] & 0xFF) << 8) | (buffer[start + 3] & 0xFF);
+		if (length < 0 || length > MAX_FRAME_BYTES) {
+			throw new IOException("FrameDecoder: invalid frame length " + length);
+		}
+		if (buffered - FrameEncoder.LENGTH_BYTES < length) {
+			return null;
+		}
+		view.limit(start + FrameEncoder.LENGTH_BYTES + length);
+		view.position(start + FrameEncoder.LENGTH_BYTES);
+		start += FrameEncoder.LENGTH_BYTES + length;
+		return view;
+	}
+
+	private void makeRoom(int count) {
+		if (start == end) {
+			// everything has been consumed, reuse the buffer from the beginning
+			start = 0;
+			end = 0;
+		}
+		if (end + count <= buffer.length) {
+			return;
+		}
+		int buffered = end - start;
+		byte[] target = buffer;
+		if (buffered + count > buffer.length) {
+			target = new byte[Math.max(buffered + count, buffer.length * 2)];
+		}
+		System.arraycopy(buffer, start, target, 0, buffered);
+		if (target != buffer) {
+			buffer = target;
+			view = ByteBuffer.wrap(buffer);
+		}
+		start = 0;
+		end = buffered;
+	}
+}
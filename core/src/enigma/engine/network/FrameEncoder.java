@@ -0,0 +1,72 @@
+package enigma.engine.network;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns packets into length prefixed frames using a PacketCodec. Frames are encoded directly into
+ * direct buffers taken from a BufferPool, so they can be written to a SocketChannel without being
+ * copied again. The encoder remembers the size of the last frame to pick the size of the next
+ * buffer, and moves to a larger buffer if a packet does not fit.
+ * 
+ * This class is not thread safe; each sending thread or connection owns its own encoder.
+ * 
+ * @author Matt Stone
+ * @version 1.0
+ */
+class FrameEncoder {
+	static final int LENGTH_BYTES = 4;
+
+	private final PacketCodec codec;
+	private final BufferPool pool;
+	private int sizeHint = BufferPool.SMALLEST_BUFFER_BYTES;
+
+	FrameEncoder(PacketCodec codec, BufferPool pool) {
+		this.codec = codec;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return the pool that encoded frames are taken from, and must be released to.
+	 */
+	BufferPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Encode a packet as a frame.
+	 * 
+	 * @param packet the packet to encode.
+	 * @return a pooled buffer in read mode holding the complete frame. The caller owns the buffer
+	 *         and must release it to the pool.
+	 * @throws IOException if the codec cannot encode the packet.
+	 */
+	ByteBuffer encode(Packet packet) throws IOException {
+		ByteBuffer frame = pool.acquire(sizeHint);
+		try {
+			while (true) {
+				frame.clear();
+				frame.position(LENGTH_BYTES);
+				try {
+					codec.encode(packet, frame);
+					break;
+				} catch (BufferOverflowException e) {
+					int larger = frame.capacity() * 2;
+					pool.release(frame);
+					frame = null;
+					frame = pool.acquire(larger);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			if (frame != null) {
+				pool.release(frame);
+			}
+			throw e;
+		}
+		sizeHint = frame.position();
+		frame.putInt(0, frame.position() - LENGTH_BYTES);
+		frame.flip();
+		return frame;
+	}
+}
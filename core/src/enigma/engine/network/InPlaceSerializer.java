@@ -0,0 +1,26 @@
+package enigma.engine.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A PacketSerializer that can also decode into an existing packet. A BinaryPacketCodec that has
+ * the serializer registered together with a PacketPool takes the packet from the pool and calls
+ * readInto(), so decoding a packet of that type allocates nothing once the pool is warm.
+ *
+ * Implementations should be stateless so that a single instance can be shared by every thread.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ * @param <T> the packet class this serializer handles.
+ */
+public interface InPlaceSerializer<T extends Packet> extends PacketSerializer<T> {
+	/**
+	 * Read a packet written by write() into target, overwriting every field it writes. Arrays and
+	 * other objects held by target should be reused where they are large enough.
+	 *
+	 * @param target a reset packet.
+	 * @param in buffer positioned at the first byte written by write().
+	 */
+	public void readInto(T target, ByteBuffer in);
+}
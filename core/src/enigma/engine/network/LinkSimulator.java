@@ -0,0 +1,89 @@
+package enigma.engine.network;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a poor connection for the datagrams an endpoint sends, so RELIABLE_DATAGRAM and
+ * UNRELIABLE_SEQUENCED packets can be tested against loss, latency, and reordering on a single
+ * machine. Only datagrams are affected; the TCP connection is not.
+ *
+ * Each datagram is dropped with probability lossRate; otherwise it is delayed by latencyMS plus a
+ * random amount up to jitterMS. Jitter larger than the time between datagrams reorders them.
+ *
+ * Intended for testing. Give it to a Network, Server, NioServer, or Client before it is run.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public class LinkSimulator {
+	private float lossRate = 0;
+	private int latencyMS = 0;
+	private int jitterMS = 0;
+	private final Random random;
+
+	public LinkSimulator() {
+		this.random = new Random();
+	}
+
+	/**
+	 * @param seed makes the datagrams that are dropped, and their delays, repeatable.
+	 */
+	public LinkSimulator(long seed) {
+		this.random = new Random(seed);
+	}
+
+	public float getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * @param lossRate the fraction of datagrams dropped, from 0 to 1.
+	 */
+	public void setLossRate(float lossRate) {
+		if (lossRate < 0 || lossRate > 1) {
+			throw new IllegalArgumentException("loss rate must be between 0 and 1");
+		}
+		this.lossRate = lossRate;
+	}
+
+	public int getLatencyMS() {
+		return latencyMS;
+	}
+
+	/**
+	 * @param latencyMS the delay added to every datagram, in one direction.
+	 */
+	public void setLatencyMS(int latencyMS) {
+		this.latencyMS = latencyMS;
+	}
+
+	public int getJitterMS() {
+		return jitterMS;
+	}
+
+	/**
+	 * @param jitterMS the largest random delay added on top of the latency.
+	 */
+	public void setJitterMS(int jitterMS) {
+		this.jitterMS = jitterMS;
+	}
+
+	/**
+	 * @return true if the next datagram should be dropped.
+	 */
+	synchronized boolean shouldDrop() {
+		return lossRate > 0 && random.nextFloat() < lossRate;
+	}
+
+	/**
+	 * @return how long the next datagram should be held before it is sent.
+	 */
+	synchronized long nextDelayNanos() {
+		int delayMS = latencyMS;
+		if (jitterMS > 0) {
+			delayMS += random.nextInt(jitterMS + 1);
+		}
+		return TimeUnit.MILLISECONDS.toNanos(delayMS);
+	}
+}
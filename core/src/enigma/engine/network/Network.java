@@ -3,6 +3,9 @@ package enigma.engine.network;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * Creates objects which encapsulate network behavior. A network object can act as a server or a
@@ -15,12 +18,14 @@ import java.net.UnknownHostException;
  * and call serverMode() or clientMode() to behave as such.<p>
  * 
  * <strong>2. Creating packets to send:</strong> A user needs to create a packet class that extends the Packet.java interface.
- * The Packet interface uses basic java serialization to send data over a network. As long as
- * objects you create support such serialization, then they can be sent in a packet. However, it is
- * probably a good idea to instead define a data containing class that only sends absolutely
- * necessary information over the network. To improve performance even further, the serialization
- * methods can be overloaded to provide specific serialization implementation details in your
- * extended packet class.<p>
+ * By default, a packet is sent with basic java serialization. As long as objects you create support
+ * such serialization, then they can be sent in a packet. However, it is probably a good idea to
+ * instead define a data containing class that only sends absolutely necessary information over the
+ * network. To improve performance even further, write a PacketSerializer for your packet class and
+ * register it with a BinaryPacketCodec under a type id of your choosing; pass the codec to
+ * setCodec() on both the server and the clients. Registered packets are sent as raw bytes without
+ * any class descriptors. Packets sent every tick can implement PoolablePacket and be taken from a
+ * PacketPool, so they are recycled rather than copied and garbage collected.<p>
  * 
  * <strong>3. Hosting a server:</strong> It is up to the user to define how data is processed, but the network
  * activity of a server is encapsulated in the network object. First, the user needs to set the
@@ -29,7 +34,9 @@ import java.net.UnknownHostException;
  * to start running, an exception will be thrown before the call to run() completes. Note, the run()
  * method is non-blocking and therefore the server may not start running immediately. To determine
  * when the server starts, the user can call isRunning() on the network. When isRunning() returns
- * true, the user can send data over the network.<p>
+ * true, the user can send data over the network. Calling nioServerMode() instead of serverMode()
+ * selects a server that services every connection from a small, fixed pool of selector threads
+ * rather than two threads per client; it is otherwise used in exactly the same way.<p>
  * 
  * <strong>4. Connecting as a client:</strong> The user needs to set the Network object to client mode by calling the
  * clientMode() method. This configures the network object to connect to server, rather than host a
@@ -44,9 +51,11 @@ import java.net.UnknownHostException;
  * 
  * <strong>5. Sending data as a server:</strong> The user can queue packets to send using the queueToSend(Packet
  * packet) method. This copies the packet and broadcasts it to ALL clients currently connected to
- * the server. Currently, there is no method for sending data to an individual user. If a user wants
- * to send data to a specific client, then the user should use the provided Network ID system
- * discussed later.<p>
+ * the server. To send to a single client, pass its NetworkPlayer to queueToSend(player, packet);
+ * getConnectedPlayers() lists them. queueToSend(players, packet) sends to several clients, and
+ * clients can be put in named send groups with addToGroup() and sent to with
+ * queueToSendToGroup(). A targeted packet is encoded once and only queued for its recipients, so
+ * clients no longer need to filter out packets that were not meant for them.<p>
  * 
  * <strong>6. Sending data as a client:</strong> The user queues packets in the same way as the server -- ie by
  * calling the queueToSend(Packet packet) method. However, when a client send data, only the server
@@ -60,7 +69,12 @@ import java.net.UnknownHostException;
  * to poll the network object if the delay has expired with sendDelayTimerExpired() which returns
  * true when the enough time has passed for the user to send data. Since this timer is not enforced,
  * the user can send multiple packets back to back if needed - each of which will reset the timer
- * and send immediately.<p>
+ * and send immediately. Packets queued during a tick can also be sent together: give the network a
+ * FlushPolicy with setFlushPolicy(), for example FlushPolicy.onTick(), and call flush() at the end of
+ * each tick. The TCP options of the connection (TCP_NODELAY, buffer sizes, keepalive, and so on)
+ * are set with setSocketOptions(). By default a slow client lets packets pile up without limit;
+ * setQueueLimits() caps the queues and chooses what happens when one fills, and tryQueueToSend()
+ * queues a packet only if there is room for it.<p>
  * 
  * <strong>8. Receiving Data as a Server or a Client:</strong> The network object hasReceivedPacket() method returns
  * true when it has buffered a packet that the user needs to extract. When a user is ready to
@@ -70,9 +84,17 @@ import java.net.UnknownHostException;
  * defined different types of packets to send, then the user is responsible for type checking the
  * packets before casting by using the instanceof operator. Alternatively to calling
  * hasReceivedPacket(), the user can simply call getNextPacket() which returns null when there is no
- * buffered packet. By default, the network transmits data over a TCP connection, therefore any
+ * buffered packet. To take every packet received during a tick at once, call
+ * drainReceived(collection, max) or drainReceived(handler). A PacketDispatcher routes each packet
+ * to a listener registered for its class, so no instanceof checks are needed; pass it to
+ * drainReceived() each tick, or to setReceiveHandler() to have packets handled as they arrive. By default, the network transmits data over a TCP connection, therefore any
  * packet sent will be received at some point in time and the user should not concern their self
- * with sending duplicate packets.<p>
+ * with sending duplicate packets. State that is replaced every tick, such as positions, can instead
+ * be sent as UDP datagrams: setDeliveryMode(MyPacket.class, DeliveryMode.UNRELIABLE_SEQUENCED) sends
+ * every MyPacket that way, and queueToSend(packet, mode) chooses for a single packet. Such packets
+ * may be lost, and an older one is never delivered after a newer one. On lossy links,
+ * setDefaultDeliveryMode(DeliveryMode.RELIABLE_DATAGRAM) sends everything over a reliable, ordered
+ * UDP channel instead of TCP. setLinkSimulator() adds loss and latency to test either.<p>
  * 
  * <strong>9. Disconnecting clients and server:</strong> The user simply needs to call disconnect() on the network
  * object. currently this method DOEs block, but will probably be changed in the future. please
@@ -89,12 +111,26 @@ import java.net.UnknownHostException;
 public class Network {
 	// false value for isServer means the object is acting as a client
 	private boolean isServer = false;
-	private Server server;
+	// when acting as a server, true selects the selector based NioServer
+	private boolean useNioServer = false;
+	private ServerEngine server;
 	private Client client;
 	private int port = 25565;
 	private String address;
 	private long sendDelay;
 	private long lastSendInMS = 0;
+	private PacketCodec codec = BinaryPacketCodec.createDefault();
+	private BufferPool bufferPool = new BufferPool();
+	private FlushPolicy flushPolicy = FlushPolicy.immediate();
+	private SocketOptions socketOptions = new SocketOptions();
+	private SendLanes sendLanes = new SendLanes();
+	private QueueLimits queueLimits = new QueueLimits();
+	private ReceiveFairness receiveFairness = new ReceiveFairness();
+	private PacketHandler receiveHandler;
+	private boolean datagramsEnabled = true;
+	private HashMap<Class<?>, DeliveryMode> deliveryModes = new HashMap<Class<?>, DeliveryMode>();
+	private DeliveryMode defaultDeliveryMode = DeliveryMode.RELIABLE;
+	private LinkSimulator linkSimulator;
 	public boolean verbose = false;
 
 	/**
@@ -167,8 +203,22 @@ public class Network {
 	 */
 	private void runServer() throws IOException {
 		if (server == null) {
-			server = new Server(getPort());
+			if (useNioServer) {
+				server = new NioServer(getPort());
+			} else {
+				server = new Server(getPort());
+			}
 		}
+		server.setCodec(codec);
+		server.setBufferPool(bufferPool);
+		server.setFlushPolicy(flushPolicy);
+		server.setSocketOptions(socketOptions);
+		server.setSendLanes(sendLanes);
+		server.setQueueLimits(queueLimits);
+		server.setReceiveFairness(receiveFairness);
+		server.setReceiveHandler(receiveHandler);
+		server.setDatagramsEnabled(datagramsEnabled);
+		server.setLinkSimulator(linkSimulator);
 		server.run();
 		if (verbose) System.out.println("Network: server run started");
 	}
@@ -183,6 +233,14 @@ public class Network {
 		if (client == null) {
 			client = new Client();
 		}
+		client.setCodec(codec);
+		client.setBufferPool(bufferPool);
+		client.setFlushPolicy(flushPolicy);
+		client.setSocketOptions(socketOptions);
+		client.setQueueLimits(queueLimits);
+		client.setReceiveHandler(receiveHandler);
+		client.setDatagramsEnabled(datagramsEnabled);
+		client.setLinkSimulator(linkSimulator);
 		client.connect(getAddress(), getPort());
 		if (verbose) System.out.println("Network: client run started");
 	}
@@ -270,22 +328,366 @@ public class Network {
 		this.port = port;
 	}
 
+	/**
+	 * Set the codec that converts packets to bytes. The default is a BinaryPacketCodec that sends
+	 * the network library's packets with hand-written serializers and any other packet with java
+	 * serialization. Takes effect the next time run() is called. The server and every client must
+	 * use compatible codecs.
+	 * 
+	 * @param codec the codec to use.
+	 */
+	public void setCodec(PacketCodec codec) {
+		this.codec = codec;
+	}
+
+	public PacketCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Set the pool of direct buffers that outgoing packets are encoded into. Takes effect the next
+	 * time run() is called. A pool constructed in debug mode can report buffers that were never
+	 * released.
+	 * 
+	 * @param bufferPool the pool to use.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * @return the pool outgoing packets are encoded into; its hit and miss counters show how well
+	 *         the pool is sized for the traffic.
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set when queued packets are written to the socket. The default writes packets as soon as
+	 * they are queued; a policy that holds packets back lets many small packets share one write.
+	 * Takes effect the next time run() is called.
+	 * 
+	 * @param flushPolicy the policy to use.
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Set the TCP options for the connections this network makes or accepts. By default TCP_NODELAY
+	 * is on and every other option is left to the operating system. Takes effect the next time
+	 * run() is called.
+	 * 
+	 * @param socketOptions the options to use.
+	 */
+	public void setSocketOptions(SocketOptions socketOptions) {
+		this.socketOptions = socketOptions;
+	}
+
+	public SocketOptions getSocketOptions() {
+		return socketOptions;
+	}
+
+	/**
+	 * Set how a server orders the packets waiting for each client. Disconnect and id messages are
+	 * always sent first; other packets are sent in lanes that share the connection by weight, and
+	 * a StatePacket replaces an unsent one with the same key. Clients send in the order packets
+	 * are queued. Takes effect the next time run() is called.
+	 * 
+	 * @param sendLanes the lanes to use.
+	 */
+	public void setSendLanes(SendLanes sendLanes) {
+		this.sendLanes = sendLanes;
+	}
+
+	public SendLanes getSendLanes() {
+		return sendLanes;
+	}
+
+	/**
+	 * Bound the packets waiting to be sent and to be taken by the game, and choose what happens
+	 * when those queues are full. Unbounded by default. Takes effect the next time run() is
+	 * called.
+	 * 
+	 * @param queueLimits the limits to use.
+	 */
+	public void setQueueLimits(QueueLimits queueLimits) {
+		this.queueLimits = queueLimits;
+	}
+
+	public QueueLimits getQueueLimits() {
+		return queueLimits;
+	}
+
+	/**
+	 * Set how a server's clients take turns when the game takes the packets they sent, so that one
+	 * client cannot starve the others. Takes effect the next time run() is called; clients do not
+	 * use it.
+	 * 
+	 * @param receiveFairness the turns and quotas to use.
+	 */
+	public void setReceiveFairness(ReceiveFairness receiveFairness) {
+		this.receiveFairness = receiveFairness;
+	}
+
+	public ReceiveFairness getReceiveFairness() {
+		return receiveFairness;
+	}
+
+	/**
+	 * Hand every received packet to a handler as soon as it arrives, on the thread that received
+	 * it, instead of queueing it for getNextReceivedPacket() and drainReceived(). The handler may
+	 * be called by several threads at once, so it must be thread safe; a PacketDispatcher is. To
+	 * handle packets on the game's thread instead, pass the handler to drainReceived() each tick.
+	 * Takes effect the next time run() is called.
+	 * 
+	 * @param receiveHandler the handler, or null to queue packets.
+	 */
+	public void setReceiveHandler(PacketHandler receiveHandler) {
+		this.receiveHandler = receiveHandler;
+	}
+
+	public PacketHandler getReceiveHandler() {
+		return receiveHandler;
+	}
+
+	/**
+	 * Choose whether a UDP port is opened next to the TCP connection. When disabled, packets sent
+	 * UNRELIABLE_SEQUENCED are sent reliably. Takes effect the next time run() is called.
+	 * 
+	 * @param datagramsEnabled true to open a UDP port.
+	 */
+	public void setDatagramsEnabled(boolean datagramsEnabled) {
+		this.datagramsEnabled = datagramsEnabled;
+	}
+
+	public boolean getDatagramsEnabled() {
+		return datagramsEnabled;
+	}
+
+	/**
+	 * Simulate a poor connection (loss, latency, jitter) for the datagrams this network sends, to
+	 * test a game against it on one machine. Takes effect the next time run() is called.
+	 * 
+	 * @param linkSimulator the simulated link, or null to send datagrams directly.
+	 */
+	public void setLinkSimulator(LinkSimulator linkSimulator) {
+		this.linkSimulator = linkSimulator;
+	}
+
+	public LinkSimulator getLinkSimulator() {
+		return linkSimulator;
+	}
+
+	/**
+	 * Set how queueToSend(Packet) sends packets whose class has no mode of its own. The default is
+	 * RELIABLE; RELIABLE_DATAGRAM moves all traffic onto the reliable UDP channel, which recovers
+	 * from loss faster than TCP on lossy links.
+	 * 
+	 * @param mode how the packets travel.
+	 */
+	public void setDefaultDeliveryMode(DeliveryMode mode) {
+		this.defaultDeliveryMode = mode;
+	}
+
+	public DeliveryMode getDefaultDeliveryMode() {
+		return defaultDeliveryMode;
+	}
+
+	/**
+	 * Set how queueToSend(Packet) sends packets of the given class. Packets of classes without a
+	 * mode are sent with the default delivery mode.
+	 * 
+	 * @param packetClass the exact class of the packets.
+	 * @param mode how the packets travel.
+	 */
+	public void setDeliveryMode(Class<? extends Packet> packetClass, DeliveryMode mode) {
+		deliveryModes.put(packetClass, mode);
+	}
+
+	public DeliveryMode getDeliveryMode(Class<? extends Packet> packetClass) {
+		DeliveryMode mode = deliveryModes.get(packetClass);
+		return mode == null ? defaultDeliveryMode : mode;
+	}
+
 	/**
 	 * Queues a packet to be sent over the network. This method call behaves the same for client and
 	 * server. If the network is acting is acting as a client and queues a packet, it will be sent
 	 * to the server. If the network is acting as a server it will broadcast the packet to ALL
 	 * connected clients.
 	 * 
+	 * Packets are copied when queued, except a PoolablePacket, which is handed to the network and
+	 * released back to its pool once sent; it must not be used after this call.
+	 * 
 	 * @param packet - the packet to be sent over the network.
 	 */
 	public void queueToSend(Packet packet) {
+		queueToSend(packet, getDeliveryMode(packet.getClass()));
+	}
+
+	/**
+	 * Queue a packet unless the send queue is full, without ever blocking. A packet whose class is
+	 * sent as a datagram is always sent.
+	 * 
+	 * @param packet - the packet to be sent; if it is queued, ownership is as for queueToSend().
+	 * @return false if the packet was not queued, because the send queue is full or the network
+	 *         is not running; it still belongs to the caller.
+	 */
+	public boolean tryQueueToSend(Packet packet) {
+		DeliveryMode mode = getDeliveryMode(packet.getClass());
+		if (!isRunning()) {
+			return false;
+		}
+		if (mode != DeliveryMode.RELIABLE) {
+			queueToSend(packet, mode);
+			return true;
+		}
+		boolean queued = isServer ? server.tryQueueToSend(packet) : client.tryQueueToSend(packet);
+		if (queued) {
+			lastSendInMS = System.currentTimeMillis();
+		}
+		return queued;
+	}
+
+	/**
+	 * Queues a packet to be sent over the network with the given delivery mode, regardless of the
+	 * mode set for its class.
+	 * 
+	 * @param packet - the packet to be sent over the network.
+	 * @param mode - how the packet travels.
+	 */
+	public void queueToSend(Packet packet, DeliveryMode mode) {
 		if (isRunning()) {
 			lastSendInMS = System.currentTimeMillis();
 			if (isServer) {
-				server.queueToSend(packet);
+				server.queueToSend(packet, mode);
 			} else {
 				// client
-				client.queueToSend(packet);
+				client.queueToSend(packet, mode);
+			}
+		} else {
+			PacketPool.recycle(packet);
+		}
+	}
+
+	/**
+	 * Send a packet to one client. Only a server can send to individual clients.
+	 * 
+	 * @param player - the client to send to.
+	 * @param packet - the packet to be sent; ownership is as for queueToSend(Packet).
+	 * @throws IllegalStateException if the network is acting as a client.
+	 */
+	public void queueToSend(NetworkPlayer player, Packet packet) {
+		queueToSend(Recipients.of(player), packet);
+	}
+
+	/**
+	 * Send a packet to some of the clients. It is encoded once and only queued for those that are
+	 * connected.
+	 * 
+	 * @param players - the clients to send to.
+	 * @param packet - the packet to be sent; ownership is as for queueToSend(Packet).
+	 * @throws IllegalStateException if the network is acting as a client.
+	 */
+	public void queueToSend(Collection<NetworkPlayer> players, Packet packet) {
+		queueToSend(Recipients.of(players), packet);
+	}
+
+	/**
+	 * Send a packet to the members of a send group.
+	 * 
+	 * @param group - the name of the group.
+	 * @param packet - the packet to be sent; ownership is as for queueToSend(Packet).
+	 * @throws IllegalStateException if the network is acting as a client.
+	 */
+	public void queueToSendToGroup(String group, Packet packet) {
+		queueToSend(getGroup(group), packet);
+	}
+
+	/**
+	 * Send a packet to the given clients with the delivery mode set for its class.
+	 * 
+	 * @throws IllegalStateException if the network is acting as a client.
+	 */
+	public void queueToSend(Recipients recipients, Packet packet) {
+		queueToSend(recipients, packet, getDeliveryMode(packet.getClass()));
+	}
+
+	/**
+	 * Send a packet to the given clients with the given delivery mode.
+	 * 
+	 * @param recipients - the clients to send to.
+	 * @param packet - the packet to be sent; ownership is as for queueToSend(Packet).
+	 * @param mode - how the packet travels.
+	 * @throws IllegalStateException if the network is acting as a client.
+	 */
+	public void queueToSend(Recipients recipients, Packet packet, DeliveryMode mode) {
+		if (!isServer) {
+			throw new IllegalStateException("Network: only a server can send to individual clients");
+		}
+		if (isRunning()) {
+			lastSendInMS = System.currentTimeMillis();
+			server.queueToSend(recipients, packet, mode);
+		} else {
+			PacketPool.recycle(packet);
+		}
+	}
+
+	/**
+	 * Add a connected client to a named send group, creating the group if needed. Clients leave
+	 * every group when they disconnect. Does nothing unless the network is running as a server.
+	 */
+	public void addToGroup(String group, NetworkPlayer player) {
+		if (isServer && isRunning()) {
+			server.addToGroup(group, player);
+		}
+	}
+
+	public void removeFromGroup(String group, NetworkPlayer player) {
+		if (isServer && server != null) {
+			server.removeFromGroup(group, player);
+		}
+	}
+
+	/**
+	 * @return the members of a send group, or Recipients.NONE if the network is not a server.
+	 */
+	public Recipients getGroup(String group) {
+		return isServer && server != null ? server.getGroup(group) : Recipients.NONE;
+	}
+
+	/**
+	 * @return the clients connected to this server, or null if the network is not running as a
+	 *         server.
+	 */
+	public List<NetworkPlayer> getConnectedPlayers() {
+		return isServer && isRunning() ? server.getConnectedPlayers() : null;
+	}
+
+	/**
+	 * @return the number of packets this server did not send because a newer packet with the same
+	 *         state key replaced them while queued, or 0 if the network is not a server.
+	 */
+	public long getCoalescedCount() {
+		return isServer && server != null ? server.getCoalescedCount() : 0;
+	}
+
+	/**
+	 * Write every packet queued so far without waiting for the flush policy's limits. Call this at
+	 * the end of each game tick when using a policy that holds packets back, such as
+	 * FlushPolicy.onTick(). Does nothing if the network is not running.
+	 */
+	public void flush() {
+		if (isRunning()) {
+			if (isServer) {
+				server.flush();
+			} else {
+				client.flush();
 			}
 		}
 	}
@@ -317,6 +719,46 @@ public class Network {
 		return null;
 	}
 
+	/**
+	 * Move received packets into a collection, in the order getNextReceivedPacket() would return
+	 * them. Drains the receive queues in one pass, so a game loop can take a whole tick's packets
+	 * with one call instead of one call per packet.
+	 * 
+	 * @param sink the collection the packets are added to.
+	 * @param max the most packets to take.
+	 * @return the number of packets added, 0 if the network is not running.
+	 */
+	public int drainReceived(final Collection<? super Packet> sink, int max) {
+		return drainReceived(new PacketHandler() {
+			public void handle(Packet packet) {
+				sink.add(packet);
+			}
+		}, max);
+	}
+
+	/**
+	 * Hand every received packet to a handler, in the order getNextReceivedPacket() would return
+	 * them. Packets that arrive during the call are left for the next one, so it returns even while
+	 * a peer keeps sending. The handler is called on the calling thread.
+	 * 
+	 * @param handler called once for each packet.
+	 * @return the number of packets handled, 0 if the network is not running.
+	 */
+	public int drainReceived(PacketHandler handler) {
+		return drainReceived(handler, Integer.MAX_VALUE);
+	}
+
+	private int drainReceived(PacketHandler handler, int max) {
+		if (max <= 0 || !isRunning()) {
+			return 0;
+		}
+		if (isServer) {
+			return server.drainReceived(handler, max);
+		} else {
+			return client.drainReceived(handler, max);
+		}
+	}
+
 	/**
 	 * Returns whether the selected network mode is currently running. If the network object is
 	 * acting as a server, this mean the server is currently listening and processing client data.
@@ -357,10 +799,29 @@ public class Network {
 	}
 
 	/**
-	 * Set the network object to act as a server.
+	 * Set the network object to act as a server. Each client connection is serviced by its own send
+	 * and receive threads.
 	 */
 	public void serverMode() {
+		setServerEngine(false);
+	}
+
+	/**
+	 * Set the network object to act as a server whose connections are all serviced by a small,
+	 * fixed number of selector threads. This scales to many more connections than serverMode().
+	 * Clients connect to either server in the same way.
+	 */
+	public void nioServerMode() {
+		setServerEngine(true);
+	}
+
+	private void setServerEngine(boolean nio) {
 		isServer = true;
+		if (useNioServer != nio && server != null && !server.isRunning()) {
+			// a stopped server of the other kind will not be reused
+			server = null;
+		}
+		useNioServer = nio;
 	}
 
 	/**
@@ -0,0 +1,1120 @@
+package enigma.engine.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server that services all of its connections from a small, fixed number of event loop threads
+ * rather than a send and receive thread per socket. Each event loop owns a Selector; a connection is
+ * assigned to a single event loop when it is accepted and all reads, writes, and drops for that
+ * connection happen on that loop's thread.
+ *
+ * The frames on the wire are identical to those of the Server class, so the existing Client can
+ * connect to either.
+ *
+ * Frames queued for a connection are collected into a WriteBatch and written with one gathering
+ * write. Batches held back by the FlushPolicy are tracked by their event loop, which wakes up in
+ * time to write them.
+ *
+ * UNRELIABLE_SEQUENCED and RELIABLE_DATAGRAM packets are sent as UDP datagrams, on the same port
+ * number as the TCP acceptor, by the thread that queues them.
+ *
+ * Packets sent to some of the clients are looked up by player id, encoded once if any recipient is
+ * connected, and queued only for those recipients.
+ *
+ * Each connection queues the packets it receives in its own buffer, and the game takes them through
+ * a ReceiveScheduler, so clients take turns as set by the ReceiveFairness, as on Server.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public class NioServer implements ServerEngine {
+	private static final int DEFAULT_EVENT_LOOPS = 2;
+	private static final int READ_BUFFER_BYTES = 8192;
+
+	private int port;
+	private short maxPlayers = 8;
+	private int blockingTimeoutMS = 1000;
+	private long disconnectMessageTimeoutMS = 5000;
+	private ServerSocketChannel acceptor;
+	private EventLoop[] eventLoops;
+	private int nextEventLoop = 0;
+	private ConcurrentHashMap<Character, NioConnection> connections = new ConcurrentHashMap<Character, NioConnection>();
+	private AtomicInteger activeSockets = new AtomicInteger(0);
+	private SendGroups sendGroups = new SendGroups();
+	private PacketQueue datagramReceiveBuffer = new PacketQueue(QueueLimits.UNBOUNDED);
+	// called by the datagram endpoint's receive thread with each packet it receives
+	private PacketHandler datagramReceiver = new PacketHandler() {
+		public void handle(Packet packet) {
+			PacketHandler handler = receiveHandler;
+			if (handler != null) {
+				handler.handle(packet);
+				return;
+			}
+			datagramReceiveBuffer.add(packet);
+			receiveScheduler.ready(datagramSource);
+		}
+	};
+	private ReceiveScheduler.Source datagramSource = new ReceiveScheduler.Source() {
+		Packet poll() {
+			return datagramReceiveBuffer.poll();
+		}
+
+		boolean isEmpty() {
+			return datagramReceiveBuffer.isEmpty();
+		}
+
+		int size() {
+			return datagramReceiveBuffer.size();
+		}
+	};
+	// merges the receive buffers of every connection, and the datagram buffer, for the game
+	private ReceiveScheduler receiveScheduler;
+	private IDManager idManager;
+	private PacketCodec codec = BinaryPacketCodec.createDefault();
+	private BufferPool bufferPool = new BufferPool();
+	private FlushPolicy flushPolicy = FlushPolicy.immediate();
+	private SocketOptions socketOptions = new SocketOptions();
+	private SendLanes sendLanes = new SendLanes();
+	private QueueLimits queueLimits = new QueueLimits();
+	// when set, received packets are handed to it by the selector threads instead of being queued
+	private volatile PacketHandler receiveHandler;
+	private AtomicLong coalesced = new AtomicLong(0);
+	private FrameEncoder sharedEncoder;
+	private boolean datagramsEnabled = true;
+	private DatagramEndpoint datagrams;
+	private LinkSimulator linkSimulator;
+	private NetworkPlayer hostPlayer = null;
+
+	private volatile boolean threadsShouldLive = true;
+	private volatile boolean isRunning = false;
+	private volatile boolean acceptPaused = false;
+	public boolean verbose = false;
+
+	public NioServer(int port) {
+		this(port, (short) 8, true, DEFAULT_EVENT_LOOPS);
+	}
+
+	public NioServer(int port, short maxPlayers, boolean createPlayerForHost) {
+		this(port, maxPlayers, createPlayerForHost, DEFAULT_EVENT_LOOPS);
+	}
+
+	/**
+	 * @param port the port on which to listen for clients.
+	 * @param maxPlayers the maximum number of players, including the host.
+	 * @param createPlayerForHost whether an id should be reserved for the host.
+	 * @param eventLoopCount the number of threads servicing connections (minimum 1).
+	 */
+	public NioServer(int port, short maxPlayers, boolean createPlayerForHost, int eventLoopCount) {
+		this.port = port;
+		setMaxPlayers(maxPlayers);
+		idManager = new IDManager(maxPlayers);
+		receiveScheduler = new ReceiveScheduler(this.maxPlayers + 1);
+		if (createPlayerForHost) {
+			Character hostID = idManager.getReservedIDAndRemoveFromIDPool();
+			this.hostPlayer = new NetworkPlayer(hostID);
+		}
+		eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+	}
+
+	private void setMaxPlayers(short newMax) {
+		if (newMax <= 2) {
+			newMax = 2;
+		}
+		this.maxPlayers = newMax;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Set the codec used to encode and decode packets. Must be called before run(); clients must
+	 * use a compatible codec.
+	 * 
+	 * @param codec the codec to use.
+	 */
+	public void setCodec(PacketCodec codec) {
+		this.codec = codec;
+	}
+
+	public PacketCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Set the pool that outgoing frames are encoded into. Must be called before run().
+	 * 
+	 * @param bufferPool the pool to use.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set when the packets queued for each client are written to its socket. Must be called before
+	 * run().
+	 * 
+	 * @param flushPolicy the policy to use.
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Set the TCP options applied to every client connection. Takes effect for connections made after the call.
+	 * 
+	 * @param socketOptions the options to use.
+	 */
+	public void setSocketOptions(SocketOptions socketOptions) {
+		this.socketOptions = socketOptions;
+	}
+
+	public SocketOptions getSocketOptions() {
+		return socketOptions;
+	}
+
+	/**
+	 * Set how packets are assigned to the lanes of each client's send queue. Must be called before
+	 * run().
+	 * 
+	 * @param sendLanes the lanes to use.
+	 */
+	public void setSendLanes(SendLanes sendLanes) {
+		this.sendLanes = sendLanes;
+	}
+
+	public SendLanes getSendLanes() {
+		return sendLanes;
+	}
+
+	/**
+	 * @return the number of packets that were not sent because a newer packet with the same state
+	 *         key replaced them while queued.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Set how many packets may wait for each client, and what happens when a queue is full. Must
+	 * be called before run().
+	 * 
+	 * @param queueLimits the limits to use.
+	 */
+	public void setQueueLimits(QueueLimits queueLimits) {
+		this.queueLimits = queueLimits;
+	}
+
+	public QueueLimits getQueueLimits() {
+		return queueLimits;
+	}
+
+	/**
+	 * Set how clients take turns when the game takes their packets. Takes effect immediately.
+	 * 
+	 * @param receiveFairness the turns and quotas to use.
+	 */
+	public void setReceiveFairness(ReceiveFairness receiveFairness) {
+		receiveScheduler.setFairness(receiveFairness);
+	}
+
+	public ReceiveFairness getReceiveFairness() {
+		return receiveScheduler.getFairness();
+	}
+
+	/**
+	 * Hand every received packet to a handler on the selector thread that read it, instead of
+	 * queueing it for getNextReceivedPacket(). Datagrams are handed over by the datagram thread.
+	 * The handler must be thread safe, and quick, since every connection of a selector thread
+	 * waits while it runs.
+	 * 
+	 * @param receiveHandler the handler, or null to queue packets again.
+	 */
+	public void setReceiveHandler(PacketHandler receiveHandler) {
+		this.receiveHandler = receiveHandler;
+	}
+
+	public PacketHandler getReceiveHandler() {
+		return receiveHandler;
+	}
+
+	/**
+	 * Write every packet queued so far to the clients without waiting for the flush policy's
+	 * limits. Packets queued after this call are not affected.
+	 */
+	public void flush() {
+		for (NioConnection connection : connections.values()) {
+			connection.requestFlush();
+		}
+	}
+
+	/**
+	 * Choose whether the server opens a UDP port (the same port number as its TCP port) for
+	 * UNRELIABLE_SEQUENCED and RELIABLE_DATAGRAM packets. When disabled, those packets are sent over
+	 * TCP. Must be called before run().
+	 */
+	public void setDatagramsEnabled(boolean datagramsEnabled) {
+		this.datagramsEnabled = datagramsEnabled;
+	}
+
+	public boolean getDatagramsEnabled() {
+		return datagramsEnabled;
+	}
+
+	/**
+	 * Simulate a poor connection for the datagrams the server sends, for testing. Must be called
+	 * before run().
+	 */
+	public void setLinkSimulator(LinkSimulator linkSimulator) {
+		this.linkSimulator = linkSimulator;
+	}
+
+	public LinkSimulator getLinkSimulator() {
+		return linkSimulator;
+	}
+
+	@Override
+	public void run() throws IOException {
+		if (isRunning()) {
+			System.out.println("NioServer already running");
+			return;
+		}
+		threadsShouldLive = true;
+		acceptPaused = false;
+		sharedEncoder = new FrameEncoder(codec, bufferPool);
+
+		acceptor = ServerSocketChannel.open();
+		try {
+			acceptor.socket().setReuseAddress(true);
+			socketOptions.applyToListener(acceptor.socket());
+			acceptor.socket().bind(new InetSocketAddress(port));
+			acceptor.configureBlocking(false);
+			for (int i = 0; i < eventLoops.length; ++i) {
+				eventLoops[i] = new EventLoop(i);
+			}
+			if (datagramsEnabled) {
+				datagrams = DatagramEndpoint.openServer(port, codec, bufferPool, datagramReceiver, blockingTimeoutMS);
+			}
+		} catch (IOException e) {
+			closeQuietly(acceptor);
+			throw e;
+		}
+		if (datagrams != null) {
+			datagrams.setLinkSimulator(linkSimulator);
+			datagrams.start();
+		}
+
+		// the first event loop also accepts new connections
+		acceptor.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+
+		for (EventLoop loop : eventLoops) {
+			loop.start();
+		}
+		isRunning = true;
+	}
+
+	/**
+	 * Sends a disconnect message to every client and then stops the event loops. Blocks for at most
+	 * 5 seconds while the disconnect messages are written.
+	 */
+	@Override
+	public void disconnect() {
+		if (!isRunning()) return;
+
+		SharedFrame closeFrame = encodeShared(createCloseMessage());
+		if (closeFrame != null) {
+			for (NioConnection connection : connections.values()) {
+				connection.closeAfterFlush(closeFrame);
+			}
+			closeFrame.release();
+		}
+
+		long start = System.currentTimeMillis();
+		while (!connections.isEmpty() && System.currentTimeMillis() - start < disconnectMessageTimeoutMS) {
+			sleepForMS(1);
+		}
+
+		threadsShouldLive = false;
+		for (EventLoop loop : eventLoops) {
+			if (loop != null) {
+				loop.selector.wakeup();
+				loop.join();
+			}
+		}
+		// anything that did not close gracefully is closed now that the loops are stopped
+		for (NioConnection connection : connections.values()) {
+			dropConnection(connection);
+		}
+		closeQuietly(acceptor);
+		if (datagrams != null) {
+			datagrams.close();
+			datagrams = null;
+		}
+		isRunning = false;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	@Override
+	public boolean hasReceivedPacket() {
+		return receiveScheduler.hasPackets();
+	}
+
+	/**
+	 * Get the next received packet. Clients take turns as set by the ReceiveFairness, so a client
+	 * that sends a flood of packets does not hold back the packets of the others.
+	 * 
+	 * @return the next packet, or null if there is none this tick.
+	 */
+	@Override
+	public Packet getNextReceivedPacket() {
+		return receiveScheduler.poll();
+	}
+
+	/**
+	 * Hand received packets to a handler until the tick ends or max have been handled. No more
+	 * packets are taken from a client than it had waiting when its first turn in the call came up,
+	 * so the call returns even while a client keeps sending. With a ReceiveFairness quota per
+	 * tick, at most that many packets are taken from each client.
+	 * 
+	 * @return the number of packets handled.
+	 */
+	@Override
+	public int drainReceived(PacketHandler handler, int max) {
+		return receiveScheduler.drain(handler, max);
+	}
+
+	/**
+	 * Encode the packet and queue it for every client. The packet is encoded immediately, which
+	 * captures its current state, so no copy of the packet is made. The single encoded frame is
+	 * shared by every connection. A PoolablePacket is released as soon as it has been encoded.
+	 */
+	@Override
+	public void queueToSend(Packet packet) {
+		if (connections.isEmpty()) {
+			PacketPool.recycle(packet);
+			return;
+		}
+		SharedFrame frame = encodeShared(packet);
+		PacketPool.recycle(packet);
+		if (frame == null) {
+			return;
+		}
+		for (NioConnection connection : connections.values()) {
+			connection.queueToSend(frame);
+		}
+		// every connection holds its own reference now
+		frame.release();
+	}
+
+	/**
+	 * Broadcast a packet unless a client's send queue is full. Never blocks, whatever the overflow
+	 * policy.
+	 * 
+	 * @return false if the packet was not queued; it still belongs to the caller.
+	 */
+	@Override
+	public boolean tryQueueToSend(Packet packet) {
+		for (NioConnection connection : connections.values()) {
+			if (connection.sendBuffer.isFull()) {
+				return false;
+			}
+		}
+		queueToSend(packet);
+		return true;
+	}
+
+	/**
+	 * Broadcast a packet to all clients with the given delivery mode. UNRELIABLE_SEQUENCED and
+	 * RELIABLE_DATAGRAM packets are sent as UDP datagrams immediately; clients whose UDP address is
+	 * not known yet receive a copy over TCP.
+	 */
+	@Override
+	public void queueToSend(Packet packet, DeliveryMode mode) {
+		DatagramEndpoint datagrams = this.datagrams;
+		if (mode == DeliveryMode.RELIABLE || datagrams == null) {
+			queueToSend(packet);
+			return;
+		}
+		if (connections.isEmpty()) {
+			PacketPool.recycle(packet);
+			return;
+		}
+		sendDatagram(datagrams, packet, mode, null);
+	}
+
+	@Override
+	public void queueToSend(NetworkPlayer player, Packet packet) {
+		queueToSend(Recipients.of(player), packet, DeliveryMode.RELIABLE);
+	}
+
+	@Override
+	public void queueToSend(Collection<NetworkPlayer> players, Packet packet) {
+		queueToSend(Recipients.of(players), packet, DeliveryMode.RELIABLE);
+	}
+
+	@Override
+	public void queueToSendToGroup(String group, Packet packet) {
+		queueToSend(sendGroups.get(group), packet, DeliveryMode.RELIABLE);
+	}
+
+	/**
+	 * Send a packet to the given clients. A RELIABLE packet is encoded immediately, once, if any
+	 * recipient is connected, and the frame is queued for each connected recipient.
+	 */
+	@Override
+	public void queueToSend(Recipients recipients, Packet packet, DeliveryMode mode) {
+		if (!anyConnected(recipients)) {
+			PacketPool.recycle(packet);
+			return;
+		}
+		DatagramEndpoint datagrams = this.datagrams;
+		if (mode != DeliveryMode.RELIABLE && datagrams != null) {
+			sendDatagram(datagrams, packet, mode, recipients);
+			return;
+		}
+		SharedFrame frame = encodeShared(packet);
+		PacketPool.recycle(packet);
+		if (frame == null) {
+			return;
+		}
+		for (int i = 0; i < recipients.size(); ++i) {
+			NioConnection connection = connections.get(recipients.get(i));
+			if (connection != null) {
+				connection.queueToSend(frame);
+			}
+		}
+		frame.release();
+	}
+
+	/**
+	 * Send a packet as a datagram to every client, or only to the given recipients.
+	 * 
+	 * @param recipients the clients to send to, or null for all of them.
+	 */
+	private void sendDatagram(DatagramEndpoint datagrams, Packet packet, DeliveryMode mode, Recipients recipients) {
+
+		ByteBuffer datagram = null;
+		byte[] reliableBody = null;
+		try {
+			if (mode == DeliveryMode.RELIABLE_DATAGRAM) {
+				reliableBody = datagrams.encodeReliable(packet);
+			} else {
+				datagram = datagrams.encode(packet);
+			}
+		} catch (IOException e) {
+			System.out.println("NioServer: failed to encode " + packet.getClass().getName());
+			e.printStackTrace();
+			PacketPool.recycle(packet);
+			return;
+		}
+		if (datagram == null && reliableBody == null) {
+			// too large for one datagram
+			if (recipients == null) {
+				queueToSend(packet);
+			} else {
+				queueToSend(recipients, packet, DeliveryMode.RELIABLE);
+			}
+			return;
+		}
+
+		SharedFrame fallback = null;
+		for (NioConnection connection : connections.values()) {
+			if (recipients != null && !recipients.contains(connection.playerID)) {
+				continue;
+			}
+			boolean sent = datagram != null ? datagrams.sendTo(datagram, connection.playerID)
+					: datagrams.queueReliable(reliableBody, connection.playerID);
+			if (sent) {
+				continue;
+			}
+			if (fallback == null) {
+				fallback = encodeShared(packet);
+				if (fallback == null) {
+					break;
+				}
+			}
+			connection.queueToSend(fallback);
+		}
+		if (fallback != null) {
+			fallback.release();
+		}
+		if (datagram != null) {
+			bufferPool.release(datagram);
+		}
+		PacketPool.recycle(packet);
+	}
+
+	private boolean anyConnected(Recipients recipients) {
+		for (int i = 0; i < recipients.size(); ++i) {
+			if (connections.containsKey(recipients.get(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void addToGroup(String group, NetworkPlayer player) {
+		char id = player.getID();
+		sendGroups.add(group, id);
+		if (!connections.containsKey(id)) {
+			// not connected, or dropped while being added
+			sendGroups.remove(group, id);
+		}
+	}
+
+	@Override
+	public void removeFromGroup(String group, NetworkPlayer player) {
+		sendGroups.remove(group, player.getID());
+	}
+
+	@Override
+	public Recipients getGroup(String group) {
+		return sendGroups.get(group);
+	}
+
+	@Override
+	public List<NetworkPlayer> getConnectedPlayers() {
+		List<NetworkPlayer> players = new ArrayList<NetworkPlayer>();
+		for (Character id : connections.keySet()) {
+			players.add(new NetworkPlayer(id));
+		}
+		return players;
+	}
+
+	@Override
+	public NetworkPlayer getHostPlayerObj() {
+		return hostPlayer;
+	}
+
+	@Override
+	public int activeConnections() {
+		return activeSockets.intValue();
+	}
+
+	/**
+	 * Called from the accepting event loop when the acceptor is readable.
+	 */
+	private void acceptConnections(SelectionKey acceptKey) {
+		while (activeSockets.intValue() < maxPlayers - 1) {
+			Character id = idManager.getReservedIDAndRemoveFromIDPool();
+			if (id == null) {
+				break;
+			}
+			SocketChannel channel = null;
+			try {
+				channel = acceptor.accept();
+				if (channel == null) {
+					// nothing left to accept
+					idManager.unReserveIDAndReturnIdToPool(id);
+					return;
+				}
+				channel.configureBlocking(false);
+				socketOptions.applyTo(channel.socket());
+
+				NioConnection connection = new NioConnection(channel, id, eventLoops[nextEventLoop]);
+				nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+				connections.put(id, connection);
+				activeSockets.incrementAndGet();
+				if (datagrams != null) {
+					datagrams.addPlayer(id);
+				}
+
+				// the ID is the first message a client expects
+				SystemMessagePacket idPacket = new SystemMessagePacket();
+				idPacket.setPlayerID(id);
+				SharedFrame idFrame = encodeShared(idPacket);
+				if (idFrame != null) {
+					connection.queueToSend(idFrame);
+					idFrame.release();
+				}
+				connection.eventLoop.register(connection);
+			} catch (IOException e) {
+				idManager.unReserveIDAndReturnIdToPool(id);
+				closeQuietly(channel);
+				System.out.println("NioServer: Failed to accept socket - IO Exception");
+				e.printStackTrace();
+				return;
+			}
+		}
+
+		// server is full; stop accepting until a connection is dropped
+		acceptPaused = true;
+		acceptKey.interestOps(0);
+		if (activeSockets.intValue() < maxPlayers - 1 && idManager.hasMoreIds()) {
+			// a connection dropped while pausing, resume on the next loop iteration
+			acceptPaused = false;
+		}
+	}
+
+	/**
+	 * Must only be called from the connection's event loop (or after the loops have stopped).
+	 */
+	private void dropConnection(NioConnection connection) {
+		if (!connection.closed.compareAndSet(false, true)) {
+			return;
+		}
+		if (connection.key != null) {
+			connection.key.cancel();
+		}
+		closeQuietly(connection.channel);
+		connection.releaseFrames();
+
+		connections.remove(connection.playerID);
+		sendGroups.removeEverywhere(connection.playerID);
+		if (datagrams != null) {
+			datagrams.removePlayer(connection.playerID);
+		}
+		idManager.unReserveIDAndReturnIdToPool(connection.playerID);
+		activeSockets.decrementAndGet();
+
+		if (acceptPaused) {
+			acceptPaused = false;
+			eventLoops[0].selector.wakeup();
+		}
+		if (verbose) System.out.println("NioServer: dropped connection for player " + (int) connection.playerID);
+	}
+
+	private SystemMessagePacket createCloseMessage() {
+		SystemMessagePacket closeMessage = new SystemMessagePacket();
+		closeMessage.setConnectionShouldClose(true);
+		return closeMessage;
+	}
+
+	private void closeQuietly(Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void sleepForMS(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * A single selector thread. All state of the connections registered with this loop is only
+	 * touched from this thread; other threads hand work to it through the concurrent queues and a
+	 * selector wakeup.
+	 */
+	private class EventLoop implements Runnable {
+		final Selector selector;
+		final int index;
+		private Thread thread;
+		private ConcurrentLinkedQueue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<NioConnection>();
+		private ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<NioConnection>();
+		// connections other threads found too far behind, dropped by this loop
+		private ConcurrentLinkedQueue<NioConnection> pendingDrops = new ConcurrentLinkedQueue<NioConnection>();
+		// connections whose batch the flush policy is holding back; event loop only
+		private ArrayList<NioConnection> heldBatches = new ArrayList<NioConnection>();
+		// connections not read while their receive buffer is full
+		private ArrayList<NioConnection> pausedReads = new ArrayList<NioConnection>();
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+		EventLoop(int index) throws IOException {
+			this.index = index;
+			this.selector = Selector.open();
+		}
+
+		void start() {
+			thread = new Thread(this, "NioServer-EventLoop-" + index);
+			thread.start();
+		}
+
+		void join() {
+			if (thread == null) {
+				return;
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+			}
+			closeQuietly(selector);
+		}
+
+		void register(NioConnection connection) {
+			pendingRegistrations.add(connection);
+			selector.wakeup();
+		}
+
+		void scheduleWrite(NioConnection connection) {
+			pendingWrites.add(connection);
+			selector.wakeup();
+		}
+
+		void scheduleDrop(NioConnection connection) {
+			pendingDrops.add(connection);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (threadsShouldLive) {
+				try {
+					selector.select(selectTimeoutMS());
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				}
+				registerPendingConnections();
+				dropScheduledConnections();
+				flushScheduledWrites();
+				flushHeldBatches();
+				resumeReadingIfRoom();
+				resumeAcceptingIfNeeded();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						acceptConnections(key);
+						continue;
+					}
+					NioConnection connection = (NioConnection) key.attachment();
+					if (key.isReadable()) {
+						read(connection);
+					}
+					if (key.isValid() && key.isWritable()) {
+						flush(connection);
+					}
+				}
+			}
+		}
+
+		private void registerPendingConnections() {
+			NioConnection connection;
+			while ((connection = pendingRegistrations.poll()) != null) {
+				try {
+					connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+					flush(connection);
+				} catch (IOException e) {
+					dropConnection(connection);
+				}
+			}
+		}
+
+		private void dropScheduledConnections() {
+			NioConnection connection;
+			while ((connection = pendingDrops.poll()) != null) {
+				dropConnection(connection);
+			}
+		}
+
+		private void flushScheduledWrites() {
+			NioConnection connection;
+			while ((connection = pendingWrites.poll()) != null) {
+				// clear the flag first so a packet queued during the flush schedules another one
+				connection.writeScheduled.set(false);
+				if (connection.key != null && !connection.closed.get()) {
+					flush(connection);
+				}
+			}
+		}
+
+		/**
+		 * @return how long the selector may block before a held batch is due.
+		 */
+		private long selectTimeoutMS() {
+			long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockingTimeoutMS);
+			for (NioConnection connection : heldBatches) {
+				timeoutNanos = Math.min(timeoutNanos, connection.batch.nanosUntilDue(flushPolicy));
+			}
+			if (!pausedReads.isEmpty()) {
+				// the game taking packets does not wake the selector, so check for room often
+				timeoutNanos = 0;
+			}
+			// a timeout of 0 blocks forever, so wait at least a millisecond
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos + 999999));
+		}
+
+		private void flushHeldBatches() {
+			for (int i = heldBatches.size() - 1; i >= 0; --i) {
+				NioConnection connection = heldBatches.get(i);
+				if (!connection.closed.get()) {
+					flush(connection);
+				}
+				if (connection.closed.get() || !connection.batchHeld) {
+					connection.batchHeld = false;
+					heldBatches.remove(i);
+				}
+			}
+		}
+
+		private void pauseReading(NioConnection connection) {
+			connection.readPaused = true;
+			connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+			pausedReads.add(connection);
+		}
+
+		private void resumeReadingIfRoom() {
+			for (int i = pausedReads.size() - 1; i >= 0; --i) {
+				NioConnection connection = pausedReads.get(i);
+				if (connection.receiveBuffer.isFull() && !connection.closed.get()) {
+					continue;
+				}
+				connection.readPaused = false;
+				if (!connection.closed.get() && connection.key.isValid()) {
+					connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+				}
+				pausedReads.remove(i);
+			}
+		}
+
+		private int readInterest(NioConnection connection) {
+			return connection.readPaused ? 0 : SelectionKey.OP_READ;
+		}
+
+		private void resumeAcceptingIfNeeded() {
+			if (index != 0 || acceptPaused) {
+				return;
+			}
+			SelectionKey acceptKey = acceptor.keyFor(selector);
+			if (acceptKey != null && acceptKey.isValid() && acceptKey.interestOps() == 0) {
+				acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+			}
+		}
+
+		private void read(NioConnection connection) {
+			try {
+				readBuffer.clear();
+				int bytesRead;
+				while ((bytesRead = connection.channel.read(readBuffer)) > 0) {
+					readBuffer.flip();
+					connection.decoder.append(readBuffer);
+					readBuffer.clear();
+				}
+
+				ByteBuffer body;
+				OverflowPolicy overflow = queueLimits.getReceiveOverflow();
+				while (!connection.closed.get() && (body = connection.decoder.nextFrame()) != null) {
+					Packet inbound = codec.decode(body);
+					if (checkForSystemMessage(inbound, connection)) {
+						continue;
+					}
+					PacketHandler handler = receiveHandler;
+					if (handler != null) {
+						// handled on the selector thread instead of being queued for the game
+						handler.handle(inbound);
+						continue;
+					}
+					if (overflow == OverflowPolicy.BLOCK) {
+						// what was read is kept; reading stops below until there is room
+						connection.receiveBuffer.add(inbound);
+					} else if (!connection.receiveBuffer.put(inbound, overflow)) {
+						dropConnection(connection);
+						return;
+					}
+					receiveScheduler.ready(connection.receiveSource);
+				}
+				if (overflow == OverflowPolicy.BLOCK && connection.receiveBuffer.isFull() && !connection.closed.get()) {
+					pauseReading(connection);
+				}
+
+				if (bytesRead < 0) {
+					// client closed its end of the connection
+					dropConnection(connection);
+				}
+			} catch (IOException e) {
+				dropConnection(connection);
+			}
+		}
+
+		private boolean checkForSystemMessage(Packet packet, NioConnection connection) {
+			if (packet instanceof SystemMessagePacket) {
+				if (((SystemMessagePacket) packet).connetionShouldClose()) {
+					// do not send a drop message since the client alerted server of intent of dropping
+					dropConnection(connection);
+				}
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Write as much as the socket will accept, one batch at a time. If the flush policy holds
+		 * a batch back, the connection is remembered so the batch is written once it is due. If
+		 * the socket cannot take everything, write interest is registered and the remainder is
+		 * written when the selector reports the socket is writable again.
+		 */
+		private void flush(NioConnection connection) {
+			try {
+				// read the request before draining so every frame queued before flush() is included
+				boolean flushRequested = connection.flushRequested.getAndSet(false);
+				while (true) {
+					connection.batch.drain(connection.sendBuffer);
+					if (connection.batch.isEmpty()) {
+						connection.batchHeld = false;
+						break;
+					}
+					if (!connection.batch.shouldWrite(flushPolicy, flushRequested)) {
+						if (!connection.batchHeld) {
+							connection.batchHeld = true;
+							heldBatches.add(connection);
+						}
+						return;
+					}
+					if (!connection.batch.writeTo(connection.channel)) {
+						connection.key.interestOps(readInterest(connection) | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				connection.key.interestOps(readInterest(connection));
+				if (connection.closing) {
+					dropConnection(connection);
+				}
+			} catch (IOException e) {
+				dropConnection(connection);
+			}
+		}
+	}
+
+	/**
+	 * Encode a packet with the encoder shared by all threads that queue packets.
+	 * 
+	 * @return the encoded frame, owned by the caller, or null if the codec could not encode the
+	 *         packet (it is skipped rather than retried, since retrying will not succeed).
+	 */
+	private SharedFrame encodeShared(Packet packet) {
+		synchronized (sharedEncoder) {
+			try {
+				return SharedFrame.encode(sharedEncoder, packet, sendLanes);
+			} catch (IOException e) {
+				System.out.println("NioServer: failed to encode " + packet.getClass().getName());
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * The state of a single client connection.
+	 */
+	private class NioConnection {
+		final SocketChannel channel;
+		final char playerID;
+		final EventLoop eventLoop;
+		final PriorityFrameQueue sendBuffer = new PriorityFrameQueue(sendLanes, queueLimits.getSendCapacity(), coalesced);
+		final PacketQueue receiveBuffer = new PacketQueue(queueLimits.getReceiveCapacity());
+		// takes its turns with the other connections' when the game takes packets
+		final ReceiveScheduler.Source receiveSource = new ReceiveScheduler.Source() {
+			Packet poll() {
+				return receiveBuffer.poll();
+			}
+
+			boolean isEmpty() {
+				return receiveBuffer.isEmpty();
+			}
+
+			int size() {
+				return receiveBuffer.size();
+			}
+		};
+		final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+		final AtomicBoolean closed = new AtomicBoolean(false);
+		volatile boolean closing = false;
+		SelectionKey key;
+
+		final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+		// event loop only
+		final FrameDecoder decoder = new FrameDecoder();
+		final WriteBatch batch = new WriteBatch();
+		boolean batchHeld = false;
+		boolean readPaused = false;
+
+		NioConnection(SocketChannel channel, char playerID, EventLoop eventLoop) {
+			this.channel = channel;
+			this.playerID = playerID;
+			this.eventLoop = eventLoop;
+		}
+
+		/**
+		 * Queue a frame; the connection takes its own reference to it.
+		 */
+		void queueToSend(SharedFrame frame) {
+			if (closing) {
+				return;
+			}
+			if (!sendBuffer.offer(frame.retain(), queueLimits.getSendOverflow())) {
+				// the client is too far behind; its batch may be being written, so the loop drops it
+				eventLoop.scheduleDrop(this);
+				return;
+			}
+			if (writeScheduled.compareAndSet(false, true)) {
+				eventLoop.scheduleWrite(this);
+			}
+		}
+
+		/**
+		 * Write everything queued so far, regardless of the flush policy.
+		 */
+		void requestFlush() {
+			flushRequested.set(true);
+			if (writeScheduled.compareAndSet(false, true)) {
+				eventLoop.scheduleWrite(this);
+			}
+		}
+
+		/**
+		 * Replace anything queued with a final message; the connection closes once it is written.
+		 */
+		void closeAfterFlush(SharedFrame finalMessage) {
+			closing = true;
+			sendBuffer.releaseAll();
+			// released again at once if the loop has already closed the queue to drop the connection
+			sendBuffer.add(finalMessage.retain());
+			if (writeScheduled.compareAndSet(false, true)) {
+				eventLoop.scheduleWrite(this);
+			}
+		}
+
+		/**
+		 * Give up every frame this connection still holds. Only called once the connection is
+		 * closed.
+		 */
+		void releaseFrames() {
+			batch.releaseAll();
+			sendBuffer.close();
+		}
+	}
+}
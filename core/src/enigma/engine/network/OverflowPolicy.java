@@ -0,0 +1,31 @@
+package enigma.engine.network;
+
+/**
+ * What happens to a packet queued while its queue is full. See QueueLimits.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public enum OverflowPolicy {
+	/**
+	 * Wait until there is room. A full send queue blocks the thread that queues the packet, and a
+	 * full receive queue stops the connection being read, so the sender is slowed by TCP.
+	 */
+	BLOCK,
+
+	/**
+	 * Discard the oldest waiting packet to make room. A server's send queue discards waiting state
+	 * first, then bulk packets, then events.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the packet being queued.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Drop the connection that has fallen behind. A client disconnects from its server.
+	 */
+	DISCONNECT
+}
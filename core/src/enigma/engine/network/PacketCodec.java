@@ -0,0 +1,33 @@
+package enigma.engine.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts packets to and from the bytes that are sent over the network. Each packet is sent as a
+ * frame: a 4 byte length followed by the body that the codec produces. Both ends of a connection
+ * must use compatible codecs.
+ * 
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public interface PacketCodec {
+	/**
+	 * Write the frame body for the packet.
+	 * 
+	 * @param packet the packet to encode.
+	 * @param out the buffer to write to. A BufferOverflowException is thrown if it is too small.
+	 * @throws IOException if the packet cannot be encoded.
+	 */
+	public void encode(Packet packet, ByteBuffer out) throws IOException;
+
+	/**
+	 * Read a packet from a frame body produced by encode().
+	 * 
+	 * @param body buffer containing exactly one frame body.
+	 * @return the decoded packet.
+	 * @throws IOException if the body is not a valid packet.
+	 */
+	public Packet decode(ByteBuffer body) throws IOException;
+}
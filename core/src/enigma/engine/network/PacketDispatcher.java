@@ -0,0 +1,128 @@
+package enigma.engine.network;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes received packets to the listener registered for their class, so the game does not have
+ * to test each packet with instanceof and cast it. Listeners are kept in a table keyed by the
+ * exact class of packet, built when they are registered, so routing a packet is a single lookup
+ * however many listeners there are. As with BinaryPacketCodec, a listener only receives packets
+ * of exactly its class, not of subclasses.
+ *
+ * A dispatcher is a PacketHandler, so it can be used in either of two ways:
+ * <ul>
+ * <li>network.drainReceived(dispatcher) each tick calls the listeners on the game's thread, with
+ * the packets received since the last tick.</li>
+ * <li>network.setReceiveHandler(dispatcher) before run() calls the listeners on the threads that
+ * receive the packets, as soon as they arrive. The listeners must then be thread safe and quick,
+ * since they hold up receiving; on a NioServer they hold up every connection of a selector
+ * thread.</li>
+ * </ul>
+ *
+ * Packets with no listener go to the unhandled listener if one is set; otherwise they are recycled
+ * and counted by getUnhandledCount().
+ *
+ * Listeners may be registered while packets are dispatched; each registration replaces the table,
+ * so dispatching never locks.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public class PacketDispatcher implements PacketHandler {
+	private final BinaryPacketCodec codec;
+	private volatile IdentityHashMap<Class<?>, PacketListener<?>> listeners = new IdentityHashMap<Class<?>, PacketListener<?>>();
+	private volatile PacketListener<Packet> unhandledListener;
+	private final AtomicLong unhandled = new AtomicLong(0);
+
+	/**
+	 * Create a dispatcher whose listeners are registered by packet class.
+	 */
+	public PacketDispatcher() {
+		this(null);
+	}
+
+	/**
+	 * Create a dispatcher whose listeners may also be registered by the type ids of a codec.
+	 *
+	 * @param codec the codec the packets are received with; its types must be registered first.
+	 */
+	public PacketDispatcher(BinaryPacketCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Register the listener for a packet class.
+	 *
+	 * @param packetClass the exact class of the packets.
+	 * @param listener called with each packet of that class.
+	 * @throws IllegalArgumentException if the class already has a listener.
+	 */
+	public synchronized <T extends Packet> void register(Class<T> packetClass, PacketListener<? super T> listener) {
+		if (packetClass == null || listener == null) {
+			throw new IllegalArgumentException("PacketDispatcher: class and listener can not be null");
+		}
+		if (listeners.containsKey(packetClass)) {
+			throw new IllegalArgumentException("PacketDispatcher: " + packetClass.getName() + " already has a listener");
+		}
+		IdentityHashMap<Class<?>, PacketListener<?>> table = new IdentityHashMap<Class<?>, PacketListener<?>>(listeners);
+		table.put(packetClass, listener);
+		listeners = table;
+	}
+
+	/**
+	 * Register the listener for the packet class registered with the codec under a type id.
+	 *
+	 * @param typeId the type id the packets are sent with.
+	 * @param listener called with each packet of that type.
+	 * @throws IllegalStateException if the dispatcher was created without a codec.
+	 * @throws IllegalArgumentException if the codec has no class for the type id, or the class
+	 *             already has a listener.
+	 */
+	public void register(short typeId, PacketListener<Packet> listener) {
+		if (codec == null) {
+			throw new IllegalStateException("PacketDispatcher: type ids need a codec");
+		}
+		Class<? extends Packet> packetClass = codec.packetClassOf(typeId);
+		if (packetClass == null) {
+			throw new IllegalArgumentException("PacketDispatcher: type id " + typeId + " is not registered with the codec");
+		}
+		register(packetClass, listener);
+	}
+
+	/**
+	 * @param listener called with each packet whose class has no listener, or null to recycle
+	 *            those packets.
+	 */
+	public void setUnhandledListener(PacketListener<Packet> listener) {
+		this.unhandledListener = listener;
+	}
+
+	/**
+	 * @return the number of packets that had no listener and were recycled.
+	 */
+	public long getUnhandledCount() {
+		return unhandled.get();
+	}
+
+	/**
+	 * Hand a packet to the listener registered for its class.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void handle(Packet packet) {
+		// registered for exactly this class, so the cast is safe
+		PacketListener<Packet> listener = (PacketListener<Packet>) listeners.get(packet.getClass());
+		if (listener != null) {
+			listener.received(packet);
+			return;
+		}
+		PacketListener<Packet> unhandledListener = this.unhandledListener;
+		if (unhandledListener != null) {
+			unhandledListener.received(packet);
+		} else {
+			unhandled.incrementAndGet();
+			PacketPool.recycle(packet);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package enigma.engine.network;
+
+/**
+ * Receives packets drained from a network with Network.drainReceived(PacketHandler). The handler
+ * is called on the thread that drains, once per packet, in the order the packets were received.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public interface PacketHandler {
+	/**
+	 * Handle a received packet. The packet belongs to the handler, which may recycle it with
+	 * PacketPool.recycle() once it is done with it.
+	 *
+	 * @param packet the packet that was received.
+	 */
+	public void handle(Packet packet);
+}
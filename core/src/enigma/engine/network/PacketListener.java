@@ -0,0 +1,20 @@
+package enigma.engine.network;
+
+/**
+ * Handles received packets of one class, registered with a PacketDispatcher. The dispatcher only
+ * hands a listener packets of the class it was registered for, so the listener needs no casts.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ * @param <T> the packet class this listener handles.
+ */
+public interface PacketListener<T extends Packet> {
+	/**
+	 * Handle a received packet. The packet belongs to the listener, which may recycle it with
+	 * PacketPool.recycle() once it is done with it.
+	 *
+	 * @param packet the packet that was received.
+	 */
+	public void received(T packet);
+}
@@ -0,0 +1,119 @@
+package enigma.engine.network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of packets of one type. acquire() hands out a free packet, creating one if none is free,
+ * and release() resets a packet and keeps it for the next acquire(). At most a fixed number of
+ * free packets are kept; packets released beyond that are left to the garbage collector.
+ *
+ * Packets are released by whichever thread is last to use them, often a network send thread, so
+ * this class is thread safe.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ * @param <T> the packet class this pool holds.
+ */
+public class PacketPool<T extends PoolablePacket> {
+	private static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * Creates the packets of a pool.
+	 */
+	public interface Factory<T extends PoolablePacket> {
+		/**
+		 * @param pool the pool the packet belongs to; its release() should hand it back there.
+		 * @return a new packet.
+		 */
+		public T create(PacketPool<T> pool);
+	}
+
+	private final Factory<T> factory;
+	private final int capacity;
+	private final ConcurrentLinkedQueue<T> free = new ConcurrentLinkedQueue<T>();
+	private final AtomicInteger freeCount = new AtomicInteger(0);
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	public PacketPool(Factory<T> factory) {
+		this(factory, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param factory creates a packet when none is free.
+	 * @param capacity the most free packets kept.
+	 */
+	public PacketPool(Factory<T> factory, int capacity) {
+		this.factory = factory;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return a reset packet owned by the caller.
+	 */
+	public T acquire() {
+		T packet = free.poll();
+		if (packet != null) {
+			freeCount.decrementAndGet();
+			hits.incrementAndGet();
+			return packet;
+		}
+		misses.incrementAndGet();
+		return factory.create(this);
+	}
+
+	/**
+	 * Reset a packet and keep it for a later acquire(). The caller must not use the packet
+	 * afterwards.
+	 */
+	public void release(T packet) {
+		packet.reset();
+		if (freeCount.incrementAndGet() <= capacity) {
+			free.add(packet);
+		} else {
+			freeCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Release a packet if it is a PoolablePacket, otherwise do nothing. Used by the network once it
+	 * has sent a packet, and by applications once they have handled a received packet of any type.
+	 */
+	public static void recycle(Packet packet) {
+		if (packet instanceof PoolablePacket) {
+			((PoolablePacket) packet).release();
+		}
+	}
+
+	/**
+	 * @return the packet to queue for sending: the packet itself if it is a PoolablePacket, whose
+	 *         ownership passes to the network, otherwise a copy.
+	 */
+	static Packet takeForSend(Packet packet) {
+		return packet instanceof PoolablePacket ? packet : packet.makeCopy();
+	}
+
+	/**
+	 * @return the number of acquires served by a free packet.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of acquires that had to create a new packet.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of free packets held.
+	 */
+	public int getFreeCount() {
+		return freeCount.get();
+	}
+}
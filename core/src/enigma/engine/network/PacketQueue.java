@@ -0,0 +1,157 @@
+package enigma.engine.network;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A queue of packets with an optional capacity, held in a RingBuffer. Packets are added by any
+ * thread; polling is meant for a single consumer, though other threads may poll to discard packets.
+ * The queue counts its packets itself, so checking the capacity does not walk the queue.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+final class PacketQueue {
+	// how long a blocked put() sleeps between checks for room
+	private static final long BLOCKED_WAIT_NANOS = 100000;
+
+	private final RingBuffer<Packet> packets;
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final int capacity;
+	// advanced by cancelBlockedPuts() to release waiting producers
+	private final AtomicInteger cancellations = new AtomicInteger(0);
+
+	/**
+	 * @param capacity the most packets held, or QueueLimits.UNBOUNDED.
+	 */
+	PacketQueue(int capacity) {
+		this.capacity = capacity;
+		packets = new RingBuffer<Packet>(RingBuffer.slotsFor(capacity));
+	}
+
+	/**
+	 * Add a packet if there is room.
+	 *
+	 * @return false if the queue is full; the packet is not queued and still belongs to the caller.
+	 */
+	boolean offer(Packet packet) {
+		int current;
+		do {
+			current = size.get();
+			if (capacity != QueueLimits.UNBOUNDED && current >= capacity) {
+				return false;
+			}
+		} while (!size.compareAndSet(current, current + 1));
+		packets.add(packet);
+		return true;
+	}
+
+	/**
+	 * Add a packet regardless of the capacity, for system messages and markers.
+	 */
+	void add(Packet packet) {
+		size.incrementAndGet();
+		packets.add(packet);
+	}
+
+	/**
+	 * Add a packet, applying the policy if the queue is full. A packet that is discarded is
+	 * recycled.
+	 *
+	 * @return false if the queue is full and the policy is DISCONNECT; the packet has been
+	 *         recycled and the caller should drop the connection.
+	 */
+	boolean put(Packet packet, OverflowPolicy policy) {
+		if (offer(packet)) {
+			return true;
+		}
+		switch (policy) {
+		case BLOCK:
+			int cancelled = cancellations.get();
+			while (!offer(packet)) {
+				if (cancelled != cancellations.get()) {
+					PacketPool.recycle(packet);
+					return true;
+				}
+				LockSupport.parkNanos(BLOCKED_WAIT_NANOS);
+			}
+			return true;
+		case DROP_OLDEST:
+			do {
+				Packet oldest = poll();
+				if (oldest != null) {
+					PacketPool.recycle(oldest);
+				}
+			} while (!offer(packet));
+			return true;
+		case DROP_NEWEST:
+			PacketPool.recycle(packet);
+			return true;
+		default:
+			PacketPool.recycle(packet);
+			return false;
+		}
+	}
+
+	Packet poll() {
+		Packet packet = packets.poll();
+		if (packet != null) {
+			size.decrementAndGet();
+		}
+		return packet;
+	}
+
+	/**
+	 * Hand packets to a handler until max have been handled. Only the packets queued when the call
+	 * starts are taken, so a producer that keeps adding can not keep the caller draining.
+	 *
+	 * @return the number of packets handled.
+	 */
+	int drainTo(PacketHandler handler, int max) {
+		int waiting = Math.min(max, size.get());
+		int count = 0;
+		Packet packet;
+		while (count < waiting && (packet = poll()) != null) {
+			handler.handle(packet);
+			++count;
+		}
+		return count;
+	}
+
+	Packet peek() {
+		return packets.peek();
+	}
+
+	boolean isEmpty() {
+		return packets.peek() == null;
+	}
+
+	boolean isFull() {
+		return capacity != QueueLimits.UNBOUNDED && size.get() >= capacity;
+	}
+
+	/**
+	 * @return the number of packets queued.
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Discard every packet.
+	 */
+	void clear() {
+		Packet packet;
+		while ((packet = poll()) != null) {
+			PacketPool.recycle(packet);
+		}
+	}
+
+	/**
+	 * Make every put() blocked by a full queue give up and discard its packet, for example because
+	 * the connection is closing. Later puts block as usual.
+	 */
+	void cancelBlockedPuts() {
+		cancellations.incrementAndGet();
+	}
+}
@@ -0,0 +1,34 @@
+package enigma.engine.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A hand-written encoder and decoder for a single packet class. Registering a serializer with a
+ * BinaryPacketCodec lets that packet be sent as a few raw bytes rather than through java
+ * serialization.
+ * 
+ * Implementations should be stateless so that a single instance can be shared by every thread.
+ * 
+ * @author Matt Stone
+ * @version 1.0
+ *
+ * @param <T> the packet class this serializer handles.
+ */
+public interface PacketSerializer<T extends Packet> {
+	/**
+	 * Write the fields of the packet.
+	 * 
+	 * @param packet the packet to encode.
+	 * @param out buffer to write into. A BufferOverflowException may be thrown if it is too small;
+	 *            the codec will retry with a larger buffer.
+	 */
+	public void write(T packet, ByteBuffer out);
+
+	/**
+	 * Read a packet written by write().
+	 * 
+	 * @param in buffer positioned at the first byte written by write().
+	 * @return a new packet.
+	 */
+	public T read(ByteBuffer in);
+}
@@ -0,0 +1,29 @@
+package enigma.engine.network;
+
+/**
+ * A packet that is recycled through a PacketPool instead of being copied and then left to the
+ * garbage collector.
+ *
+ * Queueing a PoolablePacket hands it to the network: it is not copied, and the network calls
+ * release() once it has been encoded for the last time. The application must not touch it after
+ * queueing it. Packets of every other type are still copied when queued.
+ *
+ * A received PoolablePacket belongs to the application, which calls release() once it is done
+ * with it (see PacketPool.recycle()). Forgetting to release a packet only costs an allocation.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public interface PoolablePacket extends Packet {
+	/**
+	 * Clear the packet's fields before it is handed out again. Called by PacketPool.release().
+	 */
+	public void reset();
+
+	/**
+	 * Return the packet to the pool it came from, or do nothing if it has none. The packet must not
+	 * be used afterwards.
+	 */
+	public void release();
+}
@@ -0,0 +1,299 @@
+package enigma.engine.network;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The send queue of one server connection, with a lane per SendLane. Frames are added by any
+ * thread and taken by the connection's single sending thread.
+ *
+ * poll() takes from the SYSTEM lane first, then from the EVENTS, STATE and BULK lanes by deficit
+ * round robin: each visit to a lane adds its weight times SendLanes.QUANTUM_BYTES to the lane's
+ * allowance, and the lane sends frames while its allowance covers them. Large frames therefore
+ * wait until their lane has saved up enough, and do not stall the other lanes.
+ *
+ * Keyed frames in the STATE lane are held in insertion order by key, so adding a frame whose key is
+ * already waiting replaces the waiting frame in its place. The STATE lane is guarded by its own
+ * lock; the other lanes are lock free RingBuffers.
+ *
+ * A bounded queue holds at most its capacity of frames besides SYSTEM frames, which are always
+ * added; a keyed frame that replaces a waiting one does not need room.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+final class PriorityFrameQueue {
+	private static final int SYSTEM = SendLane.SYSTEM.ordinal();
+	private static final int STATE = SendLane.STATE.ordinal();
+	private static final int LANES = SendLane.values().length;
+	// the lanes DROP_OLDEST discards from, in order
+	private static final int[] DROP_ORDER = { STATE, SendLane.BULK.ordinal(), SendLane.EVENTS.ordinal() };
+	// how long a blocked offer() sleeps between checks for room
+	private static final long BLOCKED_WAIT_NANOS = 100000;
+
+	// the STATE entry is null; state frames are in stateLane
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final RingBuffer<SharedFrame>[] lanes = new RingBuffer[LANES];
+	// keyed by state key, or by the frame itself for frames without one
+	private final LinkedHashMap<Object, SharedFrame> stateLane = new LinkedHashMap<Object, SharedFrame>();
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final AtomicLong superseded;
+	private final int[] quantum = new int[LANES];
+	private final int capacity;
+	private volatile boolean closed = false;
+
+	// sending thread only
+	private final long[] deficit = new long[LANES];
+	private int current = SYSTEM + 1;
+	private boolean visited = false;
+
+	/**
+	 * @param capacity the most frames held, or QueueLimits.UNBOUNDED.
+	 * @param superseded counts the state frames replaced before being sent; may be shared by every
+	 *        connection of a server.
+	 */
+	PriorityFrameQueue(SendLanes sendLanes, int capacity, AtomicLong superseded) {
+		this.capacity = capacity;
+		this.superseded = superseded;
+		for (int lane = 0; lane < LANES; ++lane) {
+			if (lane != STATE) {
+				lanes[lane] = new RingBuffer<SharedFrame>(RingBuffer.slotsFor(capacity));
+			}
+			quantum[lane] = sendLanes.getWeight(SendLane.values()[lane]) * SendLanes.QUANTUM_BYTES;
+		}
+	}
+
+	/**
+	 * Add a frame regardless of the capacity, taking over the caller's reference to it. A frame
+	 * added after close() is released.
+	 */
+	void add(SharedFrame frame) {
+		if (!tryAdd(frame, false)) {
+			throw new IllegalStateException("PriorityFrameQueue: frame refused");
+		}
+		releaseIfClosed();
+	}
+
+	/**
+	 * Add a frame, taking over the caller's reference to it, and apply the policy if the queue is
+	 * full. A frame added after close() is released.
+	 *
+	 * @return false if the queue is full and the policy is DISCONNECT. The frame is released and
+	 *         the queue is closed, so only one caller is told to drop the connection.
+	 */
+	boolean offer(SharedFrame frame, OverflowPolicy policy) {
+		while (!closed) {
+			if (tryAdd(frame, true)) {
+				releaseIfClosed();
+				return true;
+			}
+			switch (policy) {
+			case BLOCK:
+				LockSupport.parkNanos(BLOCKED_WAIT_NANOS);
+				break;
+			case DROP_OLDEST:
+				if (!dropOldest()) {
+					// nothing can be dropped, so make room past the capacity
+					add(frame);
+					return true;
+				}
+				break;
+			case DROP_NEWEST:
+				frame.release();
+				return true;
+			default:
+				closed = true;
+				frame.release();
+				releaseAll();
+				return false;
+			}
+		}
+		frame.release();
+		return true;
+	}
+
+	/**
+	 * @return true if a frame that is not a SYSTEM frame or a replacement would be refused.
+	 */
+	boolean isFull() {
+		return capacity != QueueLimits.UNBOUNDED && size.get() >= capacity;
+	}
+
+	/**
+	 * Take the next frame to send. Must only be called by the sending thread.
+	 *
+	 * @return the frame, whose reference passes to the caller, or null if no frame is waiting in a
+	 *         lane.
+	 */
+	SharedFrame poll() {
+		// every visit to a waiting lane adds to its allowance, so this ends once one covers its frame.
+		// A frame is counted in size before it is in its lane, so a pass that finds every lane empty
+		// ends it too, and SYSTEM is checked on every pass in case the frame counted was its own.
+		int idleLanes = 0;
+		while (size.get() > 0) {
+			SharedFrame frame = lanes[SYSTEM].poll();
+			if (frame != null) {
+				size.decrementAndGet();
+				return frame;
+			}
+			SharedFrame head = peek(current);
+			if (head == null) {
+				// an idle lane does not save up allowance
+				deficit[current] = 0;
+				next();
+				if (++idleLanes == LANES - 1) {
+					return null;
+				}
+				continue;
+			}
+			idleLanes = 0;
+			if (!visited) {
+				deficit[current] += quantum[current];
+				visited = true;
+			}
+			if (deficit[current] >= head.length()) {
+				frame = take(current);
+				if (frame != null) {
+					deficit[current] -= frame.length();
+					size.decrementAndGet();
+					return frame;
+				}
+			}
+			next();
+		}
+		return null;
+	}
+
+	boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/**
+	 * @return the number of frames waiting.
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Discard every frame and refuse frames offered later, for a connection that is being dropped.
+	 */
+	void close() {
+		closed = true;
+		releaseAll();
+	}
+
+	/**
+	 * Discard every frame, releasing each one.
+	 */
+	void releaseAll() {
+		SharedFrame frame;
+		for (int lane = 0; lane < LANES; ++lane) {
+			while ((frame = take(lane)) != null) {
+				size.decrementAndGet();
+				frame.release();
+			}
+		}
+	}
+
+	/**
+	 * Release what was just added if close() ran meanwhile. close() marks the queue before it
+	 * discards the frames, so a frame added before the mark is discarded by close() and one added
+	 * after it is seen here.
+	 */
+	private void releaseIfClosed() {
+		if (closed) {
+			releaseAll();
+		}
+	}
+
+	/**
+	 * @return false if the frame needs room and the queue is full.
+	 */
+	private boolean tryAdd(SharedFrame frame, boolean bounded) {
+		int lane = frame.lane().ordinal();
+		if (lane == SYSTEM) {
+			bounded = false;
+		}
+		if (lane != STATE) {
+			if (!reserve(bounded)) {
+				return false;
+			}
+			lanes[lane].add(frame);
+			return true;
+		}
+		Object key = frame.stateKey() == null ? frame : frame.stateKey();
+		SharedFrame replaced;
+		synchronized (stateLane) {
+			// put() keeps the position of an existing key
+			replaced = stateLane.get(key);
+			if (replaced == null && !reserve(bounded)) {
+				return false;
+			}
+			stateLane.put(key, frame);
+		}
+		if (replaced != null) {
+			superseded.incrementAndGet();
+			replaced.release();
+		}
+		return true;
+	}
+
+	private boolean reserve(boolean bounded) {
+		int current;
+		do {
+			current = size.get();
+			if (bounded && capacity != QueueLimits.UNBOUNDED && current >= capacity) {
+				return false;
+			}
+		} while (!size.compareAndSet(current, current + 1));
+		return true;
+	}
+
+	/**
+	 * @return false if there was nothing that may be dropped.
+	 */
+	private boolean dropOldest() {
+		for (int lane : DROP_ORDER) {
+			SharedFrame frame = take(lane);
+			if (frame != null) {
+				size.decrementAndGet();
+				frame.release();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void next() {
+		current = current + 1 == LANES ? SYSTEM + 1 : current + 1;
+		visited = false;
+	}
+
+	private SharedFrame peek(int lane) {
+		if (lane != STATE) {
+			return lanes[lane].peek();
+		}
+		synchronized (stateLane) {
+			return stateLane.isEmpty() ? null : stateLane.values().iterator().next();
+		}
+	}
+
+	private SharedFrame take(int lane) {
+		if (lane != STATE) {
+			return lanes[lane].poll();
+		}
+		synchronized (stateLane) {
+			Iterator<SharedFrame> iterator = stateLane.values().iterator();
+			if (!iterator.hasNext()) {
+				return null;
+			}
+			SharedFrame frame = iterator.next();
+			iterator.remove();
+			return frame;
+		}
+	}
+}
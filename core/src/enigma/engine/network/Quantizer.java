@@ -0,0 +1,131 @@
+package enigma.engine.network;
+
+/**
+ * Fixed-point encoding of a float that is known to lie within a range. The range is divided into
+ * 2^bits - 1 equal steps and a value is sent as the number of the nearest step, so a field that
+ * needs no more precision than getResolution() can be written in far fewer than 32 bits.
+ *
+ * A bounded quantizer clamps values outside [min, max] to the nearest bound. An angle quantizer
+ * wraps degrees into [0, 360) instead, so angles are never clamped.
+ *
+ * Quantizers are immutable and can be shared by every thread.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public final class Quantizer {
+	public static final int MAX_BITS = 31;
+
+	private final float min;
+	private final float max;
+	private final int bits;
+	private final int maxStep;
+	private final float step;
+	private final boolean wraps;
+
+	/**
+	 * @param min the smallest value that can be encoded.
+	 * @param max the largest value that can be encoded.
+	 * @param bits bits per value, 1 to MAX_BITS.
+	 * @throws IllegalArgumentException if the range is empty or bits is out of range.
+	 */
+	public Quantizer(float min, float max, int bits) {
+		this(min, max, bits, false);
+	}
+
+	private Quantizer(float min, float max, int bits, boolean wraps) {
+		if (!(max > min)) {
+			throw new IllegalArgumentException("Quantizer: max must be greater than min");
+		}
+		if (bits < 1 || bits > MAX_BITS) {
+			throw new IllegalArgumentException("Quantizer: bits must be between 1 and " + MAX_BITS + ", was " + bits);
+		}
+		this.min = min;
+		this.max = max;
+		this.bits = bits;
+		this.maxStep = (1 << bits) - 1;
+		this.wraps = wraps;
+		// a wrapping range shares its two ends, so it is split into one more step
+		this.step = (max - min) / (wraps ? maxStep + 1 : maxStep);
+	}
+
+	/**
+	 * @param bits bits per value, 1 to MAX_BITS.
+	 * @return a quantizer for angles in degrees; any angle is accepted and decodes to [0, 360).
+	 */
+	public static Quantizer angle(int bits) {
+		return new Quantizer(0, 360, bits, true);
+	}
+
+	/**
+	 * @return the step number nearest to value, from 0 to 2^bits - 1.
+	 */
+	public int quantize(float value) {
+		if (wraps) {
+			long stepNumber = Math.round(((double) value - min) / step);
+			return (int) (stepNumber & maxStep);
+		}
+		if (!(value > min)) {
+			// also catches NaN
+			return 0;
+		}
+		if (value >= max) {
+			return maxStep;
+		}
+		return Math.round((value - min) / step);
+	}
+
+	/**
+	 * @return the value at the given step number.
+	 */
+	public float dequantize(int stepNumber) {
+		if (!wraps && stepNumber == maxStep) {
+			// exact, so max itself survives encoding
+			return max;
+		}
+		return min + stepNumber * step;
+	}
+
+	/**
+	 * @return value as the receiver will see it.
+	 */
+	public float round(float value) {
+		return dequantize(quantize(value));
+	}
+
+	/**
+	 * @return true if both values encode to the same step, so sending b after a changes nothing.
+	 */
+	public boolean sameStep(float a, float b) {
+		return quantize(a) == quantize(b);
+	}
+
+	public void write(BitWriter out, float value) {
+		out.writeBits(quantize(value), bits);
+	}
+
+	public float read(BitReader in) {
+		return dequantize(in.readBits(bits));
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	/**
+	 * @return the distance between two neighbouring encoded values; a value may be decoded up to
+	 *         half of this away from what was written.
+	 */
+	public float getResolution() {
+		return step;
+	}
+
+	public float getMin() {
+		return min;
+	}
+
+	public float getMax() {
+		return max;
+	}
+}
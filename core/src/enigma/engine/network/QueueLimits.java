@@ -0,0 +1,84 @@
+package enigma.engine.network;
+
+/**
+ * Bounds the packets a Client, Server, or NioServer holds for each connection, so one slow client
+ * or a stalled game loop cannot use up the heap.
+ *
+ * The send capacity bounds the packets waiting to be sent to each client (and, on a server, the
+ * packets waiting to be encoded), and the receive capacity bounds the packets received from each
+ * client that the game has not taken yet. System messages are always queued. What happens to a
+ * packet queued while its queue is full is chosen by the overflow policies; use tryQueueToSend()
+ * to find out that a send queue is full without the policy being applied.
+ *
+ * Both capacities are UNBOUNDED by default. The limits are read when the connection is made.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public class QueueLimits {
+	public static final int UNBOUNDED = 0;
+
+	private int sendCapacity = UNBOUNDED;
+	private OverflowPolicy sendOverflow = OverflowPolicy.BLOCK;
+	private int receiveCapacity = UNBOUNDED;
+	private OverflowPolicy receiveOverflow = OverflowPolicy.BLOCK;
+
+	public int getSendCapacity() {
+		return sendCapacity;
+	}
+
+	/**
+	 * @param sendCapacity the most packets waiting to be sent to one connection, or UNBOUNDED.
+	 */
+	public void setSendCapacity(int sendCapacity) {
+		this.sendCapacity = checkCapacity(sendCapacity);
+	}
+
+	public OverflowPolicy getSendOverflow() {
+		return sendOverflow;
+	}
+
+	/**
+	 * @param sendOverflow what happens to a packet sent while the send queue is full.
+	 */
+	public void setSendOverflow(OverflowPolicy sendOverflow) {
+		this.sendOverflow = checkPolicy(sendOverflow);
+	}
+
+	public int getReceiveCapacity() {
+		return receiveCapacity;
+	}
+
+	/**
+	 * @param receiveCapacity the most received packets held for the game from one connection, or
+	 *            UNBOUNDED.
+	 */
+	public void setReceiveCapacity(int receiveCapacity) {
+		this.receiveCapacity = checkCapacity(receiveCapacity);
+	}
+
+	public OverflowPolicy getReceiveOverflow() {
+		return receiveOverflow;
+	}
+
+	/**
+	 * @param receiveOverflow what happens to a packet received while the receive queue is full.
+	 */
+	public void setReceiveOverflow(OverflowPolicy receiveOverflow) {
+		this.receiveOverflow = checkPolicy(receiveOverflow);
+	}
+
+	private static int checkCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("QueueLimits: capacity can not be negative");
+		}
+		return capacity;
+	}
+
+	private static OverflowPolicy checkPolicy(OverflowPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("QueueLimits: policy can not be null");
+		}
+		return policy;
+	}
+}
@@ -0,0 +1,55 @@
+package enigma.engine.network;
+
+/**
+ * Decides how a Server shares the game's attention between the clients it receives packets from,
+ * so that one client sending a flood of packets cannot starve the others.
+ *
+ * Clients with packets waiting take turns: each turn hands the game up to packetsPerTurn packets
+ * from one client before moving on to the next. A client may also be limited to packetsPerTick
+ * packets per tick; the rest of its packets wait for the next tick. A tick ends when the game
+ * finds no more packets it may take, that is when getNextReceivedPacket() returns null,
+ * hasReceivedPacket() returns false, or a drainReceived() call runs out of packets it may take; a
+ * drainReceived() call takes no more from a client than it had waiting when its first turn in the
+ * call came up. Datagrams from every client are received together and take their turns as if
+ * they came from one more client.
+ *
+ * By default every client is given one packet per turn and there is no limit per tick.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public class ReceiveFairness {
+	public static final int UNLIMITED = 0;
+
+	private int packetsPerTurn = 1;
+	private int packetsPerTick = UNLIMITED;
+
+	public int getPacketsPerTurn() {
+		return packetsPerTurn;
+	}
+
+	/**
+	 * @param packetsPerTurn the most packets taken from one client before the next client's turn.
+	 *            Larger turns keep each client's packets together at the cost of fairness.
+	 */
+	public void setPacketsPerTurn(int packetsPerTurn) {
+		if (packetsPerTurn < 1) {
+			throw new IllegalArgumentException("ReceiveFairness: a turn must take at least one packet");
+		}
+		this.packetsPerTurn = packetsPerTurn;
+	}
+
+	public int getPacketsPerTick() {
+		return packetsPerTick;
+	}
+
+	/**
+	 * @param packetsPerTick the most packets taken from one client in a tick, or UNLIMITED.
+	 */
+	public void setPacketsPerTick(int packetsPerTick) {
+		if (packetsPerTick < 0) {
+			throw new IllegalArgumentException("ReceiveFairness: quota can not be negative");
+		}
+		this.packetsPerTick = packetsPerTick;
+	}
+}
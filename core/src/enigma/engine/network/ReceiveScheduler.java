@@ -0,0 +1,220 @@
+package enigma.engine.network;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Merges the packets received from many clients into one stream for the game, taking turns between
+ * the clients as set by a ReceiveFairness.
+ *
+ * Each client's packets stay in its own queue, which is wrapped in a Source. A receive thread calls
+ * ready() after adding a packet, and a source that is not already waiting joins the back of the
+ * ready queue. The game takes packets from the source at the front until its turn or its quota for
+ * the tick is used up, then the source goes to the back, or waits for the next tick. A source that
+ * runs out of packets leaves the ready queue until a receive thread marks it ready again. Nothing
+ * ever scans the sources or counts their queues, so taking a packet costs the same however many
+ * clients are connected.
+ *
+ * The tick ends whenever the game looks for a packet and no source may give one, whether through
+ * poll() or hasPackets().
+ *
+ * drain() hands each source over no more packets than it held when its first turn in the call came
+ * up. A source that has given those sits out the rest of the call, so a client that never stops
+ * sending cannot keep the game draining.
+ *
+ * ready() may be called by any thread; poll() and hasPackets() only by the game's thread.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+final class ReceiveScheduler {
+	private final RingBuffer<Source> ready;
+	// sources that used their quota this tick, still marked as scheduled; game thread only
+	private final ArrayList<Source> waitingForTick = new ArrayList<Source>();
+	// sources that gave what they held for the current drain(), still marked as scheduled
+	private final ArrayList<Source> waitingForDrain = new ArrayList<Source>();
+	private volatile ReceiveFairness fairness = new ReceiveFairness();
+	// the source whose turn it is, and the packets it has given this turn; game thread only
+	private Source current;
+	private int takenThisTurn;
+	private long tick;
+	// counts drain() calls; draining is true during one
+	private long drain;
+	private boolean draining;
+
+	/**
+	 * @param sources the number of sources expected to be ready at once. More may be, at the cost
+	 *            of allocating while they are.
+	 */
+	ReceiveScheduler(int sources) {
+		ready = new RingBuffer<Source>(sources);
+	}
+
+	void setFairness(ReceiveFairness fairness) {
+		this.fairness = fairness;
+	}
+
+	ReceiveFairness getFairness() {
+		return fairness;
+	}
+
+	/**
+	 * Tell the scheduler that a source has packets. Cheap if the source is already waiting.
+	 */
+	void ready(Source source) {
+		if (source.scheduled.compareAndSet(false, true)) {
+			ready.add(source);
+		}
+	}
+
+	/**
+	 * @return the next packet to hand the game, or null if no source may give one this tick; the
+	 *         tick then ends.
+	 */
+	Packet poll() {
+		while (advance()) {
+			if (draining && !mayGiveToDrain(current)) {
+				waitingForDrain.add(current);
+				current = null;
+				continue;
+			}
+			Packet packet = current.poll();
+			if (packet == null) {
+				continue;
+			}
+			if (draining) {
+				--current.leftForDrain;
+			}
+
+			ReceiveFairness fairness = this.fairness;
+			++takenThisTurn;
+			++current.takenThisTick;
+			int quota = fairness.getPacketsPerTick();
+			if (quota != ReceiveFairness.UNLIMITED && current.takenThisTick >= quota) {
+				waitingForTick.add(current);
+				current = null;
+			} else if (takenThisTurn >= fairness.getPacketsPerTurn()) {
+				// still scheduled, so it goes straight to the back
+				ready.add(current);
+				current = null;
+			}
+			return packet;
+		}
+		return null;
+	}
+
+	/**
+	 * Hand packets to a handler in the order poll() would return them, until the tick ends, max
+	 * have been handled, or every source has given the packets it held at its first turn.
+	 * 
+	 * @return the number of packets handled.
+	 */
+	int drain(PacketHandler handler, int max) {
+		++drain;
+		draining = true;
+		int count = 0;
+		try {
+			Packet packet;
+			while (count < max && (packet = poll()) != null) {
+				handler.handle(packet);
+				++count;
+			}
+		} finally {
+			draining = false;
+			for (int i = 0; i < waitingForDrain.size(); ++i) {
+				ready.add(waitingForDrain.get(i));
+			}
+			waitingForDrain.clear();
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if poll() would return a packet. If it would not, the tick ends.
+	 */
+	boolean hasPackets() {
+		return advance();
+	}
+
+	/**
+	 * Make the first source with packets the current one, removing the empty sources ahead of it.
+	 * 
+	 * @return false if no source may give a packet this tick; the tick has then ended.
+	 */
+	private boolean advance() {
+		while (true) {
+			if (current != null) {
+				if (!current.isEmpty()) {
+					return true;
+				}
+				unschedule(current);
+			}
+			current = ready.poll();
+			if (current == null) {
+				endTick();
+				return false;
+			}
+			takenThisTurn = 0;
+			if (current.tick != tick) {
+				current.tick = tick;
+				current.takenThisTick = 0;
+			}
+		}
+	}
+
+	/**
+	 * Count the packets a source may give to the current drain() from those it holds at its first
+	 * turn in it.
+	 */
+	private boolean mayGiveToDrain(Source source) {
+		if (source.drain != drain) {
+			source.drain = drain;
+			source.leftForDrain = source.size();
+		}
+		return source.leftForDrain > 0;
+	}
+
+	/**
+	 * Start a new tick; the sources that used their quota take turns again.
+	 */
+	private void endTick() {
+		++tick;
+		for (int i = 0; i < waitingForTick.size(); ++i) {
+			ready.add(waitingForTick.get(i));
+		}
+		waitingForTick.clear();
+	}
+
+	private void unschedule(Source source) {
+		source.scheduled.set(false);
+		// a packet added after the source was found empty, but before it was unscheduled, would
+		// otherwise wait until the next packet arrived
+		if (!source.isEmpty()) {
+			ready(source);
+		}
+	}
+
+	/**
+	 * One client's received packets, or any other queue the scheduler takes turns with.
+	 */
+	abstract static class Source {
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		// game thread only
+		private long tick = -1;
+		private int takenThisTick;
+		private long drain = -1;
+		private int leftForDrain;
+
+		/**
+		 * @return the next packet from this source, or null if it has none.
+		 */
+		abstract Packet poll();
+
+		abstract boolean isEmpty();
+
+		/**
+		 * @return the number of packets this source holds, counted without walking them.
+		 */
+		abstract int size();
+	}
+}
@@ -0,0 +1,99 @@
+package enigma.engine.network;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable set of player ids that a server sends a packet to, instead of broadcasting it. Ids
+ * of players that are not connected are ignored when sending.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public final class Recipients {
+	/** no players */
+	public static final Recipients NONE = new Recipients(new char[0]);
+
+	// sorted, without duplicates
+	private final char[] ids;
+
+	private Recipients(char[] ids) {
+		this.ids = ids;
+	}
+
+	/**
+	 * @param ids player ids, as given by NetworkPlayer.getID(); duplicates are ignored.
+	 */
+	public static Recipients of(char... ids) {
+		char[] sorted = Arrays.copyOf(ids, ids.length);
+		Arrays.sort(sorted);
+		int count = 0;
+		for (int i = 0; i < sorted.length; ++i) {
+			if (count == 0 || sorted[count - 1] != sorted[i]) {
+				sorted[count++] = sorted[i];
+			}
+		}
+		return new Recipients(count == sorted.length ? sorted : Arrays.copyOf(sorted, count));
+	}
+
+	public static Recipients of(NetworkPlayer player) {
+		return new Recipients(new char[] { player.getID() });
+	}
+
+	public static Recipients of(Collection<NetworkPlayer> players) {
+		char[] ids = new char[players.size()];
+		int i = 0;
+		for (NetworkPlayer player : players) {
+			ids[i++] = player.getID();
+		}
+		return of(ids);
+	}
+
+	/**
+	 * @return these recipients and the given player.
+	 */
+	public Recipients with(char id) {
+		if (contains(id)) {
+			return this;
+		}
+		char[] larger = Arrays.copyOf(ids, ids.length + 1);
+		larger[ids.length] = id;
+		Arrays.sort(larger);
+		return new Recipients(larger);
+	}
+
+	/**
+	 * @return these recipients without the given player.
+	 */
+	public Recipients without(char id) {
+		int index = Arrays.binarySearch(ids, id);
+		if (index < 0) {
+			return this;
+		}
+		char[] smaller = new char[ids.length - 1];
+		System.arraycopy(ids, 0, smaller, 0, index);
+		System.arraycopy(ids, index + 1, smaller, index, smaller.length - index);
+		return smaller.length == 0 ? NONE : new Recipients(smaller);
+	}
+
+	public boolean contains(char id) {
+		return Arrays.binarySearch(ids, id) >= 0;
+	}
+
+	public boolean isEmpty() {
+		return ids.length == 0;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @param index from 0 to size() - 1.
+	 * @return the id at index; ids are in ascending order.
+	 */
+	public char get(int index) {
+		return ids[index];
+	}
+}
@@ -0,0 +1,305 @@
+package enigma.engine.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reliable, ordered stream of RELIABLE_DATAGRAM packets between a DatagramEndpoint and one
+ * remote endpoint. Holds both directions: the packets this end has sent and not yet had
+ * acknowledged, and the packets received ahead of a missing one.
+ *
+ * Every packet is given a sequence number. Acknowledgements carry three numbers: the sequence
+ * below which every packet has arrived, the newest sequence that has arrived, and a bitfield of
+ * which of the 32 sequences before the newest have arrived. A packet is sent again when its
+ * retransmit timeout expires, or early when three newer packets have been acknowledged while it
+ * has not, so only the packets that were actually lost are resent.
+ *
+ * The retransmit timeout is estimated from round trip times the same way TCP does (RFC 6298):
+ * samples are only taken from packets that were sent once, and each resend of a packet doubles
+ * its timeout.
+ *
+ * At most WINDOW packets are in flight; packets queued beyond that wait until earlier ones are
+ * acknowledged, so the receiver never has to buffer more than WINDOW packets.
+ *
+ * All methods are synchronized; the channel is used by the thread queueing packets, the
+ * endpoint's receive thread, and its service thread.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+final class ReliableChannel {
+	/** the number of bytes the acknowledgement fields add to a datagram */
+	static final int ACK_BYTES = 12;
+	static final int WINDOW = 256;
+	private static final int FAST_RETRANSMIT_GAP = 3;
+	private static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+	private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+	/** the result of accept() */
+	static final int DUPLICATE = 0;
+	static final int ACCEPTED = 1;
+	static final int OUT_OF_WINDOW = 2;
+
+	// sending
+	private final ArrayDeque<byte[]> waiting = new ArrayDeque<byte[]>();
+	private final ArrayDeque<Outgoing> inFlight = new ArrayDeque<Outgoing>();
+	private int nextSequence = 0;
+
+	// round trip estimation
+	private long smoothedRttNanos = -1;
+	private long rttVariationNanos = 0;
+	private long rtoNanos = INITIAL_RTO_NANOS;
+
+	// receiving
+	private int nextExpected = 0;
+	private int newestReceived = -1;
+	private boolean receivedAny = false;
+	private final Object[] aheadOfOrder = new Object[WINDOW];
+	private final boolean[] receivedAhead = new boolean[WINDOW];
+
+	/** stands in for a packet that arrived but could not be decoded */
+	private static final Object UNDECODABLE = new Object();
+
+	/**
+	 * Queue an encoded packet body to be sent.
+	 */
+	synchronized void queue(byte[] body) {
+		waiting.add(body);
+	}
+
+	/**
+	 * Collect the packets that must be sent now: packets that were never sent, packets whose
+	 * retransmit timeout has expired, and packets marked for fast retransmit. The returned packets
+	 * are counted as sent.
+	 *
+	 * @param nowNanos the current System.nanoTime().
+	 * @param due receives the packets to send.
+	 */
+	synchronized void collectDue(long nowNanos, List<Outgoing> due) {
+		while (inFlight.size() < WINDOW && !waiting.isEmpty()) {
+			inFlight.add(new Outgoing(nextSequence++, waiting.poll()));
+		}
+		for (Outgoing outgoing : inFlight) {
+			if (outgoing.acked) {
+				continue;
+			}
+			if (outgoing.sends == 0 || outgoing.fastRetransmit || nowNanos - outgoing.deadlineNanos >= 0) {
+				if (outgoing.sends == 0) {
+					outgoing.firstSentNanos = nowNanos;
+				}
+				outgoing.sends++;
+				outgoing.fastRetransmit = false;
+				outgoing.deadlineNanos = nowNanos + backedOffTimeout(outgoing.sends);
+				due.add(outgoing);
+			}
+		}
+	}
+
+	/**
+	 * @return nanoseconds until a packet needs to be sent, 0 if one is due now, or Long.MAX_VALUE
+	 *         if nothing is waiting to be sent or acknowledged.
+	 */
+	synchronized long nanosUntilDue(long nowNanos) {
+		if (!waiting.isEmpty() && inFlight.size() < WINDOW) {
+			return 0;
+		}
+		long soonest = Long.MAX_VALUE;
+		for (Outgoing outgoing : inFlight) {
+			if (outgoing.acked) {
+				continue;
+			}
+			if (outgoing.sends == 0 || outgoing.fastRetransmit) {
+				return 0;
+			}
+			soonest = Math.min(soonest, Math.max(0, outgoing.deadlineNanos - nowNanos));
+		}
+		return soonest;
+	}
+
+	/**
+	 * @return the number of packets queued or in flight that have not been acknowledged.
+	 */
+	synchronized int unacknowledged() {
+		int count = waiting.size();
+		for (Outgoing outgoing : inFlight) {
+			if (!outgoing.acked) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the smoothed round trip time in nanoseconds, or -1 if nothing has been measured.
+	 */
+	synchronized long getSmoothedRttNanos() {
+		return smoothedRttNanos;
+	}
+
+	synchronized long getRetransmitTimeoutNanos() {
+		return rtoNanos;
+	}
+
+	/**
+	 * Apply acknowledgement fields received from the remote endpoint.
+	 *
+	 * @param datagram positioned at the fields.
+	 * @param nowNanos the current System.nanoTime().
+	 * @return true if a packet became due to send (the window opened or a loss was detected).
+	 */
+	synchronized boolean readAcks(ByteBuffer datagram, long nowNanos) {
+		int below = datagram.getInt();
+		int newest = datagram.getInt();
+		int bits = datagram.getInt();
+
+		boolean anyAcked = false;
+		for (Outgoing outgoing : inFlight) {
+			if (outgoing.acked) {
+				continue;
+			}
+			int distance = newest - 1 - outgoing.sequence;
+			boolean acked = outgoing.sequence - below < 0 || outgoing.sequence == newest
+					|| (distance >= 0 && distance < 32 && (bits & (1 << distance)) != 0);
+			if (acked) {
+				outgoing.acked = true;
+				anyAcked = true;
+				// Karn's algorithm: the ack of a resent packet may belong to either send
+				if (outgoing.sends == 1 && outgoing.sequence == newest) {
+					sampleRtt(nowNanos - outgoing.firstSentNanos);
+				}
+			} else if (newest - outgoing.sequence >= FAST_RETRANSMIT_GAP && !outgoing.fastRetransmitted) {
+				// three newer packets arrived without this one: it was lost, don't wait for the timeout
+				outgoing.fastRetransmit = true;
+				outgoing.fastRetransmitted = true;
+				anyAcked = true;
+			}
+		}
+		while (!inFlight.isEmpty() && inFlight.peek().acked) {
+			inFlight.poll();
+		}
+		return anyAcked && (!waiting.isEmpty() || hasFastRetransmit());
+	}
+
+	private boolean hasFastRetransmit() {
+		for (Outgoing outgoing : inFlight) {
+			if (outgoing.fastRetransmit) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void sampleRtt(long sampleNanos) {
+		if (smoothedRttNanos < 0) {
+			smoothedRttNanos = sampleNanos;
+			rttVariationNanos = sampleNanos / 2;
+		} else {
+			rttVariationNanos = (3 * rttVariationNanos + Math.abs(smoothedRttNanos - sampleNanos)) / 4;
+			smoothedRttNanos = (7 * smoothedRttNanos + sampleNanos) / 8;
+		}
+		rtoNanos = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, smoothedRttNanos + 4 * rttVariationNanos));
+	}
+
+	private long backedOffTimeout(int sends) {
+		long timeout = rtoNanos;
+		for (int i = 1; i < sends && timeout < MAX_RTO_NANOS; ++i) {
+			timeout *= 2;
+		}
+		return Math.min(timeout, MAX_RTO_NANOS);
+	}
+
+	/**
+	 * Write acknowledgement fields describing everything received so far.
+	 */
+	synchronized void writeAcks(ByteBuffer datagram) {
+		int bits = 0;
+		for (int distance = 0; distance < 32; ++distance) {
+			int sequence = newestReceived - 1 - distance;
+			if (sequence - nextExpected < 0 || (sequence - nextExpected < WINDOW && receivedAhead[slot(sequence)])) {
+				bits |= 1 << distance;
+			}
+		}
+		datagram.putInt(nextExpected);
+		datagram.putInt(newestReceived);
+		datagram.putInt(bits);
+	}
+
+	/**
+	 * @return DUPLICATE if the packet was already received, OUT_OF_WINDOW if it is too far ahead to
+	 *         buffer, otherwise ACCEPTED and the packet should be decoded and passed to receive().
+	 */
+	synchronized int accept(int sequence) {
+		int ahead = sequence - nextExpected;
+		if (ahead < 0 || (ahead < WINDOW && receivedAhead[slot(sequence)])) {
+			return DUPLICATE;
+		}
+		return ahead < WINDOW ? ACCEPTED : OUT_OF_WINDOW;
+	}
+
+	/**
+	 * Record an accepted packet and add every packet that is now in order to inOrder.
+	 *
+	 * @param packet the decoded packet, or null if it could not be decoded.
+	 */
+	synchronized void receive(int sequence, Packet packet, List<Packet> inOrder) {
+		if (accept(sequence) != ACCEPTED) {
+			return;
+		}
+		int slot = slot(sequence);
+		aheadOfOrder[slot] = packet == null ? UNDECODABLE : packet;
+		receivedAhead[slot] = true;
+		if (!receivedAny || sequence - newestReceived > 0) {
+			newestReceived = sequence;
+			receivedAny = true;
+		}
+
+		while (receivedAhead[slot(nextExpected)]) {
+			slot = slot(nextExpected);
+			Object received = aheadOfOrder[slot];
+			aheadOfOrder[slot] = null;
+			receivedAhead[slot] = false;
+			if (received != UNDECODABLE) {
+				inOrder.add((Packet) received);
+			}
+			nextExpected++;
+		}
+	}
+
+	private static int slot(int sequence) {
+		return sequence & (WINDOW - 1);
+	}
+
+	/**
+	 * Drop everything queued and buffered.
+	 */
+	synchronized void clear() {
+		waiting.clear();
+		inFlight.clear();
+		for (int i = 0; i < WINDOW; ++i) {
+			aheadOfOrder[i] = null;
+			receivedAhead[i] = false;
+		}
+	}
+
+	/**
+	 * A packet that has been given a sequence number.
+	 */
+	static final class Outgoing {
+		final int sequence;
+		final byte[] body;
+		int sends = 0;
+		long firstSentNanos;
+		long deadlineNanos;
+		boolean acked = false;
+		boolean fastRetransmit = false;
+		boolean fastRetransmitted = false;
+
+		Outgoing(int sequence, byte[] body) {
+			this.sequence = sequence;
+			this.body = body;
+		}
+	}
+}
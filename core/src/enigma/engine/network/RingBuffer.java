@@ -0,0 +1,166 @@
+package enigma.engine.network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A queue that many threads add to and one thread takes from, kept in a preallocated ring whose
+ * size is a power of two, so adding and taking do not allocate. Every slot has a sequence number
+ * that tells producers when the slot is free and the consumer when it has been filled. Producers
+ * claim slots by advancing the tail with a compare and set; the head and tail counters are padded
+ * so they do not share a cache line. A slot claimed but not yet filled holds up the consumer until
+ * its producer fills it, since everything behind it was added later.
+ *
+ * The ring never refuses an element. Once it is full, elements wait in an overflow queue, and
+ * every element added while the overflow queue is not empty follows them there, so the elements
+ * added by any one thread are taken in the order they were added. Only a burst larger than the
+ * ring allocates.
+ *
+ * The head is advanced with a compare and set as well, so a thread other than the consumer may
+ * take elements in order to discard them.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+final class RingBuffer<E> {
+	/** the slots of a ring for an unbounded queue */
+	static final int DEFAULT_SLOTS = 1024;
+
+	private final Object[] elements;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final PaddedCounter head = new PaddedCounter();
+	private final PaddedCounter tail = new PaddedCounter();
+	private final ConcurrentLinkedQueue<E> overflow = new ConcurrentLinkedQueue<E>();
+	// counted before an element is added to overflow, so later elements follow it there
+	private final AtomicInteger overflowing = new AtomicInteger(0);
+
+	/**
+	 * @param minimumSlots the ring holds at least this many elements before overflowing.
+	 */
+	RingBuffer(int minimumSlots) {
+		int slots = 2;
+		while (slots < minimumSlots) {
+			slots <<= 1;
+		}
+		elements = new Object[slots];
+		sequences = new AtomicLongArray(slots);
+		for (int slot = 0; slot < slots; ++slot) {
+			sequences.set(slot, slot);
+		}
+		mask = slots - 1;
+	}
+
+	/**
+	 * @param capacity the capacity of the queue the ring backs, or QueueLimits.UNBOUNDED.
+	 * @return the slots to give the ring; larger queues use the overflow queue for the rest.
+	 */
+	static int slotsFor(int capacity) {
+		return capacity == QueueLimits.UNBOUNDED ? DEFAULT_SLOTS : Math.min(capacity, DEFAULT_SLOTS);
+	}
+
+	void add(E element) {
+		if (overflowing.get() == 0 && addToRing(element)) {
+			return;
+		}
+		overflowing.incrementAndGet();
+		overflow.add(element);
+	}
+
+	/**
+	 * @return the element at the head, or null if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		long position = head.get();
+		while (true) {
+			int slot = (int) position & mask;
+			long filled = sequences.get(slot) - (position + 1);
+			if (filled == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					E element = (E) elements[slot];
+					elements[slot] = null;
+					// free the slot for the producer one lap ahead
+					sequences.lazySet(slot, position + mask + 1);
+					return element;
+				}
+				position = head.get();
+			} else if (filled < 0) {
+				if (tail.get() != position) {
+					// the head is claimed but not filled yet; the elements in overflow came later
+					Thread.yield();
+					position = head.get();
+					continue;
+				}
+				// the ring is empty
+				E element = overflow.poll();
+				if (element != null) {
+					overflowing.decrementAndGet();
+				}
+				return element;
+			} else {
+				// another thread took the head
+				position = head.get();
+			}
+		}
+	}
+
+	/**
+	 * @return the element poll() would return, without taking it, or null if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	E peek() {
+		while (true) {
+			long position = head.get();
+			int slot = (int) position & mask;
+			long filled = sequences.get(slot) - (position + 1);
+			if (filled == 0) {
+				Object element = elements[slot];
+				if (element != null && head.get() == position) {
+					return (E) element;
+				}
+			} else if (filled < 0) {
+				if (tail.get() == position) {
+					return overflow.peek();
+				}
+				// wait for the claimed head to be filled, as poll() does
+				Thread.yield();
+			}
+		}
+	}
+
+	boolean isEmpty() {
+		return peek() == null;
+	}
+
+	private boolean addToRing(E element) {
+		long position = tail.get();
+		while (true) {
+			int slot = (int) position & mask;
+			long free = sequences.get(slot) - position;
+			if (free == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					elements[slot] = element;
+					// publishes the element to the consumer
+					sequences.lazySet(slot, position + 1);
+					return true;
+				}
+			} else if (free < 0) {
+				// the slot still holds the element from the previous lap, the ring is full
+				return false;
+			}
+			position = tail.get();
+		}
+	}
+
+	/**
+	 * A counter padded to fill a cache line, so updating it does not slow down threads reading
+	 * whatever is allocated next to it.
+	 */
+	@SuppressWarnings("serial")
+	private static final class PaddedCounter extends AtomicLong {
+		long p1, p2, p3, p4, p5, p6, p7 = 7L;
+	}
+}
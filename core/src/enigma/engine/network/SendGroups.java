@@ -0,0 +1,50 @@
+package enigma.engine.network;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The named send groups of a server. Each group is held as an immutable Recipients that is
+ * replaced when the group changes, so a send reads a group without locking and is not affected by
+ * later changes.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+class SendGroups {
+	private final ConcurrentHashMap<String, Recipients> groups = new ConcurrentHashMap<String, Recipients>();
+
+	/**
+	 * @return the members of the group, or Recipients.NONE if it has none.
+	 */
+	Recipients get(String group) {
+		Recipients members = groups.get(group);
+		return members == null ? Recipients.NONE : members;
+	}
+
+	synchronized void add(String group, char id) {
+		groups.put(group, get(group).with(id));
+	}
+
+	synchronized void remove(String group, char id) {
+		Recipients members = get(group).without(id);
+		if (members.isEmpty()) {
+			groups.remove(group);
+		} else {
+			groups.put(group, members);
+		}
+	}
+
+	/**
+	 * Remove a player from every group; called when the player disconnects, since its id may be
+	 * handed to the next player that connects.
+	 */
+	synchronized void removeEverywhere(char id) {
+		for (Map.Entry<String, Recipients> entry : groups.entrySet()) {
+			if (entry.getValue().contains(id)) {
+				remove(entry.getKey(), id);
+			}
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package enigma.engine.network;
+
+/**
+ * The lanes of a server connection's send queue. Packets within a lane are sent in the order they
+ * were queued; packets in different lanes are not ordered relative to each other. See SendLanes.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public enum SendLane {
+	/**
+	 * Ids and disconnect messages. Always sent before anything in the other lanes.
+	 */
+	SYSTEM,
+
+	/**
+	 * Game events that must arrive, such as chat or a player joining. The lane of every packet
+	 * that is not assigned another.
+	 */
+	EVENTS,
+
+	/**
+	 * State that is replaced by later updates, such as positions. A keyed packet (a StatePacket, or
+	 * a class given a key with SendLanes.coalesce()) queued while one with the same key is still
+	 * waiting replaces it, keeping its place in the lane, so a client that falls behind is sent the
+	 * newest state rather than every state in between.
+	 */
+	STATE,
+
+	/**
+	 * Large transfers, which should not hold back the other lanes.
+	 */
+	BULK
+}
@@ -0,0 +1,108 @@
+package enigma.engine.network;
+
+import java.util.HashMap;
+
+/**
+ * Chooses the SendLane of each packet a server sends, and how the lanes share each connection.
+ *
+ * SystemMessagePackets are always sent in the SYSTEM lane, which goes first. A StatePacket is sent
+ * in the STATE lane and any other packet in the EVENTS lane, unless its class is assigned a lane
+ * with assign() or coalesce(). The EVENTS, STATE and BULK lanes are served by weighted round robin over bytes:
+ * while all three have frames waiting, each is sent about weight * QUANTUM_BYTES per round, so a
+ * burst in one lane delays the others by at most a round.
+ *
+ * A packet in the STATE lane with a key replaces the unsent packet with the same key, so a client
+ * that falls behind is only ever waiting for one packet per entity. Keys are not tagged with the
+ * packet's class; classes whose keys may collide should use different ranges.
+ *
+ * The lanes are read when packets are encoded; set them before the server is started.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public class SendLanes {
+	/** the bytes a lane of weight 1 may send per round */
+	public static final int QUANTUM_BYTES = 1024;
+
+	private final HashMap<Class<?>, SendLane> lanes = new HashMap<Class<?>, SendLane>();
+	private final HashMap<Class<?>, StateKey<Packet>> keys = new HashMap<Class<?>, StateKey<Packet>>();
+	private final int[] weights = new int[SendLane.values().length];
+
+	public SendLanes() {
+		weights[SendLane.EVENTS.ordinal()] = 4;
+		weights[SendLane.STATE.ordinal()] = 4;
+		weights[SendLane.BULK.ordinal()] = 1;
+	}
+
+	/**
+	 * Send every packet of exactly this class in the given lane.
+	 *
+	 * @return this, for chaining.
+	 * @throws IllegalArgumentException if lane is SYSTEM, which is reserved for the network.
+	 */
+	public SendLanes assign(Class<? extends Packet> packetClass, SendLane lane) {
+		if (lane == SendLane.SYSTEM) {
+			throw new IllegalArgumentException("SendLanes: the SYSTEM lane is reserved");
+		}
+		lanes.put(packetClass, lane);
+		return this;
+	}
+
+	/**
+	 * Send every packet of exactly this class in the STATE lane, keyed by key, so only the newest
+	 * packet for each key waits to be sent. For classes that cannot implement StatePacket.
+	 *
+	 * @return this, for chaining.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Packet> SendLanes coalesce(Class<T> packetClass, StateKey<? super T> key) {
+		lanes.put(packetClass, SendLane.STATE);
+		keys.put(packetClass, (StateKey<Packet>) key);
+		return this;
+	}
+
+	/**
+	 * Set a lane's share of the connection.
+	 *
+	 * @param lane EVENTS, STATE or BULK.
+	 * @param weight at least 1.
+	 * @return this, for chaining.
+	 */
+	public SendLanes weight(SendLane lane, int weight) {
+		if (lane == SendLane.SYSTEM || weight < 1) {
+			throw new IllegalArgumentException("SendLanes: bad weight " + weight + " for " + lane);
+		}
+		weights[lane.ordinal()] = weight;
+		return this;
+	}
+
+	public int getWeight(SendLane lane) {
+		return weights[lane.ordinal()];
+	}
+
+	/**
+	 * @return the lane the packet is sent in.
+	 */
+	public SendLane laneOf(Packet packet) {
+		if (packet instanceof SystemMessagePacket) {
+			return SendLane.SYSTEM;
+		}
+		SendLane lane = lanes.get(packet.getClass());
+		if (lane != null) {
+			return lane;
+		}
+		return packet instanceof StatePacket ? SendLane.STATE : SendLane.EVENTS;
+	}
+
+	/**
+	 * @return the key the packet replaces queued packets by if it is sent in the STATE lane, or
+	 *         null if it has none.
+	 */
+	public Long stateKeyOf(Packet packet) {
+		StateKey<Packet> key = keys.get(packet.getClass());
+		if (key != null) {
+			return key.keyOf(packet);
+		}
+		return packet instanceof StatePacket ? ((StatePacket) packet).getStateKey() : null;
+	}
+}
@@ -0,0 +1,61 @@
+package enigma.engine.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A codec that sends every packet with java serialization. Any Packet can be sent this way, at the
+ * cost of class descriptors and reflection for every message. This is the fallback that
+ * BinaryPacketCodec uses for packet classes without a registered serializer.
+ * 
+ * Each packet is written to its own object stream, so no stream holds on to references of
+ * previously sent or received packets.
+ * 
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public class SerializationPacketCodec implements PacketCodec {
+	/** the type id that marks a java serialized frame body */
+	public static final short JAVA_SERIALIZED_TYPE = 0;
+
+	@Override
+	public void encode(Packet packet, ByteBuffer out) throws IOException {
+		out.putShort(JAVA_SERIALIZED_TYPE);
+		writeSerialized(packet, out);
+	}
+
+	@Override
+	public Packet decode(ByteBuffer body) throws IOException {
+		short type = body.getShort();
+		if (type != JAVA_SERIALIZED_TYPE) {
+			throw new IOException("SerializationPacketCodec: cannot decode packet type " + type);
+		}
+		return readSerialized(body);
+	}
+
+	static void writeSerialized(Packet packet, ByteBuffer out) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectStream = new ObjectOutputStream(bytes);
+		objectStream.writeUnshared(packet);
+		objectStream.close();
+		out.put(bytes.toByteArray());
+	}
+
+	static Packet readSerialized(ByteBuffer body) throws IOException {
+		byte[] bytes = new byte[body.remaining()];
+		body.get(bytes);
+		ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (Packet) objectStream.readUnshared();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("SerializationPacketCodec: unknown packet class", e);
+		} catch (ClassCastException e) {
+			throw new IOException("SerializationPacketCodec: received object is not a packet", e);
+		}
+	}
+}
@@ -1,27 +1,56 @@
 package enigma.engine.network;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class handles the server aspect of the application.
  * 
+ * Sockets are opened through channels so that send threads can write pooled direct buffers straight
+ * to the socket; receive threads still read through the socket's stream, which honours the read
+ * timeout the threads rely on to notice shutdown.
+ * 
+ * Each send thread collects everything queued for its socket into a WriteBatch and writes it with a
+ * single gathering write; the FlushPolicy decides how long a batch may grow before it is written.
+ * 
+ * Everything the server keeps about a client is held in one Connection, found by player id in the
+ * connections array, so the send, receive and drop paths do not look anything up by socket.
+ * 
+ * Packets sent UNRELIABLE_SEQUENCED or RELIABLE_DATAGRAM bypass the send threads: they are encoded
+ * and sent as UDP datagrams by the thread that queues them, and retransmitted by the
+ * DatagramEndpoint.
+ * 
+ * Reliable packets are encoded by the thread that queues them, once however many clients they are
+ * sent to, and added straight to each recipient's send buffer. Packets queued by one thread reach
+ * every client in the order they were queued. Packets sent to some of the clients are encoded only
+ * if a recipient is connected.
+ * 
  * @author Matt Stone
  * @version 1.0
  *
  */
-public class Server {
+public class Server implements ServerEngine {
+	private static final int RECEIVE_CHUNK_BYTES = 8192;
+	private static final long MAX_BATCH_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 	private int port;
 	private short maxPlayers = 8;
 	private int blockingTimeoutMS = 1000;
@@ -30,24 +59,54 @@ public class Server {
 	private Thread listeningThread;
 	private Thread socketValidationThread;
 	private Thread systemMsgThread;
-	private ConcurrentHashMap<Integer, Socket> sockets = new ConcurrentHashMap<Integer, Socket>(maxPlayers);
+	// indexed by player id, null where no client is connected; sized in the constructor
+	private AtomicReferenceArray<Connection> connections;
 	// private volatile int activeSockets = 0; // This value has potential to be concurrent
 	// bottleneck
 	private AtomicInteger activeSockets = new AtomicInteger(0);
-	private ConcurrentHashMap<Socket, Thread> outThreads = new ConcurrentHashMap<Socket, Thread>();
-	private ConcurrentHashMap<Socket, Thread> inThreads = new ConcurrentHashMap<Socket, Thread>();
-	private Thread stagingSendThread;
-	private ConcurrentHashMap<Socket, ObjectInputStream> inStreams = new ConcurrentHashMap<Socket, ObjectInputStream>();
-	private ConcurrentHashMap<Socket, ObjectOutputStream> outStreams = new ConcurrentHashMap<Socket, ObjectOutputStream>();
-	private ConcurrentHashMap<Socket, ConcurrentLinkedQueue<Packet>> sendBuffers = new ConcurrentHashMap<>();
-	private ConcurrentHashMap<Socket, ConcurrentLinkedQueue<Packet>> receiveBuffers = new ConcurrentHashMap<>();
-	private ConcurrentHashMap<Socket, Integer> receiveFailures = new ConcurrentHashMap<Socket, Integer>();
-	private ConcurrentHashMap<Socket, Integer> sendFailures = new ConcurrentHashMap<Socket, Integer>();
-	private ConcurrentHashMap<Socket, Boolean> threadShouldLive = new ConcurrentHashMap<Socket, Boolean>();
-	private ConcurrentHashMap<Socket, Character> socketToIDMap = new ConcurrentHashMap<Socket, Character>();
-	private ConcurrentHashMap<ConcurrentLinkedQueue<Packet>, Boolean> sendBufferLocks = new ConcurrentHashMap<ConcurrentLinkedQueue<Packet>, Boolean>();
-	private ConcurrentLinkedQueue<SocketMessagePair> socketsForSystemToDrop = new ConcurrentLinkedQueue<SocketMessagePair>();
+	private ConcurrentLinkedQueue<ConnectionMessagePair> connectionsForSystemToDrop = new ConcurrentLinkedQueue<ConnectionMessagePair>();
+	private SendGroups sendGroups = new SendGroups();
 	private IDManager idManager;
+	private PacketCodec codec = BinaryPacketCodec.createDefault();
+	private BufferPool bufferPool = new BufferPool();
+	private FlushPolicy flushPolicy = FlushPolicy.immediate();
+	private SocketOptions socketOptions = new SocketOptions();
+	private SendLanes sendLanes = new SendLanes();
+	private QueueLimits queueLimits = new QueueLimits();
+	private AtomicLong coalesced = new AtomicLong(0);
+	private boolean datagramsEnabled = true;
+	private DatagramEndpoint datagrams;
+	private LinkSimulator linkSimulator;
+	private PacketQueue datagramReceiveBuffer = new PacketQueue(QueueLimits.UNBOUNDED);
+	// called by the datagram endpoint's receive thread with each packet it receives
+	private PacketHandler datagramReceiver = new PacketHandler() {
+		public void handle(Packet packet) {
+			PacketHandler handler = receiveHandler;
+			if (handler != null) {
+				handler.handle(packet);
+				return;
+			}
+			datagramReceiveBuffer.add(packet);
+			receiveScheduler.ready(datagramSource);
+		}
+	};
+	private ReceiveScheduler.Source datagramSource = new ReceiveScheduler.Source() {
+		Packet poll() {
+			return datagramReceiveBuffer.poll();
+		}
+
+		boolean isEmpty() {
+			return datagramReceiveBuffer.isEmpty();
+		}
+
+		int size() {
+			return datagramReceiveBuffer.size();
+		}
+	};
+	// encodes reliable packets for every thread that queues them
+	private FrameEncoder sharedEncoder;
+	// incremented by flush(); every packet queued before it is already in the send buffers
+	private volatile long flushGeneration = 0;
 	// private Character hostID = null;
 	private Character nextID = null;
 	private NetworkPlayer hostPlayer = null;
@@ -58,14 +117,10 @@ public class Server {
 	private int sendFailureThreshold = 100;
 	private long failureSleepMSTime = 50;
 	private boolean isRunning;
-	private volatile boolean hasReceived;
-	/**
-	 * provides a storage place to lump all received packets for user processing. Non-concurrency is
-	 * intentional.
-	 * 
-	 */
-	private LinkedList<Packet> stagedReceivePackets = new LinkedList<Packet>();
-	private ConcurrentLinkedQueue<Packet> stagedSendPackets = new ConcurrentLinkedQueue<Packet>();
+	// merges the receive buffers of every connection, and the datagram buffer, for the game
+	private ReceiveScheduler receiveScheduler;
+	// when set, received packets are handed to it by the receiving threads instead of being queued
+	private volatile PacketHandler receiveHandler;
 	private boolean pingSocketsPeriodically = false;
 
 	public Server(int port) {
@@ -76,6 +131,10 @@ public class Server {
 		this.port = port;
 		setMaxPlayers(maxPlayers);
 		idManager = new IDManager(maxPlayers);
+		// ids are below maxPlayers, which setMaxPlayers() only ever raises
+		connections = new AtomicReferenceArray<Connection>(this.maxPlayers);
+		// one source per client, and one for datagrams
+		receiveScheduler = new ReceiveScheduler(this.maxPlayers + 1);
 		if (createPlayerForHost) {
 			Character hostID = idManager.getReservedIDAndRemoveFromIDPool();
 			this.hostPlayer = new NetworkPlayer(hostID);
@@ -105,8 +164,19 @@ public class Server {
 		// init();
 
 		threadsShouldLive = true;
-		listener = new ServerSocket(port); // throws IOException
+		listener = openListener(); // throws IOException
 		listener.setSoTimeout(blockingTimeoutMS); // throws IOException
+		if (datagramsEnabled) {
+			try {
+				datagrams = DatagramEndpoint.openServer(port, codec, bufferPool, datagramReceiver, blockingTimeoutMS);
+			} catch (IOException e) {
+				listener.close();
+				throw e;
+			}
+			datagrams.setLinkSimulator(linkSimulator);
+			datagrams.start();
+		}
+		sharedEncoder = new FrameEncoder(codec, bufferPool);
 
 		// start a continuously listening thread //@formatter:off
 		listeningThread = new Thread(new Runnable() {
@@ -123,13 +193,6 @@ public class Server {
 		});
 		socketValidationThread.start();
 		
-		stagingSendThread = new Thread(new Runnable() {
-			public void run() {
-				loadPacketIntoAllOutgoingBuffers();
-			}
-		});
-		stagingSendThread.start();
-		
 		systemMsgThread = new Thread(new Runnable() {
 			public void run() {
 				SystemMessageHandlerThreadMethod();
@@ -142,28 +205,15 @@ public class Server {
 	}
 
 	private void init() {
-		sockets = new ConcurrentHashMap<Integer, Socket>(maxPlayers);
+		connections = new AtomicReferenceArray<Connection>(maxPlayers);
 		activeSockets = new AtomicInteger(0);
-		outThreads = new ConcurrentHashMap<Socket, Thread>();
-		inThreads = new ConcurrentHashMap<Socket, Thread>();
-		inStreams = new ConcurrentHashMap<Socket, ObjectInputStream>();
-		outStreams = new ConcurrentHashMap<Socket, ObjectOutputStream>();
-		sendBuffers = new ConcurrentHashMap<>();
-		receiveBuffers = new ConcurrentHashMap<>();
-		receiveFailures = new ConcurrentHashMap<Socket, Integer>();
-		sendFailures = new ConcurrentHashMap<Socket, Integer>();
-		threadShouldLive = new ConcurrentHashMap<Socket, Boolean>();
-		socketToIDMap = new ConcurrentHashMap<Socket, Character>();
-		sendBufferLocks = new ConcurrentHashMap<ConcurrentLinkedQueue<Packet>, Boolean>();
-		socketsForSystemToDrop = new ConcurrentLinkedQueue<SocketMessagePair>();
+		connectionsForSystemToDrop = new ConcurrentLinkedQueue<ConnectionMessagePair>();
 		nextID = null;
 		hostPlayer = null;
 		threadsShouldLive = true;
 		listenForceShutdown = false;
 		sendFailureThreshold = 100;
 		failureSleepMSTime = 50;
-		stagedReceivePackets = new LinkedList<Packet>();
-		stagedSendPackets = new ConcurrentLinkedQueue<Packet>();
 		pingSocketsPeriodically = false;
 	}
 
@@ -179,61 +229,34 @@ public class Server {
 					// listen for socket - timeout exception will occur to check if loop should end
 					final Socket newSocket = listener.accept();
 
-					// conduct all activity that will cause exceptions, before adding to hashmaps
+					// conduct all activity that will cause exceptions, before creating the connection
 					newSocket.setSoTimeout(blockingTimeoutMS);
+					socketOptions.applyTo(newSocket);
 
-					// init streams
-					ObjectInputStream objInStream = new ObjectInputStream(newSocket.getInputStream());
-					ObjectOutputStream objOutStream = new ObjectOutputStream(newSocket.getOutputStream());
-
-					// activity that won't throw network/io exceptions - safe to add to class fields
-					threadShouldLive.put(newSocket, true);
-
-					// save socket reference into container (doesn't have to be a hashmap)
-					sockets.put(newSocket.hashCode(), newSocket);
+					// init streams (the socket was accepted by a channel, so it has one)
+					InputStream inStream = newSocket.getInputStream();
+					SocketChannel outChannel = newSocket.getChannel();
 
-					// store streams
-					inStreams.put(newSocket, objInStream);
-					outStreams.put(newSocket, objOutStream);
+					// activity that won't throw network/io exceptions - everything about the client is
+					// kept in one object, which its threads are given directly
+					Connection connection = new Connection(newSocket, nextID, inStream, outChannel);
 
-					// init buffers
-					ConcurrentLinkedQueue<Packet> sendBuffer = new ConcurrentLinkedQueue<Packet>();
-					ConcurrentLinkedQueue<Packet> receiveBuffer = new ConcurrentLinkedQueue<Packet>();
-					sendBuffers.put(newSocket, sendBuffer);
-					receiveBuffers.put(newSocket, receiveBuffer);
-					sendBufferLocks.put(sendBuffer, false);
-
-					// init failure counts
-					sendFailures.put(newSocket, 0);
-					receiveFailures.put(newSocket, 0);
+					// counted before it is published, queueToSend() skips encoding while the count is 0
+					//activeSockets++;	//TODO AtomicInteger safer for disconnects(use disconnectTests)
+					activeSockets.incrementAndGet();
 
-					// launch a thread to receive from this socket @formatter:off
-					Thread sendThread = new Thread(new Runnable() {
-						public void run() {
-							sendThreadMethod(newSocket);
-						}
-					});
-					outThreads.put(newSocket, sendThread);
-					sendThread.start();
-
-					// launch a thread to broadcast from this socket
-					Thread receiveThread = new Thread(new Runnable() {
-						public void run() {
-							receiveThreadMethod(newSocket);
-						}
-					});
-					inThreads.put(newSocket, receiveThread);
-					receiveThread.start();
+					// published before its threads start, so packets queued meanwhile are not missed
+					connections.set(nextID, connection);
+					connection.start();
 
 					// handle ID creation (and set up for next)
-					socketToIDMap.put(newSocket, nextID);
-					sendIDToClient(newSocket, nextID);					
-					//activeSockets++;	//TODO AtomicInteger safer for disconnects(use disconnectTests)
-					activeSockets.incrementAndGet();
+					if (datagrams != null) {
+						datagrams.addPlayer(nextID);
+					}
+					sendIDToClient(newSocket, nextID);
 					
 					//prepare ID for next round over loop.
 					nextID = idManager.getReservedIDAndRemoveFromIDPool();
-					// @formatter:on
 				} catch (SocketTimeoutException e) {
 					// timeout event is normal
 				} catch (IOException e) {
@@ -257,8 +280,9 @@ public class Server {
 		}
 		while (threadsShouldLive) {
 			sleepForMS(socketAliveCheckTimeoutMS);
-			for (Socket socket : sockets.values()) {
-				if (socket.isClosed()) {
+			for (int id = 0; id < connections.length(); ++id) {
+				Connection connection = connections.get(id);
+				if (connection != null && connection.socket.isClosed()) {
 					// TODO implement a queueing processing map to prevent
 					// duplicate disconnects from happening
 					// as it stands, the server should disconnect a client
@@ -270,30 +294,47 @@ public class Server {
 		}
 	}
 
-	private void receiveThreadMethod(Socket fromSocket) {
-		while (threadsShouldLive && threadShouldLive.get(fromSocket)) {
+	private void receiveThreadMethod(Connection connection) {
+		FrameDecoder decoder = new FrameDecoder();
+		byte[] chunk = new byte[RECEIVE_CHUNK_BYTES];
+		while (threadsShouldLive && connection.shouldLive) {
 			try {
-				ObjectInputStream inStream = inStreams.get(fromSocket);
-				// Packet inbound = (Packet) inStream.readObject(); //saves a reference to packet
-				Packet inbound = (Packet) inStream.readUnshared(); // prevent saving reference
-
-				if (!checkForSystemMessage(inbound, fromSocket) && inbound != null) {
-					receiveBuffers.get(fromSocket).add(inbound);
-					hasReceived = true;
+				int bytesRead = connection.inStream.read(chunk);
+				if (bytesRead < 0) {
+					throw new EOFException("Server: socket closed by client");
 				}
-				receiveFailures.put(fromSocket, 0);
+				decoder.append(chunk, 0, bytesRead);
+				connection.receiveFailures = 0;
 
-			} catch (ClassNotFoundException e) {
-				// cast error kill thread and pass exception
-				e.printStackTrace();
-				dropConnection(fromSocket, true);
-				return;
+				try {
+					ByteBuffer body;
+					while ((body = decoder.nextFrame()) != null) {
+						Packet inbound = codec.decode(body);
+						if (!checkForSystemMessage(inbound, connection) && inbound != null) {
+							PacketHandler handler = receiveHandler;
+							if (handler != null) {
+								// handled on this thread instead of being queued for the game
+								handler.handle(inbound);
+								continue;
+							}
+							// BLOCK waits here, so this client is not read until the game catches up
+							if (!connection.receiveBuffer.put(inbound, queueLimits.getReceiveOverflow())) {
+								dropConnectionInNewThread(connection);
+								return;
+							}
+							receiveScheduler.ready(connection.receiveSource);
+						}
+					}
+				} catch (IOException e) {
+					// the stream can not be decoded past a corrupt frame; kill thread and drop
+					e.printStackTrace();
+					dropConnectionInNewThread(connection);
+					return;
+				}
 			} catch (SocketTimeoutException e) {
 				// Do nothing, but prevent this from being caught in IOException
 			} catch (IOException e) {
-				int failures = receiveFailures.get(fromSocket);
-				failures++;
-				receiveFailures.put(fromSocket, failures);
+				int failures = ++connection.receiveFailures;
 				// Connections are only dropped from the sending thread
 				// if (failures > receiveFailureThreshold) {
 				// dropConnection(fromSocket); return;}
@@ -302,43 +343,69 @@ public class Server {
 		}
 	}
 
-	private void sendThreadMethod(Socket toSocket) {
-		while (threadsShouldLive && threadShouldLive.get(toSocket)) {
+	private void sendThreadMethod(Connection connection) {
+		WriteBatch batch = new WriteBatch();
+		long flushedGeneration = flushGeneration;
+		while (threadsShouldLive && connection.shouldLive) {
 			try {
-				// peek what is to be sent, rather than removing from queue
-				Packet toSend = sendBuffers.get(toSocket).peek();
-				if (toSend != null) {
-					// outStreams.get(toSocket).writeObject(toSend);
-					outStreams.get(toSocket).writeUnshared(toSend); // doesn't save reference
-
-					// remove packet from buffer (exception not thrown)
-					sendBuffers.get(toSocket).poll();
-
-					// reset the output stream to remove references to packet
-					outStreams.get(toSocket).reset(); // un-needed with writeUnshared()?
+				// read the generation before draining so every frame queued before flush() is included
+				long generation = flushGeneration;
+				batch.drain(connection.sendBuffer);
+
+				boolean flushRequested = generation != flushedGeneration;
+				SharedFrame disconnectFrame = connection.disconnectFrame;
+				boolean writesDisconnect = disconnectFrame != null && batch.contains(disconnectFrame);
+				if (batch.shouldWrite(flushPolicy, flushRequested)) {
+					// frames stay in the batch if the write fails, so they are retried
+					if (batch.writeTo(connection.outChannel) && writesDisconnect) {
+						connection.disconnectWritten.countDown();
+					}
+					flushedGeneration = generation;
+				} else if (!batch.isEmpty()) {
+					// wait for more frames, or for the policy's delay to pass
+					LockSupport.parkNanos(Math.min(batch.nanosUntilDue(flushPolicy), MAX_BATCH_WAIT_NANOS));
 				} else {
 					// avoid busy waiting
+					flushedGeneration = generation;
 					sleepForMS(1);
 				}
-				sendFailures.put(toSocket, 0);
+				connection.sendFailures = 0;
 			} catch (IOException e) {
 				// socket should not timeout for sends unless there's a problem
 				// thus socket timeouts are in this catch.
-				int failures = sendFailures.get(toSocket);
-				failures++;
-				sendFailures.put(toSocket, failures);
+				int failures = ++connection.sendFailures;
 				if (failures > sendFailureThreshold) {
-					dropConnectionInNewThread(toSocket);
+					batch.releaseAll();
+					dropConnectionInNewThread(connection);
 					return;
 				}
 				sleepForMS(failureSleepMSTime * failures);
 			}
 		}
+		batch.releaseAll();
+	}
+
+	/**
+	 * Encode a packet with the encoder shared by all threads that queue packets.
+	 * 
+	 * @return the encoded frame, owned by the caller, or null if the codec could not encode the
+	 *         packet (it is skipped rather than retried, since retrying will not succeed).
+	 */
+	private SharedFrame encodeShared(Packet packet) {
+		synchronized (sharedEncoder) {
+			try {
+				return SharedFrame.encode(sharedEncoder, packet, sendLanes);
+			} catch (IOException e) {
+				System.out.println("Server: failed to encode " + packet.getClass().getName());
+				e.printStackTrace();
+				return null;
+			}
+		}
 	}
 
-	private boolean checkForSystemMessage(Packet packet, Socket socket) {
+	private boolean checkForSystemMessage(Packet packet, Connection connection) {
 		if (packet instanceof SystemMessagePacket) {
-			loadSystemMessageJobToThread((SystemMessagePacket) packet, socket);
+			loadSystemMessageJobToThread((SystemMessagePacket) packet, connection);
 			return true;
 		}
 		return false;
@@ -356,30 +423,30 @@ public class Server {
 	 * the completion of its own dropConnection call.
 	 * 
 	 * @param packet the packet to be added to the system message
-	 * @param socket the socket that sent the message.
+	 * @param connection the connection that sent the message.
 	 */
-	private void loadSystemMessageJobToThread(SystemMessagePacket packet, Socket socket) {
+	private void loadSystemMessageJobToThread(SystemMessagePacket packet, Connection connection) {
 		if (packet.connetionShouldClose()) {
 			// calling drop connection here will deadlock the receive thread
-			// socketsForSystemToDrop.add(socket);
+			// connectionsForSystemToDrop.add(connection);
 
 			// do not send a drop message since the client alerted server of intent of dropping
-			socketsForSystemToDrop.add(new SocketMessagePair(socket, false));
+			connectionsForSystemToDrop.add(new ConnectionMessagePair(connection, false));
 		}
 	}
 
 	/**
-	 * Alerts dropping thread whether the socket should be dropped and whether a "disconnect"
+	 * Alerts dropping thread whether the connection should be dropped and whether a "disconnect"
 	 * message is to be sent.
 	 * 
 	 * @author Matt Stone
 	 */
-	private class SocketMessagePair {
+	private class ConnectionMessagePair {
 		public final boolean dropMessage;
-		public final Socket socket;
+		public final Connection connection;
 
-		SocketMessagePair(Socket socket, boolean dropMessage) {
-			this.socket = socket;
+		ConnectionMessagePair(Connection connection, boolean dropMessage) {
+			this.connection = connection;
 			this.dropMessage = dropMessage;
 		}
 	}
@@ -387,12 +454,12 @@ public class Server {
 	private void SystemMessageHandlerThreadMethod() {
 		while (threadsShouldLive) {
 			// since ConcurrentQueue.size() is O(n), just poll and check if non-null head
-			SocketMessagePair pair = socketsForSystemToDrop.peek();
+			ConnectionMessagePair pair = connectionsForSystemToDrop.peek();
 
 			// Socket dropSocket = socketsForSystemToDrop.poll();
-			if (pair != null && pair.socket != null) {
-				dropConnection(pair.socket, pair.dropMessage);
-				socketsForSystemToDrop.poll();
+			if (pair != null && pair.connection != null) {
+				dropConnection(pair.connection, pair.dropMessage);
+				connectionsForSystemToDrop.poll();
 			} else {
 				// sleep thread (prevent busy waiting)
 				sleepForMS(10);
@@ -411,13 +478,30 @@ public class Server {
 	 * that calls dropConnection() happens to be a send or receive thread, then the function call
 	 * will wait indefinitely on itself to terminate.
 	 * 
-	 * @param socketToDrop
+	 * @param connectionToDrop
 	 */
-	private void dropConnectionInNewThread(final Socket socketToDrop) {
+	private void dropConnectionInNewThread(final Connection connectionToDrop) {
 		// Start the server running
 		new Thread(new Runnable() {
 			public void run() {
-				dropConnection(socketToDrop, true);
+				dropConnection(connectionToDrop, true);
+			}
+		}).start();
+	}
+
+	/**
+	 * Drop a client that is too far behind. The socket is closed first, since the send thread may be
+	 * blocked writing to a client that is not reading, and no disconnect message is sent.
+	 */
+	private void dropStalledConnectionInNewThread(final Connection connectionToDrop) {
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					connectionToDrop.socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				dropConnection(connectionToDrop, false);
 			}
 		}).start();
 	}
@@ -427,14 +511,15 @@ public class Server {
 	 * For example, if a client is to time out and be dropped, then it should either the receive
 	 * thread or the send thread should call this method. Both threads should not call it.
 	 * 
-	 * @param socket the socket to be dropped.
+	 * @param connection the connection to be dropped.
 	 */
-	private void dropConnection(Socket socket, boolean sendDisconnectMessage) {
+	private void dropConnection(Connection connection, boolean sendDisconnectMessage) {
+		Socket socket = connection.socket;
 		String socketStr = socket.toString();
 		String extraMsgs = " ";
 
-		// check that socket isn't currently directed
-		if (!threadsAliveFor(socket)) {
+		// check that socket isn't currently directed, and that no other thread is dropping it
+		if (!threadsAliveFor(connection) || !connection.dropping.compareAndSet(false, true)) {
 			System.out.println("Server Warning: disconnect called on already disconnected socket.");
 			return;
 		}
@@ -442,19 +527,17 @@ public class Server {
 
 		// send disconnect message - blocks for max 5 seconds before moving on
 		if (sendDisconnectMessage) {
-			sendDisconnectMessageTo(socket);
+			sendDisconnectMessageTo(connection);
 		}
 
 		// Flag threads associate with this socket to stop
-		if (threadShouldLive.put(socket, false) == null) {
-			// thread no longer exists, remove accidental insertion and return.
-			threadShouldLive.remove(socket);
-			return;
-		}
+		connection.shouldLive = false;
+		// the receive thread may be waiting for room
+		connection.receiveBuffer.cancelBlockedPuts();
 
 		// Wait for threads to stop
 		int counter = 0;
-		while (threadsAliveFor(socket)) {
+		while (threadsAliveFor(connection)) {
 			sleepForMS(100);
 			if (counter > 10000) {
 				throw new RuntimeException("Server: dropConnection inifite loop - cannot kill thread");
@@ -469,24 +552,18 @@ public class Server {
 			System.out.println("failed to close socket");
 		}
 
-		Character id = socketToIDMap.get(socket);
-		if (id != null) {
-			idManager.unReserveIDAndReturnIdToPool(id);
-		}
-
-		// Threads are now dead - deallocate from most containers
-		sendFailures.remove(socket);
-		sendBuffers.remove(socket);
-		receiveFailures.remove(socket);
-		receiveBuffers.remove(socket);
-		inStreams.remove(socket);
-		outStreams.remove(socket);
-		threadShouldLive.remove(socket);
-		inThreads.remove(socket);
-		outThreads.remove(socket);
-		sockets.remove(socket);
-		sendBufferLocks.remove(socket);
-		socketToIDMap.remove(socket);
+		// removed first so targeted sends and group changes stop seeing the player
+		char id = connection.playerID;
+		connections.compareAndSet(id, connection, null);
+		sendGroups.removeEverywhere(id);
+		if (datagrams != null) {
+			datagrams.removePlayer(id);
+		}
+		idManager.unReserveIDAndReturnIdToPool(id);
+
+		// Threads are now dead - close the send buffer first so queueing threads stop adding to it
+		connection.open = false;
+		connection.sendBuffer.close();
 		// activeSockets--;// TODO atomic integer is safer, use disconnectTests
 		activeSockets.decrementAndGet();
 
@@ -496,66 +573,212 @@ public class Server {
 	/**
 	 * Send a disconnect message to client and clear the send buffer to that client.
 	 * 
-	 * @SideEffect clears send buffer of the socket.
-	 * @param socket - the socket used to obtain the send buffer.
+	 * @SideEffect clears send buffer of the connection.
+	 * @param connection - the connection to send the message to.
 	 */
-	private void sendDisconnectMessageTo(Socket socket) {
-		// get the sendBuffer that should be cleared
-		ConcurrentLinkedQueue<Packet> socketSendBuffer = sendBuffers.get(socket);
+	private void sendDisconnectMessageTo(Connection connection) {
+		PriorityFrameQueue socketSendBuffer = connection.sendBuffer;
 
 		// lock all sending until the message is complete.
-		if (socketSendBuffer != null && sendBufferLocks.get(socketSendBuffer) != null) {
-			sendBufferLocks.put(socketSendBuffer, true);
+		if (connection.open) {
+			connection.sendLocked = true;
 		} else {
-			// there isn't a lock for this socket
+			// the connection has already been dropped
 			return;
 		}
 
 		// clear buffer - the disconnect message should be the first queued to send
-		socketSendBuffer.clear();
+		socketSendBuffer.releaseAll();
 
 		// create a system message that signals the client should shut down
 		SystemMessagePacket closeMessage = new SystemMessagePacket();
 		closeMessage.setConnectionShouldClose(true);
 
 		// add the system message to the normal send buffer
-		socketSendBuffer.add(closeMessage);
-
-		// record the start time in case the client is un-receptive and server needs to move on
-		long start = System.currentTimeMillis();
-
-		// wait 5 seconds or until the system message is sent to drop threads (or until msg set)
-		long delayMS = 5000;
-		while (socketSendBuffer.peek() != null && System.currentTimeMillis() - start < delayMS) {
-			sleepForMS(1);
+		SharedFrame closeFrame = encodeShared(closeMessage);
+		if (closeFrame != null) {
+			// recorded first, so the sending thread knows the frame when it takes it
+			connection.disconnectFrame = closeFrame;
+			socketSendBuffer.add(closeFrame);
+
+			// wait 5 seconds or until the sending thread has written the message; an empty send
+			// buffer is not enough, since the message may still be in the thread's batch
+			try {
+				connection.disconnectWritten.await(5000, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+			}
 		}
 
 		// unlock the sending
-		sendBufferLocks.put(socketSendBuffer, false);
+		connection.sendLocked = false;
 	}
 
-	private boolean threadsAliveFor(Socket socket) {
-		Thread receiveThread = inThreads.get(socket);
-		Thread sendThread = outThreads.get(socket);
-		boolean ret = false;
-		if (receiveThread != null) {
-			ret |= receiveThread.isAlive();
-		}
-		if (sendThread != null) {
-			ret |= sendThread.isAlive();
-		}
-		return ret;
+	private boolean threadsAliveFor(Connection connection) {
+		Thread receiveThread = connection.receiveThread;
+		Thread sendThread = connection.sendThread;
+		return (receiveThread != null && receiveThread.isAlive()) || (sendThread != null && sendThread.isAlive());
+	}
+
+	/**
+	 * @return the connection of the player with the given id, or null if it is not connected.
+	 */
+	private Connection connection(char id) {
+		return id < connections.length() ? connections.get(id) : null;
 	}
 
 	public void setPort(int port) {
 		this.port = port;
 	}
 
+	/**
+	 * Set the codec used to encode and decode packets. Must be called before run(); clients must
+	 * use a compatible codec.
+	 * 
+	 * @param codec the codec to use.
+	 */
+	public void setCodec(PacketCodec codec) {
+		this.codec = codec;
+	}
+
+	public PacketCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Set the pool that outgoing frames are encoded into. Must be called before run().
+	 * 
+	 * @param bufferPool the pool to use.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set when the packets queued for each client are written to its socket. Must be called before
+	 * run().
+	 * 
+	 * @param flushPolicy the policy to use.
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Set the TCP options applied to every client connection. Takes effect for connections made after the call.
+	 * 
+	 * @param socketOptions the options to use.
+	 */
+	public void setSocketOptions(SocketOptions socketOptions) {
+		this.socketOptions = socketOptions;
+	}
+
+	public SocketOptions getSocketOptions() {
+		return socketOptions;
+	}
+
+	/**
+	 * Set how packets are assigned to the lanes of each client's send queue. Must be called before
+	 * run().
+	 * 
+	 * @param sendLanes the lanes to use.
+	 */
+	public void setSendLanes(SendLanes sendLanes) {
+		this.sendLanes = sendLanes;
+	}
+
+	public SendLanes getSendLanes() {
+		return sendLanes;
+	}
+
+	/**
+	 * @return the number of packets that were not sent because a newer packet with the same state
+	 *         key replaced them while queued.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Set how many packets may wait for each client, and what happens when a queue is full. Must be
+	 * called before run().
+	 * 
+	 * @param queueLimits the limits to use.
+	 */
+	public void setQueueLimits(QueueLimits queueLimits) {
+		this.queueLimits = queueLimits;
+	}
+
+	public QueueLimits getQueueLimits() {
+		return queueLimits;
+	}
+
+	/**
+	 * Write every packet queued so far to the clients without waiting for the flush policy's
+	 * limits. Packets queued after this call are not affected.
+	 */
+	public void flush() {
+		flushGeneration++;
+	}
+
+	/**
+	 * Choose whether the server opens a UDP port (the same port number as its TCP port) for
+	 * UNRELIABLE_SEQUENCED and RELIABLE_DATAGRAM packets. When disabled, those packets are sent over
+	 * TCP. Must be called before run().
+	 * 
+	 * @param datagramsEnabled true to open the UDP port.
+	 */
+	public void setDatagramsEnabled(boolean datagramsEnabled) {
+		this.datagramsEnabled = datagramsEnabled;
+	}
+
+	public boolean getDatagramsEnabled() {
+		return datagramsEnabled;
+	}
+
+	/**
+	 * Simulate a poor connection for the datagrams the server sends, for testing. Must be called
+	 * before run().
+	 * 
+	 * @param linkSimulator the simulated link, or null to send datagrams directly.
+	 */
+	public void setLinkSimulator(LinkSimulator linkSimulator) {
+		this.linkSimulator = linkSimulator;
+	}
+
+	public LinkSimulator getLinkSimulator() {
+		return linkSimulator;
+	}
+
 	public void prepareServerToStart() throws IOException {
-		listener = new ServerSocket(port);
+		listener = openListener();
 		// ready = true; TODO: remove this if decide against logic approach
 	}
 
+	/**
+	 * Open the listening socket through a channel. Sockets accepted by it are backed by
+	 * SocketChannels, which is what allows direct buffers to be written without a copy.
+	 */
+	private ServerSocket openListener() throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		ServerSocket socket = channel.socket();
+		try {
+			socketOptions.applyToListener(socket);
+			socket.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return socket;
+	}
+
 	private void sleepForMS(long ms) {
 		// formatter:off
 		try {
@@ -574,12 +797,6 @@ public class Server {
 		// below needed to prevent infinite loops on multiple calls to disconnect
 		if (!isRunning()) return;
 
-		// TODO finish developing this
-		// threadsShouldLive = false;
-		for (Socket socket : sockets.values()) { // TODO 98% sure values() gives stale value
-			socketsForSystemToDrop.add(new SocketMessagePair(socket, true));
-		}
-
 		try {
 			// below is a flag to prevent listen thread for printing exception msg
 			listenForceShutdown = true;
@@ -590,23 +807,45 @@ public class Server {
 			System.out.println("Failed to close listener");
 			e.printStackTrace();
 		}
+		// a client accepted just before the listener closed is only in connections once the
+		// listening thread has finished with it
+		try {
+			if (listeningThread != null) {
+				listeningThread.join();
+			}
+		} catch (InterruptedException e) {
+		}
+
+		// TODO finish developing this
+		// threadsShouldLive = false;
+		for (int id = 0; id < connections.length(); ++id) {
+			Connection connection = connections.get(id);
+			if (connection != null) {
+				connectionsForSystemToDrop.add(new ConnectionMessagePair(connection, true));
+			}
+		}
+
 		// wait for the thread to drop all sockets before flagging isRunning to false
 		// TODO consider isRunning in favor of checking to see if server
 		// is still running by calling isRunning method.
 		// while (socketsForSystemToDrop.size() > 0) {
-		while (socketsForSystemToDrop.peek() != null) {
+		while (connectionsForSystemToDrop.peek() != null) {
 			sleepForMS(1);
 		}
 		// once the connections are dropped, shut down the threads
 		threadsShouldLive = false;
 		listenForceShutdown = false;
+		if (datagrams != null) {
+			datagrams.close();
+			datagrams = null;
+		}
 
 		isRunning = false;
 	}
 
 	public boolean isRunning() {
 		boolean ret = false;
-		if (listeningThread != null && sockets != null) {
+		if (listeningThread != null) {
 			ret |= listeningThread.isAlive();
 		}
 
@@ -615,104 +854,313 @@ public class Server {
 	}
 
 	public boolean hasReceivedPacket() {
-		return hasReceived || stagedReceivePackets.peek() != null;
+		return receiveScheduler.hasPackets();
 	}
 
-	private ArrayList<Socket> keys = new ArrayList<Socket>();
-	private HashMap<Socket, Integer> queueSizes = new HashMap<Socket, Integer>();
+	/**
+	 * Get the next received packet. Clients take turns as set by the ReceiveFairness, so a client
+	 * that sends a flood of packets does not hold back the packets of the others.
+	 * 
+	 * @return the next packet, or null if there is none this tick.
+	 */
+	public Packet getNextReceivedPacket() {
+		return receiveScheduler.poll();
+	}
 
 	/**
-	 * This method loads all receive buffers into a single collection. It is designed so that
-	 * packets received will be equally distributed.
+	 * Hand received packets to a handler until the tick ends or max have been handled. No more
+	 * packets are taken from a client than it had waiting when its first turn in the call came up,
+	 * so the call returns even while a client keeps sending. With a ReceiveFairness quota per
+	 * tick, at most that many packets are taken from each client.
 	 * 
-	 * If collections were to be iterated while still being updated, then sockets that were accessed
-	 * later may have newer packets than earlier accessed sockets.
+	 * @return the number of packets handled.
+	 */
+	public int drainReceived(PacketHandler handler, int max) {
+		return receiveScheduler.drain(handler, max);
+	}
+
+	/**
+	 * Set how clients take turns when the game takes their packets. Takes effect immediately.
 	 * 
-	 * This method will not stage more packets until the previously staged packets have been
-	 * handled.
+	 * @param receiveFairness the turns and quotas to use.
+	 */
+	public void setReceiveFairness(ReceiveFairness receiveFairness) {
+		receiveScheduler.setFairness(receiveFairness);
+	}
+
+	public ReceiveFairness getReceiveFairness() {
+		return receiveScheduler.getFairness();
+	}
+
+	/**
+	 * Hand every received packet to a handler on the thread that received it, instead of queueing
+	 * it for getNextReceivedPacket(). Each client has its own receive thread, and datagrams have
+	 * another, so the handler must be thread safe.
+	 * 
+	 * @param receiveHandler the handler, or null to queue packets again.
+	 */
+	public void setReceiveHandler(PacketHandler receiveHandler) {
+		this.receiveHandler = receiveHandler;
+	}
+
+	public PacketHandler getReceiveHandler() {
+		return receiveHandler;
+	}
+
+	/**
+	 * Encode the packet and queue it for every client. The packet is encoded immediately, which
+	 * captures its current state, so no copy of the packet is made. The single encoded frame is
+	 * shared by every send buffer. A PoolablePacket is released as soon as it has been encoded.
 	 */
-	public void stageReceivedPacketsForRemoval() {
-		// if there are still packets staged, then simply return.
-		if (stagedReceivePackets.peek() != null) {
+	public void queueToSend(Packet packet) {
+		if (activeSockets.get() == 0) {
+			PacketPool.recycle(packet);
 			return;
 		}
-		keys.clear();
-		queueSizes.clear();
-
-		// gather sizes before any processing, (so queues need not be frozen)
-		Enumeration<Socket> enumKeys = receiveBuffers.keys();
-		for (; enumKeys.hasMoreElements();) {
-			keys.add(enumKeys.nextElement());
+		SharedFrame frame = encodeShared(packet);
+		PacketPool.recycle(packet);
+		if (frame == null) {
+			return;
 		}
-		for (Socket socket : keys) {
-			// size() is O(n) and implementation should produce non-stale value
-			queueSizes.put(socket, receiveBuffers.get(socket).size());
+		for (int id = 0; id < connections.length(); ++id) {
+			Connection connection = connections.get(id);
+			if (connection != null) {
+				queueFrameTo(connection, frame);
+			}
 		}
-		// sizes recorded; only polling stage #packets of those sizes
-		for (Socket socket : keys) {
-			int size = queueSizes.get(socket);
-			ConcurrentLinkedQueue<Packet> buffer = receiveBuffers.get(socket);
-			for (int i = 0; i < size; ++i) {
-				// TODO Concern : what if buffer is dumped? (nullptr).
-				// Solutions: create lock specifically for buffer dumping?
-				// OR - Maybe require dumping to dump staged packets?
-				stagedReceivePackets.add(buffer.poll());
+		// every buffer holds its own reference now
+		frame.release();
+	}
+
+	/**
+	 * Broadcast a packet unless a client's send queue is full. Never blocks, whatever the overflow
+	 * policy.
+	 * 
+	 * @return false if the packet was not queued; it still belongs to the caller.
+	 */
+	public boolean tryQueueToSend(Packet packet) {
+		for (int id = 0; id < connections.length(); ++id) {
+			Connection connection = connections.get(id);
+			if (connection != null && connection.sendBuffer.isFull()) {
+				return false;
 			}
 		}
-		// set flag for packets in receive buffer false (all should be staged)
-		hasReceived = false;
+		queueToSend(packet);
+		return true;
+	}
+
+	/**
+	 * Broadcast a packet to all clients with the given delivery mode.
+	 * 
+	 * @param packet the packet to send.
+	 * @param mode how the packet travels; UNRELIABLE_SEQUENCED and RELIABLE_DATAGRAM packets are
+	 *            sent as UDP datagrams.
+	 */
+	public void queueToSend(Packet packet, DeliveryMode mode) {
+		DatagramEndpoint datagrams = this.datagrams;
+		if (mode == DeliveryMode.RELIABLE || datagrams == null) {
+			queueToSend(packet);
+			return;
+		}
+		sendDatagram(datagrams, packet, mode, null);
 	}
 
-	public boolean hasStagedPackets() {
-		return stagedReceivePackets.peek() != null;
+	/**
+	 * Send a packet to one client over TCP. Nothing is sent if the player is not connected.
+	 * 
+	 * @param player the client to send to.
+	 * @param packet the packet to send.
+	 */
+	public void queueToSend(NetworkPlayer player, Packet packet) {
+		queueToSend(Recipients.of(player), packet, DeliveryMode.RELIABLE);
 	}
 
-	public Packet getNextStagedPacket() {
-		return stagedReceivePackets.poll();
+	/**
+	 * Send a packet to some of the clients over TCP. The packet is encoded once and only queued for
+	 * the connected players among them.
+	 * 
+	 * @param players the clients to send to.
+	 * @param packet the packet to send.
+	 */
+	public void queueToSend(Collection<NetworkPlayer> players, Packet packet) {
+		queueToSend(Recipients.of(players), packet, DeliveryMode.RELIABLE);
 	}
 
-	public Packet getNextReceivedPacket() {
-		if (hasStagedPackets()) {
-			return getNextStagedPacket();
+	/**
+	 * Send a packet to the members of a send group over TCP.
+	 * 
+	 * @param group the name of the group.
+	 * @param packet the packet to send.
+	 */
+	public void queueToSendToGroup(String group, Packet packet) {
+		queueToSend(sendGroups.get(group), packet, DeliveryMode.RELIABLE);
+	}
+
+	/**
+	 * Send a packet to the given clients with the given delivery mode.
+	 * 
+	 * @param recipients the clients to send to; ids that are not connected are ignored.
+	 * @param packet the packet to send.
+	 * @param mode how the packet travels.
+	 */
+	public void queueToSend(Recipients recipients, Packet packet, DeliveryMode mode) {
+		if (recipients.isEmpty()) {
+			PacketPool.recycle(packet);
+			return;
 		}
-		if (hasReceived) {
-			stageReceivedPacketsForRemoval();
-			return getNextStagedPacket();
+		DatagramEndpoint datagrams = this.datagrams;
+		if (mode == DeliveryMode.RELIABLE || datagrams == null) {
+			queueToRecipients(recipients, packet);
+			return;
 		}
-		// no packets to receive
-		return null;
+		sendDatagram(datagrams, packet, mode, recipients);
 	}
 
-	public void queueToSend(Packet packet) {
-		// TODO concern: potentially make another buffer between this and the
-		// buffer that threads collect from
-		final Packet copy = packet.makeCopy();
+	/**
+	 * Send a packet as a datagram to every client, or only to the given recipients.
+	 * 
+	 * @param recipients the clients to send to, or null for all of them.
+	 */
+	private void sendDatagram(DatagramEndpoint datagrams, Packet packet, DeliveryMode mode, Recipients recipients) {
+		if (recipients != null && !anyConnected(recipients)) {
+			PacketPool.recycle(packet);
+			return;
+		}
 
-		// the staged send packets cause async threads to maintain ordering of
-		// packets
-		stagedSendPackets.add(copy);
+		ByteBuffer datagram = null;
+		byte[] reliableBody = null;
+		try {
+			// encoding captures the packet's state, so no copy is needed
+			if (mode == DeliveryMode.RELIABLE_DATAGRAM) {
+				reliableBody = datagrams.encodeReliable(packet);
+			} else {
+				datagram = datagrams.encode(packet);
+			}
+		} catch (IOException e) {
+			System.out.println("Server: failed to encode " + packet.getClass().getName());
+			e.printStackTrace();
+			PacketPool.recycle(packet);
+			return;
+		}
+		if (datagram == null && reliableBody == null) {
+			// too large for one datagram
+			if (recipients == null) {
+				queueToSend(packet);
+			} else {
+				queueToSend(recipients, packet, DeliveryMode.RELIABLE);
+			}
+			return;
+		}
+
+		SharedFrame fallback = null;
+		for (int index = 0; index < connections.length(); ++index) {
+			Connection connection = connections.get(index);
+			if (connection == null || (recipients != null && !recipients.contains(connection.playerID))) {
+				continue;
+			}
+			char id = connection.playerID;
+			boolean sent = datagram != null ? datagrams.sendTo(datagram, id) : datagrams.queueReliable(reliableBody, id);
+			if (sent) {
+				continue;
+			}
+			// the client's UDP address is not known yet, send it a reliable copy instead
+			if (fallback == null) {
+				fallback = encodeShared(packet);
+				if (fallback == null) {
+					break;
+				}
+			}
+			queueFrameTo(connection, fallback);
+		}
+		if (fallback != null) {
+			fallback.release();
+		}
+		if (datagram != null) {
+			bufferPool.release(datagram);
+		}
+		PacketPool.recycle(packet);
+	}
 
+	private boolean anyConnected(Recipients recipients) {
+		for (int i = 0; i < recipients.size(); ++i) {
+			if (connection(recipients.get(i)) != null) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
-	 * Simply loads 1 packet from the staged send packets to be sent over the server.
+	 * Add a frame to a send buffer unless its connection is being dropped, applying the send
+	 * overflow policy if the buffer is full. The buffer takes its own reference.
 	 */
-	private synchronized void loadPacketIntoAllOutgoingBuffers() {
-		while (threadsShouldLive) {
-			// system messages may lock send thread temporarily
-			if (stagedSendPackets.peek() != null) {
-				Packet packet = stagedSendPackets.poll();
-				for (ConcurrentLinkedQueue<Packet> buffer : sendBuffers.values()) {
-					boolean locked = sendBufferLocks.get(buffer);
-					if (!locked) {
-						buffer.add(packet.makeCopy());
-					}
-				}
-			} else {
-				// avoid busy waiting
-				sleepForMS(1);
+	private void queueFrameTo(Connection connection, SharedFrame frame) {
+		if (connection.open && !connection.sendLocked) {
+			if (!connection.sendBuffer.offer(frame.retain(), queueLimits.getSendOverflow())) {
+				// the client is too far behind
+				dropStalledConnectionInNewThread(connection);
+				return;
+			}
+			if (!connection.open) {
+				// the connection was dropped while adding; nothing else will empty it
+				connection.sendBuffer.releaseAll();
+			}
+		}
+	}
+
+	/**
+	 * Encode a packet once and add it to the send buffers of the connected recipients. Nothing is
+	 * encoded if none of them is connected.
+	 */
+	private void queueToRecipients(Recipients recipients, Packet packet) {
+		if (!anyConnected(recipients)) {
+			PacketPool.recycle(packet);
+			return;
+		}
+		SharedFrame frame = encodeShared(packet);
+		PacketPool.recycle(packet);
+		if (frame == null) {
+			return;
+		}
+		for (int i = 0; i < recipients.size(); ++i) {
+			Connection connection = connection(recipients.get(i));
+			if (connection != null) {
+				queueFrameTo(connection, frame);
+			}
+		}
+		frame.release();
+	}
+
+	/**
+	 * Add a connected player to a named send group. Players are removed from every group when they
+	 * disconnect.
+	 */
+	public void addToGroup(String group, NetworkPlayer player) {
+		char id = player.getID();
+		sendGroups.add(group, id);
+		if (connection(id) == null) {
+			// not connected, or dropped while being added
+			sendGroups.remove(group, id);
+		}
+	}
+
+	public void removeFromGroup(String group, NetworkPlayer player) {
+		sendGroups.remove(group, player.getID());
+	}
+
+	public Recipients getGroup(String group) {
+		return sendGroups.get(group);
+	}
+
+	public List<NetworkPlayer> getConnectedPlayers() {
+		List<NetworkPlayer> players = new ArrayList<NetworkPlayer>();
+		for (int id = 0; id < connections.length(); ++id) {
+			Connection connection = connections.get(id);
+			if (connection != null) {
+				players.add(new NetworkPlayer(connection.playerID));
 			}
 		}
+		return players;
 	}
 
 	public NetworkPlayer getHostPlayerObj() {
@@ -724,7 +1172,15 @@ public class Server {
 		idPacket.setPlayerID(ID);
 
 		// this will block, but that shouldn't a problem since method is called during listening
-		sendBuffers.get(socket).add(idPacket);
+		Connection connection = connection(ID);
+		if (connection == null || connection.socket != socket) {
+			// not connected, or dropped already
+			return;
+		}
+		SharedFrame idFrame = encodeShared(idPacket);
+		if (idFrame != null) {
+			connection.sendBuffer.add(idFrame);
+		}
 	}
 
 	/**
@@ -745,4 +1201,73 @@ public class Server {
 		return activeSockets.intValue();
 	}
 
+	/**
+	 * The state of a single client connection. Its threads are handed the connection itself, so
+	 * sending and receiving never look anything up.
+	 */
+	private class Connection {
+		final Socket socket;
+		final char playerID;
+		final InputStream inStream;
+		final SocketChannel outChannel;
+		final PriorityFrameQueue sendBuffer = new PriorityFrameQueue(sendLanes, queueLimits.getSendCapacity(), coalesced);
+		final PacketQueue receiveBuffer = new PacketQueue(queueLimits.getReceiveCapacity());
+		// takes its turns with the other connections' when the game takes packets
+		final ReceiveScheduler.Source receiveSource = new ReceiveScheduler.Source() {
+			Packet poll() {
+				return receiveBuffer.poll();
+			}
+
+			boolean isEmpty() {
+				return receiveBuffer.isEmpty();
+			}
+
+			int size() {
+				return receiveBuffer.size();
+			}
+		};
+		// set by start(), after the connection is published
+		volatile Thread sendThread;
+		volatile Thread receiveThread;
+		// claimed by the first thread to drop the connection
+		final AtomicBoolean dropping = new AtomicBoolean(false);
+		volatile boolean shouldLive = true;
+		// true while a disconnect message is sent, which nothing may be queued behind
+		volatile boolean sendLocked = false;
+		// the disconnect message, and the latch the sending thread opens once it is written
+		volatile SharedFrame disconnectFrame;
+		final CountDownLatch disconnectWritten = new CountDownLatch(1);
+		// false once the connection has been dropped; nothing empties its send buffer after that
+		volatile boolean open = true;
+		// each is only used by the thread it counts for
+		int sendFailures = 0;
+		int receiveFailures = 0;
+
+		Connection(Socket socket, char playerID, InputStream inStream, SocketChannel outChannel) {
+			this.socket = socket;
+			this.playerID = playerID;
+			this.inStream = inStream;
+			this.outChannel = outChannel;
+		}
+
+		/**
+		 * Launch the threads that send to and receive from the client. Called by the listening
+		 * thread once the connection has been published.
+		 */
+		void start() {
+			sendThread = new Thread(new Runnable() {
+				public void run() {
+					sendThreadMethod(Connection.this);
+				}
+			});
+			sendThread.start();
+
+			receiveThread = new Thread(new Runnable() {
+				public void run() {
+					receiveThreadMethod(Connection.this);
+				}
+			});
+			receiveThread.start();
+		}
+	}
 }
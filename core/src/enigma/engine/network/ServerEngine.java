@@ -0,0 +1,246 @@
+package enigma.engine.network;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The contract that a server implementation must provide so that a Network object can act as a
+ * server without concern for how connections are serviced.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public interface ServerEngine {
+	/**
+	 * Start the server running. If the server is already running, this method simply returns.
+	 *
+	 * @throws IOException if server can not open its listening port.
+	 */
+	public void run() throws IOException;
+
+	/**
+	 * Disconnect all clients and shut down the server. May block while disconnect messages are
+	 * delivered.
+	 */
+	public void disconnect();
+
+	public boolean isRunning();
+
+	public boolean hasReceivedPacket();
+
+	/**
+	 * @return the next received packet or null if there is no packet.
+	 */
+	public Packet getNextReceivedPacket();
+
+	/**
+	 * Hand received packets to a handler, in the order getNextReceivedPacket() would return them,
+	 * until none are left or max have been handled. Only packets already received when the call
+	 * starts are handed over, so it returns even while a client keeps sending.
+	 *
+	 * @param handler called once for each packet, on the calling thread.
+	 * @param max the most packets to hand over.
+	 * @return the number of packets handled.
+	 */
+	public int drainReceived(PacketHandler handler, int max);
+
+	/**
+	 * Broadcast the packet to all connected clients. The packet's state at the time of the call is
+	 * what is sent; it is safe to modify the packet afterwards, unless it is a PoolablePacket, which
+	 * belongs to the server from then on and is released once sent.
+	 *
+	 * @param packet the packet to send.
+	 */
+	public void queueToSend(Packet packet);
+
+	/**
+	 * Broadcast the packet unless a send queue has reached the capacity set by QueueLimits. Never
+	 * blocks, so a game loop can send less while clients are behind.
+	 *
+	 * @param packet the packet to send; if it is queued, ownership is as for queueToSend().
+	 * @return false if the packet was not queued; it still belongs to the caller.
+	 */
+	public boolean tryQueueToSend(Packet packet);
+
+	/**
+	 * Broadcast the packet to all connected clients with the given delivery mode.
+	 *
+	 * @param packet the packet to send.
+	 * @param mode RELIABLE to send over TCP, UNRELIABLE_SEQUENCED or RELIABLE_DATAGRAM to send as
+	 *            a UDP datagram.
+	 */
+	public void queueToSend(Packet packet, DeliveryMode mode);
+
+	/**
+	 * Send the packet to one client over TCP. Nothing is sent if the player is not connected.
+	 *
+	 * @param player the client to send to.
+	 * @param packet the packet to send; ownership is as for queueToSend(Packet).
+	 */
+	public void queueToSend(NetworkPlayer player, Packet packet);
+
+	/**
+	 * Send the packet to some of the clients over TCP. It is encoded once and only queued for the
+	 * connected players among them.
+	 *
+	 * @param players the clients to send to.
+	 * @param packet the packet to send; ownership is as for queueToSend(Packet).
+	 */
+	public void queueToSend(Collection<NetworkPlayer> players, Packet packet);
+
+	/**
+	 * Send the packet to the members of a send group over TCP.
+	 *
+	 * @param group the name of a group; a group without members sends nothing.
+	 * @param packet the packet to send; ownership is as for queueToSend(Packet).
+	 */
+	public void queueToSendToGroup(String group, Packet packet);
+
+	/**
+	 * Send the packet to the given clients with the given delivery mode. Ids of players that are
+	 * not connected are ignored, and the packet is not encoded at all if none are.
+	 *
+	 * @param recipients the clients to send to.
+	 * @param packet the packet to send; ownership is as for queueToSend(Packet).
+	 * @param mode how the packet travels, as for queueToSend(Packet, DeliveryMode).
+	 */
+	public void queueToSend(Recipients recipients, Packet packet, DeliveryMode mode);
+
+	/**
+	 * Add a connected player to a named send group, creating the group if needed. Players are
+	 * removed from every group when they disconnect.
+	 */
+	public void addToGroup(String group, NetworkPlayer player);
+
+	public void removeFromGroup(String group, NetworkPlayer player);
+
+	/**
+	 * @return the current members of a send group; later changes to the group do not affect it.
+	 */
+	public Recipients getGroup(String group);
+
+	/**
+	 * @return the clients connected now, not including the host.
+	 */
+	public List<NetworkPlayer> getConnectedPlayers();
+
+	public NetworkPlayer getHostPlayerObj();
+
+	/**
+	 * @return The atomic number of current active connections.
+	 */
+	public int activeConnections();
+
+	/**
+	 * Set the codec used to encode and decode packets. Must be called before run(); clients must
+	 * use a compatible codec.
+	 *
+	 * @param codec the codec to use.
+	 */
+	public void setCodec(PacketCodec codec);
+
+	public PacketCodec getCodec();
+
+	/**
+	 * Set the pool that outgoing frames are encoded into. Must be called before run().
+	 *
+	 * @param bufferPool the pool to use.
+	 */
+	public void setBufferPool(BufferPool bufferPool);
+
+	public BufferPool getBufferPool();
+
+	/**
+	 * Set when the packets queued for each client are written to its socket. Must be called before
+	 * run().
+	 *
+	 * @param flushPolicy the policy to use.
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy);
+
+	public FlushPolicy getFlushPolicy();
+
+	/**
+	 * Set the TCP options applied to every client connection. Takes effect for connections accepted
+	 * after the call.
+	 *
+	 * @param socketOptions the options to use.
+	 */
+	public void setSocketOptions(SocketOptions socketOptions);
+
+	public SocketOptions getSocketOptions();
+
+	/**
+	 * Set how packets are assigned to the lanes of each client's send queue, and how the lanes
+	 * share the connection. Must be called before run().
+	 *
+	 * @param sendLanes the lanes to use.
+	 */
+	public void setSendLanes(SendLanes sendLanes);
+
+	public SendLanes getSendLanes();
+
+	/**
+	 * @return the number of packets that were not sent because a newer packet with the same state
+	 *         key replaced them while queued.
+	 */
+	public long getCoalescedCount();
+
+	/**
+	 * Set how many packets may wait for each client, and what happens when a queue is full. Must
+	 * be called before run().
+	 *
+	 * @param queueLimits the limits to use.
+	 */
+	public void setQueueLimits(QueueLimits queueLimits);
+
+	public QueueLimits getQueueLimits();
+
+	/**
+	 * Set how clients take turns when the game takes the packets they sent, so that one client
+	 * sending a flood of packets cannot starve the others.
+	 *
+	 * @param receiveFairness the turns and quotas to use.
+	 */
+	public void setReceiveFairness(ReceiveFairness receiveFairness);
+
+	public ReceiveFairness getReceiveFairness();
+
+	/**
+	 * Hand every received packet to a handler on the thread that received it, instead of queueing
+	 * it for getNextReceivedPacket(). The handler may be called by several threads at once.
+	 *
+	 * @param receiveHandler the handler, or null to queue packets.
+	 */
+	public void setReceiveHandler(PacketHandler receiveHandler);
+
+	public PacketHandler getReceiveHandler();
+
+	/**
+	 * Write every packet queued so far to the clients without waiting for the flush policy's
+	 * limits.
+	 */
+	public void flush();
+
+	/**
+	 * Choose whether a UDP port is opened for UNRELIABLE_SEQUENCED and RELIABLE_DATAGRAM packets.
+	 * Must be called before run().
+	 *
+	 * @param datagramsEnabled true to open the UDP port.
+	 */
+	public void setDatagramsEnabled(boolean datagramsEnabled);
+
+	public boolean getDatagramsEnabled();
+
+	/**
+	 * Simulate a poor connection for the datagrams the server sends, for testing. Must be called
+	 * before run().
+	 *
+	 * @param linkSimulator the simulated link, or null to send datagrams directly.
+	 */
+	public void setLinkSimulator(LinkSimulator linkSimulator);
+
+	public LinkSimulator getLinkSimulator();
+}
@@ -0,0 +1,109 @@
+package enigma.engine.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame that is shared, read only, by every connection it is sent to. A broadcast is
+ * encoded once into a SharedFrame and the same frame is placed in each connection's send buffer.
+ *
+ * The frame is reference counted: every send buffer the frame is placed in holds a reference
+ * (retain()) and gives it up once the frame has been written or discarded (release()). When the
+ * last reference is released the frame's direct buffer is returned to its BufferPool.
+ *
+ * A frame also records the SendLane its packet is sent in and, for a keyed packet in the STATE
+ * lane, the packet's state key, so a PriorityFrameQueue can schedule it without the packet.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+final class SharedFrame {
+	private final ByteBuffer buffer;
+	private final BufferPool pool;
+	private final AtomicInteger references = new AtomicInteger(1);
+	private final SendLane lane;
+	// null unless the frame replaces queued frames with the same key
+	private final Long stateKey;
+
+	private SharedFrame(ByteBuffer buffer, BufferPool pool, SendLane lane, Long stateKey) {
+		this.buffer = buffer;
+		this.pool = pool;
+		this.lane = lane;
+		this.stateKey = stateKey;
+	}
+
+	/**
+	 * Encode a packet into a new frame. The caller owns the single initial reference.
+	 *
+	 * @param encoder the encoder to use; the frame takes ownership of the pooled buffer it returns.
+	 * @param packet the packet to encode.
+	 * @return a new frame with a reference count of 1.
+	 * @throws IOException if the packet cannot be encoded.
+	 */
+	static SharedFrame encode(FrameEncoder encoder, Packet packet) throws IOException {
+		SendLane lane = packet instanceof SystemMessagePacket ? SendLane.SYSTEM : SendLane.EVENTS;
+		return new SharedFrame(encoder.encode(packet), encoder.getPool(), lane, null);
+	}
+
+	/**
+	 * Encode a packet into a new frame in the lane chosen by lanes.
+	 */
+	static SharedFrame encode(FrameEncoder encoder, Packet packet, SendLanes lanes) throws IOException {
+		SendLane lane = lanes.laneOf(packet);
+		Long stateKey = lane == SendLane.STATE ? lanes.stateKeyOf(packet) : null;
+		return new SharedFrame(encoder.encode(packet), encoder.getPool(), lane, stateKey);
+	}
+
+	/**
+	 * @return a read only view of the frame with its own position, for a single writer. The view
+	 *         is only valid while the caller holds a reference.
+	 */
+	ByteBuffer duplicate() {
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Write the whole frame to a channel in blocking mode.
+	 */
+	void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer view = buffer.duplicate();
+		while (view.hasRemaining()) {
+			channel.write(view);
+		}
+	}
+
+	int length() {
+		return buffer.remaining();
+	}
+
+	SendLane lane() {
+		return lane;
+	}
+
+	/**
+	 * @return the state key, or null if the frame does not replace other frames.
+	 */
+	Long stateKey() {
+		return stateKey;
+	}
+
+	SharedFrame retain() {
+		references.incrementAndGet();
+		return this;
+	}
+
+	void release() {
+		int remaining = references.decrementAndGet();
+		if (remaining == 0) {
+			pool.release(buffer);
+		} else if (remaining < 0) {
+			throw new IllegalStateException("SharedFrame: released more times than retained");
+		}
+	}
+
+	int referenceCount() {
+		return references.get();
+	}
+}
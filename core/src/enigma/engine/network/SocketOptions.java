@@ -0,0 +1,135 @@
+package enigma.engine.network;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * The TCP options applied to every socket a Client, Server, or NioServer creates. Options left at
+ * USE_SYSTEM_DEFAULT are not touched, so the operating system's defaults apply.
+ *
+ * TCP_NODELAY is on by default. With Nagle's algorithm enabled a small game update can wait for
+ * the acknowledgement of the previous segment (commonly up to 40ms with delayed acks) before it is
+ * sent. Batching of small packets is done by the FlushPolicy instead.
+ *
+ * The options are read when a connection is made; changing them does not affect sockets that are
+ * already open.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+public class SocketOptions {
+	public static final int USE_SYSTEM_DEFAULT = -1;
+
+	private boolean tcpNoDelay = true;
+	private boolean keepAlive = false;
+	private int sendBufferBytes = USE_SYSTEM_DEFAULT;
+	private int receiveBufferBytes = USE_SYSTEM_DEFAULT;
+	private int trafficClass = USE_SYSTEM_DEFAULT;
+	private int lingerSeconds = USE_SYSTEM_DEFAULT;
+
+	public boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * @param tcpNoDelay true to disable Nagle's algorithm (TCP_NODELAY).
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public boolean getKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * @param keepAlive true to have the operating system probe idle connections (SO_KEEPALIVE).
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public int getSendBufferBytes() {
+		return sendBufferBytes;
+	}
+
+	/**
+	 * @param sendBufferBytes the size of the kernel send buffer (SO_SNDBUF), or USE_SYSTEM_DEFAULT.
+	 */
+	public void setSendBufferBytes(int sendBufferBytes) {
+		this.sendBufferBytes = sendBufferBytes;
+	}
+
+	public int getReceiveBufferBytes() {
+		return receiveBufferBytes;
+	}
+
+	/**
+	 * @param receiveBufferBytes the size of the kernel receive buffer (SO_RCVBUF), or
+	 *            USE_SYSTEM_DEFAULT. A server applies it to its listening socket as well, since
+	 *            buffers larger than 64KB must be set before the connection is established.
+	 */
+	public void setReceiveBufferBytes(int receiveBufferBytes) {
+		this.receiveBufferBytes = receiveBufferBytes;
+	}
+
+	public int getTrafficClass() {
+		return trafficClass;
+	}
+
+	/**
+	 * @param trafficClass the IP type of service / DSCP byte (IP_TOS), or USE_SYSTEM_DEFAULT.
+	 *            Routers are free to ignore it.
+	 */
+	public void setTrafficClass(int trafficClass) {
+		this.trafficClass = trafficClass;
+	}
+
+	public int getLingerSeconds() {
+		return lingerSeconds;
+	}
+
+	/**
+	 * @param lingerSeconds how long close() may block while unsent data is delivered (SO_LINGER),
+	 *            or USE_SYSTEM_DEFAULT to leave lingering off.
+	 */
+	public void setLingerSeconds(int lingerSeconds) {
+		this.lingerSeconds = lingerSeconds;
+	}
+
+	/**
+	 * Apply the options to a connection. The receive buffer size is best set before the socket
+	 * connects.
+	 *
+	 * @throws SocketException if the socket rejects an option.
+	 */
+	void applyTo(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		socket.setKeepAlive(keepAlive);
+		if (sendBufferBytes != USE_SYSTEM_DEFAULT) {
+			socket.setSendBufferSize(sendBufferBytes);
+		}
+		if (receiveBufferBytes != USE_SYSTEM_DEFAULT) {
+			socket.setReceiveBufferSize(receiveBufferBytes);
+		}
+		if (trafficClass != USE_SYSTEM_DEFAULT) {
+			socket.setTrafficClass(trafficClass);
+		}
+		if (lingerSeconds != USE_SYSTEM_DEFAULT) {
+			socket.setSoLinger(true, lingerSeconds);
+		}
+	}
+
+	/**
+	 * Apply the options that accepted sockets inherit from their listening socket. Must be called
+	 * before the listener is bound.
+	 *
+	 * @throws SocketException if the socket rejects an option.
+	 */
+	void applyToListener(ServerSocket listener) throws SocketException {
+		if (receiveBufferBytes != USE_SYSTEM_DEFAULT) {
+			listener.setReceiveBufferSize(receiveBufferBytes);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package enigma.engine.network;
+
+/**
+ * Gives the key of the entity a packet carries the state of, for packet classes that do not
+ * implement StatePacket themselves. See SendLanes.coalesce().
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public interface StateKey<T extends Packet> {
+	/**
+	 * @return the key, for example the id of the actor the packet moves.
+	 */
+	public long keyOf(T packet);
+}
@@ -0,0 +1,17 @@
+package enigma.engine.network;
+
+/**
+ * A packet carrying the newest state of one entity. Such packets are sent in the STATE lane by
+ * default, where a packet replaces a queued packet with the same key that has not been sent yet.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ *
+ */
+public interface StatePacket extends Packet {
+	/**
+	 * @return the key of the state this packet carries, for example an actor's id. Packets of
+	 *         different classes that may share a key should mix the class into it.
+	 */
+	public long getStateKey();
+}
@@ -1,11 +1,29 @@
 package enigma.engine.network;
 
+import java.nio.ByteBuffer;
+
 public class SystemMessagePacket implements Packet {
 	//TODO change these packets to have a single payload 
 	//TODO write tests when SystemMessagePacket design is finalized
 	private static final long serialVersionUID = 4552713072731934019L;
 	private boolean quit = false;
 	private char playerID = (char) -1;
+
+	public static final PacketSerializer<SystemMessagePacket> SERIALIZER = new PacketSerializer<SystemMessagePacket>() {
+		@Override
+		public void write(SystemMessagePacket packet, ByteBuffer out) {
+			out.put((byte) (packet.quit ? 1 : 0));
+			out.putChar(packet.playerID);
+		}
+
+		@Override
+		public SystemMessagePacket read(ByteBuffer in) {
+			SystemMessagePacket packet = new SystemMessagePacket();
+			packet.quit = in.get() != 0;
+			packet.playerID = in.getChar();
+			return packet;
+		}
+	};
 	
 	@Override
 	public Packet makeCopy() {
@@ -23,7 +41,7 @@ public class SystemMessagePacket implements Packet {
 	}
 
 	public boolean containsPlayerID() {
-		return playerID != -1;
+		return playerID != (char) -1;
 	}
 	
 	public void setPlayerID(Character id){
@@ -0,0 +1,149 @@
+package enigma.engine.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+
+/**
+ * Frames collected from a connection's send buffer so they can be written with a single gathering
+ * write. The batch holds a reference to each of its frames until the frame has been written.
+ *
+ * This class is not thread safe; each sending thread or connection owns its own batch.
+ *
+ * @author Matt Stone
+ * @version 1.0
+ */
+final class WriteBatch {
+	/** the most frames in one gathering write; well under the IOV_MAX of common platforms */
+	static final int MAX_FRAMES = 64;
+
+	private final SharedFrame[] frames = new SharedFrame[MAX_FRAMES];
+	private final ByteBuffer[] views = new ByteBuffer[MAX_FRAMES];
+	private int count = 0;
+	private int writeIndex = 0;
+	private long bytes = 0;
+	private long firstAddedNanos;
+	// a SYSTEM frame, such as a player id or disconnect message, is never held back
+	private boolean holdsSystemFrame = false;
+
+	/**
+	 * Move frames from a send buffer into the batch until the buffer is empty or the batch is
+	 * full. The batch takes over the buffer's reference to each frame.
+	 */
+	void drain(Queue<SharedFrame> sendBuffer) {
+		SharedFrame frame;
+		while (count < MAX_FRAMES && (frame = sendBuffer.poll()) != null) {
+			add(frame);
+		}
+	}
+
+	/**
+	 * Move frames from a server connection's send queue into the batch, in the order the queue
+	 * schedules them, until the queue is empty or the batch is full.
+	 */
+	void drain(PriorityFrameQueue sendBuffer) {
+		SharedFrame frame;
+		while (count < MAX_FRAMES && (frame = sendBuffer.poll()) != null) {
+			add(frame);
+		}
+	}
+
+	/**
+	 * Add a frame, taking over the caller's reference to it.
+	 */
+	void add(SharedFrame frame) {
+		if (count == 0) {
+			firstAddedNanos = System.nanoTime();
+		}
+		frames[count] = frame;
+		views[count] = frame.duplicate();
+		bytes += frame.length();
+		holdsSystemFrame |= frame.lane() == SendLane.SYSTEM;
+		count++;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	boolean isFull() {
+		return count == MAX_FRAMES;
+	}
+
+	/**
+	 * @return true if the frame is in the batch and has not been written yet.
+	 */
+	boolean contains(SharedFrame frame) {
+		for (int i = 0; i < count; ++i) {
+			if (frames[i] == frame) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param policy the connection's flush policy.
+	 * @param flushRequested true if flush() was called since the last check.
+	 * @return true if the batch should be written now. A batch holding a SYSTEM frame is always
+	 *         written.
+	 */
+	boolean shouldWrite(FlushPolicy policy, boolean flushRequested) {
+		if (count == 0) {
+			return false;
+		}
+		if (flushRequested || holdsSystemFrame || isFull() || isPartiallyWritten()) {
+			return true;
+		}
+		return policy.isDue(bytes, System.nanoTime() - firstAddedNanos);
+	}
+
+	/**
+	 * @return how long until the policy's delay limit is reached for this batch.
+	 */
+	long nanosUntilDue(FlushPolicy policy) {
+		return policy.nanosUntilDue(System.nanoTime() - firstAddedNanos);
+	}
+
+	/**
+	 * Write as much of the batch as the channel accepts. The frames are released once the whole
+	 * batch has been written. A blocking channel writes everything before this returns.
+	 *
+	 * @return true if the whole batch was written and the batch is empty again.
+	 * @throws IOException if the write fails; the unwritten part of the batch is kept.
+	 */
+	boolean writeTo(GatheringByteChannel channel) throws IOException {
+		while (writeIndex < count) {
+			long written = channel.write(views, writeIndex, count - writeIndex);
+			while (writeIndex < count && !views[writeIndex].hasRemaining()) {
+				writeIndex++;
+			}
+			if (written == 0 && writeIndex < count) {
+				// non-blocking channel is full
+				return false;
+			}
+		}
+		releaseAll();
+		return true;
+	}
+
+	/**
+	 * Release every frame and empty the batch.
+	 */
+	void releaseAll() {
+		for (int i = 0; i < count; ++i) {
+			frames[i].release();
+			frames[i] = null;
+			views[i] = null;
+		}
+		count = 0;
+		writeIndex = 0;
+		bytes = 0;
+		holdsSystemFrame = false;
+	}
+
+	private boolean isPartiallyWritten() {
+		return writeIndex > 0 || (count > 0 && views[0].position() > 0);
+	}
+}
@@ -5,13 +5,39 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 import enigma.engine.network.test.basictests.AllBasicTests;
+import enigma.engine.network.test.batching.TestFlushPolicy;
+import enigma.engine.network.test.batching.TestNetworkFlush;
+import enigma.engine.network.test.codec.TestBinaryPacketCodec;
+import enigma.engine.network.test.codec.TestQuantizer;
+import enigma.engine.network.test.datagram.TestReliableDatagrams;
+import enigma.engine.network.test.datagram.TestUnreliableChannel;
+import enigma.engine.network.test.dispatch.TestPacketDispatcher;
+import enigma.engine.network.test.drain.TestDrainReceived;
+import enigma.engine.network.test.fairness.TestReceiveFairness;
 import enigma.engine.network.test.connect.disconnect.blackbox.AllConnectDisconnectTests;
 import enigma.engine.network.test.id.TestIDManager;
+import enigma.engine.network.test.lanes.TestPriorityFrameQueue;
+import enigma.engine.network.test.lanes.TestSendLanes;
+import enigma.engine.network.test.limits.TestQueueLimits;
+import enigma.engine.network.test.ring.TestRingBuffers;
 import enigma.engine.network.test.listentests.AllListenTests;
+import enigma.engine.network.test.nio.AllNioServerTests;
+import enigma.engine.network.test.pool.TestBufferPool;
+import enigma.engine.network.test.pool.TestPacketPool;
+import enigma.engine.network.test.snapshot.TestInterestManager;
+import enigma.engine.network.test.snapshot.TestSnapshotDelta;
+import enigma.engine.network.test.targeted.TestTargetedSends;
 import enigma.engine.network.test.twowayconnection.AllTwoWayTests;
 
 @RunWith(Suite.class)
-@SuiteClasses({ AllBasicTests.class, AllTwoWayTests.class, AllConnectDisconnectTests.class, AllListenTests.class, TestIDManager.class})
+@SuiteClasses({ AllBasicTests.class, AllTwoWayTests.class, AllConnectDisconnectTests.class, AllListenTests.class, TestIDManager.class,
+		AllNioServerTests.class, TestBinaryPacketCodec.class, TestQuantizer.class, TestBufferPool.class, TestPacketPool.class,
+		TestFlushPolicy.class, TestNetworkFlush.class, TestUnreliableChannel.class,
+		TestReliableDatagrams.class, TestSnapshotDelta.class, TestInterestManager.class,
+		TestTargetedSends.class, TestSendLanes.class, TestPriorityFrameQueue.class,
+		TestQueueLimits.class,
+		TestRingBuffers.class, TestDrainReceived.class, TestReceiveFairness.class,
+		TestPacketDispatcher.class })
 public class AllTests {
 	// The abnormally long tests are not included in this suite; however, this suite is designed to
 	// test complete system level functionality.
@@ -1,29 +1,59 @@
 package enigma.engine.network.test;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import enigma.engine.network.FloatArrayPacket;
 import enigma.engine.network.Packet;
+import enigma.engine.network.PacketSerializer;
 
 public class LargePacket implements Packet {
 	private static final long serialVersionUID = 1123112L;
 
-	private ArrayList<Float> values;
+	private float[] values;
+
+	/** the id tests register this packet under, when they register it */
+	public static final short TYPE_ID = 127;
+
+	/**
+	 * Not registered by BinaryPacketCodec.createDefault(), so tests can send a large packet through
+	 * java serialization; register it with this serializer to send it as a bulk copy.
+	 */
+	public static final PacketSerializer<LargePacket> SERIALIZER = new PacketSerializer<LargePacket>() {
+		@Override
+		public void write(LargePacket packet, ByteBuffer out) {
+			FloatArrayPacket.writeFloats(out, packet.values, packet.values.length);
+		}
+
+		@Override
+		public LargePacket read(ByteBuffer in) {
+			return new LargePacket(FloatArrayPacket.readFloats(in));
+		}
+	};
 
 	public LargePacket(int numOfItems) {
-		values = new ArrayList<Float>(numOfItems);
+		values = new float[numOfItems];
 		for(int i = 0; i < numOfItems; ++i){
-			values.add((float) i);
+			values[i] = i;
 		}
 	}
+
+	private LargePacket(float[] values) {
+		this.values = values;
+	}
 	
 	@Override
 	public Packet makeCopy() {
-		LargePacket ret = new LargePacket(values.size());
+		LargePacket ret = new LargePacket(Arrays.copyOf(values, values.length));
 		return ret;
 	}
 
 	public int size() {
-		return values.size();
+		return values.length;
+	}
+
+	public float get(int index) {
+		return values[index];
 	}
 
 	// private void writeObject(ObjectOutputStream oos) throws IOException {
@@ -0,0 +1,174 @@
+package enigma.engine.network.test.batching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.FlushPolicy;
+import enigma.engine.network.NioServer;
+import enigma.engine.network.Packet;
+import enigma.engine.network.Server;
+import enigma.engine.network.ServerEngine;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestFlushPolicy {
+	private int listenPort = 25565;
+	private ServerEngine server;
+	private Client client;
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testClientHoldsPacketsUntilFlush() {
+		connect(new Server(listenPort), FlushPolicy.onTick(), FlushPolicy.immediate());
+
+		for (int i = 0; i < 20; ++i) {
+			client.queueToSend(new DemoConcretePacket(i, i, i, i));
+		}
+		TestTools.sleepForMS(100);
+		assertNull("client sent packets before flush()", server.getNextReceivedPacket());
+
+		client.flush();
+		assertInOrder(20, server, null);
+	}
+
+	@Test
+	public void testServerHoldsPacketsUntilFlush() {
+		connect(new Server(listenPort), FlushPolicy.immediate(), FlushPolicy.onTick());
+		assertServerTickFlush();
+	}
+
+	@Test
+	public void testNioServerHoldsPacketsUntilFlush() {
+		connect(new NioServer(listenPort), FlushPolicy.immediate(), FlushPolicy.onTick());
+		assertServerTickFlush();
+	}
+
+	@Test
+	public void testDelayLimitWritesWithoutFlush() {
+		connect(new NioServer(listenPort), FlushPolicy.coalesce(0, 20000), FlushPolicy.coalesce(0, 20000));
+
+		for (int i = 0; i < 20; ++i) {
+			client.queueToSend(new DemoConcretePacket(i, i, i, i));
+			server.queueToSend(new DemoConcretePacket(i, i, i, i));
+		}
+		assertInOrder(20, server, null);
+		assertInOrder(20, null, client);
+	}
+
+	@Test
+	public void testByteLimitWritesWithoutFlush() {
+		// a demo packet is 22 bytes on the wire, so 10 of them pass the limit
+		connect(new Server(listenPort), FlushPolicy.coalesce(200, 0), FlushPolicy.immediate());
+
+		for (int i = 0; i < 9; ++i) {
+			client.queueToSend(new DemoConcretePacket(i, i, i, i));
+		}
+		TestTools.sleepForMS(100);
+		assertNull("client sent packets before the byte limit", server.getNextReceivedPacket());
+
+		client.queueToSend(new DemoConcretePacket(9, 9, 9, 9));
+		assertInOrder(10, server, null);
+	}
+
+	@Test
+	public void testServerDisconnectMessageIsNotHeldByPolicy() {
+		connect(new Server(listenPort), FlushPolicy.onTick(), FlushPolicy.onTick());
+		// a held packet is in the batch when the disconnect message is queued
+		server.queueToSend(new DemoConcretePacket(0, 0, 0, 0));
+		TestTools.sleepForMS(100);
+
+		server.disconnect();
+		Timer<String> timer = new Timer<String>("wait");
+		while (client.isRunning() && !timer.timeUp("wait", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+		assertFalse("the client never received the server's disconnect message", client.isRunning());
+	}
+
+	@Test
+	public void testClientDisconnectMessageIsNotHeldByPolicy() {
+		connect(new Server(listenPort), FlushPolicy.onTick(), FlushPolicy.onTick());
+		client.queueToSend(new DemoConcretePacket(0, 0, 0, 0));
+		TestTools.sleepForMS(100);
+
+		client.disconnect();
+		Timer<String> timer = new Timer<String>("wait");
+		while (server.activeConnections() > 0 && !timer.timeUp("wait", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+		assertEquals("the server never received the client's disconnect message", 0, server.activeConnections());
+	}
+
+	private void assertServerTickFlush() {
+		for (int i = 0; i < 20; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, i, i, i));
+		}
+		TestTools.sleepForMS(100);
+		assertNull("server sent packets before flush()", client.getNextReceivedPacket());
+
+		server.flush();
+		assertInOrder(20, null, client);
+	}
+
+	private void connect(ServerEngine server, FlushPolicy clientPolicy, FlushPolicy serverPolicy) {
+		this.server = server;
+		this.client = new Client();
+		server.setFlushPolicy(serverPolicy);
+		client.setFlushPolicy(clientPolicy);
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString() + "\n previous resources may not have been closed");
+		}
+
+		Timer<String> timer = new Timer<String>("connect");
+		while (client.getPlayerObject() == null && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+		// the id message is a system message, so no policy holds it back
+		assertTrue("client did not receive its id", client.getPlayerObject() != null);
+	}
+
+	/**
+	 * Wait for count demo packets, numbered from 0, at either the server or the client.
+	 */
+	private void assertInOrder(int count, ServerEngine atServer, Client atClient) {
+		Timer<String> timer = new Timer<String>("wait");
+		int received = 0;
+		while (received < count && !timer.timeUp("wait", 2000)) {
+			Packet packet = atServer != null ? atServer.getNextReceivedPacket() : atClient.getNextReceivedPacket();
+			if (packet == null) {
+				TestTools.sleepForMS(1);
+			} else {
+				assertEquals("packets arrived out of order", received, ((DemoConcretePacket) packet).getId());
+				received++;
+			}
+		}
+		assertEquals("not every packet was written", count, received);
+	}
+}
@@ -0,0 +1,102 @@
+package enigma.engine.network.test.batching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.FlushPolicy;
+import enigma.engine.network.Network;
+import enigma.engine.network.Packet;
+import enigma.engine.network.SocketOptions;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestNetworkFlush {
+	private int listenPort = 25565;
+	private Network server;
+	private Network client;
+
+	@Before
+	public void setup() {
+		SocketOptions options = new SocketOptions();
+		options.setKeepAlive(true);
+		options.setSendBufferBytes(128 * 1024);
+		options.setReceiveBufferBytes(128 * 1024);
+		options.setTrafficClass(0x10);
+		options.setLingerSeconds(1);
+
+		try {
+			server = new Network(null, listenPort, 0);
+			server.serverMode();
+			server.setFlushPolicy(FlushPolicy.onTick());
+			server.setSocketOptions(options);
+			server.run();
+			TestTools.sleepForMS(30);
+
+			client = new Network(InetAddress.getLocalHost().getHostAddress(), listenPort, 0);
+			client.clientMode();
+			client.setFlushPolicy(FlushPolicy.onTick());
+			client.setSocketOptions(options);
+			client.run();
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString() + "\n previous resources may not have been closed");
+		}
+
+		Timer<String> timer = new Timer<String>("connect");
+		while (client.getPlayerID() == null && !timer.timeUp("connect", 1000)) {
+			TestTools.sleepForMS(1);
+		}
+	}
+
+	@After
+	public void teardown() {
+		client.disconnect();
+		server.disconnect();
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testTicksWriteQueuedPackets() {
+		for (int tick = 0; tick < 3; ++tick) {
+			for (int i = 0; i < 10; ++i) {
+				server.queueToSend(new DemoConcretePacket(i, tick, 0, 0));
+				client.queueToSend(new DemoConcretePacket(i, tick, 0, 0));
+			}
+			TestTools.sleepForMS(50);
+			assertNull("client received packets before the server's tick ended", client.getNextReceivedPacket());
+			assertNull("server received packets before the client's tick ended", server.getNextReceivedPacket());
+
+			server.flush();
+			client.flush();
+			assertTick(tick, client);
+			assertTick(tick, server);
+		}
+	}
+
+	private void assertTick(int tick, Network receiver) {
+		Timer<String> timer = new Timer<String>("wait");
+		int received = 0;
+		while (received < 10 && !timer.timeUp("wait", 2000)) {
+			Packet packet = receiver.getNextReceivedPacket();
+			if (packet == null) {
+				TestTools.sleepForMS(1);
+			} else {
+				DemoConcretePacket demo = (DemoConcretePacket) packet;
+				assertEquals("packets arrived out of order", received, demo.getId());
+				assertEquals("packet from the wrong tick", tick, (int) demo.getX());
+				received++;
+			}
+		}
+		assertEquals("not every packet of the tick was written", 10, received);
+	}
+}
@@ -0,0 +1,179 @@
+package enigma.engine.network.test.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import enigma.engine.data.compression.ActorData;
+import enigma.engine.network.BinaryPacketCodec;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FloatArrayPacket;
+import enigma.engine.network.Packet;
+import enigma.engine.network.PacketCodec;
+import enigma.engine.network.SerializationPacketCodec;
+import enigma.engine.network.SystemMessagePacket;
+import enigma.engine.network.test.LargePacket;
+
+public class TestBinaryPacketCodec {
+	private BinaryPacketCodec codec = BinaryPacketCodec.createDefault();
+
+	@Test
+	public void testDemoPacketRoundTrip() throws IOException {
+		DemoConcretePacket packet = new DemoConcretePacket(55, 1.5f, -2.25f, 45.0f);
+		ByteBuffer body = encode(codec, packet);
+		assertEquals("demo packet should be a type id and 16 bytes of fields", 2 + 16, body.remaining());
+
+		DemoConcretePacket decoded = (DemoConcretePacket) codec.decode(body);
+		assertEquals("id did not survive encoding", 55, decoded.getId());
+		assertEquals("x did not survive encoding", 1.5f, decoded.getX(), 0.0f);
+		assertEquals("y did not survive encoding", -2.25f, decoded.getY(), 0.0f);
+		assertEquals("rotation did not survive encoding", 45.0f, decoded.getRotation(), 0.0f);
+	}
+
+	@Test
+	public void testBinaryIsSmallerThanSerialization() throws IOException {
+		DemoConcretePacket packet = new DemoConcretePacket(1, 2, 3, 4);
+		int binary = encode(codec, packet).remaining();
+		int serialized = encode(new SerializationPacketCodec(), packet).remaining();
+		System.out.println("\tDemoConcretePacket: " + binary + " bytes binary, " + serialized + " bytes serialized");
+		assertTrue("binary encoding was not smaller than java serialization", binary * 4 < serialized);
+	}
+
+	@Test
+	public void testSystemMessageRoundTrip() throws IOException {
+		SystemMessagePacket idPacket = new SystemMessagePacket();
+		idPacket.setPlayerID((char) 7);
+		SystemMessagePacket decoded = (SystemMessagePacket) codec.decode(encode(codec, idPacket));
+		assertTrue("player id was lost", decoded.containsPlayerID());
+		assertEquals("player id changed", 7, decoded.getPlayerID());
+		assertTrue("quit flag was set", !decoded.connetionShouldClose());
+
+		SystemMessagePacket quitPacket = new SystemMessagePacket();
+		quitPacket.setConnectionShouldClose(true);
+		decoded = (SystemMessagePacket) codec.decode(encode(codec, quitPacket));
+		assertTrue("quit flag was lost", decoded.connetionShouldClose());
+		assertTrue("player id appeared", !decoded.containsPlayerID());
+	}
+
+	@Test
+	public void testUnregisteredPacketFallsBackToSerialization() throws IOException {
+		LargePacket packet = new LargePacket(100);
+		ByteBuffer body = encode(codec, packet);
+		assertEquals("unregistered packet should use the serialization type id",
+				SerializationPacketCodec.JAVA_SERIALIZED_TYPE, body.getShort(0));
+
+		LargePacket decoded = (LargePacket) codec.decode(body);
+		assertEquals("large packet lost values", 100, decoded.size());
+	}
+
+	@Test
+	public void testFloatArrayPacketIsBulkCopied() throws IOException {
+		float[] values = new float[400];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = i * 0.5f - 7;
+		}
+		ByteBuffer body = encode(codec, new FloatArrayPacket(values));
+		assertEquals("float array should be a type id, a length and 4 bytes per value", 2 + 4 + 4 * 400, body.remaining());
+
+		FloatArrayPacket decoded = (FloatArrayPacket) codec.decode(body);
+		assertTrue("values did not survive encoding", Arrays.equals(values, decoded.getValues()));
+	}
+
+	@Test
+	public void testRegisteredLargePacketIsSmaller() throws IOException {
+		BinaryPacketCodec registered = BinaryPacketCodec.createDefault();
+		registered.register(LargePacket.TYPE_ID, LargePacket.class, LargePacket.SERIALIZER);
+		LargePacket packet = new LargePacket(400);
+		int binary = encode(registered, packet).remaining();
+		int serialized = encode(codec, packet).remaining();
+		System.out.println("\tLargePacket(400): " + binary + " bytes binary, " + serialized + " bytes serialized");
+		assertEquals(2 + 4 + 4 * 400, binary);
+		assertTrue("bulk copy was not smaller than java serialization", binary < serialized);
+
+		LargePacket decoded = (LargePacket) registered.decode(encode(registered, packet));
+		assertEquals("large packet lost values", 400, decoded.size());
+		assertEquals("large packet changed values", 399f, decoded.get(399), 0.0f);
+	}
+
+	@Test
+	public void testSerializationCodecIsReadableByBinaryCodec() throws IOException {
+		ByteBuffer body = encode(new SerializationPacketCodec(), new DemoConcretePacket(3, 4, 5, 6));
+		DemoConcretePacket decoded = (DemoConcretePacket) codec.decode(body);
+		assertEquals("id did not survive encoding", 3, decoded.getId());
+	}
+
+	@Test
+	public void testDuplicateRegistrationRejected() {
+		try {
+			codec.register(BinaryPacketCodec.DEMO_CONCRETE_PACKET_TYPE, LargePacket.class, null);
+			fail("a type id was registered twice");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			codec.register((short) 500, DemoConcretePacket.class, DemoConcretePacket.SERIALIZER);
+			fail("a class was registered twice");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testUnknownTypeIsAnError() {
+		ByteBuffer body = ByteBuffer.allocate(2);
+		body.putShort(0, (short) 999);
+		try {
+			codec.decode(body);
+			fail("decoded a type that was never registered");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testActorDataRoundTrip() {
+		ActorData actor = new ActorData(12, 90.5f, 100.25f, -40.0f, (char) 3);
+		ByteBuffer buffer = ByteBuffer.allocate(ActorData.ENCODED_BYTES);
+		actor.write(buffer);
+		assertEquals("ENCODED_BYTES does not match write()", 0, buffer.remaining());
+		buffer.flip();
+
+		ActorData decoded = ActorData.read(buffer);
+		assertEquals("id did not survive encoding", 12, decoded.id);
+		assertEquals("rotation did not survive encoding", 90.5f, decoded.rotation, ActorData.ROTATION.getResolution() / 2);
+		assertEquals("x did not survive encoding", 100.25f, decoded.x, ActorData.POSITION.getResolution() / 2);
+		assertEquals("y did not survive encoding", -40.0f, decoded.y, ActorData.POSITION.getResolution() / 2);
+		assertEquals("network id did not survive encoding", 3, decoded.networkId);
+		assertTrue("actor should be under 60% of its 18 raw bytes", ActorData.ENCODED_BYTES * 10 < 18 * 6);
+	}
+
+	@Test
+	public void testQuantizedDemoPacket() throws IOException {
+		BinaryPacketCodec quantized = new BinaryPacketCodec();
+		quantized.register(BinaryPacketCodec.DEMO_CONCRETE_PACKET_TYPE, DemoConcretePacket.class,
+				DemoConcretePacket.QUANTIZED_SERIALIZER);
+		DemoConcretePacket packet = new DemoConcretePacket(-55, 1.5f, -2.3f, 405.0f);
+		ByteBuffer body = encode(quantized, packet);
+		assertEquals("quantized demo packet should be a type id and 7 bytes of fields", 2 + 7, body.remaining());
+
+		DemoConcretePacket decoded = (DemoConcretePacket) quantized.decode(body);
+		float position = DemoConcretePacket.POSITION.getResolution() / 2;
+		assertEquals("id did not survive encoding", -55, decoded.getId());
+		assertEquals("x did not survive encoding", 1.5f, decoded.getX(), position);
+		assertEquals("y did not survive encoding", -2.3f, decoded.getY(), position);
+		assertEquals("rotation did not wrap", 45.0f, decoded.getRotation(), DemoConcretePacket.ROTATION.getResolution() / 2);
+	}
+
+	private ByteBuffer encode(PacketCodec codec, Packet packet) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		codec.encode(packet, buffer);
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,192 @@
+package enigma.engine.network.test.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import enigma.engine.network.BitReader;
+import enigma.engine.network.BitWriter;
+import enigma.engine.network.Quantizer;
+
+public class TestQuantizer {
+
+	@Test
+	public void testBitsRoundTrip() {
+		Random random = new Random(11);
+		int[] values = new int[1000];
+		int[] widths = new int[values.length];
+		int totalBits = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(8 * values.length);
+		BitWriter writer = new BitWriter(buffer);
+		for (int i = 0; i < values.length; ++i) {
+			widths[i] = 1 + random.nextInt(32);
+			values[i] = random.nextInt();
+			writer.writeBits(values[i], widths[i]);
+			totalBits += widths[i];
+		}
+		writer.flush();
+		assertEquals("values were not packed without gaps", (totalBits + 7) / 8, buffer.position());
+
+		buffer.flip();
+		BitReader reader = new BitReader(buffer);
+		for (int i = 0; i < values.length; ++i) {
+			int mask = widths[i] == 32 ? -1 : (1 << widths[i]) - 1;
+			assertEquals("value " + i + " changed", values[i] & mask, reader.readBits(widths[i]));
+		}
+		reader.align();
+		assertEquals("padding was not consumed", 0, buffer.remaining());
+	}
+
+	@Test
+	public void testFlushAndAlignMixWithBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		BitWriter writer = new BitWriter(buffer);
+		writer.writeBits(5, 3);
+		writer.flush();
+		buffer.putShort((short) 1234);
+		writer.reset(buffer);
+		writer.writeBits(1, 1);
+		writer.flush();
+		assertEquals(4, buffer.position());
+
+		buffer.flip();
+		BitReader reader = new BitReader(buffer);
+		assertEquals(5, reader.readBits(3));
+		reader.align();
+		assertEquals(1234, buffer.getShort());
+		reader.reset(buffer);
+		assertEquals(1, reader.readBits(1));
+	}
+
+	@Test
+	public void testVarIntsAndBooleans() {
+		int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+		int[] sizes = { 1, 1, 1, 2, 2, 3, 5, 5, 5 };
+		byte[] array = new byte[64];
+		for (int i = 0; i < values.length; ++i) {
+			BitWriter writer = new BitWriter(array);
+			writer.writeVarInt(values[i]);
+			writer.flush();
+			assertEquals("wrong varint size for " + values[i], sizes[i] * 8, bitsWritten(array, values[i]));
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		BitWriter writer = new BitWriter(buffer);
+		for (int value : values) {
+			writer.writeBoolean(value < 0);
+			writer.writeVarInt(value);
+			writer.writeZigZag(value);
+		}
+		writer.writeFloat(-0.1f);
+		writer.flush();
+
+		buffer.flip();
+		BitReader reader = new BitReader(buffer);
+		for (int value : values) {
+			assertEquals("boolean changed", value < 0, reader.readBoolean());
+			assertEquals("varint changed", value, reader.readVarInt());
+			assertEquals("zig-zag changed", value, reader.readZigZag());
+		}
+		assertEquals("float changed", -0.1f, reader.readFloat(), 0.0f);
+	}
+
+	@Test
+	public void testZigZagKeepsSmallNegativesSmall() {
+		for (int value = -64; value < 64; ++value) {
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			BitWriter writer = new BitWriter(buffer);
+			writer.writeZigZag(value);
+			writer.flush();
+			assertEquals(value + " did not fit in one byte", 1, buffer.position());
+		}
+	}
+
+	@Test
+	public void testBooleansTakeOneBit() {
+		byte[] array = new byte[2];
+		BitWriter writer = new BitWriter(array);
+		for (int i = 0; i < 16; ++i) {
+			writer.writeBoolean(i % 3 == 0);
+		}
+		writer.flush();
+
+		BitReader reader = new BitReader(array);
+		for (int i = 0; i < 16; ++i) {
+			assertEquals("boolean " + i + " changed", i % 3 == 0, reader.readBoolean());
+		}
+	}
+
+	@Test
+	public void testBoundedQuantizer() {
+		Quantizer quantizer = new Quantizer(-100, 100, 12);
+		assertEquals(200f / 4095, quantizer.getResolution(), 1e-6f);
+		for (float value = -100; value <= 100; value += 0.37f) {
+			assertEquals("value was not within half a step", value, quantizer.round(value), quantizer.getResolution() / 2);
+		}
+		assertEquals("min did not survive encoding", -100f, quantizer.round(-100), 0.0f);
+		assertEquals("max did not survive encoding", 100f, quantizer.round(100), 0.0f);
+		assertEquals("value below the range was not clamped", -100f, quantizer.round(-5000), 0.0f);
+		assertEquals("value above the range was not clamped", 100f, quantizer.round(5000), 0.0f);
+		assertEquals("NaN should encode as min", -100f, quantizer.round(Float.NaN), 0.0f);
+		float center = quantizer.round(10);
+		assertTrue("values a fraction of a step apart should not differ",
+				quantizer.sameStep(center, center + quantizer.getResolution() / 4));
+	}
+
+	@Test
+	public void testAngleQuantizerWraps() {
+		Quantizer angle = Quantizer.angle(10);
+		float halfStep = angle.getResolution() / 2;
+		assertEquals(45f, angle.round(45 + 360), halfStep);
+		assertEquals(270f, angle.round(-90), halfStep);
+		assertEquals(0f, angle.round(360), halfStep);
+		assertEquals("359.9 should wrap to 0, not clamp", 0f, angle.round(359.9f), halfStep);
+		assertTrue("0 and 360 should be the same angle", angle.sameStep(0, 360));
+	}
+
+	@Test
+	public void testQuantizerWriteRead() {
+		Quantizer quantizer = new Quantizer(0, 1, 7);
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		BitWriter writer = new BitWriter(buffer);
+		quantizer.write(writer, 0.5f);
+		quantizer.write(writer, 0.25f);
+		writer.flush();
+		assertEquals("two 7 bit values should fit in 2 bytes", 2, buffer.position());
+
+		buffer.flip();
+		BitReader reader = new BitReader(buffer);
+		assertEquals(0.5f, quantizer.read(reader), quantizer.getResolution() / 2);
+		assertEquals(0.25f, quantizer.read(reader), quantizer.getResolution() / 2);
+	}
+
+	@Test
+	public void testInvalidQuantizers() {
+		try {
+			new Quantizer(1, 1, 8);
+			fail("empty range was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new Quantizer(0, 1, 32);
+			fail("32 bits was accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * @return the number of bits a single varint took, found by reading it back.
+	 */
+	private static int bitsWritten(byte[] array, int expected) {
+		ByteBuffer buffer = ByteBuffer.wrap(array);
+		assertEquals("varint changed", expected, new BitReader(buffer).readVarInt());
+		return buffer.position() * 8;
+	}
+}
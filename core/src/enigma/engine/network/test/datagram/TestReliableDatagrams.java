@@ -0,0 +1,151 @@
+package enigma.engine.network.test.datagram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DeliveryMode;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.LinkSimulator;
+import enigma.engine.network.NioServer;
+import enigma.engine.network.Packet;
+import enigma.engine.network.Server;
+import enigma.engine.network.ServerEngine;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+/**
+ * Runs the reliable datagram channel over a simulated lossy link. Both directions drop a fifth of
+ * all datagrams (including acknowledgements) and add 20-30ms of latency, which also reorders them.
+ */
+public class TestReliableDatagrams {
+	private static final int PACKETS = 300;
+	private int listenPort = 25565;
+	private ServerEngine server;
+	private Client client;
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testServerToClientOverLossyLink() {
+		connect(new Server(listenPort), lossyLink(1), lossyLink(2));
+		for (int i = 0; i < PACKETS; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, 0, 0, 0), DeliveryMode.RELIABLE_DATAGRAM);
+		}
+		assertExactlyOnceInOrder(null, client);
+	}
+
+	@Test
+	public void testNioServerToClientOverLossyLink() {
+		connect(new NioServer(listenPort), lossyLink(3), lossyLink(4));
+		for (int i = 0; i < PACKETS; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, 0, 0, 0), DeliveryMode.RELIABLE_DATAGRAM);
+		}
+		assertExactlyOnceInOrder(null, client);
+	}
+
+	@Test
+	public void testClientToServerOverLossyLink() {
+		connect(new Server(listenPort), lossyLink(5), lossyLink(6));
+		for (int i = 0; i < PACKETS; ++i) {
+			client.queueToSend(new DemoConcretePacket(i, 0, 0, 0), DeliveryMode.RELIABLE_DATAGRAM);
+		}
+		assertExactlyOnceInOrder(server, null);
+		assertTrue("no round trip was measured", client.getRoundTripMS() >= 0);
+	}
+
+	@Test
+	public void testUnreliableNeverGoesBackwardsOverJitteryLink() {
+		connect(new NioServer(listenPort), lossyLink(7), lossyLink(8));
+		for (int i = 0; i < PACKETS; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, 0, 0, 0), DeliveryMode.UNRELIABLE_SEQUENCED);
+			if (i % 10 == 0) {
+				TestTools.sleepForMS(1);
+			}
+		}
+
+		Timer<String> timer = new Timer<String>("wait");
+		int newest = -1;
+		int received = 0;
+		while (!timer.timeUp("wait", 1000)) {
+			Packet packet = client.getNextReceivedPacket();
+			if (packet == null) {
+				TestTools.sleepForMS(1);
+				continue;
+			}
+			int id = ((DemoConcretePacket) packet).getId();
+			assertTrue("an older datagram was delivered after a newer one", id > newest);
+			newest = id;
+			received++;
+		}
+		assertTrue("every datagram was dropped", received > 0);
+		assertTrue("the simulated link did not drop anything", received < PACKETS);
+	}
+
+	private LinkSimulator lossyLink(long seed) {
+		LinkSimulator link = new LinkSimulator(seed);
+		link.setLossRate(0.2f);
+		link.setLatencyMS(20);
+		link.setJitterMS(10);
+		return link;
+	}
+
+	private void assertExactlyOnceInOrder(ServerEngine atServer, Client atClient) {
+		Timer<String> timer = new Timer<String>("wait");
+		int received = 0;
+		while (received < PACKETS && !timer.timeUp("wait", 20000)) {
+			Packet packet = atServer != null ? atServer.getNextReceivedPacket() : atClient.getNextReceivedPacket();
+			if (packet == null) {
+				TestTools.sleepForMS(1);
+			} else {
+				assertEquals("packets arrived out of order or twice", received, ((DemoConcretePacket) packet).getId());
+				received++;
+			}
+		}
+		assertEquals("not every packet survived the lossy link", PACKETS, received);
+
+		// nothing else, such as a late retransmit, may follow
+		TestTools.sleepForMS(300);
+		Packet extra = atServer != null ? atServer.getNextReceivedPacket() : atClient.getNextReceivedPacket();
+		assertEquals("a packet was delivered twice", null, extra);
+	}
+
+	private void connect(ServerEngine server, LinkSimulator serverLink, LinkSimulator clientLink) {
+		this.server = server;
+		this.client = new Client();
+		server.setLinkSimulator(serverLink);
+		client.setLinkSimulator(clientLink);
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString() + "\n previous resources may not have been closed");
+		}
+
+		// packets are sent over TCP until the client's UDP port has been acknowledged
+		Timer<String> timer = new Timer<String>("connect");
+		while (!client.isDatagramChannelReady() && !timer.timeUp("connect", 5000)) {
+			TestTools.sleepForMS(1);
+		}
+		assertTrue("the datagram channel was never acknowledged", client.isDatagramChannelReady());
+	}
+}
@@ -0,0 +1,167 @@
+package enigma.engine.network.test.datagram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DeliveryMode;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.FlushPolicy;
+import enigma.engine.network.NioServer;
+import enigma.engine.network.Packet;
+import enigma.engine.network.Server;
+import enigma.engine.network.ServerEngine;
+import enigma.engine.network.test.LargePacket;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+/**
+ * Both ends hold TCP packets until flush() is called, which is never done, so any packet that
+ * arrives must have been sent as a datagram.
+ */
+public class TestUnreliableChannel {
+	private int listenPort = 25565;
+	private ServerEngine server;
+	private Client client;
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testServerDatagramsBypassTCP() {
+		connect(new Server(listenPort), FlushPolicy.onTick());
+		assertServerDatagramsArrive();
+	}
+
+	@Test
+	public void testNioServerDatagramsBypassTCP() {
+		connect(new NioServer(listenPort), FlushPolicy.onTick());
+		assertServerDatagramsArrive();
+	}
+
+	@Test
+	public void testClientDatagramsBypassTCP() {
+		connect(new Server(listenPort), FlushPolicy.onTick());
+
+		Timer<String> timer = new Timer<String>("wait");
+		int newest = -1;
+		for (int i = 0; newest < 0 && !timer.timeUp("wait", 2000); ++i) {
+			client.queueToSend(new DemoConcretePacket(i, 0, 0, 0), DeliveryMode.UNRELIABLE_SEQUENCED);
+			TestTools.sleepForMS(5);
+			newest = drainNewest(server, null, newest);
+		}
+		assertTrue("no datagram reached the server", newest >= 0);
+	}
+
+	@Test
+	public void testLargePacketsAreSentReliably() {
+		connect(new NioServer(listenPort), FlushPolicy.immediate());
+
+		server.queueToSend(new LargePacket(1000), DeliveryMode.UNRELIABLE_SEQUENCED);
+		Timer<String> timer = new Timer<String>("wait");
+		Packet packet = null;
+		while (packet == null && !timer.timeUp("wait", 2000)) {
+			packet = client.getNextReceivedPacket();
+			TestTools.sleepForMS(1);
+		}
+		assertTrue("oversized packet was not delivered", packet instanceof LargePacket);
+		assertEquals(1000, ((LargePacket) packet).size());
+	}
+
+	@Test
+	public void testDisabledDatagramsFallBackToTCP() {
+		server = new Server(listenPort);
+		server.setDatagramsEnabled(false);
+		connect(server, FlushPolicy.immediate());
+
+		for (int i = 0; i < 20; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, 0, 0, 0), DeliveryMode.UNRELIABLE_SEQUENCED);
+		}
+		Timer<String> timer = new Timer<String>("wait");
+		int received = 0;
+		while (received < 20 && !timer.timeUp("wait", 2000)) {
+			Packet packet = client.getNextReceivedPacket();
+			if (packet == null) {
+				TestTools.sleepForMS(1);
+			} else {
+				assertEquals("reliable packets arrived out of order", received, ((DemoConcretePacket) packet).getId());
+				received++;
+			}
+		}
+		assertEquals(20, received);
+	}
+
+	private void assertServerDatagramsArrive() {
+		// until the client's HELLO is acknowledged its copies go over TCP and are held there
+		Timer<String> timer = new Timer<String>("wait");
+		int newest = -1;
+		int sent = 0;
+		while (newest < 0 && !timer.timeUp("wait", 2000)) {
+			server.queueToSend(new DemoConcretePacket(sent++, 0, 0, 0), DeliveryMode.UNRELIABLE_SEQUENCED);
+			TestTools.sleepForMS(5);
+			newest = drainNewest(null, client, newest);
+		}
+		assertTrue("no datagram reached the client", newest >= 0);
+
+		// once associated, later datagrams keep arriving
+		for (int i = 0; i < 20; ++i) {
+			server.queueToSend(new DemoConcretePacket(sent++, 0, 0, 0), DeliveryMode.UNRELIABLE_SEQUENCED);
+			TestTools.sleepForMS(2);
+		}
+		int before = newest;
+		while (newest < sent - 1 && !timer.timeUp("wait", 4000)) {
+			newest = drainNewest(null, client, newest);
+			TestTools.sleepForMS(1);
+		}
+		assertTrue("no later datagram reached the client", newest > before);
+	}
+
+	/**
+	 * @return the largest id received so far; asserts that datagrams never go backwards.
+	 */
+	private int drainNewest(ServerEngine atServer, Client atClient, int newest) {
+		Packet packet;
+		while ((packet = atServer != null ? atServer.getNextReceivedPacket() : atClient.getNextReceivedPacket()) != null) {
+			int id = ((DemoConcretePacket) packet).getId();
+			assertTrue("an older datagram was delivered after a newer one", id > newest);
+			newest = id;
+		}
+		return newest;
+	}
+
+	private void connect(ServerEngine server, FlushPolicy policy) {
+		this.server = server;
+		this.client = new Client();
+		server.setFlushPolicy(policy);
+		client.setFlushPolicy(policy);
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString() + "\n previous resources may not have been closed");
+		}
+
+		Timer<String> timer = new Timer<String>("connect");
+		while (client.getPlayerObject() == null && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package enigma.engine.network.test.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.BinaryPacketCodec;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.FloatArrayPacket;
+import enigma.engine.network.Network;
+import enigma.engine.network.Packet;
+import enigma.engine.network.PacketDispatcher;
+import enigma.engine.network.PacketListener;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestPacketDispatcher {
+	private int listenPort = 25565;
+	private Network server;
+	private Network client;
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testRoutesByExactClass() {
+		final ArrayList<DemoConcretePacket> demos = new ArrayList<DemoConcretePacket>();
+		final ArrayList<FloatArrayPacket> floats = new ArrayList<FloatArrayPacket>();
+		PacketDispatcher dispatcher = new PacketDispatcher();
+		dispatcher.register(DemoConcretePacket.class, new PacketListener<DemoConcretePacket>() {
+			public void received(DemoConcretePacket packet) {
+				demos.add(packet);
+			}
+		});
+		dispatcher.register(FloatArrayPacket.class, new PacketListener<FloatArrayPacket>() {
+			public void received(FloatArrayPacket packet) {
+				floats.add(packet);
+			}
+		});
+
+		DemoConcretePacket demo = new DemoConcretePacket(1, 2, 3, 4);
+		FloatArrayPacket floatArray = new FloatArrayPacket(new float[] { 1, 2 });
+		dispatcher.handle(demo);
+		dispatcher.handle(floatArray);
+		assertEquals(1, demos.size());
+		assertSame(demo, demos.get(0));
+		assertEquals(1, floats.size());
+		assertSame(floatArray, floats.get(0));
+		assertEquals(0, dispatcher.getUnhandledCount());
+	}
+
+	@Test
+	public void testUnhandledPacketsAreCountedOrPassedOn() {
+		PacketDispatcher dispatcher = new PacketDispatcher();
+		dispatcher.handle(new DemoConcretePacket(1, 2, 3, 4));
+		assertEquals(1, dispatcher.getUnhandledCount());
+
+		final ArrayList<Packet> unhandled = new ArrayList<Packet>();
+		dispatcher.setUnhandledListener(new PacketListener<Packet>() {
+			public void received(Packet packet) {
+				unhandled.add(packet);
+			}
+		});
+		dispatcher.handle(new DemoConcretePacket(1, 2, 3, 4));
+		assertEquals(1, unhandled.size());
+		assertEquals("a packet passed on was counted", 1, dispatcher.getUnhandledCount());
+	}
+
+	@Test
+	public void testRegisterByTypeId() {
+		final ArrayList<Packet> received = new ArrayList<Packet>();
+		PacketDispatcher dispatcher = new PacketDispatcher(BinaryPacketCodec.createDefault());
+		dispatcher.register(BinaryPacketCodec.FLOAT_ARRAY_PACKET_TYPE, new PacketListener<Packet>() {
+			public void received(Packet packet) {
+				received.add(packet);
+			}
+		});
+		dispatcher.handle(new FloatArrayPacket(new float[] { 1 }));
+		dispatcher.handle(new DemoConcretePacket(1, 2, 3, 4));
+		assertEquals(1, received.size());
+		assertTrue(received.get(0) instanceof FloatArrayPacket);
+		assertEquals(1, dispatcher.getUnhandledCount());
+	}
+
+	@Test
+	public void testRegisteringTwiceOrUnknownTypeFails() {
+		PacketDispatcher dispatcher = new PacketDispatcher(new BinaryPacketCodec());
+		PacketListener<Packet> listener = new PacketListener<Packet>() {
+			public void received(Packet packet) {
+			}
+		};
+		dispatcher.register(DemoConcretePacket.class, listener);
+		try {
+			dispatcher.register(DemoConcretePacket.class, listener);
+			fail("a class was given two listeners");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			dispatcher.register(BinaryPacketCodec.FLOAT_ARRAY_PACKET_TYPE, listener);
+			fail("a type id the codec does not know was registered");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new PacketDispatcher().register(BinaryPacketCodec.FLOAT_ARRAY_PACKET_TYPE, listener);
+			fail("a type id was registered without a codec");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDispatchOnReceivingThread() {
+		final Thread testThread = Thread.currentThread();
+		final List<DemoConcretePacket> received = Collections.synchronizedList(new ArrayList<DemoConcretePacket>());
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		PacketDispatcher dispatcher = new PacketDispatcher();
+		dispatcher.register(DemoConcretePacket.class, new PacketListener<DemoConcretePacket>() {
+			public void received(DemoConcretePacket packet) {
+				received.add(packet);
+				threads.add(Thread.currentThread());
+			}
+		});
+		connect(dispatcher);
+
+		for (int i = 0; i < 20; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, 0, 0, 0));
+		}
+		Timer<String> timer = new Timer<String>("receive");
+		while (received.size() < 20 && !timer.timeUp("receive", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+		assertEquals("packets were lost", 20, received.size());
+		for (int i = 0; i < 20; ++i) {
+			assertEquals("packets were dispatched out of order", i, received.get(i).getId());
+			assertTrue("a packet was dispatched on the game's thread", threads.get(i) != testThread);
+		}
+		assertNull("a dispatched packet was also queued", client.getNextReceivedPacket());
+	}
+
+	private void connect(PacketDispatcher clientDispatcher) {
+		try {
+			server = new Network(null, listenPort, 0);
+			server.serverMode();
+			server.run();
+			TestTools.sleepForMS(30);
+
+			client = new Network(InetAddress.getLocalHost().getHostAddress(), listenPort, 0);
+			client.clientMode();
+			client.setReceiveHandler(clientDispatcher);
+			client.run();
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+		Timer<String> timer = new Timer<String>("connect");
+		while (client.getPlayerID() == null && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+	}
+}
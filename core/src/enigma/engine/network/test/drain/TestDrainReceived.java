@@ -0,0 +1,185 @@
+package enigma.engine.network.test.drain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.Network;
+import enigma.engine.network.Packet;
+import enigma.engine.network.PacketHandler;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestDrainReceived {
+	private static final int PACKETS = 50;
+	private static final int FLOOD_MS = 5000;
+	private int listenPort = 25565;
+	private Network server;
+	private Network client;
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testDrainNotRunningReturnsNothing() {
+		Network network = new Network();
+		ArrayList<Packet> sink = new ArrayList<Packet>();
+		assertEquals(0, network.drainReceived(sink, 10));
+		assertEquals(0, sink.size());
+	}
+
+	@Test
+	public void testClientDrainsIntoCollectionInOrder() {
+		connect(false);
+		for (int i = 0; i < PACKETS; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, 0, 0, 0));
+		}
+		// give every packet time to arrive
+		TestTools.sleepForMS(300);
+
+		ArrayList<Packet> sink = new ArrayList<Packet>();
+		assertEquals("max was not respected", 20, client.drainReceived(sink, 20));
+		assertEquals(PACKETS - 20, client.drainReceived(sink, PACKETS));
+		assertNull("packets were left after draining", client.getNextReceivedPacket());
+		assertInOrder(sink);
+	}
+
+	@Test
+	public void testServerDrainsIntoHandlerInOrder() {
+		connect(false);
+		drainServerWithHandler();
+	}
+
+	@Test
+	public void testNioServerDrainsIntoHandlerInOrder() {
+		connect(true);
+		drainServerWithHandler();
+	}
+
+	@Test
+	public void testClientDrainReturnsWhileServerFloods() {
+		connect(false);
+		assertDrainReturnsDuringFlood(server, client);
+	}
+
+	@Test
+	public void testServerDrainReturnsWhileClientFloods() {
+		connect(false);
+		assertDrainReturnsDuringFlood(client, server);
+	}
+
+	@Test
+	public void testNioServerDrainReturnsWhileClientFloods() {
+		connect(true);
+		assertDrainReturnsDuringFlood(client, server);
+	}
+
+	/**
+	 * Drain with a handler slower than the packets arrive; only the packets there when the call
+	 * started should be handled, or the call would last as long as the flood.
+	 */
+	private void assertDrainReturnsDuringFlood(final Network sender, Network receiver) {
+		final AtomicBoolean flooding = new AtomicBoolean(true);
+		Thread flood = new Thread(new Runnable() {
+			public void run() {
+				Timer<String> timer = new Timer<String>("flood");
+				for (int i = 0; flooding.get() && !timer.timeUp("flood", FLOOD_MS); ++i) {
+					sender.queueToSend(new DemoConcretePacket(i, 0, 0, 0));
+					if (i % 10 == 0) {
+						TestTools.sleepForMS(1);
+					}
+				}
+				flooding.set(false);
+			}
+		});
+		flood.start();
+		Timer<String> timer = new Timer<String>("wait");
+		while (receiver.getNextReceivedPacket() == null && !timer.timeUp("wait", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+
+		// let packets pile up, so the drain has work when it starts
+		TestTools.sleepForMS(50);
+		int count = receiver.drainReceived(new PacketHandler() {
+			public void handle(Packet packet) {
+				TestTools.sleepForMS(1);
+			}
+		});
+		boolean returnedDuringFlood = flooding.getAndSet(false);
+		try {
+			flood.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		assertTrue("no packets were waiting to be drained", count > 0);
+		assertTrue("drainReceived() did not return until the flood stopped", returnedDuringFlood);
+	}
+
+	private void drainServerWithHandler() {
+		for (int i = 0; i < PACKETS; ++i) {
+			client.queueToSend(new DemoConcretePacket(i, 0, 0, 0));
+		}
+		// give every packet time to arrive
+		TestTools.sleepForMS(300);
+
+		final ArrayList<Packet> handled = new ArrayList<Packet>();
+		int count = server.drainReceived(new PacketHandler() {
+			public void handle(Packet packet) {
+				handled.add(packet);
+			}
+		});
+		assertEquals(PACKETS, count);
+		assertNull("packets were left after draining", server.getNextReceivedPacket());
+		assertInOrder(handled);
+	}
+
+	private void assertInOrder(ArrayList<Packet> packets) {
+		assertEquals("packets were lost", PACKETS, packets.size());
+		for (int i = 0; i < PACKETS; ++i) {
+			assertEquals("packets were drained out of order", i, ((DemoConcretePacket) packets.get(i)).getId());
+		}
+	}
+
+	private void connect(boolean nio) {
+		try {
+			server = new Network(null, listenPort, 0);
+			if (nio) {
+				server.nioServerMode();
+			} else {
+				server.serverMode();
+			}
+			server.run();
+			TestTools.sleepForMS(30);
+
+			client = new Network(InetAddress.getLocalHost().getHostAddress(), listenPort, 0);
+			client.clientMode();
+			client.run();
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+		Timer<String> timer = new Timer<String>("connect");
+		while (client.getPlayerID() == null && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package enigma.engine.network.test.fairness;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.Network;
+import enigma.engine.network.Packet;
+import enigma.engine.network.ReceiveFairness;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestReceiveFairness {
+	private int listenPort = 25565;
+	private Network server;
+	private Network flooder;
+	private Network quiet;
+
+	@After
+	public void teardown() {
+		for (Network network : new Network[] { flooder, quiet, server }) {
+			if (network != null) {
+				network.disconnect();
+			}
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testFloodingClientDoesNotStarveOthers() {
+		connect(new ReceiveFairness(), false);
+		assertFloodDoesNotStarveOthers();
+	}
+
+	@Test
+	public void testNioServerFloodingClientDoesNotStarveOthers() {
+		connect(new ReceiveFairness(), true);
+		assertFloodDoesNotStarveOthers();
+	}
+
+	private void assertFloodDoesNotStarveOthers() {
+		send(flooder, 0, 500);
+		send(quiet, 1, 5);
+		// give every packet time to arrive
+		TestTools.sleepForMS(500);
+
+		// one packet per turn, so the quiet client's packets are among the first taken
+		int quietTaken = 0;
+		for (int i = 0; i < 10; ++i) {
+			DemoConcretePacket packet = (DemoConcretePacket) server.getNextReceivedPacket();
+			assertTrue("packets were lost", packet != null);
+			if (packet.getX() == 1) {
+				quietTaken++;
+			}
+		}
+		assertEquals("the quiet client waited behind the flood", 5, quietTaken);
+	}
+
+	@Test
+	public void testQuotaLimitsEachClientPerTick() {
+		assertQuotaLimitsEachClientPerTick(false);
+	}
+
+	@Test
+	public void testNioServerQuotaLimitsEachClientPerTick() {
+		assertQuotaLimitsEachClientPerTick(true);
+	}
+
+	private void assertQuotaLimitsEachClientPerTick(boolean nio) {
+		ReceiveFairness fairness = new ReceiveFairness();
+		fairness.setPacketsPerTurn(4);
+		fairness.setPacketsPerTick(10);
+		connect(fairness, nio);
+		send(flooder, 0, 50);
+		send(quiet, 1, 50);
+		TestTools.sleepForMS(500);
+
+		int[] next = new int[2];
+		for (int tick = 0; tick < 5; ++tick) {
+			ArrayList<Packet> packets = new ArrayList<Packet>();
+			int count = server.drainReceived(packets, 1000);
+			assertEquals("a tick did not take the quota of both clients", 20, count);
+			int[] taken = new int[2];
+			for (Packet packet : packets) {
+				DemoConcretePacket demo = (DemoConcretePacket) packet;
+				int client = (int) demo.getX();
+				assertEquals("a client's packets were taken out of order", next[client], demo.getId());
+				next[client]++;
+				taken[client]++;
+			}
+			assertEquals(10, taken[0]);
+			assertEquals(10, taken[1]);
+		}
+		assertEquals("packets were left after every quota was taken", 0, server.drainReceived(new ArrayList<Packet>(), 1000));
+	}
+
+	private void send(Network client, int clientNumber, int packets) {
+		for (int id = 0; id < packets; ++id) {
+			client.queueToSend(new DemoConcretePacket(id, clientNumber, 0, 0));
+		}
+	}
+
+	private void connect(ReceiveFairness fairness, boolean nio) {
+		try {
+			server = new Network(null, listenPort, 0);
+			if (nio) {
+				server.nioServerMode();
+			} else {
+				server.serverMode();
+			}
+			server.setReceiveFairness(fairness);
+			server.run();
+			TestTools.sleepForMS(30);
+
+			flooder = new Network(InetAddress.getLocalHost().getHostAddress(), listenPort, 0);
+			flooder.clientMode();
+			flooder.run();
+			quiet = new Network(InetAddress.getLocalHost().getHostAddress(), listenPort, 0);
+			quiet.clientMode();
+			quiet.run();
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+		Timer<String> timer = new Timer<String>("connect");
+		while ((flooder.getPlayerID() == null || quiet.getPlayerID() == null) && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package enigma.engine.network.test.lanes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import enigma.engine.network.BinaryPacketCodec;
+import enigma.engine.network.BufferPool;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.OverflowPolicy;
+import enigma.engine.network.Packet;
+import enigma.engine.network.PacketCodec;
+import enigma.engine.network.QueueLimits;
+import enigma.engine.network.SendLanes;
+import enigma.engine.network.SystemMessagePacket;
+
+/**
+ * The send queue of a server connection is package private, so it is reached through reflection.
+ */
+public class TestPriorityFrameQueue {
+	private static final String PACKAGE = "enigma.engine.network.";
+	private static final int FRAMES = 2000;
+
+	@Test
+	public void testPollReturnsWhileSystemFrameIsBeingAdded() throws Exception {
+		final Object queue = newQueue();
+		// a SYSTEM frame is counted before it is in its lane; poll() must not wait for it
+		AtomicInteger size = (AtomicInteger) field(queue, "size");
+		size.incrementAndGet();
+		final Object[] polled = new Object[1];
+		Thread sendThread = new Thread(new Runnable() {
+			public void run() {
+				polled[0] = poll(queue);
+			}
+		});
+		sendThread.start();
+		sendThread.join(2000);
+		assertFalse("poll() spun while a SYSTEM frame was being added", sendThread.isAlive());
+		assertNull(polled[0]);
+
+		// the frame arrives in its lane
+		Object frame = systemFrame();
+		Object systemLane = ((Object[]) field(queue, "lanes"))[0];
+		Method add = systemLane.getClass().getDeclaredMethod("add", Object.class);
+		add.setAccessible(true);
+		add.invoke(systemLane, frame);
+		assertTrue("the SYSTEM frame was not taken once added", poll(queue) == frame);
+		assertEquals(0, size.get());
+	}
+
+	@Test
+	public void testSystemFramesAddedDuringPollAreTaken() throws Exception {
+		final Object queue = newQueue();
+		final Object[] frames = new Object[FRAMES];
+		for (int i = 0; i < FRAMES; ++i) {
+			frames[i] = systemFrame();
+		}
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				for (Object frame : frames) {
+					add(queue, frame);
+				}
+			}
+		});
+		final AtomicInteger taken = new AtomicInteger(0);
+		Thread sendThread = new Thread(new Runnable() {
+			public void run() {
+				long deadline = System.currentTimeMillis() + 5000;
+				while (taken.get() < FRAMES && System.currentTimeMillis() < deadline) {
+					if (poll(queue) != null) {
+						taken.incrementAndGet();
+					}
+				}
+			}
+		});
+		sendThread.start();
+		producer.start();
+		producer.join();
+		sendThread.join(10000);
+		assertFalse("poll() did not return while SYSTEM frames were added", sendThread.isAlive());
+		assertEquals("SYSTEM frames were lost", FRAMES, taken.get());
+	}
+
+	@Test
+	public void testFramesAddedAfterCloseAreReleased() throws Exception {
+		BufferPool pool = new BufferPool(16, true);
+		Object queue = newQueue();
+		call(queue, "close");
+
+		call(queue, "offer", frame(pool, new DemoConcretePacket(0, 0, 0, 0)), OverflowPolicy.DISCONNECT);
+		assertEquals("a frame offered after close() was kept", 0, pool.getOutstandingCount());
+		call(queue, "add", frame(pool, new DemoConcretePacket(1, 0, 0, 0)));
+		assertEquals("a frame added after close() was kept", 0, pool.getOutstandingCount());
+		call(queue, "add", frame(pool, new SystemMessagePacket()));
+		assertEquals("a SYSTEM frame added after close() was kept", 0, pool.getOutstandingCount());
+		assertEquals(0, ((AtomicInteger) field(queue, "size")).get());
+	}
+
+	private static Object newQueue() throws Exception {
+		Constructor<?> constructor = Class.forName(PACKAGE + "PriorityFrameQueue").getDeclaredConstructor(SendLanes.class,
+				int.class, AtomicLong.class);
+		constructor.setAccessible(true);
+		return constructor.newInstance(new SendLanes(), QueueLimits.UNBOUNDED, new AtomicLong(0));
+	}
+
+	private static Object systemFrame() throws Exception {
+		return frame(new BufferPool(), new SystemMessagePacket());
+	}
+
+	private static Object frame(BufferPool pool, Packet packet) throws Exception {
+		Class<?> encoderClass = Class.forName(PACKAGE + "FrameEncoder");
+		Constructor<?> constructor = encoderClass.getDeclaredConstructor(PacketCodec.class, BufferPool.class);
+		constructor.setAccessible(true);
+		Object encoder = constructor.newInstance(BinaryPacketCodec.createDefault(), pool);
+		Method encode = Class.forName(PACKAGE + "SharedFrame").getDeclaredMethod("encode", encoderClass,
+				Packet.class);
+		encode.setAccessible(true);
+		return encode.invoke(null, encoder, packet);
+	}
+
+	private static Object field(Object queue, String name) throws Exception {
+		Field field = queue.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(queue);
+	}
+
+	private static Object poll(Object queue) {
+		return call(queue, "poll");
+	}
+
+	private static void add(Object queue, Object frame) {
+		call(queue, "add", frame);
+	}
+
+	private static Object call(Object queue, String name, Object... args) {
+		try {
+			for (Method method : queue.getClass().getDeclaredMethods()) {
+				if (method.getName().equals(name) && method.getParameterTypes().length == args.length) {
+					method.setAccessible(true);
+					return method.invoke(queue, args);
+				}
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		throw new IllegalArgumentException("PriorityFrameQueue has no method " + name);
+	}
+}
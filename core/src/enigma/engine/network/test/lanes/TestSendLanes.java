@@ -0,0 +1,240 @@
+package enigma.engine.network.test.lanes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.NioServer;
+import enigma.engine.network.Packet;
+import enigma.engine.network.SendLane;
+import enigma.engine.network.SendLanes;
+import enigma.engine.network.Server;
+import enigma.engine.network.ServerEngine;
+import enigma.engine.network.SocketOptions;
+import enigma.engine.network.StateKey;
+import enigma.engine.network.StatePacket;
+import enigma.engine.network.SystemMessagePacket;
+import enigma.engine.network.test.LargePacket;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestSendLanes {
+	private static final int EVENTS = 500;
+	private static final int KEYS = 5;
+	/** id of the event that ends every test's traffic */
+	private static final int END = -1;
+	private int listenPort = 25565;
+	private ServerEngine server;
+	private Client client;
+	private Socket stalledClient;
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (stalledClient != null) {
+			try {
+				stalledClient.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testPacketsAreAssignedLanes() {
+		SendLanes lanes = new SendLanes();
+		assertEquals(SendLane.SYSTEM, lanes.laneOf(new SystemMessagePacket()));
+		assertEquals(SendLane.EVENTS, lanes.laneOf(new DemoConcretePacket(0, 0, 0, 0)));
+		assertEquals(SendLane.STATE, lanes.laneOf(new PositionPacket(0, 0)));
+
+		lanes.assign(DemoConcretePacket.class, SendLane.BULK).weight(SendLane.BULK, 2);
+		assertEquals("assigned lane was ignored", SendLane.BULK, lanes.laneOf(new DemoConcretePacket(0, 0, 0, 0)));
+		assertEquals(2, lanes.getWeight(SendLane.BULK));
+		try {
+			lanes.assign(DemoConcretePacket.class, SendLane.SYSTEM);
+			fail("a packet was assigned the SYSTEM lane");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			lanes.weight(SendLane.STATE, 0);
+			fail("a lane was given no share");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testClassesCanBeGivenKeys() {
+		SendLanes lanes = new SendLanes().coalesce(DemoConcretePacket.class, new StateKey<DemoConcretePacket>() {
+			@Override
+			public long keyOf(DemoConcretePacket packet) {
+				return packet.getId();
+			}
+		});
+		assertEquals("keyed class was not sent as state", SendLane.STATE, lanes.laneOf(new DemoConcretePacket(7, 0, 0, 0)));
+		assertEquals(Long.valueOf(7), lanes.stateKeyOf(new DemoConcretePacket(7, 0, 0, 0)));
+		assertEquals(Long.valueOf(3), lanes.stateKeyOf(new PositionPacket(3, 0)));
+		assertNull("an unkeyed packet was given a key", lanes.stateKeyOf(new SystemMessagePacket()));
+	}
+
+	@Test
+	public void testQueueForStalledClientIsBoundedByKeys() {
+		// small buffers, so the server's socket to a client that never reads fills quickly
+		SocketOptions options = new SocketOptions();
+		options.setSendBufferBytes(8 * 1024);
+		server = new Server(listenPort);
+		server.setSocketOptions(options);
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			stalledClient = new Socket();
+			stalledClient.setReceiveBufferSize(8 * 1024);
+			stalledClient.connect(new InetSocketAddress(InetAddress.getLocalHost(), listenPort));
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+		Timer<String> timer = new Timer<String>("connect");
+		while (server.activeConnections() != 1 && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+
+		// far more than the socket buffers hold, so the server stops being able to write
+		for (int i = 0; i < 40; ++i) {
+			server.queueToSend(new LargePacket(16 * 1024));
+		}
+		TestTools.sleepForMS(500);
+
+		int updates = EVENTS * KEYS;
+		for (int i = 0; i < EVENTS; ++i) {
+			for (int key = 0; key < KEYS; ++key) {
+				server.queueToSend(new PositionPacket(key, i));
+			}
+		}
+		timer = new Timer<String>("wait");
+		while (server.getCoalescedCount() < updates - KEYS && !timer.timeUp("wait", 2000)) {
+			TestTools.sleepForMS(10);
+		}
+		assertEquals("updates for a stalled client were kept", updates - KEYS, server.getCoalescedCount());
+	}
+
+	@Test
+	public void testStateIsReplacedAndEventsKeepOrder() {
+		connect(new Server(listenPort));
+		sendMixedTraffic();
+	}
+
+	@Test
+	public void testStateIsReplacedAndEventsKeepOrderWithNioServer() {
+		connect(new NioServer(listenPort));
+		sendMixedTraffic();
+	}
+
+	/**
+	 * Queue numbered events between updates to a few keys. Every event must arrive in order, and
+	 * each key's updates must arrive in order, ending with its last.
+	 */
+	private void sendMixedTraffic() {
+		int[] lastSent = new int[KEYS];
+		for (int i = 0; i < EVENTS; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, 0, 0, 0));
+			for (int key = 0; key < KEYS; ++key) {
+				lastSent[key] = i;
+				server.queueToSend(new PositionPacket(key, i));
+			}
+		}
+		server.queueToSend(new DemoConcretePacket(END, 0, 0, 0));
+
+		int[] lastReceived = new int[KEYS];
+		Arrays.fill(lastReceived, -1);
+		int events = 0;
+		int states = 0;
+		boolean ended = false;
+		Timer<String> timer = new Timer<String>("wait");
+		while (!(ended && Arrays.equals(lastSent, lastReceived)) && !timer.timeUp("wait", 5000)) {
+			Packet packet = client.getNextReceivedPacket();
+			if (packet == null) {
+				TestTools.sleepForMS(1);
+			} else if (packet instanceof PositionPacket) {
+				PositionPacket state = (PositionPacket) packet;
+				assertTrue("an older state arrived after a newer one", state.value > lastReceived[state.key]);
+				lastReceived[state.key] = state.value;
+				states++;
+			} else if (((DemoConcretePacket) packet).getId() == END) {
+				ended = true;
+			} else {
+				assertEquals("events arrived out of order", events, ((DemoConcretePacket) packet).getId());
+				events++;
+			}
+		}
+		assertTrue("the final event was not received", ended);
+		assertEquals("events were lost", EVENTS, events);
+		for (int key = 0; key < KEYS; ++key) {
+			assertEquals("the newest state of key " + key + " was not received", lastSent[key], lastReceived[key]);
+		}
+		assertTrue("more states were received than sent", states <= EVENTS * KEYS);
+	}
+
+	private void connect(ServerEngine engine) {
+		server = engine;
+		server.setSendLanes(new SendLanes().weight(SendLane.STATE, 1));
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			client = new Client();
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+		Timer<String> timer = new Timer<String>("connect");
+		while (client.getPlayerObject() == null && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+		assertTrue("client did not receive an id", client.getPlayerObject() != null);
+	}
+
+	/**
+	 * Sent with Java serialization, since it is not registered with the codec.
+	 */
+	public static class PositionPacket implements StatePacket {
+		private static final long serialVersionUID = 1L;
+		final int key;
+		final int value;
+
+		public PositionPacket(int key, int value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		@Override
+		public long getStateKey() {
+			return key;
+		}
+
+		@Override
+		public Packet makeCopy() {
+			return new PositionPacket(key, value);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package enigma.engine.network.test.limits;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.NioServer;
+import enigma.engine.network.OverflowPolicy;
+import enigma.engine.network.Packet;
+import enigma.engine.network.QueueLimits;
+import enigma.engine.network.Server;
+import enigma.engine.network.ServerEngine;
+import enigma.engine.network.SocketOptions;
+import enigma.engine.network.test.LargePacket;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestQueueLimits {
+	private int listenPort = 25565;
+	private ServerEngine server;
+	private Client client;
+	private Socket stalledClient;
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (stalledClient != null) {
+			try {
+				stalledClient.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testStalledClientIsDisconnected() {
+		connectStalledClient(new Server(listenPort), limits(16, OverflowPolicy.DISCONNECT, 0, OverflowPolicy.BLOCK));
+		assertStalledClientIsDropped();
+	}
+
+	@Test
+	public void testStalledClientIsDisconnectedByNioServer() {
+		// the queueing thread finds the queue full; the client is dropped by its event loop
+		connectStalledClient(new NioServer(listenPort), limits(16, OverflowPolicy.DISCONNECT, 0, OverflowPolicy.BLOCK));
+		assertStalledClientIsDropped();
+	}
+
+	private void assertStalledClientIsDropped() {
+		// enough to fill the socket, a whole write batch and the queue
+		for (int i = 0; i < 200; ++i) {
+			server.queueToSend(new LargePacket(16 * 1024));
+		}
+		Timer<String> timer = new Timer<String>("wait");
+		while (server.activeConnections() != 0 && !timer.timeUp("wait", 5000)) {
+			TestTools.sleepForMS(10);
+		}
+		assertEquals("client that stopped reading was not dropped", 0, server.activeConnections());
+	}
+
+	@Test
+	public void testTryQueueToSendReportsFullQueue() {
+		connectStalledClient(new NioServer(listenPort), limits(16, OverflowPolicy.BLOCK, 0, OverflowPolicy.BLOCK));
+		boolean refused = false;
+		for (int i = 0; i < 1000 && !refused; ++i) {
+			refused = !server.tryQueueToSend(new LargePacket(16 * 1024));
+		}
+		assertTrue("a full send queue accepted more packets", refused);
+		assertEquals("BLOCK dropped the client", 1, server.activeConnections());
+	}
+
+	@Test
+	public void testFullReceiveQueueDropsNewest() {
+		connect(new Server(listenPort), limits(0, OverflowPolicy.BLOCK, 10, OverflowPolicy.DROP_NEWEST));
+		for (int i = 0; i < 100; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, 0, 0, 0));
+		}
+		TestTools.sleepForMS(500);
+
+		int received = 0;
+		Packet packet;
+		while ((packet = client.getNextReceivedPacket()) != null) {
+			assertEquals("the oldest packets were not kept", received, ((DemoConcretePacket) packet).getId());
+			received++;
+		}
+		assertEquals("receive queue was not bounded", 10, received);
+	}
+
+	@Test
+	public void testBlockedReceiveLosesNothing() {
+		connect(new Server(listenPort), limits(0, OverflowPolicy.BLOCK, 8, OverflowPolicy.BLOCK));
+		int sent = 300;
+		for (int i = 0; i < sent; ++i) {
+			client.queueToSend(new DemoConcretePacket(i, 0, 0, 0));
+		}
+
+		int received = 0;
+		Timer<String> timer = new Timer<String>("wait");
+		while (received < sent && !timer.timeUp("wait", 5000)) {
+			// a slow game loop, so the server's receive queue stays full
+			TestTools.sleepForMS(1);
+			Packet packet = server.getNextReceivedPacket();
+			if (packet != null) {
+				assertEquals("packets arrived out of order", received, ((DemoConcretePacket) packet).getId());
+				received++;
+			}
+		}
+		assertEquals("packets were lost while the server was not reading", sent, received);
+	}
+
+	private static QueueLimits limits(int sendCapacity, OverflowPolicy sendOverflow, int receiveCapacity,
+			OverflowPolicy receiveOverflow) {
+		QueueLimits limits = new QueueLimits();
+		limits.setSendCapacity(sendCapacity);
+		limits.setSendOverflow(sendOverflow);
+		limits.setReceiveCapacity(receiveCapacity);
+		limits.setReceiveOverflow(receiveOverflow);
+		return limits;
+	}
+
+	private void connect(ServerEngine engine, QueueLimits limits) {
+		server = engine;
+		server.setQueueLimits(limits);
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			client = new Client();
+			client.setQueueLimits(limits);
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+		Timer<String> timer = new Timer<String>("connect");
+		while (client.getPlayerObject() == null && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+		assertTrue("client did not receive an id", client.getPlayerObject() != null);
+	}
+
+	/**
+	 * Connect a plain socket that never reads, with small buffers so the server's writes to it
+	 * stop quickly.
+	 */
+	private void connectStalledClient(ServerEngine engine, QueueLimits limits) {
+		SocketOptions options = new SocketOptions();
+		options.setSendBufferBytes(8 * 1024);
+		server = engine;
+		server.setSocketOptions(options);
+		server.setQueueLimits(limits);
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			stalledClient = new Socket();
+			stalledClient.setReceiveBufferSize(8 * 1024);
+			stalledClient.connect(new InetSocketAddress(InetAddress.getLocalHost(), listenPort));
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+		Timer<String> timer = new Timer<String>("connect");
+		while (server.activeConnections() != 1 && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+		assertEquals("stalled client did not connect", 1, server.activeConnections());
+	}
+}
@@ -0,0 +1,11 @@
+package enigma.engine.network.test.nio;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.junit.runners.Suite.SuiteClasses;
+
+@RunWith(Suite.class)
+@SuiteClasses({ NioServerTest1_TwoWay500UniquePackets.class, NioServerTest2_ManyClients.class })
+public class AllNioServerTests {
+
+}
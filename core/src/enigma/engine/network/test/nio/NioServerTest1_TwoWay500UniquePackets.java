@@ -0,0 +1,133 @@
+package enigma.engine.network.test.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.NioServer;
+import enigma.engine.network.Packet;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class NioServerTest1_TwoWay500UniquePackets {
+	private Client client;
+	private NioServer server;
+	private int listenPort = 25565;
+
+	@Before
+	public void setup() {
+		try {
+			client = new Client();
+			server = new NioServer(listenPort);
+			server.run();
+			TestTools.sleepForMS(30);
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+
+			// broadcasts only reach connections the event loop has already accepted
+			Timer<String> timer = new Timer<String>("accept");
+			while (server.activeConnections() < 1 && !timer.timeUp("accept", 1000)) {
+				TestTools.sleepForMS(1);
+			}
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString() + "\n previous resources may not have been closed");
+		}
+	}
+
+	@After
+	public void teardown() {
+		server.disconnect();
+		client.disconnect();
+		TestTools.sleepForMS(500);
+		int counter = 0;
+		while ((server.isRunning() || client.isRunning() && counter < 10)) {
+			TestTools.sleepForMS(500);
+			counter++;
+		}
+	}
+
+	@Test
+	public void testServerSendClient500() {
+		ArrayList<DemoConcretePacket> packets = createPackets(500);
+		for (Packet packet : packets) {
+			server.queueToSend(packet);
+		}
+
+		Timer<String> timer = new Timer<String>("wait");
+		ArrayList<DemoConcretePacket> received = new ArrayList<DemoConcretePacket>();
+		while (received.size() < packets.size() && !timer.timeUp("wait", 2000)) {
+			DemoConcretePacket pkt = (DemoConcretePacket) client.getNextReceivedPacket();
+			if (pkt == null) {
+				TestTools.sleepForMS(1);
+			} else {
+				received.add(pkt);
+			}
+		}
+		assertPacketsMatch(packets, received);
+	}
+
+	@Test
+	public void testClientSendServer500() {
+		ArrayList<DemoConcretePacket> packets = createPackets(500);
+		for (Packet packet : packets) {
+			client.queueToSend(packet);
+		}
+
+		Timer<String> timer = new Timer<String>("wait");
+		ArrayList<DemoConcretePacket> received = new ArrayList<DemoConcretePacket>();
+		while (received.size() < packets.size() && !timer.timeUp("wait", 2000)) {
+			DemoConcretePacket pkt = (DemoConcretePacket) server.getNextReceivedPacket();
+			if (pkt == null) {
+				TestTools.sleepForMS(1);
+			} else {
+				received.add(pkt);
+			}
+		}
+		assertPacketsMatch(packets, received);
+	}
+
+	@Test
+	public void testClientReceivesID() throws UnknownHostException {
+		Timer<String> timer = new Timer<String>("wait");
+		while (client.getPlayerObject() == null && !timer.timeUp("wait", 1000)) {
+			TestTools.sleepForMS(1);
+		}
+		assertTrue("client was not sent an id", client.getPlayerObject() != null);
+		assertTrue("client was given the host's id",
+				client.getPlayerObject().getID() != server.getHostPlayerObj().getID());
+		assertEquals("server should report a single connection", 1, server.activeConnections());
+	}
+
+	private ArrayList<DemoConcretePacket> createPackets(int count) {
+		ArrayList<DemoConcretePacket> packets = new ArrayList<DemoConcretePacket>();
+		for (int i = 0; i < count; ++i) {
+			packets.add(new DemoConcretePacket(i, 2 * i, 3 * i, 4 * i));
+		}
+		return packets;
+	}
+
+	private void assertPacketsMatch(ArrayList<DemoConcretePacket> sent, ArrayList<DemoConcretePacket> received) {
+		assertEquals("did not receive every packet", sent.size(), received.size());
+		for (int i = 0; i < sent.size(); ++i) {
+			DemoConcretePacket packet = sent.get(i);
+			DemoConcretePacket pkt = received.get(i);
+			assertEquals("packets arrived out of order", packet.getId(), pkt.getId());
+			assertEquals("packets had different X values", packet.getX(), pkt.getX(), 0.001);
+			assertEquals("packets had different Y values", packet.getY(), pkt.getY(), 0.001);
+			assertEquals("packets had different rotation values", packet.getRotation(), pkt.getRotation(), 0.001);
+			assertTrue("packets are same instance", pkt != packet);
+		}
+	}
+}
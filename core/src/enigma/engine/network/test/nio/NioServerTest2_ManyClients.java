@@ -0,0 +1,119 @@
+package enigma.engine.network.test.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.NioServer;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class NioServerTest2_ManyClients {
+	private static final int CLIENTS = 20;
+	private ArrayList<Client> clients = new ArrayList<Client>();
+	private NioServer server;
+	private int listenPort = 25565;
+	private String address;
+
+	@Before
+	public void setup() {
+		try {
+			address = InetAddress.getLocalHost().getHostAddress();
+			server = new NioServer(listenPort, (short) (CLIENTS + 1), true, 2);
+			server.run();
+			TestTools.sleepForMS(30);
+			for (int i = 0; i < CLIENTS; ++i) {
+				Client client = new Client();
+				client.connect(address, listenPort);
+				clients.add(client);
+			}
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString() + "\n previous resources may not have been closed");
+		}
+	}
+
+	@After
+	public void teardown() {
+		server.disconnect();
+		for (Client client : clients) {
+			client.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testBroadcastReachesAllClients() {
+		waitForConnections(CLIENTS);
+		assertEquals("server did not accept every client", CLIENTS, server.activeConnections());
+
+		for (int i = 0; i < 50; ++i) {
+			server.queueToSend(new DemoConcretePacket(i, i, i, i));
+		}
+
+		for (Client client : clients) {
+			Timer<String> timer = new Timer<String>("wait");
+			int received = 0;
+			while (received < 50 && !timer.timeUp("wait", 2000)) {
+				DemoConcretePacket pkt = (DemoConcretePacket) client.getNextReceivedPacket();
+				if (pkt == null) {
+					TestTools.sleepForMS(1);
+				} else {
+					assertEquals("packets arrived out of order", received, pkt.getId());
+					received++;
+				}
+			}
+			assertEquals("a client did not receive the full broadcast", 50, received);
+		}
+	}
+
+	@Test
+	public void testClientDisconnectFreesConnection() {
+		waitForConnections(CLIENTS);
+
+		Client leaving = clients.get(0);
+		leaving.disconnect();
+
+		Timer<String> timer = new Timer<String>("wait");
+		while (server.activeConnections() != CLIENTS - 1 && !timer.timeUp("wait", 6000)) {
+			TestTools.sleepForMS(10);
+		}
+		assertEquals("server did not drop the disconnected client", CLIENTS - 1, server.activeConnections());
+	}
+
+	@Test
+	public void testServerDisconnectClosesClients() {
+		waitForConnections(CLIENTS);
+		server.disconnect();
+		assertTrue("server still running after disconnect", !server.isRunning());
+
+		Timer<String> timer = new Timer<String>("wait");
+		boolean anyRunning = true;
+		while (anyRunning && !timer.timeUp("wait", 3000)) {
+			anyRunning = false;
+			for (Client client : clients) {
+				anyRunning |= client.isRunning();
+			}
+			TestTools.sleepForMS(10);
+		}
+		assertTrue("clients were not told to disconnect", !anyRunning);
+	}
+
+	private void waitForConnections(int count) {
+		Timer<String> timer = new Timer<String>("connect");
+		while (server.activeConnections() < count && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+	}
+}
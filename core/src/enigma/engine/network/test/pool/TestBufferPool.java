@@ -0,0 +1,135 @@
+package enigma.engine.network.test.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import enigma.engine.network.BufferPool;
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.Server;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestBufferPool {
+
+	@Test
+	public void testBuffersAreDirectAndSizeClassed() {
+		BufferPool pool = new BufferPool();
+		ByteBuffer small = pool.acquire(10);
+		ByteBuffer medium = pool.acquire(300);
+		ByteBuffer huge = pool.acquire(BufferPool.LARGEST_BUFFER_BYTES + 1);
+
+		assertTrue("pooled buffers should be direct", small.isDirect());
+		assertEquals("small request should use the smallest class", BufferPool.SMALLEST_BUFFER_BYTES, small.capacity());
+		assertEquals("300 bytes should round up to the next power of two", 512, medium.capacity());
+		assertEquals("requests beyond the largest class are exact", BufferPool.LARGEST_BUFFER_BYTES + 1, huge.capacity());
+	}
+
+	@Test
+	public void testReleasedBufferIsReused() {
+		BufferPool pool = new BufferPool();
+		ByteBuffer first = pool.acquire(100);
+		first.putInt(42);
+		pool.release(first);
+
+		ByteBuffer second = pool.acquire(200);
+		assertSame("released buffer was not handed out again", first, second);
+		assertEquals("reused buffer was not cleared", 0, second.position());
+		assertEquals("first acquire should miss", 1, pool.getMisses());
+		assertEquals("second acquire should hit", 1, pool.getHits());
+	}
+
+	@Test
+	public void testFreeBuffersAreBounded() {
+		BufferPool pool = new BufferPool(2, false);
+		ByteBuffer[] buffers = new ByteBuffer[4];
+		for (int i = 0; i < buffers.length; ++i) {
+			buffers[i] = pool.acquire(64);
+		}
+		for (ByteBuffer buffer : buffers) {
+			pool.release(buffer);
+		}
+		for (int i = 0; i < buffers.length; ++i) {
+			pool.acquire(64);
+		}
+		assertEquals("only 2 buffers should have been kept", 2, pool.getHits());
+	}
+
+	@Test
+	public void testDebugModeDetectsDoubleReleaseAndLeaks() {
+		BufferPool pool = new BufferPool(8, true);
+		ByteBuffer buffer = pool.acquire(64);
+		pool.acquire(64);
+		assertEquals("both buffers should be outstanding", 2, pool.getOutstandingCount());
+
+		pool.release(buffer);
+		try {
+			pool.release(buffer);
+			fail("a buffer was released twice without complaint");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals("the unreleased buffer should be reported", 1, pool.reportLeaks());
+	}
+
+	@Test
+	public void testServerReleasesEveryFrameItSends() {
+		int listenPort = 25565;
+		BufferPool pool = new BufferPool(128, true);
+		Server server = new Server(listenPort);
+		server.setBufferPool(pool);
+		Client client = new Client();
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+			TestTools.sleepForMS(200);
+
+			// two rounds, so the second can reuse the buffers released by the first
+			long missesAfterFirstRound = 0;
+			long hitsAfterFirstRound = 0;
+			for (int round = 0; round < 2; ++round) {
+				for (int i = 0; i < 100; ++i) {
+					server.queueToSend(new DemoConcretePacket(i, i, i, i));
+				}
+				Timer<String> timer = new Timer<String>("wait");
+				int received = 0;
+				while (received < 100 && !timer.timeUp("wait", 2000)) {
+					if (client.getNextReceivedPacket() == null) {
+						TestTools.sleepForMS(1);
+					} else {
+						received++;
+					}
+				}
+				assertEquals("client did not receive every packet", 100, received);
+				TestTools.sleepForMS(50);
+				if (round == 0) {
+					missesAfterFirstRound = pool.getMisses();
+					hitsAfterFirstRound = pool.getHits();
+				}
+			}
+
+			// each frame is released just after its bytes are written, which the sleep above allows for
+			assertEquals("frames were not returned to the pool", 0, pool.getOutstandingCount());
+			// every buffer allocated in the first round is free again, so the second round starts on them
+			long reused = pool.getHits() - hitsAfterFirstRound;
+			assertTrue("the second round did not reuse the first round's buffers", reused >= Math.min(missesAfterFirstRound, 100));
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		} finally {
+			client.disconnect();
+			server.disconnect();
+			TestTools.sleepForMS(500);
+		}
+	}
+}
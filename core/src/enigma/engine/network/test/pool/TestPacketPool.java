@@ -0,0 +1,264 @@
+package enigma.engine.network.test.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.BinaryPacketCodec;
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.InPlaceSerializer;
+import enigma.engine.network.Packet;
+import enigma.engine.network.PacketPool;
+import enigma.engine.network.PoolablePacket;
+import enigma.engine.network.Server;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestPacketPool {
+	private static final short TYPE_ID = 100;
+	private static final int BATCH = 50;
+	private int listenPort = 25565;
+	private Server server;
+	private Client client;
+
+	/** pool that received packets are decoded into; one per test, so its counts start at 0 */
+	private PacketPool<PooledPacket> receivePool = newPool(128);
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testReleasedPacketIsResetAndReused() {
+		PacketPool<PooledPacket> pool = newPool(8);
+		PooledPacket first = pool.acquire();
+		first.value = 42;
+		first.release();
+		assertEquals("released packet was not reset", 0, first.value);
+
+		PooledPacket second = pool.acquire();
+		assertSame("released packet was not handed out again", first, second);
+		assertEquals("first acquire should miss", 1, pool.getMisses());
+		assertEquals("second acquire should hit", 1, pool.getHits());
+	}
+
+	@Test
+	public void testFreePacketsAreBounded() {
+		PacketPool<PooledPacket> pool = newPool(2);
+		PooledPacket[] packets = new PooledPacket[4];
+		for (int i = 0; i < packets.length; ++i) {
+			packets[i] = pool.acquire();
+		}
+		for (PooledPacket packet : packets) {
+			packet.release();
+		}
+		assertEquals("only 2 packets should have been kept", 2, pool.getFreeCount());
+	}
+
+	@Test
+	public void testRecycleIgnoresOtherPackets() {
+		// must not throw
+		PacketPool.recycle(new DemoConcretePacket(1, 2, 3, 4));
+		PacketPool.recycle(null);
+	}
+
+	@Test
+	public void testServerReleasesQueuedPacketsInsteadOfCopying() {
+		connect();
+		PacketPool<PooledPacket> sendPool = newPool(128);
+		sendAndReceive(sendPool, 0);
+		// every packet of the first batch is back in the receive pool before the second is sent,
+		// so the second batch is decoded into them before any new packet is created
+		int free = receivePool.getFreeCount();
+		assertEquals("received packets were not all released", receivePool.getMisses(), free);
+		long hits = receivePool.getHits();
+		sendAndReceive(sendPool, BATCH);
+		TestTools.sleepForMS(50);
+
+		// packets released while the loop was queueing were acquired again, so count instances
+		assertEquals("sent packets were not all released", sendPool.getMisses(), sendPool.getFreeCount());
+		assertTrue("received packets were not reused", receivePool.getHits() - hits >= free);
+	}
+
+	@Test
+	public void testClientReleasesQueuedPacketsInsteadOfCopying() {
+		connect();
+		PacketPool<PooledPacket> sendPool = newPool(128);
+		PooledPacket first = null;
+		for (int i = 0; i < 50; ++i) {
+			PooledPacket packet = sendPool.acquire();
+			packet.value = i;
+			if (first == null) {
+				first = packet;
+			}
+			client.queueToSend(packet);
+		}
+		for (int i = 0; i < 50; ++i) {
+			PooledPacket received = waitForPacket(server);
+			assertEquals("packets arrived out of order", i, received.value);
+			assertNotSame("server received the sender's instance", first, received);
+			received.release();
+		}
+		TestTools.sleepForMS(50);
+
+		// packets released while the loop was queueing were acquired again, so count instances
+		assertEquals("sent packets were not all released", sendPool.getMisses(), sendPool.getFreeCount());
+	}
+
+	@Test
+	public void testInPlaceDecodeAllocatesNoPackets() throws IOException {
+		PacketPool<PooledPacket> pool = newPool(8);
+		BinaryPacketCodec codec = new BinaryPacketCodec();
+		codec.register(TYPE_ID, PooledPacket.class, PooledPacket.SERIALIZER, pool);
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		PooledPacket sent = new PooledPacket(null);
+		for (int i = 0; i < 1000; ++i) {
+			sent.value = i;
+			buffer.clear();
+			codec.encode(sent, buffer);
+			buffer.flip();
+			PooledPacket received = (PooledPacket) codec.decode(buffer);
+			assertEquals("packet was not read into", i, received.value);
+			received.release();
+		}
+		assertEquals("only the first decode should create a packet", 1, pool.getMisses());
+	}
+
+	@Test
+	public void testFailedInPlaceDecodeReturnsPacketToPool() {
+		PacketPool<PooledPacket> pool = newPool(8);
+		BinaryPacketCodec codec = new BinaryPacketCodec();
+		codec.register(TYPE_ID, PooledPacket.class, PooledPacket.SERIALIZER, pool);
+		ByteBuffer truncated = ByteBuffer.allocate(3);
+		truncated.putShort(TYPE_ID).put((byte) 1).flip();
+		try {
+			codec.decode(truncated);
+			fail("a truncated packet was decoded");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals("the packet read into was not released", 1, pool.getFreeCount());
+	}
+
+	/**
+	 * Send a batch of packets from the server, numbered from first, and release each one the client
+	 * receives.
+	 */
+	private void sendAndReceive(PacketPool<PooledPacket> sendPool, int first) {
+		for (int i = first; i < first + BATCH; ++i) {
+			PooledPacket packet = sendPool.acquire();
+			packet.value = i;
+			server.queueToSend(packet);
+		}
+		for (int i = first; i < first + BATCH; ++i) {
+			PooledPacket received = waitForPacket(client);
+			assertEquals("packets arrived out of order", i, received.value);
+			received.release();
+		}
+	}
+
+	private void connect() {
+		BinaryPacketCodec codec = BinaryPacketCodec.createDefault();
+		codec.register(TYPE_ID, PooledPacket.class, PooledPacket.SERIALIZER, receivePool);
+		server = new Server(listenPort);
+		server.setCodec(codec);
+		client = new Client();
+		client.setCodec(codec);
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+			TestTools.sleepForMS(200);
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+	}
+
+	private static PooledPacket waitForPacket(Object receiver) {
+		Timer<String> timer = new Timer<String>("wait");
+		while (!timer.timeUp("wait", 2000)) {
+			Packet packet = receiver instanceof Client ? ((Client) receiver).getNextReceivedPacket()
+					: ((Server) receiver).getNextReceivedPacket();
+			if (packet != null) {
+				return (PooledPacket) packet;
+			}
+			TestTools.sleepForMS(1);
+		}
+		fail("packet was not received");
+		return null;
+	}
+
+	private static PacketPool<PooledPacket> newPool(int capacity) {
+		return new PacketPool<PooledPacket>(new PacketPool.Factory<PooledPacket>() {
+			@Override
+			public PooledPacket create(PacketPool<PooledPacket> pool) {
+				return new PooledPacket(pool);
+			}
+		}, capacity);
+	}
+
+	public static class PooledPacket implements PoolablePacket {
+		private static final long serialVersionUID = 1L;
+		private transient PacketPool<PooledPacket> pool;
+		public int value;
+
+		public static final InPlaceSerializer<PooledPacket> SERIALIZER = new InPlaceSerializer<PooledPacket>() {
+			@Override
+			public void write(PooledPacket packet, ByteBuffer out) {
+				out.putInt(packet.value);
+			}
+
+			@Override
+			public PooledPacket read(ByteBuffer in) {
+				// only used without a pool; the tests register one
+				PooledPacket packet = new PooledPacket(null);
+				readInto(packet, in);
+				return packet;
+			}
+
+			@Override
+			public void readInto(PooledPacket packet, ByteBuffer in) {
+				packet.value = in.getInt();
+			}
+		};
+
+		PooledPacket(PacketPool<PooledPacket> pool) {
+			this.pool = pool;
+		}
+
+		@Override
+		public Packet makeCopy() {
+			fail("a pooled packet was copied");
+			return null;
+		}
+
+		@Override
+		public void reset() {
+			value = 0;
+		}
+
+		@Override
+		public void release() {
+			pool.release(this);
+		}
+	}
+}
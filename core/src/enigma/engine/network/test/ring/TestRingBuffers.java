@@ -0,0 +1,187 @@
+package enigma.engine.network.test.ring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.Packet;
+import enigma.engine.network.Server;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestRingBuffers {
+	private static final int PRODUCERS = 4;
+	// more than a ring holds, so the queues overflow while the threads race
+	private static final int PACKETS_PER_PRODUCER = 3000;
+	private int listenPort = 25565;
+	private Server server;
+	private Client client;
+
+	@After
+	public void teardown() {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testServerKeepsEachThreadsOrder() throws InterruptedException {
+		connect();
+		produce(new Sender() {
+			public void send(Packet packet) {
+				server.queueToSend(packet);
+			}
+		});
+		receiveInOrder(new Receiver() {
+			public Packet next() {
+				return client.getNextReceivedPacket();
+			}
+		});
+	}
+
+	@Test
+	public void testClientKeepsEachThreadsOrder() throws InterruptedException {
+		connect();
+		produce(new Sender() {
+			public void send(Packet packet) {
+				client.queueToSend(packet);
+			}
+		});
+		receiveInOrder(new Receiver() {
+			public Packet next() {
+				return server.getNextReceivedPacket();
+			}
+		});
+	}
+
+	/**
+	 * A full ring whose head slot is claimed but not yet filled must not hand out an element that
+	 * overflowed after it. The ring is package private, so it is reached through reflection.
+	 */
+	@Test
+	public void testClaimedHeadIsTakenBeforeOverflow() throws Exception {
+		Class<?> ringClass = Class.forName("enigma.engine.network.RingBuffer");
+		Constructor<?> constructor = ringClass.getDeclaredConstructor(int.class);
+		constructor.setAccessible(true);
+		final Object ring = constructor.newInstance(2);
+		final Method add = ringClass.getDeclaredMethod("add", Object.class);
+		final Method poll = ringClass.getDeclaredMethod("poll");
+		add.setAccessible(true);
+		poll.setAccessible(true);
+
+		// claim the first slot the way a producer does, without filling it yet
+		final AtomicLong tail = (AtomicLong) field(ring, "tail");
+		tail.incrementAndGet();
+		add.invoke(ring, "second");
+		// the ring is full, so this one overflows
+		add.invoke(ring, "third");
+
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				TestTools.sleepForMS(100);
+				try {
+					((Object[]) field(ring, "elements"))[0] = "first";
+					((AtomicLongArray) field(ring, "sequences")).set(0, 1);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		producer.start();
+		assertEquals("an overflowed element passed the claimed head", "first", poll.invoke(ring));
+		assertEquals("second", poll.invoke(ring));
+		assertEquals("third", poll.invoke(ring));
+		assertNull(poll.invoke(ring));
+		producer.join();
+	}
+
+	private static Object field(Object ring, String name) throws Exception {
+		Field field = ring.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(ring);
+	}
+
+	private interface Sender {
+		void send(Packet packet);
+	}
+
+	private interface Receiver {
+		Packet next();
+	}
+
+	/**
+	 * Queue numbered packets from several threads at once; each packet carries its thread in x.
+	 */
+	private void produce(final Sender sender) throws InterruptedException {
+		Thread[] producers = new Thread[PRODUCERS];
+		for (int i = 0; i < PRODUCERS; ++i) {
+			final int producer = i;
+			producers[i] = new Thread(new Runnable() {
+				public void run() {
+					for (int id = 0; id < PACKETS_PER_PRODUCER; ++id) {
+						sender.send(new DemoConcretePacket(id, producer, 0, 0));
+					}
+				}
+			});
+			producers[i].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+	}
+
+	private void receiveInOrder(Receiver receiver) {
+		int[] received = new int[PRODUCERS];
+		int total = 0;
+		Timer<String> timer = new Timer<String>("wait");
+		while (total < PRODUCERS * PACKETS_PER_PRODUCER && !timer.timeUp("wait", 10000)) {
+			DemoConcretePacket packet = (DemoConcretePacket) receiver.next();
+			if (packet == null) {
+				TestTools.sleepForMS(1);
+				continue;
+			}
+			int producer = (int) packet.getX();
+			assertEquals("packets of thread " + producer + " arrived out of order", received[producer], packet.getId());
+			received[producer]++;
+			total++;
+		}
+		assertEquals("packets were lost", PRODUCERS * PACKETS_PER_PRODUCER, total);
+	}
+
+	private void connect() {
+		server = new Server(listenPort);
+		client = new Client();
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+		Timer<String> timer = new Timer<String>("connect");
+		while (client.getPlayerObject() == null && !timer.timeUp("connect", 2000)) {
+			TestTools.sleepForMS(1);
+		}
+		assertTrue("client did not receive an id", client.getPlayerObject() != null);
+	}
+}
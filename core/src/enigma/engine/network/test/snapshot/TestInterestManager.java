@@ -0,0 +1,111 @@
+package enigma.engine.network.test.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import enigma.engine.data.compression.ActorData;
+import enigma.engine.data.compression.ActorDelta;
+import enigma.engine.data.compression.ActorSnapshot;
+import enigma.engine.data.compression.InterestGrid;
+import enigma.engine.data.compression.InterestManager;
+import enigma.engine.data.compression.SnapshotReceiver;
+
+public class TestInterestManager {
+	private static final int ACTORS = 2000;
+	private static final float RADIUS = 300;
+	private static final char PLAYER = 1;
+
+	@Test
+	public void testGridFindsTheSameActorsAsAScan() {
+		ActorSnapshot world = makeWorld(new Random(7));
+		InterestGrid grid = new InterestGrid(256);
+		grid.build(world.getActors());
+		assertEquals("grid lost actors", ACTORS, grid.size());
+
+		Random random = new Random(11);
+		for (int query = 0; query < 50; ++query) {
+			float x = random.nextFloat() * 9000 - 4500;
+			float y = random.nextFloat() * 9000 - 4500;
+			ActorSnapshot found = new ActorSnapshot();
+			grid.query(x, y, RADIUS, found);
+
+			int expected = 0;
+			for (ActorData actor : world.getActors()) {
+				float dx = actor.x - x;
+				float dy = actor.y - y;
+				if (dx * dx + dy * dy <= RADIUS * RADIUS) {
+					assertNotNull("actor " + actor.id + " was missed", found.get(actor.id));
+					++expected;
+				}
+			}
+			assertEquals("actors outside the region were found", expected, found.size());
+		}
+	}
+
+	@Test
+	public void testClientIsOnlySentNearbyActors() {
+		ActorSnapshot world = makeWorld(new Random(3));
+		InterestManager interest = new InterestManager(256);
+		interest.setRegion(PLAYER, 0, 0, RADIUS);
+		interest.update(world);
+		ActorDelta delta = interest.encodeFor(PLAYER);
+
+		SnapshotReceiver receiver = new SnapshotReceiver();
+		ActorSnapshot seen = receiver.apply(decode(delta));
+		assertTrue("client was sent distant actors: " + seen.size(), seen.size() < ACTORS / 10);
+		for (ActorData actor : seen.getActors()) {
+			assertTrue("actor " + actor.id + " is outside the region", Math.hypot(actor.x, actor.y) <= RADIUS + 1);
+		}
+
+		// a client without a region still sees everything
+		assertEquals("client without a region was filtered", ACTORS, interest.encodeFor((char) 2).getChangedCount());
+	}
+
+	@Test
+	public void testActorsLeavingTheRegionAreRemoved() {
+		InterestManager interest = new InterestManager(256);
+		SnapshotReceiver receiver = new SnapshotReceiver();
+		interest.setRegion(PLAYER, 0, 0, RADIUS);
+
+		ActorSnapshot world = new ActorSnapshot();
+		world.add(new ActorData(1, 0, 10, 10, null));
+		world.add(new ActorData(2, 0, 20, 20, null));
+		interest.update(world);
+		receiver.apply(decode(interest.encodeFor(PLAYER)));
+		interest.acknowledge(PLAYER, receiver.getAcknowledgement());
+
+		world = new ActorSnapshot();
+		world.add(new ActorData(1, 0, 10, 10, null));
+		world.add(new ActorData(2, 0, 2000, 20, null));
+		interest.update(world);
+		ActorDelta delta = interest.encodeFor(PLAYER);
+		assertEquals("actor that left was not removed", 1, delta.getRemovedCount());
+		assertEquals("unchanged actor was sent", 0, delta.getChangedCount());
+
+		ActorSnapshot seen = receiver.apply(decode(delta));
+		assertNotNull("nearby actor was lost", seen.get(1));
+		assertNull("distant actor is still seen", seen.get(2));
+	}
+
+	private static ActorSnapshot makeWorld(Random random) {
+		ActorSnapshot world = new ActorSnapshot();
+		for (int i = 0; i < ACTORS; ++i) {
+			world.add(new ActorData(i, 0, random.nextFloat() * 8000 - 4000, random.nextFloat() * 8000 - 4000, null));
+		}
+		return world;
+	}
+
+	private static ActorDelta decode(ActorDelta delta) {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		delta.write(buffer);
+		buffer.flip();
+		return ActorDelta.read(buffer);
+	}
+}
@@ -0,0 +1,203 @@
+package enigma.engine.network.test.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import enigma.engine.data.compression.ActorData;
+import enigma.engine.data.compression.ActorDelta;
+import enigma.engine.data.compression.ActorSnapshot;
+import enigma.engine.data.compression.SnapshotReceiver;
+import enigma.engine.data.compression.SnapshotSender;
+
+public class TestSnapshotDelta {
+	private static final int ACTORS = 100;
+	private static final char PLAYER_A = 1;
+	private static final char PLAYER_B = 2;
+
+	@Test
+	public void testIdleActorsCostNothing() {
+		SnapshotSender sender = new SnapshotSender();
+		ActorDelta full = sender.encode(makeSnapshot(0));
+		assertTrue("first snapshot was not full", full.isFull());
+		assertEquals("full snapshot did not hold every actor", ACTORS, full.getChangedCount());
+
+		sender.acknowledge(PLAYER_A, full.getSequence());
+		ActorDelta idle = sender.encode(makeSnapshot(0));
+		assertTrue("nothing moved, but the delta was not empty", idle.isEmpty());
+		assertEquals("empty delta should only be a 4 byte header", 4, encode(idle).remaining());
+	}
+
+	@Test
+	public void testOnlyChangedFieldsAreSent() {
+		SnapshotSender sender = new SnapshotSender();
+		ActorDelta full = sender.encode(makeSnapshot(0));
+		sender.acknowledge(PLAYER_A, full.getSequence());
+
+		ActorSnapshot moved = makeSnapshot(0);
+		moved.get(7).x += 1;
+		ActorDelta delta = sender.encode(moved);
+		assertEquals("only one actor moved", 1, delta.getChangedCount());
+		// header, then id, field flags and x, bit-packed
+		int bits = ActorData.ID_BITS + ActorData.FIELD_BITS + ActorData.POSITION.getBits();
+		assertEquals("only x should have been written", (4 * 8 + bits + 7) / 8, encode(delta).remaining());
+
+		int fullBytes = encode(full).remaining();
+		System.out.println("\t" + ACTORS + " actors: " + fullBytes + " bytes full, " + encode(delta).remaining()
+				+ " bytes with one actor moved");
+		assertTrue("delta was not much smaller than the full snapshot", encode(delta).remaining() * 50 < fullBytes);
+	}
+
+	@Test
+	public void testRoundTrip() {
+		SnapshotSender sender = new SnapshotSender();
+		SnapshotReceiver receiver = new SnapshotReceiver();
+		ActorSnapshot rebuilt = receiver.apply(decode(sender.encode(makeSnapshot(0))));
+		assertNotNull("full snapshot was not applied", rebuilt);
+		sender.acknowledge(PLAYER_A, receiver.getAcknowledgement());
+
+		ActorSnapshot current = makeSnapshot(0);
+		current.get(3).rotation = 90;
+		current.get(4).y = -5;
+		current.add(new ActorData(500, 1, 2, 3, (char) 9));
+		ActorDelta delta = sender.encode(current);
+		assertEquals("delta was not against the acknowledged snapshot", 0, delta.getBaselineSequence());
+
+		rebuilt = receiver.apply(decode(delta));
+		assertNotNull("delta was not applied", rebuilt);
+		assertSame(current, rebuilt);
+		assertEquals("receiver did not acknowledge the new snapshot", delta.getSequence(), receiver.getAcknowledgement());
+	}
+
+	@Test
+	public void testRemovedActors() {
+		SnapshotSender sender = new SnapshotSender();
+		SnapshotReceiver receiver = new SnapshotReceiver();
+		receiver.apply(decode(sender.encode(makeSnapshot(0))));
+		sender.acknowledge(PLAYER_A, receiver.getAcknowledgement());
+
+		ActorSnapshot current = new ActorSnapshot();
+		current.add(makeSnapshot(0).get(0));
+		ActorDelta delta = sender.encode(current);
+		assertEquals("removed actors were not listed", ACTORS - 1, delta.getRemovedCount());
+		assertEquals("an unchanged actor was sent", 0, delta.getChangedCount());
+
+		ActorSnapshot rebuilt = receiver.apply(decode(delta));
+		assertSame(current, rebuilt);
+	}
+
+	@Test
+	public void testDeltasCanBeReadIntoOneInstance() {
+		SnapshotSender sender = new SnapshotSender();
+		SnapshotReceiver receiver = new SnapshotReceiver();
+		ActorDelta reused = new ActorDelta();
+		reused.readFrom(encode(sender.encode(makeSnapshot(0))));
+		assertEquals("full snapshot was not read", ACTORS, reused.getChangedCount());
+		receiver.apply(reused);
+		sender.acknowledge(PLAYER_A, receiver.getAcknowledgement());
+
+		// a smaller delta read into the same instance must not keep the full snapshot's actors
+		ActorSnapshot current = new ActorSnapshot();
+		current.add(makeSnapshot(1).get(0));
+		reused.readFrom(encode(sender.encode(current)));
+		assertEquals("old actors were kept", 1, reused.getChangedCount());
+		assertEquals("removed actors were not read", ACTORS - 1, reused.getRemovedCount());
+		assertSame(current, receiver.apply(reused));
+	}
+
+	@Test
+	public void testOldestAcknowledgementIsTheBaseline() {
+		SnapshotSender sender = new SnapshotSender();
+		SnapshotReceiver slow = new SnapshotReceiver();
+		SnapshotReceiver fast = new SnapshotReceiver();
+
+		ActorDelta first = sender.encode(makeSnapshot(0));
+		slow.apply(first);
+		fast.apply(first);
+		sender.acknowledge(PLAYER_A, slow.getAcknowledgement());
+		sender.acknowledge(PLAYER_B, fast.getAcknowledgement());
+
+		// the slow client misses every later snapshot, but keeps acknowledging the first
+		for (int i = 1; i < 10; ++i) {
+			ActorDelta delta = sender.encode(makeSnapshot(i));
+			assertEquals("delta was not against the slow client's snapshot", first.getSequence(), delta.getBaselineSequence());
+			assertNotNull("fast client could not apply delta " + i, fast.apply(decode(delta)));
+			sender.acknowledge(PLAYER_B, fast.getAcknowledgement());
+		}
+
+		ActorSnapshot current = makeSnapshot(10);
+		ActorSnapshot rebuilt = slow.apply(decode(sender.encode(current)));
+		assertNotNull("slow client could not apply the newest delta", rebuilt);
+		assertSame(current, rebuilt);
+
+		sender.removePlayer(PLAYER_A);
+		ActorDelta delta = sender.encode(makeSnapshot(11));
+		assertEquals("removed client still held the baseline back", 9, delta.getBaselineSequence());
+	}
+
+	@Test
+	public void testMissingBaselineRequestsFullSnapshot() {
+		SnapshotSender sender = new SnapshotSender();
+		SnapshotReceiver receiver = new SnapshotReceiver();
+		SnapshotReceiver late = new SnapshotReceiver();
+		receiver.apply(sender.encode(makeSnapshot(0)));
+		sender.acknowledge(PLAYER_A, receiver.getAcknowledgement());
+		assertEquals("a receiver with nothing should ask for a full snapshot", ActorDelta.NO_BASELINE,
+				late.getAcknowledgement());
+
+		ActorDelta delta = sender.encode(makeSnapshot(1));
+		assertNull("delta was applied without its baseline", late.apply(delta));
+		assertEquals("missing baseline was not reported", ActorDelta.NO_BASELINE, late.getAcknowledgement());
+
+		sender.acknowledge(PLAYER_B, late.getAcknowledgement());
+		ActorDelta full = sender.encode(makeSnapshot(2));
+		assertTrue("sender did not fall back to a full snapshot", full.isFull());
+		assertNotNull("full snapshot was not applied", late.apply(full));
+		assertEquals(full.getSequence(), late.getAcknowledgement());
+	}
+
+	@Test
+	public void testStaleDeltasAreIgnored() {
+		SnapshotSender sender = new SnapshotSender();
+		SnapshotReceiver receiver = new SnapshotReceiver();
+		ActorDelta older = sender.encode(makeSnapshot(0));
+		ActorDelta newer = sender.encode(makeSnapshot(1));
+		assertNotNull(receiver.apply(newer));
+		assertNull("an older snapshot replaced a newer one", receiver.apply(older));
+		assertNull("a snapshot was applied twice", receiver.apply(newer));
+		assertEquals(newer.getSequence(), receiver.getAcknowledgement());
+	}
+
+	private static ActorSnapshot makeSnapshot(int frame) {
+		ActorSnapshot snapshot = new ActorSnapshot();
+		for (int i = 0; i < ACTORS; ++i) {
+			snapshot.add(new ActorData(i, i, i * 2 + frame, -i, (char) i));
+		}
+		return snapshot;
+	}
+
+	private static ByteBuffer encode(ActorDelta delta) {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		delta.write(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static ActorDelta decode(ActorDelta delta) {
+		return ActorDelta.read(encode(delta));
+	}
+
+	private static void assertSame(ActorSnapshot expected, ActorSnapshot actual) {
+		assertEquals("wrong number of actors", expected.size(), actual.size());
+		for (ActorData actor : expected.getActors()) {
+			ActorData other = actual.get(actor.id);
+			assertNotNull("actor " + actor.id + " is missing", other);
+			assertEquals("actor " + actor.id + " was changed", 0, actor.changedFields(other));
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package enigma.engine.network.test.stresstest;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.Server;
+import enigma.engine.network.test.TestTools;
+
+/**
+ * Measures the time between a client queueing a packet and the server receiving it. Packets are
+ * queued one at a time with idle time in between, so each measurement includes the time the
+ * client's send threads take to notice new work.
+ *
+ * Run as a java application; results are printed to standard out.
+ */
+public class ClientSendLatency_Benchmark {
+	private static final int WARMUP = 200;
+	private static final int SAMPLES = 2000;
+	private static final long IDLE_BETWEEN_SENDS_MS = 2;
+
+	public static void main(String[] args) throws Exception {
+		int listenPort = 25565;
+		Server server = new Server(listenPort);
+		Client client = new Client();
+		server.run();
+		TestTools.sleepForMS(100);
+		client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+		TestTools.sleepForMS(500);
+
+		long[] latencies = new long[SAMPLES];
+		for (int i = 0; i < WARMUP + SAMPLES; ++i) {
+			TestTools.sleepForMS(IDLE_BETWEEN_SENDS_MS);
+			long start = System.nanoTime();
+			client.queueToSend(new DemoConcretePacket(i, i, i, i));
+			while (server.getNextReceivedPacket() == null) {
+				// spin so the receiving side adds no latency of its own
+			}
+			if (i >= WARMUP) {
+				latencies[i - WARMUP] = System.nanoTime() - start;
+			}
+		}
+
+		Arrays.sort(latencies);
+		long sum = 0;
+		for (long latency : latencies) {
+			sum += latency;
+		}
+		System.out.printf("queueToSend -> server receive over %d packets (microseconds)\n", SAMPLES);
+		System.out.printf("mean: %d  p50: %d  p90: %d  p99: %d  max: %d\n", sum / SAMPLES / 1000,
+				latencies[SAMPLES / 2] / 1000, latencies[SAMPLES * 9 / 10] / 1000,
+				latencies[SAMPLES * 99 / 100] / 1000, latencies[SAMPLES - 1] / 1000);
+
+		client.disconnect();
+		server.disconnect();
+		System.exit(0);
+	}
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.fail;
 import java.net.InetAddress;
 import java.util.Scanner;
 
+import enigma.engine.network.BinaryPacketCodec;
 import enigma.engine.network.Client;
 import enigma.engine.network.Server;
 import enigma.engine.network.test.LargePacket;
@@ -26,6 +27,11 @@ public class LargePacket_StressTest {
 			adr = InetAddress.getLocalHost().getHostAddress();
 			client = new Client();
 			server = new Server(listenPort);
+			// send LargePacket as a bulk copy of its float[] rather than through java serialization
+			BinaryPacketCodec codec = BinaryPacketCodec.createDefault();
+			codec.register(LargePacket.TYPE_ID, LargePacket.class, LargePacket.SERIALIZER);
+			client.setCodec(codec);
+			server.setCodec(codec);
 			server.run();
 			TestTools.sleepForMS(100);
 			client.connect(adr, listenPort);
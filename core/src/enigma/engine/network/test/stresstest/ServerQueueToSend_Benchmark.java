@@ -0,0 +1,89 @@
+package enigma.engine.network.test.stresstest;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.NetworkPlayer;
+import enigma.engine.network.Server;
+import enigma.engine.network.test.TestTools;
+
+/**
+ * Measures how long Server.queueToSend() takes per packet with several clients connected, for a
+ * broadcast and for a packet sent to a single client. Each call encodes the packet and finds the
+ * send buffers of its recipients, so the time includes looking up every connection's state.
+ * Clients drain what they receive so the send buffers never fill.
+ *
+ * Run as a java application; results are printed to standard out.
+ */
+public class ServerQueueToSend_Benchmark {
+	private static final int CLIENTS = 6;
+	private static final int WARMUP = 50000;
+	private static final int SAMPLES = 200000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int listenPort = 25565;
+		Server server = new Server(listenPort);
+		server.run();
+		TestTools.sleepForMS(100);
+		final ArrayList<Client> clients = new ArrayList<Client>();
+		for (int i = 0; i < CLIENTS; ++i) {
+			Client client = new Client();
+			client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+			clients.add(client);
+		}
+		TestTools.sleepForMS(500);
+
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					boolean idle = true;
+					for (Client client : clients) {
+						while (client.getNextReceivedPacket() != null) {
+							idle = false;
+						}
+					}
+					if (idle) {
+						Thread.yield();
+					}
+				}
+			}
+		});
+		drain.setDaemon(true);
+		drain.start();
+
+		NetworkPlayer target = clients.get(CLIENTS / 2).getPlayerObject();
+		DemoConcretePacket packet = new DemoConcretePacket(0, 1, 2, 3);
+		for (int i = 0; i < WARMUP; ++i) {
+			server.queueToSend(packet);
+			server.queueToSend(target, packet);
+		}
+
+		System.out.printf("Server.queueToSend with %d clients, %d packets per round (ns per call)\n", CLIENTS, SAMPLES);
+		for (int round = 0; round < ROUNDS; ++round) {
+			long start = System.nanoTime();
+			for (int i = 0; i < SAMPLES; ++i) {
+				server.queueToSend(packet);
+			}
+			long broadcast = (System.nanoTime() - start) / SAMPLES;
+
+			start = System.nanoTime();
+			for (int i = 0; i < SAMPLES; ++i) {
+				server.queueToSend(target, packet);
+			}
+			long unicast = (System.nanoTime() - start) / SAMPLES;
+			System.out.printf("round %d  broadcast: %d  unicast: %d\n", round, broadcast, unicast);
+			// let the send threads catch up between rounds
+			TestTools.sleepForMS(500);
+		}
+
+		drain.interrupt();
+		for (Client client : clients) {
+			client.disconnect();
+		}
+		server.disconnect();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,169 @@
+package enigma.engine.network.test.targeted;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import enigma.engine.network.Client;
+import enigma.engine.network.DemoConcretePacket;
+import enigma.engine.network.FailedToConnect;
+import enigma.engine.network.NetworkPlayer;
+import enigma.engine.network.NioServer;
+import enigma.engine.network.Recipients;
+import enigma.engine.network.Server;
+import enigma.engine.network.ServerEngine;
+import enigma.engine.network.test.TestTools;
+import enigma.engine.network.test.Timer;
+
+public class TestTargetedSends {
+	private static final int CLIENTS = 3;
+	/** id of the broadcast that ends every test's traffic */
+	private static final int END = -1;
+	private int listenPort = 25565;
+	private ServerEngine server;
+	private ArrayList<Client> clients = new ArrayList<Client>();
+
+	@After
+	public void teardown() {
+		for (Client client : clients) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.disconnect();
+		}
+		TestTools.sleepForMS(500);
+	}
+
+	@Test
+	public void testRecipientsIgnoreDuplicates() {
+		Recipients recipients = Recipients.of((char) 3, (char) 1, (char) 3);
+		assertEquals("duplicate id was kept", 2, recipients.size());
+		assertEquals("ids are not sorted", 1, recipients.get(0));
+		assertTrue("with() lost an id", recipients.with((char) 2).contains((char) 2));
+		assertFalse("without() kept an id", recipients.without((char) 3).contains((char) 3));
+		assertTrue("removing every id did not give NONE", recipients.without((char) 1).without((char) 3).isEmpty());
+	}
+
+	@Test
+	public void testUnicastOnlyReachesRecipient() {
+		connect(new Server(listenPort));
+		for (int i = 0; i < 10; ++i) {
+			server.queueToSend(player(0), new DemoConcretePacket(i, i, i, i));
+		}
+		server.queueToSend(new DemoConcretePacket(END, 0, 0, 0));
+
+		assertEquals("recipient did not receive its packets in order", 10, receiveUntilEnd(clients.get(0)));
+		assertEquals("a packet reached another client", 0, receiveUntilEnd(clients.get(1)));
+		assertEquals("a packet reached another client", 0, receiveUntilEnd(clients.get(2)));
+	}
+
+	@Test
+	public void testMulticastWithNioServer() {
+		connect(new NioServer(listenPort));
+		for (int i = 0; i < 10; ++i) {
+			server.queueToSend(Arrays.asList(player(0), player(2)), new DemoConcretePacket(i, i, i, i));
+		}
+		server.queueToSend(new DemoConcretePacket(END, 0, 0, 0));
+
+		assertEquals("recipient did not receive its packets in order", 10, receiveUntilEnd(clients.get(0)));
+		assertEquals("a packet reached another client", 0, receiveUntilEnd(clients.get(1)));
+		assertEquals("recipient did not receive its packets in order", 10, receiveUntilEnd(clients.get(2)));
+	}
+
+	@Test
+	public void testGroupSends() {
+		connect(new Server(listenPort));
+		server.addToGroup("red", player(1));
+		server.addToGroup("red", player(2));
+		server.removeFromGroup("red", player(2));
+		for (int i = 0; i < 10; ++i) {
+			server.queueToSendToGroup("red", new DemoConcretePacket(i, i, i, i));
+		}
+		server.queueToSendToGroup("empty", new DemoConcretePacket(100, 0, 0, 0));
+		server.queueToSend(new DemoConcretePacket(END, 0, 0, 0));
+
+		assertEquals("a packet reached a client outside the group", 0, receiveUntilEnd(clients.get(0)));
+		assertEquals("group member did not receive its packets", 10, receiveUntilEnd(clients.get(1)));
+		assertEquals("a removed member still received packets", 0, receiveUntilEnd(clients.get(2)));
+	}
+
+	@Test
+	public void testDisconnectedPlayersLeaveGroups() {
+		connect(new NioServer(listenPort));
+		NetworkPlayer leaving = player(0);
+		server.addToGroup("red", leaving);
+		assertTrue("player was not added", server.getGroup("red").contains(leaving.getID()));
+
+		clients.get(0).disconnect();
+		Timer<String> timer = new Timer<String>("wait");
+		while (server.activeConnections() != CLIENTS - 1 && !timer.timeUp("wait", 6000)) {
+			TestTools.sleepForMS(10);
+		}
+		assertTrue("disconnected player is still in the group", server.getGroup("red").isEmpty());
+		assertEquals("disconnected player is still listed", CLIENTS - 1, server.getConnectedPlayers().size());
+
+		server.addToGroup("red", leaving);
+		assertTrue("a disconnected player was added", server.getGroup("red").isEmpty());
+	}
+
+	private void connect(ServerEngine engine) {
+		server = engine;
+		try {
+			server.run();
+			TestTools.sleepForMS(30);
+			for (int i = 0; i < CLIENTS; ++i) {
+				Client client = new Client();
+				client.connect(InetAddress.getLocalHost().getHostAddress(), listenPort);
+				clients.add(client);
+			}
+		} catch (IOException | FailedToConnect e) {
+			e.printStackTrace();
+			fail("failed to set up in: " + this.getClass().toString());
+		}
+		Timer<String> timer = new Timer<String>("connect");
+		boolean ready = false;
+		while (!ready && !timer.timeUp("connect", 2000)) {
+			ready = server.activeConnections() == CLIENTS;
+			for (Client client : clients) {
+				ready &= client.getPlayerObject() != null;
+			}
+			TestTools.sleepForMS(1);
+		}
+		assertTrue("clients did not all receive an id", ready);
+	}
+
+	private NetworkPlayer player(int client) {
+		return clients.get(client).getPlayerObject();
+	}
+
+	/**
+	 * @return the number of packets received before the END broadcast, which must be numbered
+	 *         from 0.
+	 */
+	private int receiveUntilEnd(Client client) {
+		Timer<String> timer = new Timer<String>("wait");
+		int received = 0;
+		while (!timer.timeUp("wait", 2000)) {
+			DemoConcretePacket packet = (DemoConcretePacket) client.getNextReceivedPacket();
+			if (packet == null) {
+				TestTools.sleepForMS(1);
+			} else if (packet.getId() == END) {
+				return received;
+			} else {
+				assertEquals("packets arrived out of order", received, packet.getId());
+				received++;
+			}
+		}
+		fail("the final broadcast was not received");
+		return received;
+	}
+}